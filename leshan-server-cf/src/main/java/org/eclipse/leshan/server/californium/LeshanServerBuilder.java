@@ -20,6 +20,8 @@ import java.net.InetSocketAddress;
 
 import org.eclipse.leshan.server.LwM2mServer;
 import org.eclipse.leshan.server.californium.impl.LeshanServer;
+import org.eclipse.leshan.server.californium.impl.LeshanServerConfig;
+import org.eclipse.leshan.server.californium.impl.NotificationPipeline;
 import org.eclipse.leshan.server.client.ClientRegistry;
 import org.eclipse.leshan.server.impl.ClientRegistryImpl;
 import org.eclipse.leshan.server.impl.ObservationRegistryImpl;
@@ -27,6 +29,10 @@ import org.eclipse.leshan.server.impl.SecurityRegistryImpl;
 import org.eclipse.leshan.server.model.LwM2mModelProvider;
 import org.eclipse.leshan.server.model.StandardModelProvider;
 import org.eclipse.leshan.server.observation.ObservationRegistry;
+import org.eclipse.leshan.server.observation.ObservationStore;
+import org.eclipse.leshan.server.request.ClientRequestQueue;
+import org.eclipse.leshan.server.request.ReadCache;
+import org.eclipse.leshan.server.request.RequestTimeouts;
 import org.eclipse.leshan.server.security.SecurityRegistry;
 
 /**
@@ -48,6 +54,22 @@ public class LeshanServerBuilder {
     private LwM2mModelProvider modelProvider;
     private InetSocketAddress localAddress;
     private InetSocketAddress localAddressSecure;
+    private int notificationThreads = NotificationPipeline.DEFAULT_THREADS;
+    private int notificationQueueCapacity = NotificationPipeline.DEFAULT_QUEUE_CAPACITY;
+    private ObservationStore observationStore;
+    private boolean suppressDuplicateNotifications = false;
+    private RequestTimeouts requestTimeouts;
+    private int requestWindow = ClientRequestQueue.DEFAULT_WINDOW;
+    private int maxRequestQueueDepth = ClientRequestQueue.DEFAULT_MAX_QUEUE_DEPTH;
+    private boolean coalesceReads = true;
+    private boolean adaptiveTimeouts = false;
+    private long queueModeAwakeTime = ClientRequestQueue.DEFAULT_AWAKE_TIME_MILLIS;
+    private long queueModeTtl = ClientRequestQueue.DEFAULT_QUEUE_MODE_TTL_MILLIS;
+    private int maxInFlightRequests = 0;
+    private long starvationThreshold = ClientRequestQueue.DEFAULT_STARVATION_THRESHOLD_MILLIS;
+    private long readCacheMaxAge = 0;
+    private long readCacheMemoryBudget = ReadCache.DEFAULT_MEMORY_BUDGET;
+    private long readAggregationWindow = 0;
 
     public LeshanServerBuilder setLocalAddress(String hostname, int port) {
         this.localAddress = new InetSocketAddress(hostname, port);
@@ -89,6 +111,161 @@ public class LeshanServerBuilder {
         return this;
     }
 
+    /**
+     * Sets the number of threads processing the observe notifications (one per available processor by default).
+     */
+    public LeshanServerBuilder setNotificationThreads(int notificationThreads) {
+        this.notificationThreads = notificationThreads;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of notifications waiting for each notification thread, beyond which notifications are
+     * dropped (10000 by default).
+     */
+    public LeshanServerBuilder setNotificationQueueCapacity(int notificationQueueCapacity) {
+        this.notificationQueueCapacity = notificationQueueCapacity;
+        return this;
+    }
+
+    /**
+     * Sets the store saving the observations so they survive a server restart. A custom observation registry must
+     * save its observations in the same store.
+     * <p>
+     * An observation is only restored once the registration of its client is known: with the default in-memory
+     * client registry, the registrations must be imported from a snapshot (see
+     * {@link ClientRegistry#importFrom(java.nio.channels.ReadableByteChannel)}), the observations of the
+     * registrations never imported are dropped after a day.
+     * </p>
+     */
+    public LeshanServerBuilder setObservationStore(ObservationStore observationStore) {
+        this.observationStore = observationStore;
+        return this;
+    }
+
+    /**
+     * Skips the decoding and dispatching of the notifications whose payload did not change since the last dispatched
+     * one (disabled by default).
+     */
+    public LeshanServerBuilder setSuppressDuplicateNotifications(boolean suppressDuplicateNotifications) {
+        this.suppressDuplicateNotifications = suppressDuplicateNotifications;
+        return this;
+    }
+
+    /**
+     * Sets the deadlines of the requests sent to the clients, per request type and per client (5 seconds for all the
+     * requests by default).
+     * <p>
+     * The deadlines apply to all the requests, asynchronous ones and observe requests included: a request whose
+     * deadline is reached fails and its CoAP exchange is cancelled, even if the CoAP layer would still retransmit it
+     * (until the MAX_TRANSMIT_WAIT of the endpoint, 93 seconds with the default CoAP configuration). To let the CoAP
+     * layer retransmit the requests as before, use a deadline of at least the MAX_TRANSMIT_WAIT (see
+     * {@link RequestTimeouts#maxTransmitWait(long, float, int)}) for the concerned request types or clients.
+     * </p>
+     */
+    public LeshanServerBuilder setRequestTimeouts(RequestTimeouts requestTimeouts) {
+        this.requestTimeouts = requestTimeouts;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of requests in flight per client (1 by default, as CoAP NSTART). The other requests are
+     * queued.
+     */
+    public LeshanServerBuilder setRequestWindow(int requestWindow) {
+        this.requestWindow = requestWindow;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of requests queued per client, beyond which requests are rejected (32 by default).
+     */
+    public LeshanServerBuilder setMaxRequestQueueDepth(int maxRequestQueueDepth) {
+        this.maxRequestQueueDepth = maxRequestQueueDepth;
+        return this;
+    }
+
+    /**
+     * Attaches the read and discover requests to the identical requests already in flight to the same client (enabled
+     * by default).
+     */
+    public LeshanServerBuilder setCoalesceReads(boolean coalesceReads) {
+        this.coalesceReads = coalesceReads;
+        return this;
+    }
+
+    /**
+     * Answers the reads from the values already read or notified if they are not older than the given max-age (in ms).
+     * The cache is disabled by default (max-age of 0).
+     */
+    public LeshanServerBuilder setReadCacheMaxAge(long maxAge) {
+        this.readCacheMaxAge = maxAge;
+        return this;
+    }
+
+    /**
+     * Sets the maximum estimated memory used by the values of the read cache (in bytes, 16 MB by default).
+     */
+    public LeshanServerBuilder setReadCacheMemoryBudget(long memoryBudget) {
+        this.readCacheMemoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * Merges the resource reads sent to the same object instance within the given window (in ms) into one instance
+     * read. The aggregation is disabled by default (window of 0).
+     */
+    public LeshanServerBuilder setReadAggregationWindow(long window) {
+        this.readAggregationWindow = window;
+        return this;
+    }
+
+    /**
+     * Derives the timeout of the requests sent to each client from its round-trip times (disabled by default). The
+     * adaptive timeout is never shorter than the MAX_TRANSMIT_WAIT of the CoAP endpoint. Ignored if the request
+     * timeouts are set with {@link #setRequestTimeouts(RequestTimeouts)}.
+     */
+    public LeshanServerBuilder setAdaptiveTimeouts(boolean adaptiveTimeouts) {
+        this.adaptiveTimeouts = adaptiveTimeouts;
+        return this;
+    }
+
+    /**
+     * Sets how long a queue mode client (UQ binding) accepts requests after a registration or an update, in
+     * milliseconds (93 seconds by default).
+     */
+    public LeshanServerBuilder setQueueModeAwakeTime(long awakeTime) {
+        this.queueModeAwakeTime = awakeTime;
+        return this;
+    }
+
+    /**
+     * Sets how long a request waits for its sleeping queue mode client before it expires, in milliseconds (1 hour by
+     * default).
+     */
+    public LeshanServerBuilder setQueueModeTtl(long ttl) {
+        this.queueModeTtl = ttl;
+        return this;
+    }
+
+    /**
+     * Limits the number of requests in flight to all the clients (no limit by default). Normal priority requests may
+     * use 80% of the limit, bulk requests 50%.
+     */
+    public LeshanServerBuilder setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+        return this;
+    }
+
+    /**
+     * Sets the time after which a queued request is sent before the higher priority ones, in milliseconds (5 seconds
+     * by default).
+     */
+    public LeshanServerBuilder setStarvationThreshold(long starvationThreshold) {
+        this.starvationThreshold = starvationThreshold;
+        return this;
+    }
+
     public LeshanServer build() {
         if (localAddress == null)
             localAddress = new InetSocketAddress((InetAddress) null, PORT);
@@ -99,11 +276,37 @@ public class LeshanServerBuilder {
         if (securityRegistry == null)
             securityRegistry = new SecurityRegistryImpl();
         if (observationRegistry == null)
-            observationRegistry = new ObservationRegistryImpl();
+            observationRegistry = new ObservationRegistryImpl(observationStore);
         if (modelProvider == null) {
             modelProvider = new StandardModelProvider();
         }
-        return new LeshanServer(localAddress, localAddressSecure, clientRegistry, securityRegistry,
-                observationRegistry, modelProvider);
+        LeshanServerConfig config = new LeshanServerConfig();
+        config.setNotificationThreads(notificationThreads);
+        config.setNotificationQueueCapacity(notificationQueueCapacity);
+        config.setObservationStore(observationStore);
+        config.setRequestTimeouts(requestTimeouts);
+        LeshanServer server = new LeshanServer(localAddress, localAddressSecure, clientRegistry, securityRegistry,
+                observationRegistry, modelProvider, config);
+        server.getNotificationPipeline().setSuppressDuplicates(suppressDuplicateNotifications);
+        server.getRequestQueue().setWindow(requestWindow);
+        server.getRequestQueue().setMaxQueueDepth(maxRequestQueueDepth);
+        server.getRequestQueue().setAwakeTime(queueModeAwakeTime);
+        server.getRequestQueue().setQueueModeTtl(queueModeTtl);
+        server.getRequestQueue().setMaxInFlight(maxInFlightRequests);
+        server.getRequestQueue().setStarvationThreshold(starvationThreshold);
+        server.getRequestCoalescer().setEnabled(coalesceReads);
+        if (requestTimeouts == null) {
+            server.getRequestTimeouts().setAdaptive(adaptiveTimeouts);
+        }
+        if (readAggregationWindow > 0) {
+            server.getReadAggregator().setWindow(readAggregationWindow);
+            server.getReadAggregator().setEnabled(true);
+        }
+        if (readCacheMaxAge > 0) {
+            server.getReadCache().setDefaultMaxAge(readCacheMaxAge);
+            server.getReadCache().setMemoryBudget(readCacheMemoryBudget);
+            server.getReadCache().setEnabled(true);
+        }
+        return server;
     }
 }
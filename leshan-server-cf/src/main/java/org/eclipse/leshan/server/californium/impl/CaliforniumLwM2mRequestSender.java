@@ -18,42 +18,61 @@ package org.eclipse.leshan.server.californium.impl;
 import java.net.InetSocketAddress;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 
 import org.eclipse.californium.core.coap.MessageObserverAdapter;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.leshan.core.model.LwM2mModel;
 import org.eclipse.leshan.core.request.DownlinkRequest;
 import org.eclipse.leshan.core.request.exception.RejectionException;
 import org.eclipse.leshan.core.request.exception.RequestTimeoutException;
-import org.eclipse.leshan.core.request.exception.ResourceAccessException;
 import org.eclipse.leshan.core.response.ExceptionConsumer;
 import org.eclipse.leshan.core.response.LwM2mResponse;
 import org.eclipse.leshan.core.response.ResponseConsumer;
+import org.eclipse.leshan.server.Destroyable;
 import org.eclipse.leshan.server.client.Client;
 import org.eclipse.leshan.server.client.ClientRegistry;
 import org.eclipse.leshan.server.model.LwM2mModelProvider;
 import org.eclipse.leshan.server.observation.ObservationRegistry;
+import org.eclipse.leshan.server.request.ClientRequestQueue;
+import org.eclipse.leshan.server.request.HashedWheelTimer;
+import org.eclipse.leshan.server.request.LwM2mFuture;
 import org.eclipse.leshan.server.request.LwM2mRequestSender;
+import org.eclipse.leshan.server.request.ReadAggregator;
+import org.eclipse.leshan.server.request.ReadCache;
+import org.eclipse.leshan.server.request.RequestCoalescer;
+import org.eclipse.leshan.server.request.RequestPriority;
+import org.eclipse.leshan.server.request.RequestTimeouts;
 import org.eclipse.leshan.util.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender {
+public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender, Destroyable {
 
     private static final Logger LOG = LoggerFactory.getLogger(CaliforniumLwM2mRequestSender.class);
 
+    /** How long a synchronous request may wait in the queue of its client, on top of its timeout */
+    public static final long DEFAULT_SYNC_QUEUE_ALLOWANCE_MILLIS = 5000;
+
     private final Set<Endpoint> endpoints;
     private final ClientRegistry clientRegistry;
     private final ObservationRegistry observationRegistry;
     private final LwM2mModelProvider modelProvider;
-    private final long timeoutMillis;
+    private final RequestTimeouts requestTimeouts;
+    private final HashedWheelTimer timer;
+    private final boolean ownTimer;
+    private final NotificationPipeline notificationPipeline;
+    private final ClientRequestQueue requestQueue;
+    private final ReadAggregator readAggregator;
+    private final RequestCoalescer coalescer;
+    private final ReadCache readCache;
+    private final EncodedPayloads encodedPayloads = new EncodedPayloads();
+    private volatile long syncQueueAllowance = DEFAULT_SYNC_QUEUE_ALLOWANCE_MILLIS;
 
     /**
      * @param endpoints the CoAP endpoints to use for sending requests
@@ -64,76 +83,289 @@ public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender {
      */
     public CaliforniumLwM2mRequestSender(final Set<Endpoint> endpoints, final ClientRegistry clientRegistry,
             final ObservationRegistry observationRegistry, LwM2mModelProvider modelProvider, final long timeoutMillis) {
+        this(endpoints, clientRegistry, observationRegistry, modelProvider, timeoutMillis, null);
+    }
+
+    /**
+     * @param endpoints the CoAP endpoints to use for sending requests
+     * @param clientRegistry the registry which stores all the registered clients
+     * @param observationRegistry the registry for keeping track of observed resources
+     * @param modelProvider provides the supported objects definitions
+     * @param timeoutMillis timeout for synchronously sending of CoAP request
+     * @param notificationPipeline processes the notifications of the created observations (<code>null</code> to
+     *        process them on the CoAP protocol threads)
+     */
+    public CaliforniumLwM2mRequestSender(final Set<Endpoint> endpoints, final ClientRegistry clientRegistry,
+            final ObservationRegistry observationRegistry, LwM2mModelProvider modelProvider, final long timeoutMillis,
+            final NotificationPipeline notificationPipeline) {
+        this(endpoints, clientRegistry, observationRegistry, modelProvider, new RequestTimeouts(timeoutMillis), null,
+                notificationPipeline);
+    }
+
+    /**
+     * @param endpoints the CoAP endpoints to use for sending requests
+     * @param clientRegistry the registry which stores all the registered clients
+     * @param observationRegistry the registry for keeping track of observed resources
+     * @param modelProvider provides the supported objects definitions
+     * @param requestTimeouts the deadlines of the requests, synchronous or not
+     * @param timer the timer enforcing the deadlines (<code>null</code> to use a timer owned by this sender, stopped
+     *        by {@link #destroy()})
+     * @param notificationPipeline processes the notifications of the created observations (<code>null</code> to
+     *        process them on the CoAP protocol threads)
+     */
+    public CaliforniumLwM2mRequestSender(final Set<Endpoint> endpoints, final ClientRegistry clientRegistry,
+            final ObservationRegistry observationRegistry, LwM2mModelProvider modelProvider,
+            final RequestTimeouts requestTimeouts, final HashedWheelTimer timer,
+            final NotificationPipeline notificationPipeline) {
         Validate.notNull(endpoints);
         Validate.notNull(observationRegistry);
         Validate.notNull(modelProvider);
+        Validate.notNull(requestTimeouts);
         this.clientRegistry = clientRegistry;
         this.observationRegistry = observationRegistry;
         this.endpoints = endpoints;
-        this.timeoutMillis = timeoutMillis;
+        this.requestTimeouts = requestTimeouts;
+        this.ownTimer = timer == null;
+        this.timer = timer == null ? new HashedWheelTimer() : timer;
         this.modelProvider = modelProvider;
+        this.notificationPipeline = notificationPipeline;
+        this.requestQueue = new ClientRequestQueue(new ClientRequestQueue.Dispatcher() {
+            @Override
+            public <T extends LwM2mResponse> void dispatch(Client destination, DownlinkRequest<T> request,
+                    LwM2mFuture<T> future) {
+                CaliforniumLwM2mRequestSender.this.dispatch(destination, request, future);
+            }
+        }, ClientRequestQueue.DEFAULT_WINDOW, ClientRequestQueue.DEFAULT_MAX_QUEUE_DEPTH, this.timer);
+        this.readAggregator = new ReadAggregator(new RequestCoalescer.Sender() {
+            @Override
+            public <T extends LwM2mResponse> LwM2mFuture<T> send(Client destination, DownlinkRequest<T> request,
+                    RequestPriority priority) {
+                return requestQueue.submit(destination, request, priority);
+            }
+        });
+        this.coalescer = new RequestCoalescer(new RequestCoalescer.Sender() {
+            @Override
+            public <T extends LwM2mResponse> LwM2mFuture<T> send(Client destination, DownlinkRequest<T> request,
+                    RequestPriority priority) {
+                return readAggregator.send(destination, request, priority);
+            }
+        });
+        this.readCache = new ReadCache(new RequestCoalescer.Sender() {
+            @Override
+            public <T extends LwM2mResponse> LwM2mFuture<T> send(Client destination, DownlinkRequest<T> request,
+                    RequestPriority priority) {
+                return coalescer.submit(destination, request, priority);
+            }
+        });
     }
 
+    /**
+     * Sends a request and waits for its response, for at most the timeout of the request plus the queueing allowance
+     * (see {@link #setSyncQueueAllowance(long)}). A request still queued when the wait expires (e.g. for a sleeping
+     * queue mode client) is cancelled and fails with a {@link RequestTimeoutException}, without deregistering the
+     * client: use {@link #sendAsync(Client, DownlinkRequest)} to wait for the client to wake up.
+     */
     @Override
     public <T extends LwM2mResponse> T send(final Client destination, final DownlinkRequest<T> request) {
+        LwM2mFuture<T> future = sendAsync(destination, request);
+        long wait = getTimeout(destination, request) + syncQueueAllowance;
+        try {
+            return future.get(wait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new RequestTimeoutException(request.getPath().toString(), wait);
+        } catch (InterruptedException e) {
+            // go ahead as if the timeout had been reached
+            LOG.debug("Caught an unexpected InterruptedException during execution of CoAP request", e);
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RequestTimeoutException || cause instanceof TimeoutException) {
+                clientRegistry.deregisterClient(destination.getRegistrationId());
+                if (cause instanceof RequestTimeoutException) {
+                    throw (RequestTimeoutException) cause;
+                }
+                throw new RequestTimeoutException(request.getPath().toString(), getTimeout(destination, request));
+            } else if (cause instanceof RejectionException) {
+                return null;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
 
-        // Retrieve the objects definition
-        final LwM2mModel model = modelProvider.getObjectModel(destination);
-
-        // Create the CoAP request from LwM2m request
-        final CoapRequestBuilder coapRequestBuilder = new CoapRequestBuilder(destination, model);
-        request.accept(coapRequestBuilder);
-        final Request coapRequest = coapRequestBuilder.getRequest();
+    @Override
+    public <T extends LwM2mResponse> void send(final Client destination, final DownlinkRequest<T> request,
+            final ResponseConsumer<T> responseCallback, final ExceptionConsumer errorCallback) {
+        sendAsync(destination, request).addCallback(new LwM2mFuture.Callback<T>() {
 
-        // Send CoAP request synchronously
-        final SyncRequestObserver<T> syncMessageObserver = new SyncRequestObserver<T>(coapRequest, destination,
-                timeoutMillis) {
             @Override
-            public T buildResponse(final Response coapResponse) {
-                // Build LwM2m response
-                final LwM2mResponseBuilder<T> lwm2mResponseBuilder = new LwM2mResponseBuilder<T>(coapRequest,
-                        coapResponse, client, model, observationRegistry);
-                request.accept(lwm2mResponseBuilder);
-                return lwm2mResponseBuilder.getResponse();
+            public void onSuccess(T response) {
+                if (response != null) {
+                    responseCallback.accept(response);
+                }
             }
-        };
-        coapRequest.addMessageObserver(syncMessageObserver);
 
-        // Send CoAP request asynchronously
-        final Endpoint endpoint = getEndpointForClient(destination);
-        endpoint.sendRequest(coapRequest);
+            @Override
+            public void onFailure(Exception e) {
+                errorCallback.accept(e);
+            }
+        });
+    }
 
-        // Wait for response, then return it
-        return syncMessageObserver.waitForResponse();
+    @Override
+    public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(final Client destination,
+            final DownlinkRequest<T> request) {
+        return sendAsync(destination, request, RequestPriority.NORMAL);
     }
 
     @Override
-    public <T extends LwM2mResponse> void send(final Client destination, final DownlinkRequest<T> request,
-            final ResponseConsumer<T> responseCallback, final ExceptionConsumer errorCallback) {
+    public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(final Client destination,
+            final DownlinkRequest<T> request, final RequestPriority priority) {
+        return readCache.send(destination, request, priority);
+    }
+
+    /**
+     * Sends a request which has been given a slot in the window of its client.
+     */
+    private <T extends LwM2mResponse> void dispatch(final Client destination, final DownlinkRequest<T> request,
+            final LwM2mFuture<T> future) {
         // Retrieve the objects definition
         final LwM2mModel model = modelProvider.getObjectModel(destination);
 
         // Create the CoAP request from LwM2m request
-        final CoapRequestBuilder coapRequestBuilder = new CoapRequestBuilder(destination, model);
+        final CoapRequestBuilder coapRequestBuilder = new CoapRequestBuilder(destination, model, encodedPayloads);
         request.accept(coapRequestBuilder);
         final Request coapRequest = coapRequestBuilder.getRequest();
 
         // Add CoAP request callback
-        coapRequest.addMessageObserver(new AsyncRequestObserver<T>(coapRequest, destination, responseCallback,
-                errorCallback) {
+        coapRequest.addMessageObserver(new FutureRequestObserver<T>(coapRequest, destination, future) {
             @Override
             public T buildResponse(final Response coapResponse) {
                 // Build LwM2m response
                 final LwM2mResponseBuilder<T> lwm2mResponseBuilder = new LwM2mResponseBuilder<T>(coapRequest,
-                        coapResponse, client, model, observationRegistry);
+                        coapResponse, client, model, observationRegistry, notificationPipeline);
                 request.accept(lwm2mResponseBuilder);
                 return lwm2mResponseBuilder.getResponse();
             }
         });
 
+        // cancelling the future cancels the CoAP exchange
+        future.setCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                coapRequest.cancel();
+            }
+        });
+
         // Send CoAP request asynchronously
         final Endpoint endpoint = getEndpointForClient(destination);
         endpoint.sendRequest(coapRequest);
+
+        // fail the request and cancel the CoAP exchange when the deadline is reached
+        final long timeout = getTimeout(destination, request);
+        final HashedWheelTimer.Timeout deadline = timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                if (future.fail(new RequestTimeoutException(coapRequest.getURI(), timeout))) {
+                    coapRequest.cancel();
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        future.addCallback(new LwM2mFuture.Callback<T>() {
+            @Override
+            public void onSuccess(T response) {
+                deadline.cancel();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                deadline.cancel();
+            }
+        });
+    }
+
+    /**
+     * @return the per-client windows of in-flight requests
+     */
+    public ClientRequestQueue getRequestQueue() {
+        return requestQueue;
+    }
+
+    /**
+     * @return the coalescer of the identical read requests
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * @return the aggregator of the concurrent resource reads of an instance
+     */
+    public ReadAggregator getReadAggregator() {
+        return readAggregator;
+    }
+
+    /**
+     * @return the cache of the resource values read by the requests
+     */
+    public ReadCache getReadCache() {
+        return readCache;
+    }
+
+    /**
+     * @return the payloads encoded for the requests sent to several clients
+     */
+    public EncodedPayloads getEncodedPayloads() {
+        return encodedPayloads;
+    }
+
+    /**
+     * @return the deadlines of the requests
+     */
+    public RequestTimeouts getRequestTimeouts() {
+        return requestTimeouts;
+    }
+
+    /**
+     * Stops the timer enforcing the deadlines, if it is owned by this sender.
+     */
+    @Override
+    public void destroy() {
+        readAggregator.stop();
+        if (ownTimer) {
+            timer.stop();
+        }
+    }
+
+    public long getSyncQueueAllowance() {
+        return syncQueueAllowance;
+    }
+
+    /**
+     * @param allowance how long a synchronous request may wait in the queue of its client on top of its timeout, in
+     *        milliseconds
+     */
+    public void setSyncQueueAllowance(long allowance) {
+        Validate.isTrue(allowance >= 0, "allowance must not be negative");
+        this.syncQueueAllowance = allowance;
+    }
+
+    /**
+     * @return the deadline of a request, the adaptive timeouts being floored at the MAX_TRANSMIT_WAIT of the endpoint
+     *         used to send it
+     */
+    private long getTimeout(final Client destination, final DownlinkRequest<?> request) {
+        NetworkConfig config = getEndpointForClient(destination).getConfig();
+        long maxTransmitWait = RequestTimeouts.maxTransmitWait(config.getInt(NetworkConfig.Keys.ACK_TIMEOUT),
+                config.getFloat(NetworkConfig.Keys.ACK_RANDOM_FACTOR),
+                config.getInt(NetworkConfig.Keys.MAX_RETRANSMIT));
+        return requestTimeouts.getTimeout(destination, request, maxTransmitWait);
     }
 
     /**
@@ -170,120 +402,54 @@ public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender {
         public abstract T buildResponse(Response coapResponse);
     }
 
-    private abstract class AsyncRequestObserver<T extends LwM2mResponse> extends AbstractRequestObserver<T> {
+    private abstract class FutureRequestObserver<T extends LwM2mResponse> extends AbstractRequestObserver<T> {
 
-        ResponseConsumer<T> responseCallback;
-        ExceptionConsumer errorCallback;
+        LwM2mFuture<T> future;
+        private final long sentNanos = System.nanoTime();
+        private volatile int retransmissions = 0;
 
-        AsyncRequestObserver(final Request coapRequest, final Client client,
-                final ResponseConsumer<T> responseCallback, final ExceptionConsumer errorCallback) {
+        FutureRequestObserver(final Request coapRequest, final Client client, final LwM2mFuture<T> future) {
             super(coapRequest, client);
-            this.responseCallback = responseCallback;
-            this.errorCallback = errorCallback;
-        }
-
-        @Override
-        public void onResponse(final Response coapResponse) {
-            LOG.debug("Received coap response: {}", coapResponse);
-            try {
-                final T lwM2mResponseT = buildResponse(coapResponse);
-                if (lwM2mResponseT != null) {
-                    responseCallback.accept(lwM2mResponseT);
-                }
-            } catch (final ResourceAccessException e) {
-                errorCallback.accept(e);
-            } finally {
-                coapRequest.removeMessageObserver(this);
-            }
+            this.future = future;
         }
 
         @Override
-        public void onTimeout() {
-            clientRegistry.deregisterClient(client.getRegistrationId());
-            errorCallback.accept(new TimeoutException());
-        }
-
-        @Override
-        public void onCancel() {
-            errorCallback.accept(new CancellationException());
-        }
-
-        @Override
-        public void onReject() {
-            errorCallback.accept(new RejectionException());
-        }
-
-    }
-
-    private abstract class SyncRequestObserver<T extends LwM2mResponse> extends AbstractRequestObserver<T> {
-
-        CountDownLatch latch = new CountDownLatch(1);
-        AtomicReference<T> ref = new AtomicReference<T>(null);
-        AtomicBoolean coapTimeout = new AtomicBoolean(false);
-        AtomicReference<RuntimeException> exception = new AtomicReference<>();
-
-        long timeout;
-
-        public SyncRequestObserver(final Request coapRequest, final Client client, final long timeout) {
-            super(coapRequest, client);
-            this.timeout = timeout;
+        public void onRetransmission() {
+            retransmissions++;
         }
 
         @Override
         public void onResponse(final Response coapResponse) {
             LOG.debug("Received coap response: {}", coapResponse);
+            // only the first response of an observation is a round-trip
+            if (!future.isDone()) {
+                client.getRttEstimator().addSample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentNanos),
+                        retransmissions);
+            }
             try {
-                final T lwM2mResponseT = buildResponse(coapResponse);
-                if (lwM2mResponseT != null) {
-                    ref.set(lwM2mResponseT);
-                }
+                future.complete(buildResponse(coapResponse));
             } catch (final RuntimeException e) {
-                exception.set(e);
+                future.fail(e);
             } finally {
-                latch.countDown();
+                coapRequest.removeMessageObserver(this);
             }
         }
 
         @Override
         public void onTimeout() {
-            coapTimeout.set(true);
-            latch.countDown();
+            clientRegistry.deregisterClient(client.getRegistrationId());
+            future.fail(new TimeoutException());
         }
 
         @Override
         public void onCancel() {
-            latch.countDown();
+            future.cancel(false);
         }
 
         @Override
         public void onReject() {
-            latch.countDown();
+            future.fail(new RejectionException());
         }
 
-        public T waitForResponse() {
-            try {
-                final boolean latchTimeout = latch.await(timeout, TimeUnit.MILLISECONDS);
-                if (!latchTimeout || coapTimeout.get()) {
-                    clientRegistry.deregisterClient(client.getRegistrationId());
-                    coapRequest.cancel();
-                    if (exception.get() != null) {
-                        throw exception.get();
-                    } else {
-                        throw new RequestTimeoutException(coapRequest.getURI(), timeout);
-                    }
-                }
-            } catch (final InterruptedException e) {
-                // no idea why some other thread should have interrupted this thread
-                // but anyway, go ahead as if the timeout had been reached
-                LOG.debug("Caught an unexpected InterruptedException during execution of CoAP request", e);
-            } finally {
-                coapRequest.removeMessageObserver(this);
-            }
-
-            if (exception.get() != null) {
-                throw exception.get();
-            }
-            return ref.get();
-        }
     }
 }
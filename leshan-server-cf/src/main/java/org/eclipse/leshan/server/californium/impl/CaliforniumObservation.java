@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.californium.impl;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -31,13 +32,18 @@ import org.eclipse.leshan.core.node.codec.LwM2mNodeDecoder;
 import org.eclipse.leshan.core.request.ContentFormat;
 import org.eclipse.leshan.core.response.ValueResponse;
 import org.eclipse.leshan.server.client.Client;
-import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.FilterableObservation;
+import org.eclipse.leshan.server.observation.NotificationFilter;
 import org.eclipse.leshan.server.observation.ObservationListener;
+import org.eclipse.leshan.server.observation.ObservationRecord;
+import org.eclipse.leshan.server.observation.PersistentObservation;
+import org.eclipse.leshan.server.observation.UnchangedValueListener;
 import org.eclipse.leshan.util.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public final class CaliforniumObservation extends MessageObserverAdapter implements Observation {
+public final class CaliforniumObservation extends MessageObserverAdapter implements PersistentObservation,
+        FilterableObservation {
     private final Logger LOG = LoggerFactory.getLogger(CaliforniumObservation.class);
 
     private final Request coapRequest;
@@ -45,8 +51,35 @@ public final class CaliforniumObservation extends MessageObserverAdapter impleme
     private final Client client;
     private final LwM2mPath path;
     private final LwM2mModel model;
+    private final NotificationPipeline pipeline;
+    private final ContentFormat contentFormat;
+    private volatile NotificationFilter notificationFilter;
+
+    // the last dispatched notification, kept when the duplicates are suppressed
+    private volatile byte[] lastPayload;
+    private volatile ContentFormat lastContentFormat;
 
     public CaliforniumObservation(Request coapRequest, Client client, LwM2mPath path, LwM2mModel model) {
+        this(coapRequest, client, path, model, null);
+    }
+
+    /**
+     * @param pipeline the pipeline processing the notifications or <code>null</code> to process them on the CoAP
+     *        protocol thread
+     */
+    public CaliforniumObservation(Request coapRequest, Client client, LwM2mPath path, LwM2mModel model,
+            NotificationPipeline pipeline) {
+        this(coapRequest, client, path, model, pipeline, null);
+    }
+
+    /**
+     * @param pipeline the pipeline processing the notifications or <code>null</code> to process them on the CoAP
+     *        protocol thread
+     * @param contentFormat the content format of the observe response, used for the notifications without content
+     *        format option (may be <code>null</code>)
+     */
+    public CaliforniumObservation(Request coapRequest, Client client, LwM2mPath path, LwM2mModel model,
+            NotificationPipeline pipeline, ContentFormat contentFormat) {
         Validate.notNull(coapRequest);
         Validate.notNull(client);
         Validate.notNull(path);
@@ -56,6 +89,8 @@ public final class CaliforniumObservation extends MessageObserverAdapter impleme
         this.client = client;
         this.path = path;
         this.model = model;
+        this.pipeline = pipeline;
+        this.contentFormat = contentFormat;
     }
 
     @Override
@@ -66,18 +101,69 @@ public final class CaliforniumObservation extends MessageObserverAdapter impleme
     @Override
     public void onResponse(Response coapResponse) {
         if (coapResponse.getCode() == CoAP.ResponseCode.CHANGED || coapResponse.getCode() == CoAP.ResponseCode.CONTENT) {
-            try {
-                LwM2mNode content = LwM2mNodeDecoder.decode(coapResponse.getPayload(),
-                        ContentFormat.fromCode(coapResponse.getOptions().getContentFormat()), path, model);
-                ValueResponse response = new ValueResponse(ResponseCode.CHANGED, content);
+            final byte[] payload = coapResponse.getPayload();
+            final ContentFormat format = coapResponse.getOptions().hasContentFormat() ? ContentFormat
+                    .fromCode(coapResponse.getOptions().getContentFormat()) : contentFormat;
+            if (pipeline == null) {
+                processNotification(payload, format);
+            } else {
+                pipeline.submit(client.getRegistrationId(), new Runnable() {
+
+                    @Override
+                    public void run() {
+                        processNotification(payload, format);
+                    }
+                });
+            }
+        }
+    }
 
-                for (ObservationListener listener : listeners) {
-                    listener.newValue(this, response.getContent());
+    private void processNotification(byte[] payload, ContentFormat format) {
+        boolean suppressDuplicates = pipeline != null && pipeline.isSuppressDuplicates();
+        if (suppressDuplicates && format == lastContentFormat && Arrays.equals(payload, lastPayload)) {
+            pipeline.recordDuplicate();
+            for (ObservationListener listener : listeners) {
+                if (listener instanceof UnchangedValueListener) {
+                    ((UnchangedValueListener) listener).unchangedValue(this);
                 }
-            } catch (InvalidValueException e) {
-                String msg = String.format("[%s] ([%s])", e.getMessage(), e.getPath().toString());
-                LOG.debug(msg);
             }
+            return;
+        }
+
+        long start = System.nanoTime();
+        ValueResponse response;
+        try {
+            LwM2mNode content = LwM2mNodeDecoder.decode(payload, format, path, model);
+            response = new ValueResponse(ResponseCode.CHANGED, content);
+        } catch (InvalidValueException e) {
+            String msg = String.format("[%s] ([%s])", e.getMessage(), e.getPath().toString());
+            LOG.debug(msg);
+            return;
+        }
+        long decoded = System.nanoTime();
+        if (pipeline != null) {
+            pipeline.recordDecodeTime(decoded - start);
+        }
+
+        NotificationFilter filter = notificationFilter;
+        if (filter != null && !filter.accept(response.getContent(), System.currentTimeMillis())) {
+            LOG.trace("Notification of {} suppressed by filter {}", path, filter.getSpec());
+            if (pipeline != null) {
+                pipeline.recordSuppressed();
+            }
+            return;
+        }
+
+        for (ObservationListener listener : listeners) {
+            listener.newValue(this, response.getContent());
+        }
+
+        if (pipeline != null) {
+            pipeline.recordListenerTime(System.nanoTime() - decoded);
+        }
+        if (suppressDuplicates) {
+            lastPayload = payload;
+            lastContentFormat = format;
         }
     }
 
@@ -104,6 +190,30 @@ public final class CaliforniumObservation extends MessageObserverAdapter impleme
         return path;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNotificationFilter(NotificationFilter filter) {
+        this.notificationFilter = filter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NotificationFilter getNotificationFilter() {
+        return notificationFilter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ObservationRecord toRecord() {
+        return new ObservationRecord(client.getRegistrationId(), path, coapRequest.getToken(), contentFormat);
+    }
+
     @Override
     public String toString() {
         return String.format("CaliforniumObservation [%s]", path);
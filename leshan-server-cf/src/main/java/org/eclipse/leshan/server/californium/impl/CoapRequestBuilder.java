@@ -40,10 +40,19 @@ public class CoapRequestBuilder implements DownlinkRequestVisitor {
     private Request coapRequest;
     private final Client destination;
     private final LwM2mModel model;
+    private final EncodedPayloads payloads;
 
     public CoapRequestBuilder(Client destination, LwM2mModel model) {
+        this(destination, model, null);
+    }
+
+    /**
+     * @param payloads the payloads already encoded, reused for the requests sent again (may be <code>null</code>)
+     */
+    public CoapRequestBuilder(Client destination, LwM2mModel model, EncodedPayloads payloads) {
         this.destination = destination;
         this.model = model;
+        this.payloads = payloads;
     }
 
     @Override
@@ -62,12 +71,20 @@ public class CoapRequestBuilder implements DownlinkRequestVisitor {
     @Override
     public void visit(WriteRequest request) {
         coapRequest = request.isReplaceRequest() ? Request.newPut() : Request.newPost();
-        ContentFormat format = request.getContentFormat();
-        if (format == null) {
-            format = ContentFormatHelper.compute(request.getPath(), request.getNode(), model);
+        EncodedPayloads.Payload payload = payloads == null ? null : payloads.get(request, model);
+        if (payload == null) {
+            ContentFormat format = request.getContentFormat();
+            if (format == null) {
+                format = ContentFormatHelper.compute(request.getPath(), request.getNode(), model);
+            }
+            payload = new EncodedPayloads.Payload(model, format, LwM2mNodeEncoder.encode(request.getNode(), format,
+                    request.getPath(), model));
+            if (payloads != null) {
+                payloads.put(request, payload);
+            }
         }
-        coapRequest.getOptions().setContentFormat(format.getCode());
-        coapRequest.setPayload(LwM2mNodeEncoder.encode(request.getNode(), format, request.getPath(), model));
+        coapRequest.getOptions().setContentFormat(payload.getFormat().getCode());
+        coapRequest.setPayload(payload.getBytes());
         setTarget(coapRequest, destination, request.getPath());
     }
 
@@ -94,9 +111,17 @@ public class CoapRequestBuilder implements DownlinkRequestVisitor {
     public void visit(CreateRequest request) {
         coapRequest = Request.newPost();
         coapRequest.getOptions().setContentFormat(request.getContentFormat().getCode());
-        // wrap the resources into an object instance layer (with a fake instance id).
-        coapRequest.setPayload(LwM2mNodeEncoder.encode(new LwM2mObjectInstance(-1, request.getResources()),
-                request.getContentFormat(), request.getPath(), model));
+        EncodedPayloads.Payload payload = payloads == null ? null : payloads.get(request, model);
+        if (payload == null) {
+            // wrap the resources into an object instance layer (with a fake instance id).
+            payload = new EncodedPayloads.Payload(model, request.getContentFormat(), LwM2mNodeEncoder.encode(
+                    new LwM2mObjectInstance(-1, request.getResources()), request.getContentFormat(),
+                    request.getPath(), model));
+            if (payloads != null) {
+                payloads.put(request, payload);
+            }
+        }
+        coapRequest.setPayload(payload.getBytes());
         setTarget(coapRequest, destination, request.getPath());
     }
 
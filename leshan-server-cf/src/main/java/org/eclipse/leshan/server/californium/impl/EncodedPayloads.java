@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.californium.impl;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+
+/**
+ * Remembers the payloads encoded for the requests, so that a request instance sent to several clients (e.g. by a
+ * {@link org.eclipse.leshan.server.request.BulkOperation}) is encoded once per object model.
+ * <p>
+ * The requests are weakly referenced: a payload is dropped once its request is no longer used.
+ * </p>
+ */
+public class EncodedPayloads {
+
+    /** A payload and its content format. */
+    public static class Payload {
+        private final LwM2mModel model;
+        private final ContentFormat format;
+        private final byte[] bytes;
+
+        public Payload(LwM2mModel model, ContentFormat format, byte[] bytes) {
+            this.model = model;
+            this.format = format;
+            this.bytes = bytes;
+        }
+
+        public ContentFormat getFormat() {
+            return format;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    // requests do not override equals: keyed by identity
+    private final Map<DownlinkRequest<?>, Payload> payloads = new WeakHashMap<>();
+    private long hits = 0;
+
+    /**
+     * @return the payload encoded for the given request with the given model, or <code>null</code>
+     */
+    public synchronized Payload get(DownlinkRequest<?> request, LwM2mModel model) {
+        Payload payload = payloads.get(request);
+        if (payload == null || payload.model != model) {
+            return null;
+        }
+        hits++;
+        return payload;
+    }
+
+    public synchronized void put(DownlinkRequest<?> request, Payload payload) {
+        payloads.put(request, payload);
+    }
+
+    /**
+     * @return the number of payloads which did not have to be encoded again
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+}
@@ -20,6 +20,7 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.californium.core.CoapServer;
 import org.eclipse.californium.core.network.CoAPEndpoint;
@@ -35,11 +36,23 @@ import org.eclipse.leshan.server.Startable;
 import org.eclipse.leshan.server.Stoppable;
 import org.eclipse.leshan.server.californium.LeshanServerBuilder;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientQuery;
 import org.eclipse.leshan.server.client.ClientRegistry;
 import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.eclipse.leshan.server.cluster.ShardedClientRegistry;
 import org.eclipse.leshan.server.model.LwM2mModelProvider;
 import org.eclipse.leshan.server.observation.ObservationRegistry;
 import org.eclipse.leshan.server.registration.RegistrationHandler;
+import org.eclipse.leshan.server.request.BulkOperation;
+import org.eclipse.leshan.server.request.ClientRequestQueue;
+import org.eclipse.leshan.server.request.HashedWheelTimer;
+import org.eclipse.leshan.server.request.LwM2mFuture;
+import org.eclipse.leshan.server.request.LwM2mRequestSender;
+import org.eclipse.leshan.server.request.ReadAggregator;
+import org.eclipse.leshan.server.request.ReadCache;
+import org.eclipse.leshan.server.request.RequestCoalescer;
+import org.eclipse.leshan.server.request.RequestPriority;
+import org.eclipse.leshan.server.request.RequestTimeouts;
 import org.eclipse.leshan.server.security.SecurityRegistry;
 import org.eclipse.leshan.util.Validate;
 import org.slf4j.Logger;
@@ -66,7 +79,7 @@ public class LeshanServer implements LwM2mServer {
 
     private static final int COAP_REQUEST_TIMEOUT_MILLIS = 5000;
 
-    private final CaliforniumLwM2mRequestSender requestSender;
+    private final LwM2mRequestSender requestSender;
 
     private final ClientRegistry clientRegistry;
 
@@ -76,6 +89,22 @@ public class LeshanServer implements LwM2mServer {
 
     private final LwM2mModelProvider modelProvider;
 
+    private final NotificationPipeline notificationPipeline;
+
+    private final ObservationRestorer observationRestorer;
+
+    private final RequestTimeouts requestTimeouts;
+
+    private final HashedWheelTimer requestTimer;
+
+    private final ClientRequestQueue requestQueue;
+
+    private final RequestCoalescer requestCoalescer;
+
+    private final ReadCache readCache;
+
+    private final ReadAggregator readAggregator;
+
     /**
      * Initialize a server which will bind to the specified address and port.
      *
@@ -87,12 +116,28 @@ public class LeshanServer implements LwM2mServer {
     public LeshanServer(InetSocketAddress localAddress, InetSocketAddress localAddressSecure,
             final ClientRegistry clientRegistry, final SecurityRegistry securityRegistry,
             final ObservationRegistry observationRegistry, final LwM2mModelProvider modelProvider) {
+        this(localAddress, localAddressSecure, clientRegistry, securityRegistry, observationRegistry, modelProvider,
+                new LeshanServerConfig());
+    }
+
+    /**
+     * Initialize a server which will bind to the specified address and port.
+     *
+     * @param localAddress the address to bind the CoAP server.
+     * @param localAddressSecure the address to bind the CoAP server for DTLS connection.
+     * @param config the notification pipeline, observation store and request deadlines settings
+     */
+    public LeshanServer(InetSocketAddress localAddress, InetSocketAddress localAddressSecure,
+            final ClientRegistry clientRegistry, final SecurityRegistry securityRegistry,
+            final ObservationRegistry observationRegistry, final LwM2mModelProvider modelProvider,
+            LeshanServerConfig config) {
         Validate.notNull(localAddress, "IP address cannot be null");
         Validate.notNull(localAddressSecure, "Secure IP address cannot be null");
         Validate.notNull(clientRegistry, "clientRegistry cannot be null");
         Validate.notNull(securityRegistry, "securityRegistry cannot be null");
         Validate.notNull(observationRegistry, "observationRegistry cannot be null");
         Validate.notNull(modelProvider, "modelProvider cannot be null");
+        Validate.notNull(config, "config cannot be null");
 
         // Init registries
         this.clientRegistry = clientRegistry;
@@ -101,20 +146,31 @@ public class LeshanServer implements LwM2mServer {
 
         this.modelProvider = modelProvider;
 
-        // Cancel observations on client unregistering
+        this.notificationPipeline = new NotificationPipeline(config.getNotificationThreads(),
+                config.getNotificationQueueCapacity());
+
+        // Cancel observations on client unregistering, flush the requests queued for the sleeping clients when they
+        // contact the server
         this.clientRegistry.addListener(new ClientRegistryListener() {
 
             @Override
             public void updated(final Client clientUpdated) {
+                LeshanServer.this.requestQueue.wakeUp(clientUpdated);
             }
 
             @Override
             public void unregistered(final Client client) {
                 LeshanServer.this.observationRegistry.cancelObservations(client);
+                // a new registration of the same end-point takes the queued requests over
+                Client current = LeshanServer.this.clientRegistry.get(client.getEndpoint());
+                if (current == null || current.getRegistrationId().equals(client.getRegistrationId())) {
+                    LeshanServer.this.requestQueue.clear(client);
+                }
             }
 
             @Override
             public void registered(final Client client) {
+                LeshanServer.this.requestQueue.wakeUp(client);
             }
         });
 
@@ -134,6 +190,16 @@ public class LeshanServer implements LwM2mServer {
         final Endpoint secureEndpoint = new SecureEndpoint(connector);
         coapServer.addEndpoint(secureEndpoint);
 
+        // re-attach the notifications of the observations established before a restart
+        if (config.getObservationStore() != null) {
+            observationRestorer = new ObservationRestorer(config.getObservationStore(), this.clientRegistry,
+                    this.observationRegistry, modelProvider, notificationPipeline);
+            endpoint.addInterceptor(observationRestorer.interceptorFor(endpoint));
+            secureEndpoint.addInterceptor(observationRestorer.interceptorFor(secureEndpoint));
+        } else {
+            observationRestorer = null;
+        }
+
         // define /rd resource
         final RegisterResource rdResource = new RegisterResource(new RegistrationHandler(this.clientRegistry,
                 this.securityRegistry));
@@ -143,9 +209,23 @@ public class LeshanServer implements LwM2mServer {
         final Set<Endpoint> endpoints = new HashSet<>();
         endpoints.add(endpoint);
         endpoints.add(secureEndpoint);
-        // TODO add a way to set timeout.
-        requestSender = new CaliforniumLwM2mRequestSender(endpoints, this.clientRegistry, this.observationRegistry,
-                modelProvider, COAP_REQUEST_TIMEOUT_MILLIS);
+        this.requestTimeouts = config.getRequestTimeouts() == null ? new RequestTimeouts(
+                COAP_REQUEST_TIMEOUT_MILLIS) : config.getRequestTimeouts();
+        this.requestTimer = new HashedWheelTimer();
+        CaliforniumLwM2mRequestSender coapSender = new CaliforniumLwM2mRequestSender(endpoints, this.clientRegistry,
+                this.observationRegistry, modelProvider, this.requestTimeouts, requestTimer, notificationPipeline);
+        this.requestQueue = coapSender.getRequestQueue();
+        this.requestCoalescer = coapSender.getRequestCoalescer();
+        this.readCache = coapSender.getReadCache();
+        this.readAggregator = coapSender.getReadAggregator();
+        this.clientRegistry.addListener(readCache);
+        this.observationRegistry.addListener(readCache);
+        LwM2mRequestSender sender = coapSender;
+        if (clientRegistry instanceof ShardedClientRegistry) {
+            // send the requests from the node owning the client
+            sender = ((ShardedClientRegistry) clientRegistry).bindRequestSender(sender);
+        }
+        requestSender = sender;
     }
 
     @Override
@@ -162,18 +242,37 @@ public class LeshanServer implements LwM2mServer {
             ((Startable) observationRegistry).start();
         }
 
+        if (observationRestorer != null) {
+            observationRestorer.restore();
+            // the registrations still unknown will not come back
+            requestTimer.newTimeout(new Runnable() {
+
+                @Override
+                public void run() {
+                    observationRestorer.expirePending();
+                }
+            }, ObservationRestorer.DEFAULT_PENDING_LIFETIME_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
         // Start server
         coapServer.start();
 
         LOG.info("LW-M2M server started");
     }
 
+    /**
+     * Stops the CoAP server and the registries. The server can be started again.
+     * <p>
+     * The notification pipeline, the request timer and the read aggregator keep their threads until
+     * {@link #destroy()}, as they cannot be restarted.
+     * </p>
+     */
     @Override
     public void stop() {
         // Stop server
         coapServer.stop();
 
-        // Start registries
+        // Stop registries
         if (clientRegistry instanceof Stoppable) {
             ((Stoppable) clientRegistry).stop();
         }
@@ -190,6 +289,9 @@ public class LeshanServer implements LwM2mServer {
     public void destroy() {
         // Destroy server
         coapServer.destroy();
+        notificationPipeline.destroy();
+        requestTimer.stop();
+        readAggregator.stop();
 
         // Destroy registries
         if (clientRegistry instanceof Destroyable) {
@@ -236,6 +338,79 @@ public class LeshanServer implements LwM2mServer {
         requestSender.send(destination, request, responseCallback, errorCallback);
     }
 
+    @Override
+    public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(final Client destination,
+            final DownlinkRequest<T> request) {
+        return requestSender.sendAsync(destination, request);
+    }
+
+    @Override
+    public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(final Client destination,
+            final DownlinkRequest<T> request, final RequestPriority priority) {
+        return requestSender.sendAsync(destination, request, priority);
+    }
+
+    /**
+     * Prepares the sending of a request to all the registered clients matching a query. The operation is started by
+     * {@link BulkOperation#start()}.
+     *
+     * @param query the criteria selecting the clients
+     * @param factory the factory of the request sent to each client (see
+     *        {@link BulkOperation#sameRequest(DownlinkRequest)})
+     * @param listener the listener of the per-client results (may be <code>null</code>)
+     * @param maxConcurrency the maximum number of requests in flight
+     * @param requestsPerSecond the maximum number of requests sent per second (0 for no limit)
+     */
+    public <T extends LwM2mResponse> BulkOperation<T> newBulkOperation(ClientQuery query,
+            BulkOperation.RequestFactory<T> factory, BulkOperation.Listener<T> listener, int maxConcurrency,
+            int requestsPerSecond) {
+        return new BulkOperation<>(requestSender, requestTimer, clientRegistry.query(query), factory, listener,
+                maxConcurrency, requestsPerSecond, BulkOperation.DEFAULT_MAX_RETRIES,
+                BulkOperation.DEFAULT_RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * @return the deadlines of the requests sent to the clients, which can be changed at runtime
+     */
+    public RequestTimeouts getRequestTimeouts() {
+        return requestTimeouts;
+    }
+
+    /**
+     * @return the per-client windows of the requests sent by this server
+     */
+    public ClientRequestQueue getRequestQueue() {
+        return requestQueue;
+    }
+
+    /**
+     * @return the coalescer of the identical read requests sent by this server
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * @return the cache of the resource values read by this server (disabled by default)
+     */
+    public ReadCache getReadCache() {
+        return readCache;
+    }
+
+    /**
+     * @return the aggregator merging the concurrent resource reads of an instance (disabled by default)
+     */
+    public ReadAggregator getReadAggregator() {
+        return readAggregator;
+    }
+
+    /**
+     * @return the pipeline processing the observe notifications
+     */
+    public NotificationPipeline getNotificationPipeline() {
+        return notificationPipeline;
+    }
+
     /**
      * @return the underlying {@link CoapServer}
      */
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.californium.impl;
+
+import org.eclipse.leshan.server.observation.ObservationStore;
+import org.eclipse.leshan.server.request.RequestTimeouts;
+import org.eclipse.leshan.util.Validate;
+
+/**
+ * The optional settings of a {@link LeshanServer} which must be known when it is created. The
+ * {@link org.eclipse.leshan.server.californium.LeshanServerBuilder} fills it from its own settings.
+ */
+public class LeshanServerConfig {
+
+    private int notificationThreads = NotificationPipeline.DEFAULT_THREADS;
+    private int notificationQueueCapacity = NotificationPipeline.DEFAULT_QUEUE_CAPACITY;
+    private ObservationStore observationStore;
+    private RequestTimeouts requestTimeouts;
+
+    public int getNotificationThreads() {
+        return notificationThreads;
+    }
+
+    /**
+     * Sets the number of threads processing the observe notifications (one per available processor by default).
+     */
+    public void setNotificationThreads(int notificationThreads) {
+        Validate.isTrue(notificationThreads > 0, "notification threads must be positive");
+        this.notificationThreads = notificationThreads;
+    }
+
+    public int getNotificationQueueCapacity() {
+        return notificationQueueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of notifications waiting for each notification thread (10000 by default).
+     */
+    public void setNotificationQueueCapacity(int notificationQueueCapacity) {
+        Validate.isTrue(notificationQueueCapacity > 0, "notification queue capacity must be positive");
+        this.notificationQueueCapacity = notificationQueueCapacity;
+    }
+
+    public ObservationStore getObservationStore() {
+        return observationStore;
+    }
+
+    /**
+     * Sets the store of the observations to restore on start (<code>null</code> by default), see
+     * {@link ObservationRestorer} for the import of the client registrations.
+     */
+    public void setObservationStore(ObservationStore observationStore) {
+        this.observationStore = observationStore;
+    }
+
+    public RequestTimeouts getRequestTimeouts() {
+        return requestTimeouts;
+    }
+
+    /**
+     * Sets the deadlines of the requests sent to the clients (<code>null</code> by default, for a timeout of 5 seconds).
+     */
+    public void setRequestTimeouts(RequestTimeouts requestTimeouts) {
+        this.requestTimeouts = requestTimeouts;
+    }
+}
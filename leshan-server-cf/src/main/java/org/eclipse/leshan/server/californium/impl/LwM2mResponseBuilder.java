@@ -20,6 +20,7 @@ import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.ObserveSpec;
 import org.eclipse.leshan.ResponseCode;
 import org.eclipse.leshan.core.model.LwM2mModel;
 import org.eclipse.leshan.core.node.LwM2mNode;
@@ -42,6 +43,9 @@ import org.eclipse.leshan.core.response.DiscoverResponse;
 import org.eclipse.leshan.core.response.LwM2mResponse;
 import org.eclipse.leshan.core.response.ValueResponse;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.observation.FilterableObservation;
+import org.eclipse.leshan.server.observation.NotificationFilter;
+import org.eclipse.leshan.server.observation.Observation;
 import org.eclipse.leshan.server.observation.ObservationRegistry;
 import org.eclipse.leshan.util.Validate;
 import org.slf4j.Logger;
@@ -57,6 +61,7 @@ public class LwM2mResponseBuilder<T extends LwM2mResponse> implements DownlinkRe
     private final ObservationRegistry observationRegistry;
     private final Client client;
     private final LwM2mModel model;
+    private final NotificationPipeline notificationPipeline;
 
     // TODO leshan-code-cf: this code should be factorize in a leshan-core-cf project.
     // duplicate from org.eclipse.leshan.client.californium.impl.LwM2mClientResponseBuilder<T>
@@ -88,11 +93,18 @@ public class LwM2mResponseBuilder<T extends LwM2mResponse> implements DownlinkRe
 
     public LwM2mResponseBuilder(final Request coapRequest, final Response coapResponse, final Client client,
             final LwM2mModel model, final ObservationRegistry observationRegistry) {
+        this(coapRequest, coapResponse, client, model, observationRegistry, null);
+    }
+
+    public LwM2mResponseBuilder(final Request coapRequest, final Response coapResponse, final Client client,
+            final LwM2mModel model, final ObservationRegistry observationRegistry,
+            final NotificationPipeline notificationPipeline) {
         this.coapRequest = coapRequest;
         this.coapResponse = coapResponse;
         this.observationRegistry = observationRegistry;
         this.client = client;
         this.model = model;
+        this.notificationPipeline = notificationPipeline;
     }
 
     @Override
@@ -158,6 +170,7 @@ public class LwM2mResponseBuilder<T extends LwM2mResponse> implements DownlinkRe
         switch (coapResponse.getCode()) {
         case CHANGED:
             lwM2mresponse = new LwM2mResponse(fromCoapCode(coapResponse.getCode().value));
+            applyAttributes(request);
             break;
         case BAD_REQUEST:
         case NOT_FOUND:
@@ -234,7 +247,8 @@ public class LwM2mResponseBuilder<T extends LwM2mResponse> implements DownlinkRe
             if (coapResponse.getOptions().hasObserve()) {
                 // observe request succeed so we can add and observation to registry
                 final CaliforniumObservation observation = new CaliforniumObservation(coapRequest, client,
-                        request.getPath(), model);
+                        request.getPath(), model, notificationPipeline, ContentFormat.fromCode(coapResponse
+                                .getOptions().getContentFormat()));
                 coapRequest.addMessageObserver(observation);
                 observationRegistry.addObservation(observation);
             }
@@ -248,6 +262,22 @@ public class LwM2mResponseBuilder<T extends LwM2mResponse> implements DownlinkRe
         }
     }
 
+    /**
+     * Filters the notifications of the observations of the written path, for the clients which do not honor the
+     * attributes (see {@link NotificationFilter}).
+     */
+    private void applyAttributes(final WriteAttributesRequest request) {
+        ObserveSpec spec = request.getObserveSpec();
+        if (Boolean.TRUE.equals(spec.getCancel())) {
+            return;
+        }
+        for (Observation observation : observationRegistry.getObservations(client)) {
+            if (observation instanceof FilterableObservation && observation.getPath().equals(request.getPath())) {
+                ((FilterableObservation) observation).setNotificationFilter(new NotificationFilter(spec));
+            }
+        }
+    }
+
     private ValueResponse buildContentResponse(final LwM2mPath path, final Response coapResponse) {
         final ResponseCode code = ResponseCode.CONTENT;
         LwM2mNode content;
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.californium.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes the observe notifications out of the CoAP protocol threads.
+ * <p>
+ * The notifications are partitioned by registration id over single threaded workers: the notifications of a client
+ * are processed in order while different clients are processed in parallel.
+ * </p>
+ * <p>
+ * Each worker queues a bounded number of notifications: when the queue of a worker is full, the new notifications of
+ * its clients are dropped (see {@link #getRejectedCount()}).
+ * </p>
+ */
+public class NotificationPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationPipeline.class);
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private final ExecutorService[] workers;
+
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final AtomicInteger maxQueueSize = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong decodeTimeNanos = new AtomicLong();
+    private final AtomicLong listenerTimeNanos = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile boolean suppressDuplicates = false;
+
+    public NotificationPipeline() {
+        this(DEFAULT_THREADS);
+    }
+
+    public NotificationPipeline(int threads) {
+        this(threads, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param threads the number of workers
+     * @param queueCapacity the maximum number of notifications waiting for each worker
+     */
+    public NotificationPipeline(int threads, int queueCapacity) {
+        Validate.isTrue(threads > 0, "threads must be positive");
+        Validate.isTrue(queueCapacity > 0, "queue capacity must be positive");
+        workers = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            final String name = "NotificationPipeline#" + i;
+            workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+                    queueCapacity), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues the processing of a notification.
+     * 
+     * @param registrationId the registration id of the notifying client
+     * @param task the processing of the notification
+     */
+    public void submit(String registrationId, final Runnable task) {
+        int size = queueSize.incrementAndGet();
+        int max;
+        while (size > (max = maxQueueSize.get()) && !maxQueueSize.compareAndSet(max, size)) {
+            // retry
+        }
+
+        ExecutorService worker = workers[(registrationId.hashCode() & Integer.MAX_VALUE) % workers.length];
+        try {
+            worker.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    queueSize.decrementAndGet();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Unable to process notification", e);
+                    }
+                    processed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queueSize.decrementAndGet();
+            if (worker.isShutdown()) {
+                LOG.debug("Notification dropped: pipeline destroyed");
+            } else {
+                rejected.incrementAndGet();
+                LOG.debug("Notification dropped: pipeline queue full");
+            }
+        }
+    }
+
+    void recordDecodeTime(long nanos) {
+        decodeTimeNanos.addAndGet(nanos);
+    }
+
+    void recordListenerTime(long nanos) {
+        listenerTimeNanos.addAndGet(nanos);
+    }
+
+    void recordSuppressed() {
+        suppressed.incrementAndGet();
+    }
+
+    void recordDuplicate() {
+        duplicates.incrementAndGet();
+    }
+
+    /**
+     * Enables the suppression of the notifications whose payload and content format did not change since the last
+     * notification dispatched for the same observation. Such notifications are neither decoded nor dispatched, only
+     * the {@link org.eclipse.leshan.server.observation.UnchangedValueListener}s are told about them.
+     */
+    public void setSuppressDuplicates(boolean suppressDuplicates) {
+        this.suppressDuplicates = suppressDuplicates;
+    }
+
+    public boolean isSuppressDuplicates() {
+        return suppressDuplicates;
+    }
+
+    /**
+     * @return the number of notifications waiting to be processed
+     */
+    public int getQueueSize() {
+        return queueSize.get();
+    }
+
+    /**
+     * @return the highest number of notifications waiting to be processed so far
+     */
+    public int getMaxQueueSize() {
+        return maxQueueSize.get();
+    }
+
+    /**
+     * @return the number of processed notifications
+     */
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * @return the total time spent decoding the notifications payload (in ns)
+     */
+    public long getDecodeTimeNanos() {
+        return decodeTimeNanos.get();
+    }
+
+    /**
+     * @return the total time spent in the observation listeners (in ns)
+     */
+    public long getListenerTimeNanos() {
+        return listenerTimeNanos.get();
+    }
+
+    /**
+     * @return the number of notifications suppressed by the observation filters
+     */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+    /**
+     * @return the number of notifications suppressed because their payload did not change
+     */
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return the number of notifications dropped because the queue of their worker was full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Stops the workers. Pending notifications are discarded.
+     */
+    public void destroy() {
+        for (ExecutorService worker : workers) {
+            worker.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.californium.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.request.ObserveRequest;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistry;
+import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.eclipse.leshan.server.model.LwM2mModelProvider;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationListener;
+import org.eclipse.leshan.server.observation.ObservationRecord;
+import org.eclipse.leshan.server.observation.ObservationRegistry;
+import org.eclipse.leshan.server.observation.ObservationStore;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Restores the observations saved in an {@link ObservationStore} by a previous run of the server.
+ * <p>
+ * The observe requests are not sent again: the restored observations are not bound to any CoAP exchange, so their
+ * notifications are caught by an interceptor (see {@link #interceptorFor(Endpoint)}) using the token of the original
+ * observe request, acknowledged and dispatched to the observation instead of being rejected.
+ * </p>
+ * <p>
+ * An observation can only be restored once its registration is known by the client registry. With a registry which
+ * is empty on start (e.g. the in-memory {@link org.eclipse.leshan.server.impl.ClientRegistryImpl}), the registrations
+ * have to be imported (see {@link ClientRegistry#importFrom(java.nio.channels.ReadableByteChannel)}) before or after
+ * {@link #restore()}: the records of the unknown registrations are kept pending and restored when their registration
+ * is added to the registry. They are removed from the store when their registration is removed or by
+ * {@link #expirePending()}, after the longest expected registration lifetime.
+ * </p>
+ */
+public class ObservationRestorer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ObservationRestorer.class);
+
+    /** The delay after which the records of the unknown registrations can be dropped: the default lifetime */
+    public static final long DEFAULT_PENDING_LIFETIME_MILLIS = 86400 * 1000L;
+
+    private final ObservationStore store;
+    private final ClientRegistry clientRegistry;
+    private final ObservationRegistry observationRegistry;
+    private final LwM2mModelProvider modelProvider;
+    private final NotificationPipeline notificationPipeline;
+
+    private final ConcurrentMap<String /* token */, CaliforniumObservation> restored = new ConcurrentHashMap<>();
+
+    // the records of the registrations not known yet by the client registry
+    private final ConcurrentMap<String /* registration id */, List<ObservationRecord>> pending =
+            new ConcurrentHashMap<>();
+
+    public ObservationRestorer(ObservationStore store, ClientRegistry clientRegistry,
+            ObservationRegistry observationRegistry, LwM2mModelProvider modelProvider,
+            NotificationPipeline notificationPipeline) {
+        Validate.notNull(store);
+        Validate.notNull(clientRegistry);
+        Validate.notNull(observationRegistry);
+        Validate.notNull(modelProvider);
+        this.store = store;
+        this.clientRegistry = clientRegistry;
+        this.observationRegistry = observationRegistry;
+        this.modelProvider = modelProvider;
+        this.notificationPipeline = notificationPipeline;
+
+        // restore the pending records when their registration is imported, forget them when it is removed
+        clientRegistry.addListener(new ClientRegistryListener() {
+
+            @Override
+            public void registered(Client client) {
+                restorePending(client);
+            }
+
+            @Override
+            public void updated(Client clientUpdated) {
+                restorePending(clientUpdated);
+            }
+
+            @Override
+            public void unregistered(Client client) {
+                dropPending(client.getRegistrationId());
+            }
+        });
+    }
+
+    /**
+     * Adds the stored observations of the registered clients to the observation registry. The observations of the
+     * clients not registered yet are restored when they are added to the client registry.
+     *
+     * @return the number of restored observations
+     */
+    public int restore() {
+        for (ObservationRecord record : store.getAll()) {
+            List<ObservationRecord> records = pending.get(record.getRegistrationId());
+            if (records == null) {
+                records = new ArrayList<>();
+                pending.put(record.getRegistrationId(), records);
+            }
+            records.add(record);
+        }
+
+        // the registry listener may restore some pending records concurrently
+        int count = 0;
+        for (Client client : clientRegistry.allClients()) {
+            count += restorePending(client);
+        }
+
+        LOG.info("{} observations restored, {} registrations unknown", count, pending.size());
+        return count;
+    }
+
+    /**
+     * Removes from the store the records of the registrations still unknown.
+     *
+     * @return the number of removed records
+     */
+    public int expirePending() {
+        int count = 0;
+        for (String registrationId : new ArrayList<>(pending.keySet())) {
+            count += dropPending(registrationId);
+        }
+        if (count > 0) {
+            LOG.info("{} observations of unknown registrations removed", count);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of registrations whose observations are waiting to be restored
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private int restorePending(Client client) {
+        List<ObservationRecord> records = pending.remove(client.getRegistrationId());
+        if (records == null) {
+            return 0;
+        }
+        for (ObservationRecord record : records) {
+            restore(record, client);
+        }
+        return records.size();
+    }
+
+    private int dropPending(String registrationId) {
+        List<ObservationRecord> records = pending.remove(registrationId);
+        if (records == null) {
+            return 0;
+        }
+        for (ObservationRecord record : records) {
+            store.remove(record);
+        }
+        return records.size();
+    }
+
+    private void restore(ObservationRecord record, Client client) {
+        // the request the notifications are related to: never sent
+        LwM2mModel model = modelProvider.getObjectModel(client);
+        CoapRequestBuilder coapRequestBuilder = new CoapRequestBuilder(client, model);
+        new ObserveRequest(record.getPath().toString()).accept(coapRequestBuilder);
+        Request coapRequest = coapRequestBuilder.getRequest();
+        coapRequest.setToken(record.getToken());
+
+        final CaliforniumObservation observation = new CaliforniumObservation(coapRequest, client, record.getPath(),
+                model, notificationPipeline, record.getContentFormat());
+        coapRequest.addMessageObserver(observation);
+
+        final String token = coapRequest.getTokenString();
+        restored.put(token, observation);
+        observation.addListener(new ObservationListener() {
+
+            @Override
+            public void newValue(Observation notified, LwM2mNode value) {
+            }
+
+            @Override
+            public void cancelled(Observation cancelled) {
+                restored.remove(token, observation);
+            }
+        });
+        observationRegistry.addObservation(observation);
+    }
+
+    /**
+     * @return the number of restored observations still active
+     */
+    public int getRestoredCount() {
+        return restored.size();
+    }
+
+    /**
+     * Creates the interceptor catching the notifications of the restored observations received on an endpoint.
+     */
+    public MessageInterceptor interceptorFor(final Endpoint endpoint) {
+        return new MessageInterceptor() {
+
+            @Override
+            public void receiveResponse(Response response) {
+                if (restored.isEmpty() || !response.getOptions().hasObserve()) {
+                    return;
+                }
+                CaliforniumObservation observation = restored.get(response.getTokenString());
+                if (observation == null) {
+                    return;
+                }
+
+                // no exchange matches this notification: handle it here rather than letting the matcher reject it
+                response.setCanceled(true);
+                if (response.getType() == CoAP.Type.CON) {
+                    endpoint.sendEmptyMessage(null, EmptyMessage.newACK(response));
+                }
+                observation.onResponse(response);
+            }
+
+            @Override
+            public void sendRequest(Request request) {
+            }
+
+            @Override
+            public void sendResponse(Response response) {
+            }
+
+            @Override
+            public void sendEmptyMessage(EmptyMessage message) {
+            }
+
+            @Override
+            public void receiveRequest(Request request) {
+            }
+
+            @Override
+            public void receiveEmptyMessage(EmptyMessage message) {
+            }
+        };
+    }
+}
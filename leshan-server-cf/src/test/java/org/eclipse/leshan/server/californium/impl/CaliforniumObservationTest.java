@@ -17,8 +17,14 @@ package org.eclipse.leshan.server.californium.impl;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.Request;
@@ -31,6 +37,7 @@ import org.eclipse.leshan.core.node.LwM2mPath;
 import org.eclipse.leshan.core.node.LwM2mResource;
 import org.eclipse.leshan.server.observation.Observation;
 import org.eclipse.leshan.server.observation.ObservationListener;
+import org.eclipse.leshan.server.observation.UnchangedValueListener;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -86,6 +93,134 @@ public class CaliforniumObservationTest {
         observation.onResponse(coapResponse);
     }
 
+    @Test
+    public void notifications_are_processed_in_order_by_the_pipeline() throws InterruptedException {
+        final int count = 100;
+        final List<Object> values = Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch processed = new CountDownLatch(count);
+        ObservationListener listener = new ObservationListener() {
+            @Override
+            public void newValue(Observation observation, LwM2mNode value) {
+                values.add(((LwM2mResource) value).getValue().value);
+                processed.countDown();
+            }
+
+            @Override
+            public void cancelled(Observation observation) {
+            }
+        };
+
+        NotificationPipeline pipeline = new NotificationPipeline(4);
+        try {
+            givenAnObserveRequest(target);
+            CaliforniumObservation observation = new CaliforniumObservation(coapRequest, support.client, target,
+                    model, pipeline);
+            observation.addListener(listener);
+            for (int i = 0; i < count; i++) {
+                Response coapResponse = new Response(ResponseCode.CONTENT);
+                coapResponse.setPayload(String.valueOf(i));
+                observation.onResponse(coapResponse);
+            }
+
+            assertTrue(processed.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < count; i++) {
+                assertEquals(String.valueOf(i), values.get(i));
+            }
+            // the processed counter is updated once the listeners returned
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pipeline.getProcessedCount() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(count, pipeline.getProcessedCount());
+            assertEquals(0, pipeline.getQueueSize());
+            assertTrue(pipeline.getMaxQueueSize() > 0);
+        } finally {
+            pipeline.destroy();
+        }
+    }
+
+    @Test
+    public void unchanged_notifications_are_not_dispatched() throws InterruptedException {
+        final List<Object> values = Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch processed = new CountDownLatch(5);
+        class Listener implements ObservationListener, UnchangedValueListener {
+            @Override
+            public void newValue(Observation observation, LwM2mNode value) {
+                values.add(((LwM2mResource) value).getValue().value);
+                processed.countDown();
+            }
+
+            @Override
+            public void unchangedValue(Observation observation) {
+                values.add("unchanged");
+                processed.countDown();
+            }
+
+            @Override
+            public void cancelled(Observation observation) {
+            }
+        }
+
+        NotificationPipeline pipeline = new NotificationPipeline(1);
+        pipeline.setSuppressDuplicates(true);
+        try {
+            givenAnObserveRequest(target);
+            CaliforniumObservation observation = new CaliforniumObservation(coapRequest, support.client, target,
+                    model, pipeline);
+            observation.addListener(new Listener());
+            for (String payload : new String[] { "15", "15", "15", "16", "15" }) {
+                Response coapResponse = new Response(ResponseCode.CONTENT);
+                coapResponse.setPayload(payload);
+                observation.onResponse(coapResponse);
+            }
+
+            assertTrue(processed.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("15", "unchanged", "unchanged", "16", "15"), values);
+            assertEquals(2, pipeline.getDuplicateCount());
+        } finally {
+            pipeline.destroy();
+        }
+    }
+
+    @Test
+    public void notifications_are_rejected_when_the_pipeline_queue_is_full() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Runnable noop = new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        };
+
+        NotificationPipeline pipeline = new NotificationPipeline(1, 2);
+        try {
+            pipeline.submit("reg", blocking);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            pipeline.submit("reg", noop);
+            pipeline.submit("reg", noop);
+            pipeline.submit("reg", noop);
+
+            assertEquals(1, pipeline.getRejectedCount());
+            assertEquals(2, pipeline.getQueueSize());
+        } finally {
+            release.countDown();
+            pipeline.destroy();
+        }
+    }
+
     @Test
     public void cancel_Observation_cancel_coapRequest() {
 
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.californium.impl;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.server.impl.ClientRegistryImpl;
+import org.eclipse.leshan.server.impl.ObservationRegistryImpl;
+import org.eclipse.leshan.server.model.StandardModelProvider;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationRecord;
+import org.eclipse.leshan.server.observation.ObservationRegistryListener;
+import org.eclipse.leshan.server.observation.ObservationStore;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ObservationRestorerTest {
+
+    private CaliforniumTestSupport support = new CaliforniumTestSupport();
+
+    private final List<ObservationRecord> records = new ArrayList<>();
+    private final ObservationStore store = new ObservationStore() {
+
+        @Override
+        public void add(ObservationRecord record) {
+            remove(record);
+            records.add(record);
+        }
+
+        @Override
+        public void remove(ObservationRecord record) {
+            for (ObservationRecord stored : records) {
+                if (stored.isSameObservation(record)) {
+                    records.remove(stored);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public Collection<ObservationRecord> getAll() {
+            return new ArrayList<>(records);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        support.givenASimpleClient();
+    }
+
+    @Test
+    public void notifications_are_dispatched_to_restored_observations() {
+        ClientRegistryImpl clientRegistry = new ClientRegistryImpl();
+        clientRegistry.registerClient(support.client);
+        ObservationRegistryImpl observationRegistry = new ObservationRegistryImpl(store);
+        final List<Object> values = new ArrayList<>();
+        observationRegistry.addListener(new ObservationRegistryListener() {
+
+            @Override
+            public void newValue(Observation observation, LwM2mNode value) {
+                values.add(((LwM2mResource) value).getValue().value);
+            }
+
+            @Override
+            public void cancelled(Observation observation) {
+            }
+
+            @Override
+            public void newObservation(Observation observation) {
+            }
+        });
+
+        LwM2mPath path = new LwM2mPath(3, 0, 15);
+        store.add(new ObservationRecord(support.client.getRegistrationId(), path, new byte[] { 1, 2, 3 },
+                ContentFormat.TEXT));
+        store.add(new ObservationRecord("unknown", path, new byte[] { 4 }, ContentFormat.TEXT));
+
+        ObservationRestorer restorer = new ObservationRestorer(store, clientRegistry, observationRegistry,
+                new StandardModelProvider(), null);
+        assertEquals(1, restorer.restore());
+        assertEquals(2, records.size());
+        assertEquals(1, restorer.getPendingCount());
+        assertEquals(1, observationRegistry.getObservations(support.client).size());
+
+        MessageInterceptor interceptor = restorer.interceptorFor(new CoAPEndpoint(new InetSocketAddress(0)));
+        Response notification = newNotification(new byte[] { 1, 2, 3 });
+        interceptor.receiveResponse(notification);
+        Response unknown = newNotification(new byte[] { 9 });
+        interceptor.receiveResponse(unknown);
+
+        assertTrue(notification.isCanceled());
+        assertFalse(unknown.isCanceled());
+        assertEquals(1, values.size());
+        assertEquals("Europe/Paris", values.get(0));
+
+        // a cancelled observation is forgotten
+        observationRegistry.cancelObservations(support.client);
+        assertEquals(1, records.size());
+        assertEquals(0, restorer.getRestoredCount());
+
+        // the unknown registration never came back
+        assertEquals(1, restorer.expirePending());
+        assertTrue(records.isEmpty());
+    }
+
+    @Test
+    public void observations_are_restored_when_the_registrations_are_imported_after_a_restart() {
+        LwM2mPath path = new LwM2mPath(3, 0, 15);
+        store.add(new ObservationRecord(support.client.getRegistrationId(), path, new byte[] { 1, 2, 3 },
+                ContentFormat.TEXT));
+        store.add(new ObservationRecord("other", path, new byte[] { 4 }, ContentFormat.TEXT));
+
+        // restart: the in-memory registry is empty
+        ClientRegistryImpl clientRegistry = new ClientRegistryImpl();
+        ObservationRegistryImpl observationRegistry = new ObservationRegistryImpl(store);
+        ObservationRestorer restorer = new ObservationRestorer(store, clientRegistry, observationRegistry,
+                new StandardModelProvider(), null);
+        assertEquals(0, restorer.restore());
+        assertEquals(2, records.size());
+        assertEquals(2, restorer.getPendingCount());
+
+        // the registrations are imported
+        clientRegistry.registerClient(support.client);
+        assertEquals(1, observationRegistry.getObservations(support.client).size());
+        assertEquals(1, restorer.getRestoredCount());
+        assertEquals(1, restorer.getPendingCount());
+
+        MessageInterceptor interceptor = restorer.interceptorFor(new CoAPEndpoint(new InetSocketAddress(0)));
+        Response notification = newNotification(new byte[] { 1, 2, 3 });
+        interceptor.receiveResponse(notification);
+        assertTrue(notification.isCanceled());
+
+        // the other registration is gone: its records are forgotten
+        assertEquals(1, restorer.expirePending());
+        assertEquals(1, records.size());
+        assertEquals(0, restorer.getPendingCount());
+    }
+
+    private Response newNotification(byte[] token) {
+        Response response = new Response(ResponseCode.CONTENT);
+        response.setType(Type.NON);
+        response.setToken(token);
+        response.getOptions().setObserve(2);
+        response.getOptions().setContentFormat(ContentFormat.TEXT.getCode());
+        response.setPayload("Europe/Paris");
+        return response;
+    }
+}
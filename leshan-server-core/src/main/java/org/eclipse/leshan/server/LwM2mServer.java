@@ -23,6 +23,8 @@ import org.eclipse.leshan.server.client.Client;
 import org.eclipse.leshan.server.client.ClientRegistry;
 import org.eclipse.leshan.server.model.LwM2mModelProvider;
 import org.eclipse.leshan.server.observation.ObservationRegistry;
+import org.eclipse.leshan.server.request.LwM2mFuture;
+import org.eclipse.leshan.server.request.RequestPriority;
 import org.eclipse.leshan.server.security.SecurityRegistry;
 
 /**
@@ -62,6 +64,22 @@ public interface LwM2mServer {
     <T extends LwM2mResponse> void send(Client destination, DownlinkRequest<T> request,
             ResponseConsumer<T> responseCallback, ExceptionConsumer errorCallback);
 
+    /**
+     * Send a Lightweight M2M request asynchronously, without blocking the calling thread.
+     *
+     * @return the future response, cancelling it cancels the request
+     */
+    <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination, DownlinkRequest<T> request);
+
+    /**
+     * Send a Lightweight M2M request asynchronously, with the given priority. The requests of the higher priority
+     * classes are sent first when the requests to a client are queued.
+     *
+     * @return the future response, cancelling it cancels the request
+     */
+    <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination, DownlinkRequest<T> request,
+            RequestPriority priority);
+
     /**
      * Get the client registry containing the list of connected clients. You can use this object for listening client
      * registration/deregistration.
@@ -26,7 +26,8 @@ import org.eclipse.leshan.core.request.BindingMode;
 import org.eclipse.leshan.util.Validate;
 
 /**
- * An immutable structure which represent a LW-M2M client registered on the server
+ * A LW-M2M client registered on the server. The registration data are immutable, only the round-trip time estimator
+ * of the client (see {@link #getRttEstimator()}) is updated as requests are sent to it.
  */
 public class Client {
 
@@ -67,6 +68,8 @@ public class Client {
 
     private final Date lastUpdate;
 
+    private final RttEstimator rttEstimator;
+
     public Client(String registrationId, String endpoint, InetAddress address, int port,
             InetSocketAddress registrationEndpointAddress) {
         this(registrationId, endpoint, address, port, null, null, null, null, null, registrationEndpointAddress);
@@ -82,6 +85,18 @@ public class Client {
     public Client(String registrationId, String endpoint, InetAddress address, int port, String lwM2mVersion,
             Long lifetimeInSec, String smsNumber, BindingMode bindingMode, LinkObject[] objectLinks,
             InetSocketAddress registrationEndpointAddress, Date registrationDate, Date lastUpdate) {
+        this(registrationId, endpoint, address, port, lwM2mVersion, lifetimeInSec, smsNumber, bindingMode, objectLinks,
+                registrationEndpointAddress, registrationDate, lastUpdate, null);
+    }
+
+    /**
+     * @param rttEstimator the round-trip time estimator of the client, kept across the registration updates (a new
+     *        estimator is created if <code>null</code>)
+     */
+    public Client(String registrationId, String endpoint, InetAddress address, int port, String lwM2mVersion,
+            Long lifetimeInSec, String smsNumber, BindingMode bindingMode, LinkObject[] objectLinks,
+            InetSocketAddress registrationEndpointAddress, Date registrationDate, Date lastUpdate,
+            RttEstimator rttEstimator) {
 
         Validate.notEmpty(endpoint);
         Validate.notNull(address);
@@ -114,6 +129,7 @@ public class Client {
         this.smsNumber = smsNumber;
         this.registrationEndpointAddress = registrationEndpointAddress;
         this.lastUpdate = lastUpdate == null ? new Date() : lastUpdate;
+        this.rttEstimator = rttEstimator == null ? new RttEstimator() : rttEstimator;
     }
 
     public String getRegistrationId() {
@@ -271,6 +287,13 @@ public class Client {
         return lastUpdate;
     }
 
+    /**
+     * @return the estimator of the round-trip time of the exchanges with this client
+     */
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
     public boolean isAlive() {
         return lastUpdate.getTime() + lifeTimeInSec * 1000 > System.currentTimeMillis();
     }
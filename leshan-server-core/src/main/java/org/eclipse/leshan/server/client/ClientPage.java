@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of registered clients, as returned by {@link ClientRegistry#page(String, int, ClientPage.Sort)}.
+ */
+public class ClientPage {
+
+    /**
+     * The order in which the clients are paged.
+     */
+    public enum Sort {
+        /** by end-point name */
+        ENDPOINT,
+        /** by registration date, then by end-point name */
+        REGISTRATION_DATE
+    }
+
+    // cursors prefixes
+    private static final String ENDPOINT_CURSOR = "e:";
+    private static final String REGISTRATION_DATE_CURSOR = "d:";
+
+    private final List<Client> clients;
+    private final String nextCursor;
+
+    public ClientPage(List<Client> clients, String nextCursor) {
+        this.clients = Collections.unmodifiableList(clients);
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Client> getClients() {
+        return clients;
+    }
+
+    /**
+     * @return the cursor to use to get the next page or <code>null</code> if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return the cursor designating the position right after the given client in the given order
+     */
+    public static String cursorAfter(Client client, Sort sort) {
+        if (sort == Sort.ENDPOINT) {
+            return ENDPOINT_CURSOR + client.getEndpoint();
+        } else {
+            return REGISTRATION_DATE_CURSOR + client.getRegistrationDate().getTime() + "/" + client.getEndpoint();
+        }
+    }
+
+    /**
+     * @return the end-point of the client designated by the cursor
+     * @throws IllegalArgumentException if the cursor is not valid for the given sort order
+     */
+    public static String cursorEndpoint(String cursor, Sort sort) {
+        if (sort == Sort.ENDPOINT) {
+            if (!cursor.startsWith(ENDPOINT_CURSOR)) {
+                throw new IllegalArgumentException("Invalid cursor for end-point order: " + cursor);
+            }
+            return cursor.substring(ENDPOINT_CURSOR.length());
+        } else {
+            return cursor.substring(registrationDateSeparator(cursor) + 1);
+        }
+    }
+
+    /**
+     * @return the registration time of the client designated by a {@link Sort#REGISTRATION_DATE} cursor
+     * @throws IllegalArgumentException if the cursor is not valid for the registration date order
+     */
+    public static long cursorRegistrationTime(String cursor) {
+        try {
+            return Long.parseLong(cursor.substring(REGISTRATION_DATE_CURSOR.length(),
+                    registrationDateSeparator(cursor)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor for registration date order: " + cursor, e);
+        }
+    }
+
+    private static int registrationDateSeparator(String cursor) {
+        int separator = cursor.indexOf('/');
+        if (!cursor.startsWith(REGISTRATION_DATE_CURSOR) || separator < 0) {
+            throw new IllegalArgumentException("Invalid cursor for registration date order: " + cursor);
+        }
+        return separator;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ClientPage [clients=%s, nextCursor=%s]", clients.size(), nextCursor);
+    }
+}
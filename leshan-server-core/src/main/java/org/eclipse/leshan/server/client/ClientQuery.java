@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+import java.net.InetSocketAddress;
+import java.util.Date;
+
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.core.request.BindingMode;
+
+/**
+ * Criteria selecting registered clients (see {@link ClientRegistry#query(ClientQuery)}). A client matches the query if
+ * it matches all the criteria set.
+ * 
+ * <pre>
+ * ClientQuery query = new ClientQuery.Builder().objectId(5).bindingMode(BindingMode.UQ).build();
+ * </pre>
+ */
+public final class ClientQuery {
+
+    private Integer objectId;
+    private BindingMode bindingMode;
+    private String lwM2mVersion;
+    private InetSocketAddress registrationEndpointAddress;
+    private Date registeredAfter;
+    private Date registeredBefore;
+
+    private ClientQuery() {
+    }
+
+    /**
+     * @return the id of an object the client must expose in its object links
+     */
+    public Integer getObjectId() {
+        return objectId;
+    }
+
+    public BindingMode getBindingMode() {
+        return bindingMode;
+    }
+
+    public String getLwM2mVersion() {
+        return lwM2mVersion;
+    }
+
+    /**
+     * @return the server end-point the client must have registered to
+     */
+    public InetSocketAddress getRegistrationEndpointAddress() {
+        return registrationEndpointAddress;
+    }
+
+    /**
+     * @return the lower bound (inclusive) of the registration date
+     */
+    public Date getRegisteredAfter() {
+        return registeredAfter;
+    }
+
+    /**
+     * @return the upper bound (exclusive) of the registration date
+     */
+    public Date getRegisteredBefore() {
+        return registeredBefore;
+    }
+
+    /**
+     * @return <code>true</code> if the given client matches all the criteria of this query
+     */
+    public boolean matches(Client client) {
+        if (bindingMode != null && bindingMode != client.getBindingMode()) {
+            return false;
+        }
+        if (lwM2mVersion != null && !lwM2mVersion.equals(client.getLwM2mVersion())) {
+            return false;
+        }
+        if (registrationEndpointAddress != null
+                && !registrationEndpointAddress.equals(client.getRegistrationEndpointAddress())) {
+            return false;
+        }
+        long registrationTime = client.getRegistrationDate().getTime();
+        if (registeredAfter != null && registrationTime < registeredAfter.getTime()) {
+            return false;
+        }
+        if (registeredBefore != null && registrationTime >= registeredBefore.getTime()) {
+            return false;
+        }
+        if (objectId != null) {
+            LinkObject[] objectLinks = client.getObjectLinks();
+            if (objectLinks == null) {
+                return false;
+            }
+            for (LinkObject link : objectLinks) {
+                if (objectId.equals(link.getObjectId())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String
+                .format("ClientQuery [objectId=%s, bindingMode=%s, lwM2mVersion=%s, registrationEndpoint=%s, registeredAfter=%s, registeredBefore=%s]",
+                        objectId, bindingMode, lwM2mVersion, registrationEndpointAddress, registeredAfter,
+                        registeredBefore);
+    }
+
+    /**
+     * A builder for ClientQuery instances.
+     */
+    public static class Builder {
+
+        private Integer objectId;
+        private BindingMode bindingMode;
+        private String lwM2mVersion;
+        private InetSocketAddress registrationEndpointAddress;
+        private Date registeredAfter;
+        private Date registeredBefore;
+
+        public ClientQuery build() {
+            if (registeredAfter != null && registeredBefore != null && registeredBefore.before(registeredAfter)) {
+                throw new IllegalStateException("registeredAfter must be before registeredBefore");
+            }
+            ClientQuery query = new ClientQuery();
+            query.objectId = objectId;
+            query.bindingMode = bindingMode;
+            query.lwM2mVersion = lwM2mVersion;
+            query.registrationEndpointAddress = registrationEndpointAddress;
+            query.registeredAfter = registeredAfter;
+            query.registeredBefore = registeredBefore;
+            return query;
+        }
+
+        public Builder objectId(int objectId) {
+            this.objectId = objectId;
+            return this;
+        }
+
+        public Builder bindingMode(BindingMode bindingMode) {
+            this.bindingMode = bindingMode;
+            return this;
+        }
+
+        public Builder lwM2mVersion(String lwM2mVersion) {
+            this.lwM2mVersion = lwM2mVersion;
+            return this;
+        }
+
+        public Builder registrationEndpoint(InetSocketAddress registrationEndpointAddress) {
+            this.registrationEndpointAddress = registrationEndpointAddress;
+            return this;
+        }
+
+        public Builder registeredAfter(Date date) {
+            this.registeredAfter = date;
+            return this;
+        }
+
+        public Builder registeredBefore(Date date) {
+            this.registeredBefore = date;
+            return this;
+        }
+    }
+}
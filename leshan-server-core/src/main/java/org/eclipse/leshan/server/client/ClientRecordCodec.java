@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.core.request.BindingMode;
+
+/**
+ * Compact binary representation of a {@link Client}, used to stream registry snapshots (see
+ * {@link ClientRegistry#exportTo(java.nio.channels.WritableByteChannel)}).
+ * <p>
+ * A snapshot starts with the {@link #MAGIC} header followed by one record per client, each record being prefixed by
+ * {@link #RECORD}. The stream is terminated by {@link #END}.
+ * </p>
+ */
+public class ClientRecordCodec {
+
+    /** "LWCR" */
+    public static final int MAGIC = 0x4C574352;
+    public static final byte VERSION = 1;
+
+    public static final byte RECORD = 1;
+    public static final byte END = 0;
+
+    // link attribute value types
+    private static final byte ATTR_NULL = 0;
+    private static final byte ATTR_INT = 1;
+    private static final byte ATTR_STRING = 2;
+
+    private ClientRecordCodec() {
+    }
+
+    public static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    public static void readHeader(DataInput in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Not a client registry snapshot: invalid header " + Integer.toHexString(magic));
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported client registry snapshot version: " + version);
+        }
+    }
+
+    /**
+     * Registers all the clients read from a snapshot in a registry, see
+     * {@link ClientRegistry#importFrom(ReadableByteChannel)}. The channel is not closed.
+     *
+     * @return the number of registered clients
+     */
+    public static int registerAll(ReadableByteChannel channel, ClientRegistry registry) throws IOException {
+        // do not close the stream: it would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        readHeader(in);
+        int count = 0;
+        Client client;
+        while ((client = decode(in)) != null) {
+            registry.registerClient(client);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Writes a client record (including its {@link #RECORD} prefix).
+     */
+    public static void encode(Client client, DataOutput out) throws IOException {
+        out.writeByte(RECORD);
+        writeString(out, client.getRegistrationId());
+        out.writeUTF(client.getEndpoint());
+
+        byte[] address = client.getAddress().getAddress();
+        out.writeByte(address.length);
+        out.write(address);
+        out.writeShort(client.getPort());
+
+        InetSocketAddress registrationEndpoint = client.getRegistrationEndpointAddress();
+        out.writeUTF(registrationEndpoint.getHostString());
+        out.writeShort(registrationEndpoint.getPort());
+
+        out.writeUTF(client.getLwM2mVersion());
+        out.writeLong(client.getLifeTimeInSec());
+        writeString(out, client.getSmsNumber());
+        out.writeByte(client.getBindingMode().ordinal());
+        out.writeLong(client.getRegistrationDate().getTime());
+        out.writeLong(client.getLastUpdate().getTime());
+
+        LinkObject[] objectLinks = client.getObjectLinks();
+        if (objectLinks == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(objectLinks.length);
+            for (LinkObject link : objectLinks) {
+                out.writeUTF(link.getUrl());
+                Map<String, Object> attributes = link.getAttributes();
+                out.writeShort(attributes.size());
+                for (Entry<String, Object> attribute : attributes.entrySet()) {
+                    out.writeUTF(attribute.getKey());
+                    Object value = attribute.getValue();
+                    if (value == null) {
+                        out.writeByte(ATTR_NULL);
+                    } else if (value instanceof Integer) {
+                        out.writeByte(ATTR_INT);
+                        out.writeInt((Integer) value);
+                    } else {
+                        out.writeByte(ATTR_STRING);
+                        out.writeUTF(value.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the next client record.
+     *
+     * @return the decoded client or <code>null</code> if the end of the snapshot has been reached
+     */
+    public static Client decode(DataInput in) throws IOException {
+        byte marker = in.readByte();
+        if (marker == END) {
+            return null;
+        } else if (marker != RECORD) {
+            throw new IOException("Invalid client record marker: " + marker);
+        }
+
+        String registrationId = readString(in);
+        String endpoint = in.readUTF();
+
+        byte[] address = new byte[in.readUnsignedByte()];
+        in.readFully(address);
+        int port = in.readUnsignedShort();
+
+        String registrationHost = in.readUTF();
+        int registrationPort = in.readUnsignedShort();
+
+        String lwM2mVersion = in.readUTF();
+        long lifetime = in.readLong();
+        String smsNumber = readString(in);
+        BindingMode bindingMode = BindingMode.values()[in.readUnsignedByte()];
+        Date registrationDate = new Date(in.readLong());
+        Date lastUpdate = new Date(in.readLong());
+
+        LinkObject[] objectLinks = null;
+        int linkCount = in.readInt();
+        if (linkCount >= 0) {
+            objectLinks = new LinkObject[linkCount];
+            for (int i = 0; i < linkCount; i++) {
+                String url = in.readUTF();
+                int attributeCount = in.readUnsignedShort();
+                Map<String, Object> attributes = new HashMap<>();
+                for (int j = 0; j < attributeCount; j++) {
+                    String key = in.readUTF();
+                    byte type = in.readByte();
+                    switch (type) {
+                    case ATTR_NULL:
+                        attributes.put(key, null);
+                        break;
+                    case ATTR_INT:
+                        attributes.put(key, in.readInt());
+                        break;
+                    case ATTR_STRING:
+                        attributes.put(key, in.readUTF());
+                        break;
+                    default:
+                        throw new IOException("Invalid link attribute type: " + type);
+                    }
+                }
+                objectLinks[i] = new LinkObject(url, attributes);
+            }
+        }
+
+        return new Client(registrationId, endpoint, InetAddress.getByAddress(address), port, lwM2mVersion, lifetime,
+                smsNumber, bindingMode, objectLinks, new InetSocketAddress(registrationHost, registrationPort),
+                registrationDate, lastUpdate);
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -15,7 +15,11 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.client;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
+import java.util.Iterator;
 
 /**
  * A registry to access registered clients
@@ -78,4 +82,55 @@ public interface ClientRegistry {
      * @return the previously registered client or <code>null</code> if no client is registered under the given ID
      */
     Client deregisterClient(String registrationId);
+
+    /**
+     * Returns the registered clients matching the given query.
+     * <p>
+     * The clients are looked up lazily while iterating: the iterator may reflect the registrations, updates and
+     * de-registrations occurring during the iteration.
+     * </p>
+     * 
+     * @param query the criteria to match
+     * @return an iterator over the matching clients
+     */
+    Iterator<Client> query(ClientQuery query);
+
+    /**
+     * Returns a page of registered clients.
+     * <p>
+     * A cursor designates a position in the sort order rather than an offset: it remains valid whatever the
+     * registrations and de-registrations occurring between two calls. A client registered or updated during the paging
+     * may not be returned, or may be returned twice if its registration date changes.
+     * </p>
+     * 
+     * @param cursor the cursor returned with the previous page or <code>null</code> to get the first page
+     * @param limit the maximum number of clients to return
+     * @param sort the order of the clients
+     * @return the page of clients
+     * @throws IllegalArgumentException if the cursor is not valid for the given sort order
+     */
+    ClientPage page(String cursor, int limit, ClientPage.Sort sort);
+
+    /**
+     * Streams a consistent snapshot of all registered clients to the given channel, using the binary format described
+     * in {@link ClientRecordCodec}.
+     * <p>
+     * Registrations, updates and de-registrations occurring during the export are not reflected in the snapshot and
+     * are not blocked by it.
+     * </p>
+     * 
+     * @param channel the destination channel, left open
+     * @return the number of exported clients
+     */
+    int exportTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * Registers all the clients read from a snapshot produced by {@link #exportTo(WritableByteChannel)}.
+     * 
+     * Listeners are notified as for a regular registration.
+     * 
+     * @param channel the source channel, left open
+     * @return the number of imported clients
+     */
+    int importFrom(ReadableByteChannel channel) throws IOException;
 }
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+import java.util.List;
+
+/**
+ * Listen for client registration events, delivered in batches.
+ * <p>
+ * See {@link org.eclipse.leshan.server.impl.AsyncClientRegistryListener} to plug a batch listener on a
+ * {@link ClientRegistry}.
+ * </p>
+ */
+public interface ClientRegistryBatchListener {
+
+    /**
+     * Invoked with a batch of events. Events of a given endpoint are delivered in the order they were raised by the
+     * registry.
+     *
+     * @param events a non empty list of events
+     */
+    void onEvents(List<ClientRegistryEvent> events);
+}
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+/**
+ * A registration event, as delivered to a {@link ClientRegistryBatchListener}.
+ */
+public class ClientRegistryEvent {
+
+    public enum Type {
+        REGISTERED, UPDATED, UNREGISTERED
+    }
+
+    private final Type type;
+    private final Client client;
+    private final long timestamp;
+
+    public ClientRegistryEvent(Type type, Client client) {
+        this(type, client, System.currentTimeMillis());
+    }
+
+    public ClientRegistryEvent(Type type, Client client, long timestamp) {
+        this.type = type;
+        this.client = client;
+        this.timestamp = timestamp;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the client (after the update for {@link Type#UPDATED} events)
+     */
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * @return the time at which the event was raised by the registry (in ms)
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ClientRegistryEvent [type=%s, endpoint=%s, timestamp=%s]", type, client.getEndpoint(),
+                timestamp);
+    }
+}
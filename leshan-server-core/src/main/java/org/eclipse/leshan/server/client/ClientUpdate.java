@@ -69,7 +69,7 @@ public class ClientUpdate {
 
         return new Client(client.getRegistrationId(), client.getEndpoint(), address, port, client.getLwM2mVersion(),
                 lifeTimeInSec, smsNumber, bindingMode, linkObject, client.getRegistrationEndpointAddress(),
-                client.getRegistrationDate(), lastUpdate);
+                client.getRegistrationDate(), lastUpdate, client.getRttEstimator());
     }
 
     public String getRegistrationId() {
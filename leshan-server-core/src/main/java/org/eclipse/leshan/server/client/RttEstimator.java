@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+/**
+ * Estimates the retransmission timeout (RTO) of a client from the round-trip times of its exchanges, following the
+ * CoCoA congestion control algorithm.
+ * <p>
+ * Two estimators are maintained: the strong one is fed by the exchanges answered without retransmission, the weak one
+ * by the exchanges answered after one or two retransmissions (measured from the first transmission). Exchanges with
+ * more retransmissions are ignored. Each estimator follows RFC 6298 (smoothed RTT and RTT variance) and the overall
+ * RTO is a weighted average of the estimates: <code>RTO = 0.5 * (SRTT + 4 * RTTVAR) + 0.5 * RTO</code> for strong
+ * samples, <code>RTO = 0.25 * (SRTT + RTTVAR) + 0.75 * RTO</code> for weak samples.
+ * </p>
+ * <p>
+ * An RTO which has not been updated for a while is aged towards the default value, so that a client idle for a long
+ * time is not penalized by old estimates.
+ * </p>
+ */
+public class RttEstimator {
+
+    /** The default CoAP ACK timeout, used until the first sample */
+    public static final long DEFAULT_RTO_MILLIS = 2000;
+    public static final long MIN_RTO_MILLIS = 100;
+    public static final long MAX_RTO_MILLIS = 60000;
+
+    private static final double ALPHA = 1 / 8d;
+    private static final double BETA = 1 / 4d;
+    private static final int STRONG_K = 4;
+    private static final int WEAK_K = 1;
+    private static final int MAX_WEAK_RETRANSMISSIONS = 2;
+
+    // guarded by this
+    private final Estimator strong = new Estimator(STRONG_K);
+    private final Estimator weak = new Estimator(WEAK_K);
+    private double rto = DEFAULT_RTO_MILLIS;
+    private long lastUpdate = 0;
+    private long sampleCount = 0;
+
+    /**
+     * Adds the round-trip time of a completed exchange.
+     *
+     * @param rttMillis the time elapsed between the first transmission of the request and the response
+     * @param retransmissions the number of retransmissions of the request
+     */
+    public synchronized void addSample(long rttMillis, int retransmissions) {
+        if (rttMillis < 0 || retransmissions > MAX_WEAK_RETRANSMISSIONS) {
+            return;
+        }
+        if (retransmissions == 0) {
+            rto = 0.5 * strong.update(rttMillis) + 0.5 * rto;
+        } else {
+            rto = 0.25 * weak.update(rttMillis) + 0.75 * rto;
+        }
+        rto = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, rto));
+        lastUpdate = System.currentTimeMillis();
+        sampleCount++;
+    }
+
+    /**
+     * @return the current retransmission timeout in milliseconds
+     */
+    public synchronized long getRto() {
+        age(System.currentTimeMillis());
+        return Math.round(rto);
+    }
+
+    /**
+     * @return the factor applied to the timeout at each retransmission: larger for small RTOs, smaller for large ones
+     */
+    public synchronized double getBackoffFactor() {
+        age(System.currentTimeMillis());
+        if (rto < 1000) {
+            return 3;
+        } else if (rto > 3000) {
+            return 1.5;
+        }
+        return 2;
+    }
+
+    /**
+     * @return the time to wait for the response to a request transmitted at most <code>1 + retransmissions</code>
+     *         times, in milliseconds
+     */
+    public synchronized long getExchangeTimeout(int retransmissions) {
+        double timeout = 0;
+        double current = getRto();
+        double factor = getBackoffFactor();
+        for (int i = 0; i <= retransmissions; i++) {
+            timeout += current;
+            current *= factor;
+        }
+        return Math.round(timeout);
+    }
+
+    /**
+     * @return the smoothed round-trip time of the exchanges without retransmission, or <code>null</code> if there is
+     *         no such sample
+     */
+    public synchronized Long getSmoothedRtt() {
+        return strong.samples == 0 ? null : Math.round(strong.srtt);
+    }
+
+    /**
+     * @return the round-trip time variance of the exchanges without retransmission, or <code>null</code> if there is
+     *         no such sample
+     */
+    public synchronized Long getRttVariance() {
+        return strong.samples == 0 ? null : Math.round(strong.rttvar);
+    }
+
+    /**
+     * @return the number of samples taken into account
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    // guarded by this
+    private void age(long now) {
+        if (sampleCount == 0) {
+            return;
+        }
+        long idle = now - lastUpdate;
+        if (rto < 1000 && idle > 16 * rto) {
+            rto = (1000 + rto) / 2;
+            lastUpdate = now;
+        } else if (rto > 3000 && idle > 4 * rto) {
+            rto = (DEFAULT_RTO_MILLIS + rto) / 2;
+            lastUpdate = now;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("RttEstimator [rto=%s, srtt=%s, rttvar=%s, samples=%s]", Math.round(rto),
+                Math.round(strong.srtt), Math.round(strong.rttvar), sampleCount);
+    }
+
+    // RFC 6298 estimator
+    private static class Estimator {
+        private final int k;
+        private double srtt;
+        private double rttvar;
+        private long samples = 0;
+
+        Estimator(int k) {
+            this.k = k;
+        }
+
+        // updates the estimator and returns its RTO estimate
+        double update(long rtt) {
+            if (samples == 0) {
+                srtt = rtt;
+                rttvar = rtt / 2d;
+            } else {
+                rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+                srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+            }
+            samples++;
+            return srtt + k * rttvar;
+        }
+    }
+}
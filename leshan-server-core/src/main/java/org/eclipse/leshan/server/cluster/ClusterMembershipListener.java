@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.util.Set;
+
+/**
+ * Listen for cluster membership changes.
+ */
+public interface ClusterMembershipListener {
+
+    /**
+     * Invoked when a node joins or leaves the cluster.
+     * 
+     * @param members the identifiers of all the nodes of the cluster after the change
+     */
+    void membersChanged(Set<String> members);
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.ExceptionConsumer;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ResponseConsumer;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientPage;
+import org.eclipse.leshan.server.client.ClientQuery;
+import org.eclipse.leshan.server.client.ClientRecordCodec;
+import org.eclipse.leshan.server.client.ClientUpdate;
+
+/**
+ * The operations a node of the cluster serves to the other nodes. All the operations apply to the clients held by the
+ * node (its shard), without any further forwarding.
+ */
+public interface ClusterNode {
+
+    String getId();
+
+    Client get(String endpoint);
+
+    boolean registerClient(Client client);
+
+    Client updateClient(ClientUpdate update);
+
+    Client deregisterClient(String registrationId);
+
+    /**
+     * @return the clients of the node matching the query
+     */
+    List<Client> query(ClientQuery query);
+
+    ClientPage page(String cursor, int limit, ClientPage.Sort sort);
+
+    /**
+     * Takes ownership of clients handed off by another node.
+     * 
+     * @param clients the clients encoded as a {@link ClientRecordCodec} snapshot
+     */
+    void handoff(byte[] clients) throws IOException;
+
+    /**
+     * Sends a request to a client held by the node.
+     */
+    <T extends LwM2mResponse> T send(String endpoint, DownlinkRequest<T> request);
+
+    /**
+     * Sends asynchronously a request to a client held by the node.
+     */
+    <T extends LwM2mResponse> void send(String endpoint, DownlinkRequest<T> request,
+            ResponseConsumer<T> responseCallback, ExceptionConsumer errorCallback);
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.util.Set;
+
+/**
+ * The communication layer between the nodes of a cluster: it tracks the membership and gives access to the other
+ * nodes.
+ * 
+ * @see InProcessClusterTransport
+ */
+public interface ClusterTransport {
+
+    /**
+     * Makes the given local node available to the other nodes and announces it as a member of the cluster.
+     */
+    void join(ClusterNode node);
+
+    /**
+     * Removes a node from the cluster.
+     */
+    void leave(String nodeId);
+
+    /**
+     * @return the identifiers of the nodes of the cluster
+     */
+    Set<String> getMembers();
+
+    /**
+     * Gives access to a node of the cluster.
+     * 
+     * @throws ClusterException if the node is not a member of the cluster
+     */
+    ClusterNode connect(String nodeId);
+
+    void addListener(ClusterMembershipListener listener);
+
+    void removeListener(ClusterMembershipListener listener);
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.leshan.util.Validate;
+
+/**
+ * A {@link ClusterTransport} connecting nodes running in the same JVM, to run a multi-node cluster in tests or
+ * benchmarks. Calls between nodes are direct method calls.
+ */
+public class InProcessClusterTransport implements ClusterTransport {
+
+    private final ConcurrentMap<String, ClusterNode> nodes = new ConcurrentHashMap<>();
+
+    private final List<ClusterMembershipListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void join(ClusterNode node) {
+        Validate.notNull(node);
+        if (nodes.putIfAbsent(node.getId(), node) != null) {
+            throw new ClusterException("Node " + node.getId() + " is already a member of the cluster");
+        }
+        fireMembersChanged();
+    }
+
+    @Override
+    public void leave(String nodeId) {
+        if (nodes.remove(nodeId) != null) {
+            fireMembersChanged();
+        }
+    }
+
+    @Override
+    public Set<String> getMembers() {
+        return Collections.unmodifiableSet(new HashSet<>(nodes.keySet()));
+    }
+
+    @Override
+    public ClusterNode connect(String nodeId) {
+        ClusterNode node = nodes.get(nodeId);
+        if (node == null) {
+            throw new ClusterException("Node " + nodeId + " is not a member of the cluster");
+        }
+        return node;
+    }
+
+    @Override
+    public void addListener(ClusterMembershipListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(ClusterMembershipListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireMembersChanged() {
+        Set<String> members = getMembers();
+        for (ClusterMembershipListener listener : listeners) {
+            listener.membersChanged(members);
+        }
+    }
+}
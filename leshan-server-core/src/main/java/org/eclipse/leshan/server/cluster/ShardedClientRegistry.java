@@ -0,0 +1,586 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.ExceptionConsumer;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ResponseConsumer;
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientPage;
+import org.eclipse.leshan.server.client.ClientQuery;
+import org.eclipse.leshan.server.client.ClientRecordCodec;
+import org.eclipse.leshan.server.client.ClientRegistry;
+import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.eclipse.leshan.server.client.ClientUpdate;
+import org.eclipse.leshan.server.impl.ClientRegistryImpl;
+import org.eclipse.leshan.server.request.LwM2mFuture;
+import org.eclipse.leshan.server.request.LwM2mRequestSender;
+import org.eclipse.leshan.server.request.RequestPriority;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client registry partitioned across the nodes of a cluster.
+ * <p>
+ * Each end-point is owned by one node, chosen by consistent hashing (see {@link ConsistentHashRing}). The clients are
+ * held by the local registry (the shard) of their owner: registrations received by another node are forwarded to the
+ * owner, and the requests sent to a client through {@link #bindRequestSender(LwM2mRequestSender)} are sent by the
+ * owner. When the membership changes, each node hands off the clients it does not own anymore to their new owner. The
+ * clients of a node lost without leaving the cluster are lost: they are expected to register again when their next
+ * update is rejected. The registrations of the end-points whose owner is unreachable fail with a
+ * {@link ClusterException}: they are not held by another node, which would not hand them back.
+ * </p>
+ * <p>
+ * Listeners are notified by the owner of the client only. {@link #exportTo(WritableByteChannel)} exports the local
+ * shard.
+ * </p>
+ */
+public class ShardedClientRegistry implements ClientRegistry, Startable, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedClientRegistry.class);
+
+    private final String nodeId;
+    private final ClusterTransport transport;
+    private final ClientRegistry shard;
+    private final LocalNode localNode = new LocalNode();
+
+    private volatile ConsistentHashRing ring;
+    private volatile LwM2mRequestSender localSender;
+
+    private final ClusterMembershipListener membershipListener = new ClusterMembershipListener() {
+
+        @Override
+        public void membersChanged(Set<String> members) {
+            synchronized (ShardedClientRegistry.this) {
+                ring = new ConsistentHashRing(members);
+                handoff(ring);
+            }
+        }
+    };
+
+    public ShardedClientRegistry(String nodeId, ClusterTransport transport) {
+        this(nodeId, transport, new ClientRegistryImpl());
+    }
+
+    /**
+     * @param nodeId the identifier of the local node
+     * @param transport the transport connecting the nodes
+     * @param shard the registry holding the clients owned by the local node
+     */
+    public ShardedClientRegistry(String nodeId, ClusterTransport transport, ClientRegistry shard) {
+        Validate.notNull(nodeId);
+        Validate.notNull(transport);
+        Validate.notNull(shard);
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.shard = shard;
+        this.ring = new ConsistentHashRing(Collections.singleton(nodeId));
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return the identifier of the node owning the given end-point
+     */
+    public String ownerOf(String endpoint) {
+        return ring.ownerOf(endpoint);
+    }
+
+    /**
+     * @return the registry holding the clients owned by the local node
+     */
+    public ClientRegistry getShard() {
+        return shard;
+    }
+
+    /**
+     * Binds the sender used to send the requests to the clients owned by the local node.
+     * 
+     * @param sender the local sender
+     * @return a sender forwarding the requests to the node owning the destination client
+     */
+    public LwM2mRequestSender bindRequestSender(LwM2mRequestSender sender) {
+        Validate.notNull(sender);
+        this.localSender = sender;
+        return new ForwardingRequestSender();
+    }
+
+    /**
+     * Joins the cluster.
+     */
+    @Override
+    public void start() {
+        if (shard instanceof Startable) {
+            ((Startable) shard).start();
+        }
+        transport.addListener(membershipListener);
+        transport.join(localNode);
+    }
+
+    /**
+     * Hands off all the local clients to the other nodes and leaves the cluster.
+     */
+    @Override
+    public void stop() {
+        transport.removeListener(membershipListener);
+        synchronized (this) {
+            Set<String> others = new HashSet<>(transport.getMembers());
+            others.remove(nodeId);
+            ring = new ConsistentHashRing(others);
+            handoff(ring);
+        }
+        transport.leave(nodeId);
+        if (shard instanceof Stoppable) {
+            ((Stoppable) shard).stop();
+        }
+    }
+
+    @Override
+    public Client get(String endpoint) {
+        ClusterNode owner;
+        try {
+            owner = nodeFor(endpoint);
+        } catch (ClusterException e) {
+            LOG.warn("Owner of {} unreachable: {}", endpoint, e.getMessage());
+            return shard.get(endpoint);
+        }
+        Client client = owner.get(endpoint);
+        if (client == null && owner != localNode) {
+            // not handed off yet
+            client = shard.get(endpoint);
+        }
+        return client;
+    }
+
+    @Override
+    public Collection<Client> allClients() {
+        List<Client> clients = new ArrayList<>();
+        ClientQuery all = new ClientQuery.Builder().build();
+        for (ClusterNode node : nodes()) {
+            clients.addAll(node.query(all));
+        }
+        return Collections.unmodifiableCollection(clients);
+    }
+
+    @Override
+    public void addListener(ClientRegistryListener listener) {
+        shard.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(ClientRegistryListener listener) {
+        shard.removeListener(listener);
+    }
+
+    /**
+     * @throws ClusterException if the owner of the end-point is unreachable
+     */
+    @Override
+    public boolean registerClient(Client client) {
+        Validate.notNull(client);
+        return nodeFor(client.getEndpoint()).registerClient(client);
+    }
+
+    @Override
+    public Client updateClient(ClientUpdate update) {
+        Validate.notNull(update);
+        // the update does not hold the end-point: look for the registration on each node, starting by the local one
+        for (ClusterNode node : nodes()) {
+            Client updated = node.updateClient(update);
+            if (updated != null) {
+                return updated;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Client deregisterClient(String registrationId) {
+        Validate.notNull(registrationId);
+        for (ClusterNode node : nodes()) {
+            Client deregistered = node.deregisterClient(registrationId);
+            if (deregistered != null) {
+                return deregistered;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<Client> query(final ClientQuery query) {
+        Validate.notNull(query);
+        final Iterator<ClusterNode> nodes = nodes().iterator();
+        return new Iterator<Client>() {
+
+            private Iterator<Client> current = Collections.<Client> emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (!nodes.hasNext()) {
+                        return false;
+                    }
+                    ClusterNode node = nodes.next();
+                    current = node == localNode ? shard.query(query) : node.query(query).iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public Client next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public ClientPage page(String cursor, int limit, ClientPage.Sort sort) {
+        Validate.isTrue(limit > 0, "limit must be positive");
+        Validate.notNull(sort);
+
+        // the first clients of the cluster page are among the first clients of each node page
+        List<Client> clients = new ArrayList<>();
+        boolean hasMore = false;
+        for (ClusterNode node : nodes()) {
+            ClientPage page = node.page(cursor, limit, sort);
+            clients.addAll(page.getClients());
+            hasMore |= page.getNextCursor() != null;
+        }
+        Collections.sort(clients, comparator(sort));
+        if (clients.size() > limit) {
+            clients = new ArrayList<>(clients.subList(0, limit));
+            hasMore = true;
+        }
+
+        String nextCursor = hasMore ? ClientPage.cursorAfter(clients.get(clients.size() - 1), sort) : null;
+        return new ClientPage(clients, nextCursor);
+    }
+
+    @Override
+    public int exportTo(WritableByteChannel channel) throws IOException {
+        return shard.exportTo(channel);
+    }
+
+    @Override
+    public int importFrom(ReadableByteChannel channel) throws IOException {
+        return ClientRecordCodec.registerAll(channel, this);
+    }
+
+    /**
+     * @throws ClusterException if the owner of the end-point is unreachable
+     */
+    private ClusterNode nodeFor(String endpoint) {
+        String owner = ring.ownerOf(endpoint);
+        if (owner == null || owner.equals(nodeId)) {
+            return localNode;
+        }
+        // do not fall back on the local node: the owner would not know the clients registered meanwhile
+        return transport.connect(owner);
+    }
+
+    /**
+     * @return all the nodes of the cluster, starting by the local one
+     */
+    private List<ClusterNode> nodes() {
+        List<ClusterNode> nodes = new ArrayList<>();
+        nodes.add(localNode);
+        for (String member : ring.getNodes()) {
+            if (!member.equals(nodeId)) {
+                try {
+                    nodes.add(transport.connect(member));
+                } catch (ClusterException e) {
+                    LOG.warn("Node {} unreachable: {}", member, e.getMessage());
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Moves the local clients not owned by the local node anymore to their new owner.
+     */
+    private void handoff(ConsistentHashRing ring) {
+        Map<String, List<Client>> moved = new HashMap<>();
+        for (Client client : shard.allClients()) {
+            String owner = ring.ownerOf(client.getEndpoint());
+            if (owner != null && !owner.equals(nodeId)) {
+                List<Client> clients = moved.get(owner);
+                if (clients == null) {
+                    clients = new ArrayList<>();
+                    moved.put(owner, clients);
+                }
+                clients.add(client);
+            }
+        }
+
+        for (Entry<String, List<Client>> entry : moved.entrySet()) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                ClientRecordCodec.writeHeader(out);
+                for (Client client : entry.getValue()) {
+                    ClientRecordCodec.encode(client, out);
+                }
+                out.writeByte(ClientRecordCodec.END);
+                out.flush();
+
+                transport.connect(entry.getKey()).handoff(bytes.toByteArray());
+                for (Client client : entry.getValue()) {
+                    removeHandedOff(client);
+                }
+                LOG.info("{} clients handed off to node {}", entry.getValue().size(), entry.getKey());
+            } catch (IOException | ClusterException e) {
+                LOG.warn("Unable to hand off clients to node " + entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Removes a client handed off to another node. The listeners are not notified when the shard supports it: the
+     * client is still registered, only its owner changes (its observations, queued requests... are kept).
+     */
+    private void removeHandedOff(Client client) {
+        if (shard instanceof ClientRegistryImpl) {
+            ((ClientRegistryImpl) shard).removeClient(client.getRegistrationId());
+        } else {
+            shard.deregisterClient(client.getRegistrationId());
+        }
+    }
+
+    /**
+     * Adds a client handed off by another node, without notifying the listeners when the shard supports it.
+     */
+    private void addHandedOff(Client client) {
+        if (shard instanceof ClientRegistryImpl) {
+            ((ClientRegistryImpl) shard).addClient(client);
+        } else {
+            shard.registerClient(client);
+        }
+    }
+
+    private static Comparator<Client> comparator(ClientPage.Sort sort) {
+        if (sort == ClientPage.Sort.ENDPOINT) {
+            return new Comparator<Client>() {
+
+                @Override
+                public int compare(Client c1, Client c2) {
+                    return c1.getEndpoint().compareTo(c2.getEndpoint());
+                }
+            };
+        } else {
+            return new Comparator<Client>() {
+
+                @Override
+                public int compare(Client c1, Client c2) {
+                    int result = c1.getRegistrationDate().compareTo(c2.getRegistrationDate());
+                    return result != 0 ? result : c1.getEndpoint().compareTo(c2.getEndpoint());
+                }
+            };
+        }
+    }
+
+    private LwM2mRequestSender sender() {
+        LwM2mRequestSender sender = localSender;
+        if (sender == null) {
+            throw new ClusterException("No request sender bound to node " + nodeId);
+        }
+        return sender;
+    }
+
+    /**
+     * The local node, as seen by the other nodes.
+     */
+    private class LocalNode implements ClusterNode {
+
+        @Override
+        public String getId() {
+            return nodeId;
+        }
+
+        @Override
+        public Client get(String endpoint) {
+            return shard.get(endpoint);
+        }
+
+        @Override
+        public boolean registerClient(Client client) {
+            return shard.registerClient(client);
+        }
+
+        @Override
+        public Client updateClient(ClientUpdate update) {
+            return shard.updateClient(update);
+        }
+
+        @Override
+        public Client deregisterClient(String registrationId) {
+            return shard.deregisterClient(registrationId);
+        }
+
+        @Override
+        public List<Client> query(ClientQuery query) {
+            List<Client> clients = new ArrayList<>();
+            for (Iterator<Client> it = shard.query(query); it.hasNext();) {
+                clients.add(it.next());
+            }
+            return clients;
+        }
+
+        @Override
+        public ClientPage page(String cursor, int limit, ClientPage.Sort sort) {
+            return shard.page(cursor, limit, sort);
+        }
+
+        @Override
+        public void handoff(byte[] clients) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(clients));
+            ClientRecordCodec.readHeader(in);
+            Client client;
+            while ((client = ClientRecordCodec.decode(in)) != null) {
+                addHandedOff(client);
+            }
+        }
+
+        @Override
+        public <T extends LwM2mResponse> T send(String endpoint, DownlinkRequest<T> request) {
+            return sender().send(registered(endpoint), request);
+        }
+
+        @Override
+        public <T extends LwM2mResponse> void send(String endpoint, DownlinkRequest<T> request,
+                ResponseConsumer<T> responseCallback, ExceptionConsumer errorCallback) {
+            Client client;
+            try {
+                client = registered(endpoint);
+            } catch (ClusterException e) {
+                errorCallback.accept(e);
+                return;
+            }
+            sender().send(client, request, responseCallback, errorCallback);
+        }
+
+        private Client registered(String endpoint) {
+            Client client = shard.get(endpoint);
+            if (client == null) {
+                throw new ClusterException("Client " + endpoint + " is not registered on node " + nodeId);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Sends the requests from the node owning the destination client.
+     */
+    private class ForwardingRequestSender implements LwM2mRequestSender {
+
+        @Override
+        public <T extends LwM2mResponse> T send(Client destination, DownlinkRequest<T> request) {
+            ClusterNode owner = nodeFor(destination.getEndpoint());
+            if (owner == localNode) {
+                return sender().send(destination, request);
+            }
+            return owner.send(destination.getEndpoint(), request);
+        }
+
+        @Override
+        public <T extends LwM2mResponse> void send(Client destination, DownlinkRequest<T> request,
+                ResponseConsumer<T> responseCallback, ExceptionConsumer errorCallback) {
+            ClusterNode owner;
+            try {
+                owner = nodeFor(destination.getEndpoint());
+            } catch (ClusterException e) {
+                errorCallback.accept(e);
+                return;
+            }
+            if (owner == localNode) {
+                sender().send(destination, request, responseCallback, errorCallback);
+            } else {
+                owner.send(destination.getEndpoint(), request, responseCallback, errorCallback);
+            }
+        }
+
+        @Override
+        public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination, DownlinkRequest<T> request) {
+            return sendAsync(destination, request, RequestPriority.NORMAL);
+        }
+
+        @Override
+        public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination, DownlinkRequest<T> request,
+                RequestPriority priority) {
+            final LwM2mFuture<T> future = new LwM2mFuture<>();
+            ClusterNode owner;
+            try {
+                owner = nodeFor(destination.getEndpoint());
+            } catch (ClusterException e) {
+                future.fail(e);
+                return future;
+            }
+            if (owner == localNode) {
+                return sender().sendAsync(destination, request, priority);
+            }
+            // the priority is not forwarded: the remote node sends the request with the normal priority.
+            // cancelling the future does not cancel the request sent by the remote node
+            owner.send(destination.getEndpoint(), request, new ResponseConsumer<T>() {
+
+                @Override
+                public void accept(T response) {
+                    future.complete(response);
+                }
+            }, new ExceptionConsumer() {
+
+                @Override
+                public void accept(Exception e) {
+                    future.fail(e);
+                }
+            });
+            return future;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.util.Validate;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistryBatchListener;
+import org.eclipse.leshan.server.client.ClientRegistryEvent;
+import org.eclipse.leshan.server.client.ClientRegistryEvent.Type;
+import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ClientRegistryListener} decoupling the registration path from a (potentially slow) listener.
+ * <p>
+ * Events are queued in bounded queues and delivered in batches to the delegate on an executor. Events are partitioned
+ * by endpoint: each partition is drained by at most one thread at a time, so the events of a given endpoint are
+ * always delivered in order while different partitions may be delivered concurrently. A batch is made of the events
+ * already queued when the delivery starts: the delivery never waits for a batch to fill up.
+ * </p>
+ * <p>
+ * When a partition queue is full, the configured {@link OverflowPolicy} applies.
+ * </p>
+ */
+public class AsyncClientRegistryListener implements ClientRegistryListener, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncClientRegistryListener.class);
+
+    // set while a delegate is notified, so that a delivery thread never waits for a queue to be drained
+    private static final ThreadLocal<Boolean> DELIVERING = new ThreadLocal<>();
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    /**
+     * What to do with a new event when the queue of its partition is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * the registry thread waits until there is room in the queue. An event raised by a delegate from a delivery
+         * thread is dropped instead, as waiting for this thread to drain the queue would never end.
+         */
+        BLOCK,
+        /** the new event is dropped */
+        DROP_NEWEST,
+        /** the oldest queued event is dropped to make room for the new one */
+        DROP_OLDEST
+    }
+
+    private final ClientRegistryBatchListener delegate;
+    private final Executor executor;
+    private final boolean ownExecutor;
+    private final int queueCapacity;
+    private final int maxBatchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final Partition[] partitions;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean stopped = false;
+
+    /**
+     * Delivers events one by one to a regular listener, on a single dispatch thread, with the default queue capacity
+     * and the {@link OverflowPolicy#BLOCK} policy.
+     */
+    public AsyncClientRegistryListener(ClientRegistryListener delegate) {
+        this(adapt(delegate), 1, DEFAULT_QUEUE_CAPACITY, 1, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Delivers batches to the given listener on a single dispatch thread, with the default queue capacity and batch
+     * size and the {@link OverflowPolicy#BLOCK} policy.
+     */
+    public AsyncClientRegistryListener(ClientRegistryBatchListener delegate) {
+        this(delegate, 1, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Delivers batches on a dedicated thread pool (one thread per partition), stopped by {@link #stop()}.
+     *
+     * @param delegate the listener to notify
+     * @param partitions the number of partitions (i.e. the maximum number of concurrent deliveries)
+     * @param queueCapacity the maximum number of pending events per partition
+     * @param maxBatchSize the maximum number of events delivered in a single batch
+     * @param overflowPolicy what to do when a partition queue is full
+     */
+    public AsyncClientRegistryListener(ClientRegistryBatchListener delegate, int partitions, int queueCapacity,
+            int maxBatchSize, OverflowPolicy overflowPolicy) {
+        this(delegate, Executors.newFixedThreadPool(partitions), true, partitions, queueCapacity, maxBatchSize,
+                overflowPolicy);
+    }
+
+    /**
+     * Delivers batches on the given executor. The executor is not shut down by {@link #stop()}.
+     *
+     * @param delegate the listener to notify
+     * @param executor the executor used to deliver the events
+     * @param partitions the number of partitions (i.e. the maximum number of concurrent deliveries)
+     * @param queueCapacity the maximum number of pending events per partition
+     * @param maxBatchSize the maximum number of events delivered in a single batch
+     * @param overflowPolicy what to do when a partition queue is full
+     */
+    public AsyncClientRegistryListener(ClientRegistryBatchListener delegate, Executor executor, int partitions,
+            int queueCapacity, int maxBatchSize, OverflowPolicy overflowPolicy) {
+        this(delegate, executor, false, partitions, queueCapacity, maxBatchSize, overflowPolicy);
+    }
+
+    private AsyncClientRegistryListener(ClientRegistryBatchListener delegate, Executor executor, boolean ownExecutor,
+            int partitions, int queueCapacity, int maxBatchSize, OverflowPolicy overflowPolicy) {
+        Validate.notNull(delegate);
+        Validate.notNull(executor);
+        Validate.notNull(overflowPolicy);
+        Validate.isTrue(partitions > 0, "partitions must be positive");
+        Validate.isTrue(queueCapacity > 0, "queue capacity must be positive");
+        Validate.isTrue(maxBatchSize > 0, "max batch size must be positive");
+
+        this.delegate = delegate;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.queueCapacity = queueCapacity;
+        this.maxBatchSize = maxBatchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new Partition();
+        }
+    }
+
+    @Override
+    public void registered(Client client) {
+        dispatch(new ClientRegistryEvent(Type.REGISTERED, client));
+    }
+
+    @Override
+    public void updated(Client clientUpdated) {
+        dispatch(new ClientRegistryEvent(Type.UPDATED, clientUpdated));
+    }
+
+    @Override
+    public void unregistered(Client client) {
+        dispatch(new ClientRegistryEvent(Type.UNREGISTERED, client));
+    }
+
+    private void dispatch(ClientRegistryEvent event) {
+        if (stopped) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int hash = event.getClient().getEndpoint().hashCode();
+        partitions[(hash & Integer.MAX_VALUE) % partitions.length].offer(event);
+    }
+
+    /**
+     * @return the number of events dropped because of a full queue or because this listener was stopped
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (Partition partition : partitions) {
+            pending += partition.size();
+        }
+        return pending;
+    }
+
+    /**
+     * Stops accepting new events. Pending events are discarded.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+        for (Partition partition : partitions) {
+            partition.clear();
+        }
+        if (ownExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    private class Partition implements Runnable {
+
+        // guarded by this
+        private final ArrayDeque<ClientRegistryEvent> queue = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        void offer(ClientRegistryEvent event) {
+            boolean schedule;
+            synchronized (this) {
+                while (queue.size() >= queueCapacity) {
+                    if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                        dropped.incrementAndGet();
+                        return;
+                    } else if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                        queue.poll();
+                        dropped.incrementAndGet();
+                    } else if (DELIVERING.get() != null) {
+                        LOG.debug("Dropping a client registry event raised from a delivery thread on a full queue");
+                        dropped.incrementAndGet();
+                        return;
+                    } else {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                        if (stopped) {
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                    }
+                }
+                queue.add(event);
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule) {
+                schedule();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<ClientRegistryEvent> batch;
+            synchronized (this) {
+                int size = Math.min(queue.size(), maxBatchSize);
+                batch = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    batch.add(queue.poll());
+                }
+                notifyAll();
+            }
+
+            if (!batch.isEmpty()) {
+                Boolean delivering = DELIVERING.get();
+                DELIVERING.set(Boolean.TRUE);
+                try {
+                    delegate.onEvents(batch);
+                } catch (RuntimeException e) {
+                    LOG.warn("Client registry listener failed to handle " + batch.size() + " events", e);
+                } finally {
+                    DELIVERING.set(delivering);
+                }
+            }
+
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            // give other partitions a chance to run if the executor is shared
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    dropped.addAndGet(queue.size());
+                    queue.clear();
+                    scheduled = false;
+                    notifyAll();
+                }
+                if (!stopped) {
+                    LOG.warn("Unable to dispatch client registry events", e);
+                }
+            }
+        }
+
+        synchronized int size() {
+            return queue.size();
+        }
+
+        synchronized void clear() {
+            dropped.addAndGet(queue.size());
+            queue.clear();
+            notifyAll();
+        }
+    }
+
+    private static ClientRegistryBatchListener adapt(final ClientRegistryListener listener) {
+        Validate.notNull(listener);
+        return new ClientRegistryBatchListener() {
+
+            @Override
+            public void onEvents(List<ClientRegistryEvent> events) {
+                for (ClientRegistryEvent event : events) {
+                    switch (event.getType()) {
+                    case REGISTERED:
+                        listener.registered(event.getClient());
+                        break;
+                    case UPDATED:
+                        listener.updated(event.getClient());
+                        break;
+                    case UNREGISTERED:
+                        listener.unregistered(event.getClient());
+                        break;
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.ObserveRequest;
+import org.eclipse.leshan.core.response.ValueResponse;
+import org.eclipse.leshan.server.LwM2mServer;
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.eclipse.leshan.server.observation.AutoObserveRule;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.request.LwM2mFuture;
+import org.eclipse.leshan.server.request.RequestPriority;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Observes resources of the clients as soon as they register, according to a list of {@link AutoObserveRule}s.
+ * <p>
+ * The observe requests are not sent from the registration thread: each registered client is given a random start
+ * delay within a spreading window, so that a burst of registrations (e.g. after a network outage) does not turn into a
+ * burst of observe requests. The requests are then issued at a bounded global rate, one at a time per client. A
+ * request failing with an exception is retried with an exponential back-off, a request answered with an error code is
+ * not. Paths already observed (see {@link org.eclipse.leshan.server.observation.ObservationRegistry}) are skipped.
+ * The observe requests are sent with the {@link RequestPriority#BULK} priority.
+ * </p>
+ * <p>
+ * The rules are evaluated when a client registers and, at start, for the clients already registered.
+ * </p>
+ */
+public class AutoObserver implements ClientRegistryListener, Startable, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AutoObserver.class);
+
+    public static final int DEFAULT_OBSERVES_PER_SECOND = 50;
+    public static final long DEFAULT_SPREAD_MILLIS = 10000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 5000;
+
+    private static final long TICK_MILLIS = 10;
+
+    private final LwM2mServer server;
+    private final List<AutoObserveRule> rules;
+    private final int observesPerSecond;
+    private final long spreadMillis;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+    private final Random random = new Random();
+
+    // guarded by pending
+    private final PriorityQueue<ClientTask> pending = new PriorityQueue<>();
+
+    // only accessed by the scheduler thread
+    private double permits = 0;
+    private long lastRefill;
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> ticker;
+
+    /**
+     * Creates an auto-observer with the default pacing parameters.
+     */
+    public AutoObserver(LwM2mServer server, Collection<AutoObserveRule> rules) {
+        this(server, rules, DEFAULT_OBSERVES_PER_SECOND, DEFAULT_SPREAD_MILLIS, DEFAULT_MAX_RETRIES,
+                DEFAULT_RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * @param server the server used to send the observe requests
+     * @param rules the rules selecting the resources to observe
+     * @param observesPerSecond the maximum number of observe requests sent per second, all clients included
+     * @param spreadMillis the window in which the start of the observations of a newly registered client is randomly
+     *        delayed (0 to start immediately)
+     * @param maxRetries the maximum number of retries of a failed observe request
+     * @param retryDelayMillis the delay before the first retry, doubled for each following retry
+     */
+    public AutoObserver(LwM2mServer server, Collection<AutoObserveRule> rules, int observesPerSecond,
+            long spreadMillis, int maxRetries, long retryDelayMillis) {
+        Validate.notNull(server);
+        Validate.notNull(rules);
+        Validate.isTrue(observesPerSecond > 0, "the observe rate must be positive");
+        Validate.isTrue(spreadMillis >= 0, "the spreading window must not be negative");
+        Validate.isTrue(maxRetries >= 0, "the number of retries must not be negative");
+        Validate.isTrue(retryDelayMillis >= 0, "the retry delay must not be negative");
+
+        this.server = server;
+        this.rules = new ArrayList<>(rules);
+        this.observesPerSecond = observesPerSecond;
+        this.spreadMillis = spreadMillis;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        lastRefill = System.nanoTime();
+        server.getClientRegistry().addListener(this);
+        for (Client client : server.getClientRegistry().allClients()) {
+            schedule(client);
+        }
+        ticker = scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (RuntimeException e) {
+                    LOG.warn("Unexpected error while issuing the automatic observe requests", e);
+                }
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        server.getClientRegistry().removeListener(this);
+        ticker.cancel(false);
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            LOG.warn("Auto-observe scheduler thread was interrupted.", e);
+        }
+        scheduler = null;
+        synchronized (pending) {
+            pending.clear();
+        }
+    }
+
+    @Override
+    public void registered(Client client) {
+        schedule(client);
+    }
+
+    @Override
+    public void updated(Client clientUpdated) {
+        // rules are only evaluated at registration
+    }
+
+    @Override
+    public void unregistered(Client client) {
+        synchronized (pending) {
+            for (Iterator<ClientTask> it = pending.iterator(); it.hasNext();) {
+                if (it.next().client.getRegistrationId().equals(client.getRegistrationId())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of clients having observe requests waiting to be sent
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public long getIssuedCount() {
+        return issued.get();
+    }
+
+    public long getSucceededCount() {
+        return succeeded.get();
+    }
+
+    /**
+     * @return the number of observe requests which failed (after all their retries)
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    /**
+     * @return the number of paths not observed because they were already observed
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    private void schedule(Client client) {
+        Set<String> paths = new LinkedHashSet<>();
+        for (AutoObserveRule rule : rules) {
+            if (rule.matches(client)) {
+                paths.addAll(rule.resolvePaths(client));
+            }
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        long delay = spreadMillis == 0 ? 0 : (long) (random.nextDouble() * spreadMillis);
+        ClientTask task = new ClientTask(client, new ArrayDeque<>(paths));
+        task.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        LOG.debug("Observing {} on {} in {}ms", paths, client.getEndpoint(), delay);
+        synchronized (pending) {
+            pending.add(task);
+        }
+    }
+
+    private void reschedule(ClientTask task, long delayMillis) {
+        task.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        synchronized (pending) {
+            pending.add(task);
+        }
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        double maxPermits = Math.max(1d, observesPerSecond * TICK_MILLIS / 1000d);
+        permits = Math.min(maxPermits, permits + (now - lastRefill) * observesPerSecond / 1e9);
+        lastRefill = now;
+
+        while (permits >= 1) {
+            ClientTask task;
+            synchronized (pending) {
+                task = pending.peek();
+                if (task == null || task.due - now > 0) {
+                    return;
+                }
+                pending.poll();
+            }
+            if (issueNext(task)) {
+                permits -= 1;
+            }
+        }
+    }
+
+    /**
+     * Sends the next observe request of the task, skipping the paths already observed.
+     *
+     * @return <code>true</code> if a request was sent
+     */
+    private boolean issueNext(final ClientTask task) {
+        Client current = server.getClientRegistry().get(task.client.getEndpoint());
+        if (current == null || !current.getRegistrationId().equals(task.client.getRegistrationId())) {
+            LOG.debug("Client {} is no longer registered, auto-observe cancelled", task.client.getEndpoint());
+            return false;
+        }
+
+        Set<LwM2mPath> observed = new LinkedHashSet<>();
+        for (Observation observation : server.getObservationRegistry().getObservations(current)) {
+            observed.add(observation.getPath());
+        }
+
+        while (!task.paths.isEmpty()) {
+            final String path = task.paths.peek();
+            if (observed.contains(new LwM2mPath(path))) {
+                skipped.incrementAndGet();
+                task.paths.poll();
+                task.attempt = 0;
+                continue;
+            }
+
+            issued.incrementAndGet();
+            LwM2mFuture<ValueResponse> future;
+            try {
+                future = server.sendAsync(current, new ObserveRequest(path), RequestPriority.BULK);
+            } catch (RuntimeException e) {
+                retry(task, e);
+                return true;
+            }
+            future.addCallback(new LwM2mFuture.Callback<ValueResponse>() {
+
+                @Override
+                public void onSuccess(ValueResponse response) {
+                    if (response != null && response.getCode() == ResponseCode.CONTENT) {
+                        succeeded.incrementAndGet();
+                    } else {
+                        LOG.debug("Auto-observe of {} on {} refused: {}", path, task.client.getEndpoint(),
+                                response == null ? null : response.getCode());
+                        failed.incrementAndGet();
+                    }
+                    next(task);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    retry(task, e);
+                }
+            });
+            return true;
+        }
+        return false;
+    }
+
+    private void next(ClientTask task) {
+        task.paths.poll();
+        task.attempt = 0;
+        if (!task.paths.isEmpty()) {
+            reschedule(task, 0);
+        }
+    }
+
+    private void retry(ClientTask task, Exception e) {
+        if (task.attempt < maxRetries) {
+            long delay = retryDelayMillis << task.attempt;
+            task.attempt++;
+            retried.incrementAndGet();
+            LOG.debug("Auto-observe of {} on {} failed, retrying in {}ms", task.paths.peek(),
+                    task.client.getEndpoint(), delay, e);
+            reschedule(task, delay);
+        } else {
+            LOG.warn("Unable to observe {} on {} after {} attempts: {}", task.paths.peek(), task.client.getEndpoint(),
+                    task.attempt + 1, e.toString());
+            failed.incrementAndGet();
+            next(task);
+        }
+    }
+
+    /**
+     * The remaining paths to observe on a client. A task is either pending or waiting for the response of its current
+     * request, which guarantees a single in-flight observe request per client.
+     */
+    private static class ClientTask implements Comparable<ClientTask> {
+        private final Client client;
+        private final Deque<String> paths;
+        private int attempt = 0;
+        private long due;
+
+        ClientTask(Client client, Deque<String> paths) {
+            this.client = client;
+            this.paths = paths;
+        }
+
+        @Override
+        public int compareTo(ClientTask o) {
+            return Long.compare(due, o.due);
+        }
+    }
+}
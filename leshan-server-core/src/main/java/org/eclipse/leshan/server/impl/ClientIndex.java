@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientQuery;
+
+/**
+ * Inverted indexes of the registered clients end-points by object id, binding mode, LWM2M version, registration
+ * end-point and registration time (by buckets), and the clients sorted by registration date.
+ * <p>
+ * The index only provides candidates: the caller must check them against the registered clients. Updates of a given
+ * client must be serialized by the caller.
+ * </p>
+ */
+class ClientIndex {
+
+    public static final long DEFAULT_TIME_BUCKET_MILLIS = 60 * 1000;
+
+    private final long timeBucketMillis;
+
+    private final ConcurrentMap<Integer, Set<String>> byObjectId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<BindingMode, Set<String>> byBindingMode = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> byLwM2mVersion = new ConcurrentHashMap<>();
+    private final ConcurrentMap<InetSocketAddress, Set<String>> byRegistrationEndpoint = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, Set<String>> byRegistrationTime = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<RegistrationKey> registrationOrder = new ConcurrentSkipListSet<>();
+    // the indexed registration time of each end-point, to know in which time bucket it is indexed
+    private final ConcurrentMap<String, Long> registrationTimes = new ConcurrentHashMap<>();
+
+    // add/remove hold the read lock, purging empty entries holds the write lock
+    private final ReadWriteLock purgeLock = new ReentrantReadWriteLock();
+
+    ClientIndex() {
+        this(DEFAULT_TIME_BUCKET_MILLIS);
+    }
+
+    ClientIndex(long timeBucketMillis) {
+        this.timeBucketMillis = timeBucketMillis;
+    }
+
+    void add(Client client) {
+        String endpoint = client.getEndpoint();
+        purgeLock.readLock().lock();
+        try {
+            for (Integer objectId : objectIds(client)) {
+                entry(byObjectId, objectId).add(endpoint);
+            }
+            entry(byBindingMode, client.getBindingMode()).add(endpoint);
+            entry(byLwM2mVersion, client.getLwM2mVersion()).add(endpoint);
+            if (client.getRegistrationEndpointAddress() != null) {
+                entry(byRegistrationEndpoint, client.getRegistrationEndpointAddress()).add(endpoint);
+            }
+            registrationTimes.put(endpoint, client.getRegistrationDate().getTime());
+            entry(byRegistrationTime, bucket(client.getRegistrationDate().getTime())).add(endpoint);
+            registrationOrder.add(new RegistrationKey(client.getRegistrationDate().getTime(), endpoint));
+        } finally {
+            purgeLock.readLock().unlock();
+        }
+    }
+
+    void remove(Client client) {
+        String endpoint = client.getEndpoint();
+        purgeLock.readLock().lock();
+        try {
+            for (Integer objectId : objectIds(client)) {
+                removeFrom(byObjectId, objectId, endpoint);
+            }
+            removeFrom(byBindingMode, client.getBindingMode(), endpoint);
+            removeFrom(byLwM2mVersion, client.getLwM2mVersion(), endpoint);
+            if (client.getRegistrationEndpointAddress() != null) {
+                removeFrom(byRegistrationEndpoint, client.getRegistrationEndpointAddress(), endpoint);
+            }
+            removeFrom(byRegistrationTime, bucket(client.getRegistrationDate().getTime()), endpoint);
+            registrationTimes.remove(endpoint, client.getRegistrationDate().getTime());
+            registrationOrder.remove(new RegistrationKey(client.getRegistrationDate().getTime(), endpoint));
+        } finally {
+            purgeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the empty index entries (mainly the past registration time buckets).
+     */
+    void purge() {
+        purgeLock.writeLock().lock();
+        try {
+            purge(byObjectId);
+            purge(byBindingMode);
+            purge(byLwM2mVersion);
+            purge(byRegistrationEndpoint);
+            purge(byRegistrationTime);
+        } finally {
+            purgeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the end-points of the clients which may match the query, using the most selective index.
+     * 
+     * @return the candidate end-points or <code>null</code> if the query has no indexed criterion
+     */
+    Iterator<String> candidates(ClientQuery query) {
+        Collection<Set<String>> best = null;
+        int bestSize = Integer.MAX_VALUE;
+        ConcurrentNavigableMap<Long, Set<String>> timeRange = null;
+
+        Collection<Collection<Set<String>>> sources = new ArrayList<>();
+        if (query.getObjectId() != null) {
+            sources.add(lookup(byObjectId, query.getObjectId()));
+        }
+        if (query.getBindingMode() != null) {
+            sources.add(lookup(byBindingMode, query.getBindingMode()));
+        }
+        if (query.getLwM2mVersion() != null) {
+            sources.add(lookup(byLwM2mVersion, query.getLwM2mVersion()));
+        }
+        if (query.getRegistrationEndpointAddress() != null) {
+            sources.add(lookup(byRegistrationEndpoint, query.getRegistrationEndpointAddress()));
+        }
+        if (query.getRegisteredAfter() != null || query.getRegisteredBefore() != null) {
+            timeRange = timeRange(query);
+            sources.add(timeRange.values());
+        }
+
+        for (Collection<Set<String>> source : sources) {
+            int size = 0;
+            for (Set<String> endpoints : source) {
+                size += endpoints.size();
+            }
+            if (size < bestSize) {
+                best = source;
+                bestSize = size;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        if (timeRange != null && best == timeRange.values()) {
+            return new TimeRangeIterator(timeRange);
+        }
+        // a lookup returns at most one entry
+        if (best.isEmpty()) {
+            return Collections.emptyIterator();
+        }
+        return Collections.unmodifiableSet(best.iterator().next()).iterator();
+    }
+
+    /**
+     * Returns the clients keys in registration order.
+     * 
+     * @param after the key to start after or <code>null</code> to start from the first registered client
+     */
+    Iterator<RegistrationKey> registrationOrder(RegistrationKey after) {
+        return (after == null ? registrationOrder : registrationOrder.tailSet(after, false)).iterator();
+    }
+
+    private ConcurrentNavigableMap<Long, Set<String>> timeRange(ClientQuery query) {
+        ConcurrentNavigableMap<Long, Set<String>> buckets = byRegistrationTime;
+        if (query.getRegisteredAfter() != null) {
+            buckets = buckets.tailMap(bucket(query.getRegisteredAfter().getTime()), true);
+        }
+        if (query.getRegisteredBefore() != null) {
+            // upper bound is exclusive
+            buckets = buckets.headMap(bucket(query.getRegisteredBefore().getTime() - 1), true);
+        }
+        return buckets;
+    }
+
+    private long bucket(long time) {
+        return time - ((time % timeBucketMillis) + timeBucketMillis) % timeBucketMillis;
+    }
+
+    private static Set<Integer> objectIds(Client client) {
+        LinkObject[] objectLinks = client.getObjectLinks();
+        if (objectLinks == null) {
+            return Collections.emptySet();
+        }
+        Set<Integer> objectIds = new HashSet<>();
+        for (LinkObject link : objectLinks) {
+            if (link.getObjectId() != null) {
+                objectIds.add(link.getObjectId());
+            }
+        }
+        return objectIds;
+    }
+
+    private static <K> Set<String> entry(ConcurrentMap<K, Set<String>> index, K key) {
+        Set<String> endpoints = index.get(key);
+        if (endpoints == null) {
+            Set<String> newEndpoints = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            endpoints = index.putIfAbsent(key, newEndpoints);
+            if (endpoints == null) {
+                endpoints = newEndpoints;
+            }
+        }
+        return endpoints;
+    }
+
+    private static <K> void removeFrom(ConcurrentMap<K, Set<String>> index, K key, String endpoint) {
+        Set<String> endpoints = index.get(key);
+        if (endpoints != null) {
+            endpoints.remove(endpoint);
+        }
+    }
+
+    private static <K> Collection<Set<String>> lookup(ConcurrentMap<K, Set<String>> index, K key) {
+        Set<String> endpoints = index.get(key);
+        if (endpoints == null) {
+            return Collections.emptySet();
+        }
+        return Collections.singleton(endpoints);
+    }
+
+    private static <K> void purge(ConcurrentMap<K, Set<String>> index) {
+        Iterator<Set<String>> it = index.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A position in the registration order: the registration time, then the end-point.
+     */
+    static class RegistrationKey implements Comparable<RegistrationKey> {
+
+        final long time;
+        final String endpoint;
+
+        RegistrationKey(long time, String endpoint) {
+            this.time = time;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public int compareTo(RegistrationKey other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return endpoint.compareTo(other.endpoint);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RegistrationKey)) {
+                return false;
+            }
+            RegistrationKey other = (RegistrationKey) obj;
+            return time == other.time && endpoint.equals(other.endpoint);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (time ^ (time >>> 32)) + endpoint.hashCode();
+        }
+    }
+
+    /**
+     * Iterates over the end-points of the registration time buckets. An end-point is returned only from the bucket of
+     * its indexed registration time, so it is returned only once even if it moves from a bucket to another during the
+     * iteration.
+     */
+    private class TimeRangeIterator implements Iterator<String> {
+
+        private final Iterator<Map.Entry<Long, Set<String>>> buckets;
+        private Long currentBucket;
+        private Iterator<String> current = Collections.<String> emptySet().iterator();
+        private String next;
+
+        TimeRangeIterator(ConcurrentNavigableMap<Long, Set<String>> buckets) {
+            this.buckets = buckets.entrySet().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                while (!current.hasNext()) {
+                    if (!buckets.hasNext()) {
+                        return false;
+                    }
+                    Map.Entry<Long, Set<String>> bucket = buckets.next();
+                    currentBucket = bucket.getKey();
+                    current = bucket.getValue().iterator();
+                }
+                String endpoint = current.next();
+                Long registrationTime = registrationTimes.get(endpoint);
+                if (registrationTime != null && bucket(registrationTime) == currentBucket) {
+                    next = endpoint;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String endpoint = next;
+            next = null;
+            return endpoint;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -15,37 +15,85 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.impl;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.eclipse.leshan.server.Startable;
 import org.eclipse.leshan.server.Stoppable;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientPage;
+import org.eclipse.leshan.server.client.ClientQuery;
+import org.eclipse.leshan.server.client.ClientRecordCodec;
 import org.eclipse.leshan.server.client.ClientRegistry;
 import org.eclipse.leshan.server.client.ClientRegistryListener;
 import org.eclipse.leshan.server.client.ClientUpdate;
+import org.eclipse.leshan.server.impl.ClientIndex.RegistrationKey;
 import org.eclipse.leshan.util.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * In memory client registry
+ * <p>
+ * Clients are kept sorted by end-point, which allows snapshots to be exported incrementally: while an export is running,
+ * a modification of a client the export has not reached yet saves the previous value of this client, so the export only
+ * retains the clients modified during its execution.
+ * </p>
+ * <p>
+ * Clients are also indexed by object id, binding mode, LWM2M version, registration end-point and registration time to
+ * answer {@link #query(ClientQuery)} without scanning all the clients.
+ * </p>
  */
 public class ClientRegistryImpl implements ClientRegistry, Startable, Stoppable {
 
     private static final Logger LOG = LoggerFactory.getLogger(ClientRegistryImpl.class);
 
-    private final Map<String /* end-point */, Client> clientsByEp = new ConcurrentHashMap<>();
+    private static final int SNAPSHOT_BUFFER_SIZE = 8192;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final ConcurrentNavigableMap<String /* end-point */, Client> clientsByEp = new ConcurrentSkipListMap<>();
 
     private final List<ClientRegistryListener> listeners = new CopyOnWriteArrayList<>();
 
+    // running exports
+    private final List<Snapshot> snapshots = new CopyOnWriteArrayList<>();
+
+    // modifications hold the read lock, starting a snapshot holds the write lock
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    private final ClientIndex index = new ClientIndex();
+
+    // serialize the modifications of a given end-point, to keep the index consistent
+    private final Object[] endpointLocks = new Object[LOCK_STRIPES];
+
+    public ClientRegistryImpl() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            endpointLocks[i] = new Object();
+        }
+    }
+
     @Override
     public void addListener(ClientRegistryListener listener) {
         listeners.add(listener);
@@ -72,7 +120,7 @@ public class ClientRegistryImpl implements ClientRegistry, Startable, Stoppable
 
         LOG.debug("Registering new client: {}", client);
 
-        Client previous = clientsByEp.put(client.getEndpoint(), client);
+        Client previous = put(client);
         if (previous != null) {
             for (ClientRegistryListener l : listeners) {
                 l.unregistered(previous);
@@ -93,16 +141,29 @@ public class ClientRegistryImpl implements ClientRegistry, Startable, Stoppable
         Client client = findByRegistrationId(update.getRegistrationId());
         if (client == null) {
             return null;
-        } else {
-            Client clientUpdated = update.updateClient(client);
-            clientsByEp.put(clientUpdated.getEndpoint(), clientUpdated);
+        }
 
-            // notify listener
-            for (ClientRegistryListener l : listeners) {
-                l.updated(clientUpdated);
+        Client clientUpdated;
+        snapshotLock.readLock().lock();
+        try {
+            synchronized (lockFor(client.getEndpoint())) {
+                // the registration may have been concurrently removed or replaced
+                Client current = clientsByEp.get(client.getEndpoint());
+                if (current == null || !current.getRegistrationId().equals(update.getRegistrationId())) {
+                    return null;
+                }
+                clientUpdated = update.updateClient(current);
+                putLocked(clientUpdated);
             }
-            return clientUpdated;
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+
+        // notify listener
+        for (ClientRegistryListener l : listeners) {
+            l.updated(clientUpdated);
         }
+        return clientUpdated;
     }
 
     @Override
@@ -111,16 +172,293 @@ public class ClientRegistryImpl implements ClientRegistry, Startable, Stoppable
 
         LOG.debug("Deregistering client with registrationId: {}", registrationId);
 
-        Client toBeUnregistered = findByRegistrationId(registrationId);
-        if (toBeUnregistered == null) {
+        Client unregistered = remove(registrationId);
+        if (unregistered == null) {
+            return null;
+        }
+        for (ClientRegistryListener l : listeners) {
+            l.unregistered(unregistered);
+        }
+        LOG.debug("Deregistered client: {}", unregistered);
+        return unregistered;
+    }
+
+    /**
+     * Adds a client without notifying the listeners, e.g. when the ownership of a registration is handed off from
+     * another registry. A previous registration of the same end-point is replaced.
+     */
+    public void addClient(Client client) {
+        Validate.notNull(client);
+        put(client);
+    }
+
+    /**
+     * Removes a client without notifying the listeners, e.g. when the ownership of its registration is handed off to
+     * another registry.
+     *
+     * @return the removed client or <code>null</code> if no client has the given registration id
+     */
+    public Client removeClient(String registrationId) {
+        Validate.notNull(registrationId);
+        return remove(registrationId);
+    }
+
+    private Client put(Client client) {
+        snapshotLock.readLock().lock();
+        try {
+            synchronized (lockFor(client.getEndpoint())) {
+                return putLocked(client);
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    // called with the snapshot read lock and the end-point lock
+    private Client putLocked(Client client) {
+        beforeModification(client.getEndpoint());
+        Client previous = clientsByEp.put(client.getEndpoint(), client);
+        if (previous != null) {
+            index.remove(previous);
+        }
+        index.add(client);
+        return previous;
+    }
+
+    private Client remove(String registrationId) {
+        Client toBeRemoved = findByRegistrationId(registrationId);
+        if (toBeRemoved == null) {
             return null;
+        }
+        snapshotLock.readLock().lock();
+        try {
+            synchronized (lockFor(toBeRemoved.getEndpoint())) {
+                // the registration may have been concurrently removed or replaced by a new one of the end-point
+                Client current = clientsByEp.get(toBeRemoved.getEndpoint());
+                if (current == null || !current.getRegistrationId().equals(registrationId)) {
+                    return null;
+                }
+                beforeModification(current.getEndpoint());
+                clientsByEp.remove(current.getEndpoint(), current);
+                index.remove(current);
+                return current;
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Client> query(ClientQuery query) {
+        Validate.notNull(query);
+        return new QueryIterator(query);
+    }
+
+    @Override
+    public ClientPage page(String cursor, int limit, ClientPage.Sort sort) {
+        Validate.isTrue(limit > 0, "limit must be positive");
+        Validate.notNull(sort);
+
+        List<Client> clients = new ArrayList<>();
+        boolean hasMore = false;
+        if (sort == ClientPage.Sort.ENDPOINT) {
+            String after = cursor == null ? null : ClientPage.cursorEndpoint(cursor, sort);
+            Iterator<Client> it = (after == null ? clientsByEp : clientsByEp.tailMap(after, false)).values()
+                    .iterator();
+            while (it.hasNext()) {
+                Client client = it.next();
+                if (clients.size() == limit) {
+                    hasMore = true;
+                    break;
+                }
+                clients.add(client);
+            }
         } else {
-            Client unregistered = clientsByEp.remove(toBeUnregistered.getEndpoint());
-            for (ClientRegistryListener l : listeners) {
-                l.unregistered(unregistered);
+            RegistrationKey after = null;
+            if (cursor != null) {
+                after = new RegistrationKey(ClientPage.cursorRegistrationTime(cursor), ClientPage.cursorEndpoint(
+                        cursor, sort));
+            }
+            Iterator<RegistrationKey> it = index.registrationOrder(after);
+            while (it.hasNext()) {
+                RegistrationKey key = it.next();
+                Client client = clientsByEp.get(key.endpoint);
+                if (client == null || client.getRegistrationDate().getTime() != key.time) {
+                    // concurrently de-registered or re-registered
+                    continue;
+                }
+                if (clients.size() == limit) {
+                    hasMore = true;
+                    break;
+                }
+                clients.add(client);
             }
-            LOG.debug("Deregistered client: {}", unregistered);
-            return unregistered;
+        }
+
+        String nextCursor = hasMore ? ClientPage.cursorAfter(clients.get(clients.size() - 1), sort) : null;
+        return new ClientPage(clients, nextCursor);
+    }
+
+    @Override
+    public int exportTo(WritableByteChannel channel) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        snapshotLock.writeLock().lock();
+        try {
+            snapshots.add(snapshot);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+
+        try {
+            // do not close the stream: it would close the channel
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                    SNAPSHOT_BUFFER_SIZE));
+            ClientRecordCodec.writeHeader(out);
+            int count = 0;
+            Client client;
+            while ((client = snapshot.next()) != null) {
+                ClientRecordCodec.encode(client, out);
+                count++;
+            }
+            out.writeByte(ClientRecordCodec.END);
+            out.flush();
+
+            LOG.debug("{} clients exported", count);
+            return count;
+        } finally {
+            snapshots.remove(snapshot);
+        }
+    }
+
+    @Override
+    public int importFrom(ReadableByteChannel channel) throws IOException {
+        int count = ClientRecordCodec.registerAll(channel, this);
+        LOG.debug("{} clients imported", count);
+        return count;
+    }
+
+    private Object lockFor(String endpoint) {
+        return endpointLocks[(endpoint.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    /**
+     * Iterates over the clients matching a query, looking up the candidates given by the index or scanning all the
+     * clients if the query has no indexed criterion.
+     */
+    private class QueryIterator implements Iterator<Client> {
+
+        private final ClientQuery query;
+        private final Iterator<String> candidates;
+        private final Iterator<Client> allClients;
+        private Client next;
+
+        QueryIterator(ClientQuery query) {
+            this.query = query;
+            this.candidates = index.candidates(query);
+            this.allClients = candidates == null ? clientsByEp.values().iterator() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                Client candidate;
+                if (candidates != null) {
+                    if (!candidates.hasNext()) {
+                        return false;
+                    }
+                    candidate = clientsByEp.get(candidates.next());
+                } else {
+                    if (!allClients.hasNext()) {
+                        return false;
+                    }
+                    candidate = allClients.next();
+                }
+                if (candidate != null && query.matches(candidate)) {
+                    next = candidate;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Client next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Client client = next;
+            next = null;
+            return client;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Must be called while holding the snapshot read lock, before modifying the client registered for the given
+     * end-point.
+     */
+    private void beforeModification(String endpoint) {
+        if (!snapshots.isEmpty()) {
+            Client current = clientsByEp.get(endpoint);
+            for (Snapshot snapshot : snapshots) {
+                snapshot.beforeModification(endpoint, current);
+            }
+        }
+    }
+
+    private static final Object ABSENT = new Object();
+
+    /**
+     * A point-in-time view of the registry, iterated in end-point order.
+     */
+    private class Snapshot {
+
+        // value at snapshot time of the clients modified ahead of the cursor (or ABSENT)
+        private final TreeMap<String, Object> previousValues = new TreeMap<>();
+
+        // last end-point returned
+        private String cursor;
+
+        synchronized void beforeModification(String endpoint, Client current) {
+            if ((cursor == null || endpoint.compareTo(cursor) > 0) && !previousValues.containsKey(endpoint)) {
+                previousValues.put(endpoint, current == null ? ABSENT : current);
+            }
+        }
+
+        /**
+         * @return the next client of the snapshot or <code>null</code> if the snapshot is exhausted
+         */
+        synchronized Client next() {
+            while (true) {
+                String nextLive = cursor == null ? firstKey(clientsByEp) : clientsByEp.higherKey(cursor);
+                String nextPrevious = firstKey(previousValues);
+                String next;
+                if (nextLive == null) {
+                    next = nextPrevious;
+                } else if (nextPrevious == null) {
+                    next = nextLive;
+                } else {
+                    next = nextLive.compareTo(nextPrevious) <= 0 ? nextLive : nextPrevious;
+                }
+                if (next == null) {
+                    return null;
+                }
+                cursor = next;
+
+                Object value = previousValues.containsKey(next) ? previousValues.remove(next) : clientsByEp.get(next);
+                if (value instanceof Client) {
+                    return (Client) value;
+                }
+                // registered after the snapshot was taken
+            }
+        }
+
+        private String firstKey(NavigableMap<String, ?> map) {
+            Entry<String, ?> first = map.firstEntry();
+            return first == null ? null : first.getKey();
         }
     }
 
@@ -174,6 +512,7 @@ public class ClientRegistryImpl implements ClientRegistry, Startable, Stoppable
                     }
                 }
             }
+            index.purge();
         }
     }
 }
@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationRegistryListener;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link ObservationRegistryListener} decoupling the notification path from a (potentially slow) listener.
+ * <p>
+ * Events are queued in a bounded queue and delivered in order to the delegate on an executor. Notifications are keyed
+ * by registration id and path: when a new value arrives while the previous value for the same resource has not been
+ * delivered yet, the queued value is replaced by the new one (conflation). When the queue is full, new values for
+ * other resources are dropped.
+ * </p>
+ * <p>
+ * New observation and cancellation events are never conflated nor dropped.
+ * </p>
+ */
+public class ConflatingObservationRegistryListener implements ObservationRegistryListener, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConflatingObservationRegistryListener.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private enum Type {
+        NEW_OBSERVATION, VALUE, CANCELLED
+    }
+
+    private final ObservationRegistryListener delegate;
+    private final Executor executor;
+    private final boolean ownExecutor;
+    private final int queueCapacity;
+
+    // guarded by queue
+    private final ArrayDeque<Event> queue = new ArrayDeque<>();
+    private final Map<Key, Event> pendingValues = new HashMap<>();
+    private boolean scheduled = false;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private volatile boolean stopped = false;
+
+    /**
+     * Delivers the events on a dedicated thread, stopped by {@link #stop()}, with the default queue capacity.
+     */
+    public ConflatingObservationRegistryListener(ObservationRegistryListener delegate) {
+        this(delegate, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Delivers the events on a dedicated thread, stopped by {@link #stop()}.
+     *
+     * @param delegate the listener to notify
+     * @param queueCapacity the maximum number of pending notifications
+     */
+    public ConflatingObservationRegistryListener(ObservationRegistryListener delegate, int queueCapacity) {
+        this(delegate, Executors.newSingleThreadExecutor(), true, queueCapacity);
+    }
+
+    /**
+     * Delivers the events on the given executor. The executor is not shut down by {@link #stop()}.
+     *
+     * @param delegate the listener to notify
+     * @param executor the executor used to deliver the events
+     * @param queueCapacity the maximum number of pending notifications
+     */
+    public ConflatingObservationRegistryListener(ObservationRegistryListener delegate, Executor executor,
+            int queueCapacity) {
+        this(delegate, executor, false, queueCapacity);
+    }
+
+    private ConflatingObservationRegistryListener(ObservationRegistryListener delegate, Executor executor,
+            boolean ownExecutor, int queueCapacity) {
+        Validate.notNull(delegate);
+        Validate.notNull(executor);
+        Validate.isTrue(queueCapacity > 0, "queue capacity must be positive");
+
+        this.delegate = delegate;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public void newObservation(Observation observation) {
+        enqueue(new Event(Type.NEW_OBSERVATION, observation, null));
+    }
+
+    @Override
+    public void newValue(Observation observation, LwM2mNode value) {
+        enqueue(new Event(Type.VALUE, observation, value));
+    }
+
+    @Override
+    public void cancelled(Observation observation) {
+        enqueue(new Event(Type.CANCELLED, observation, null));
+    }
+
+    private void enqueue(Event event) {
+        if (stopped) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        Key key = new Key(event.observation);
+        synchronized (queue) {
+            if (event.type == Type.VALUE) {
+                Event pending = pendingValues.get(key);
+                if (pending != null) {
+                    pending.value = event.value;
+                    conflated.incrementAndGet();
+                    return;
+                }
+                if (pendingValues.size() >= queueCapacity) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                pendingValues.put(key, event);
+            } else {
+                // values received after this event must not be merged with the ones received before
+                pendingValues.remove(key);
+            }
+            queue.add(event);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    /**
+     * @return the number of notifications dropped because of a full queue or because this listener was stopped
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of notifications replaced by a newer value before being delivered
+     */
+    public long getConflatedCount() {
+        return conflated.get();
+    }
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    public int getPendingCount() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Stops accepting new events. Pending events are discarded.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+        clear();
+        if (ownExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    private void clear() {
+        synchronized (queue) {
+            dropped.addAndGet(queue.size());
+            queue.clear();
+            pendingValues.clear();
+            scheduled = false;
+        }
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    deliver();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            clear();
+            if (!stopped) {
+                LOG.warn("Unable to dispatch observation events", e);
+            }
+        }
+    }
+
+    private void deliver() {
+        while (true) {
+            Event event;
+            LwM2mNode value;
+            synchronized (queue) {
+                event = queue.poll();
+                if (event == null) {
+                    scheduled = false;
+                    return;
+                }
+                if (event.type == Type.VALUE) {
+                    // a cancellation may have detached this event: do not remove a newer value of the resource
+                    Key key = new Key(event.observation);
+                    if (pendingValues.get(key) == event) {
+                        pendingValues.remove(key);
+                    }
+                }
+                value = event.value;
+            }
+
+            try {
+                switch (event.type) {
+                case NEW_OBSERVATION:
+                    delegate.newObservation(event.observation);
+                    break;
+                case VALUE:
+                    delegate.newValue(event.observation, value);
+                    break;
+                case CANCELLED:
+                    delegate.cancelled(event.observation);
+                    break;
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Observation listener failed to handle " + event.type + " event", e);
+            }
+        }
+    }
+
+    private static class Event {
+        private final Type type;
+        private final Observation observation;
+        // guarded by queue
+        private LwM2mNode value;
+
+        Event(Type type, Observation observation, LwM2mNode value) {
+            this.type = type;
+            this.observation = observation;
+            this.value = value;
+        }
+    }
+
+    private static class Key {
+        private final String registrationId;
+        private final LwM2mPath path;
+
+        Key(Observation observation) {
+            this.registrationId = observation.getClient().getRegistrationId();
+            this.path = observation.getPath();
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * registrationId.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return registrationId.equals(other.registrationId) && path.equals(other.path);
+        }
+    }
+}
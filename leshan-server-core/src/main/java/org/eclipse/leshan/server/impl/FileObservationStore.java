@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.server.Destroyable;
+import org.eclipse.leshan.server.observation.ObservationRecord;
+import org.eclipse.leshan.server.observation.ObservationStore;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link ObservationStore} backed by an append-only log file.
+ * <p>
+ * Each change is appended to the log and flushed. The log is compacted when it is loaded and when it contains too many
+ * obsolete entries. A truncated last entry (e.g. the server was killed while writing it) is ignored.
+ * </p>
+ */
+public class FileObservationStore implements ObservationStore, Destroyable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileObservationStore.class);
+
+    /** "LWOB" */
+    private static final int MAGIC = 0x4C574F42;
+    private static final byte VERSION = 1;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    // the log is compacted when it holds more than twice the number of live records plus this number of entries
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private final File file;
+
+    // guarded by this
+    private final Map<String, ObservationRecord> records = new HashMap<>();
+    private DataOutputStream log;
+    private int logEntries;
+
+    /**
+     * Opens the store, loading the observations saved in the given file if it exists.
+     */
+    public FileObservationStore(File file) throws IOException {
+        Validate.notNull(file);
+        this.file = file;
+        if (file.exists()) {
+            load();
+        }
+        compact();
+    }
+
+    @Override
+    public synchronized void add(ObservationRecord record) {
+        records.put(key(record.getRegistrationId(), record.getPath()), record);
+        append(ADD, record);
+    }
+
+    @Override
+    public synchronized void remove(ObservationRecord record) {
+        String key = key(record.getRegistrationId(), record.getPath());
+        ObservationRecord stored = records.get(key);
+        if (stored != null && stored.isSameObservation(record)) {
+            records.remove(key);
+            append(REMOVE, record);
+        }
+    }
+
+    @Override
+    public synchronized Collection<ObservationRecord> getAll() {
+        return new ArrayList<>(records.values());
+    }
+
+    /**
+     * Closes the log file.
+     */
+    @Override
+    public synchronized void destroy() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close observation store " + file, e);
+            }
+            log = null;
+        }
+    }
+
+    private void append(byte type, ObservationRecord record) {
+        if (log == null) {
+            return;
+        }
+        try {
+            write(log, type, record);
+            log.flush();
+            logEntries++;
+
+            if (logEntries > 2 * records.size() + COMPACTION_THRESHOLD) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // keep appending to the current log, retry later
+                    logEntries = records.size();
+                    LOG.warn("Unable to compact observation store " + file, e);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to write to observation store " + file, e);
+        }
+    }
+
+    private static void write(DataOutputStream out, byte type, ObservationRecord record) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(record.getRegistrationId());
+        out.writeUTF(record.getPath().toString());
+        if (type == ADD) {
+            out.writeByte(record.getToken().length);
+            out.write(record.getToken());
+            out.writeInt(record.getContentFormat() == null ? -1 : record.getContentFormat().getCode());
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int magic = in.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("Not an observation store: invalid header " + Integer.toHexString(magic));
+            }
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported observation store version: " + version);
+            }
+
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                String registrationId = in.readUTF();
+                LwM2mPath path = new LwM2mPath(in.readUTF());
+                if (type == ADD) {
+                    byte[] token = new byte[in.readUnsignedByte()];
+                    in.readFully(token);
+                    ContentFormat contentFormat = ContentFormat.fromCode(in.readInt());
+                    records.put(key(registrationId, path), new ObservationRecord(registrationId, path, token,
+                            contentFormat));
+                } else if (type == REMOVE) {
+                    records.remove(key(registrationId, path));
+                } else {
+                    throw new IOException("Invalid observation store entry type: " + type);
+                }
+            }
+        } catch (EOFException e) {
+            LOG.warn("Observation store {} is truncated: last entry ignored", file);
+        }
+        LOG.debug("{} observations loaded from {}", records.size(), file);
+    }
+
+    private void compact() throws IOException {
+        // rewrite the live records then atomically replace the log
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            for (ObservationRecord record : records.values()) {
+                write(out, ADD, record);
+            }
+        }
+
+        destroy();
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            logEntries = records.size();
+        } finally {
+            // append to the compacted log, or to the previous one if it was not replaced
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+    }
+
+    private static String key(String registrationId, LwM2mPath path) {
+        return registrationId + path;
+    }
+}
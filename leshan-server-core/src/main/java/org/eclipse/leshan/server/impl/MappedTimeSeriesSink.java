@@ -0,0 +1,597 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.core.node.Value.DataType;
+import org.eclipse.leshan.server.Destroyable;
+import org.eclipse.leshan.server.impl.ObservationHistory.HistoryValue;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationRegistryListener;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the notified values in memory-mapped segment files, to be added as a listener of the observation registry.
+ * <p>
+ * Values are stored per series (client end-point, resource path): the values of objects and object instances are
+ * split into one series per single value resource, multiple instances resources are not stored. Each record holds the
+ * timestamp delta with the previous value of the series and the value as a primitive (or its bytes for strings and
+ * opaque values), and is protected by a CRC.
+ * </p>
+ * <p>
+ * A new segment is started when the current one is full. Segments whose values are all older than the retention
+ * delay are deleted when a segment is started. On opening, the segments are scanned to rebuild the series dictionary
+ * and their sparse time index: a record which was not completely written (crash) ends the segment.
+ * </p>
+ * <p>
+ * The timestamps of a series are expected to be increasing.
+ * </p>
+ */
+public class MappedTimeSeriesSink implements ObservationRegistryListener, Destroyable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedTimeSeriesSink.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** "LWTS" */
+    private static final int MAGIC = 0x4C575453;
+    private static final byte VERSION = 1;
+    // magic (4) + version (1) + base timestamp (8)
+    private static final int HEADER_SIZE = 13;
+
+    private static final byte DEFINE = 1;
+    private static final byte VALUE = 2;
+    // type (1) + body length (2) + CRC (4)
+    private static final int RECORD_OVERHEAD = 7;
+    private static final int MAX_BODY_SIZE = 0xFFFF;
+    // leaves room for the series id, the timestamp delta and the type in a value record body
+    private static final int MAX_VALUE_SIZE = MAX_BODY_SIZE - 32;
+
+    // one index entry every INDEX_INTERVAL values of a series
+    private static final int INDEX_INTERVAL = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".ts";
+
+    private final File directory;
+    private final int segmentSize;
+    private final long retentionMillis;
+
+    // guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + MAX_BODY_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long nextSequence = 0;
+    private long skipped = 0;
+
+    /**
+     * Opens the sink with the default segment size, recovering the segments found in the given directory.
+     *
+     * @param directory the directory of the segment files
+     * @param retentionMillis how long the values are kept (in ms)
+     */
+    public MappedTimeSeriesSink(File directory, long retentionMillis) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, retentionMillis);
+    }
+
+    /**
+     * Opens the sink, recovering the segments found in the given directory.
+     *
+     * @param directory the directory of the segment files
+     * @param segmentSize the size of a segment file (in bytes)
+     * @param retentionMillis how long the values are kept (in ms)
+     */
+    public MappedTimeSeriesSink(File directory, int segmentSize, long retentionMillis) throws IOException {
+        Validate.notNull(directory);
+        // a new segment must fit a series definition and a value
+        Validate.isTrue(segmentSize >= HEADER_SIZE + 2 * (RECORD_OVERHEAD + MAX_BODY_SIZE), "segment size too small");
+        Validate.isTrue(retentionMillis > 0, "retention must be positive");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionMillis = retentionMillis;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        String[] names = directory.list(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        // the zero padded sequence number keeps the segments sorted
+        Arrays.sort(names);
+        for (String name : names) {
+            Segment segment = Segment.open(new File(directory, name), record, crc);
+            segments.add(segment);
+            nextSequence = sequenceOf(name) + 1;
+        }
+        LOG.debug("{} segments recovered from {}", segments.size(), directory);
+        applyRetention();
+    }
+
+    @Override
+    public void newValue(Observation observation, LwM2mNode value) {
+        append(observation.getClient().getEndpoint(), observation.getPath(), System.currentTimeMillis(), value);
+    }
+
+    @Override
+    public void newObservation(Observation observation) {
+    }
+
+    @Override
+    public void cancelled(Observation observation) {
+    }
+
+    /**
+     * Stores the values of a node.
+     */
+    public synchronized void append(String endpoint, LwM2mPath path, long timestamp, LwM2mNode node) {
+        if (node instanceof LwM2mResource) {
+            LwM2mResource resource = (LwM2mResource) node;
+            if (resource.isMultiInstances() || resource.getValue() == null || resource.getValue().value == null) {
+                skipped++;
+            } else {
+                append(endpoint, resourcePath(path, resource.getId()), timestamp, resource.getValue());
+            }
+        } else if (node instanceof LwM2mObjectInstance) {
+            LwM2mObjectInstance instance = (LwM2mObjectInstance) node;
+            LwM2mPath instancePath = path.isObject() ? new LwM2mPath(path.getObjectId(), instance.getId()) : path;
+            for (LwM2mResource resource : instance.getResources().values()) {
+                append(endpoint, instancePath, timestamp, resource);
+            }
+        } else if (node instanceof LwM2mObject) {
+            for (LwM2mObjectInstance instance : ((LwM2mObject) node).getInstances().values()) {
+                append(endpoint, new LwM2mPath(path.getObjectId()), timestamp, instance);
+            }
+        } else {
+            skipped++;
+        }
+    }
+
+    private void append(String endpoint, LwM2mPath path, long timestamp, Value<?> value) {
+        byte[] encoded = encode(value);
+        if (encoded.length > MAX_VALUE_SIZE) {
+            skipped++;
+            return;
+        }
+        String key = endpoint + path;
+        Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        try {
+            if (current == null
+                    || !current.append(key, endpoint, path, timestamp, value.type, encoded, record, crc)) {
+                current = roll(timestamp);
+                current.append(key, endpoint, path, timestamp, value.type, encoded, record, crc);
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to create a new segment in " + directory, e);
+            skipped++;
+        }
+    }
+
+    /**
+     * @return the values of a single value resource received in [from, to[, oldest first
+     */
+    public synchronized List<HistoryValue> query(String endpoint, LwM2mPath path, long from, long to) {
+        Validate.isTrue(path.isResource(), "path must be a resource path");
+        String key = endpoint + path;
+        List<HistoryValue> values = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.query(key, path.getResourceId(), from, to, values);
+        }
+        return values;
+    }
+
+    /**
+     * Deletes the segments whose values are all older than the retention delay.
+     */
+    public synchronized void applyRetention() {
+        long limit = System.currentTimeMillis() - retentionMillis;
+        // the last segment is kept: it is the one being written
+        for (Iterator<Segment> it = segments.iterator(); it.hasNext();) {
+            Segment segment = it.next();
+            if (segment == segments.get(segments.size() - 1)) {
+                break;
+            }
+            if (segment.maxTimestamp < limit) {
+                it.remove();
+                if (!segment.file.delete()) {
+                    LOG.warn("Unable to delete expired segment {}", segment.file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the values written so far to the disk.
+     */
+    public synchronized void flush() {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).buffer.force();
+        }
+    }
+
+    /**
+     * @return the number of values which could not be stored
+     */
+    public synchronized long getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Flushes the values and releases the segments.
+     */
+    @Override
+    public synchronized void destroy() {
+        flush();
+        segments.clear();
+    }
+
+    private Segment roll(long timestamp) throws IOException {
+        flush();
+        File file = new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+        Segment segment = Segment.create(file, segmentSize, timestamp);
+        segments.add(segment);
+        applyRetention();
+        return segment;
+    }
+
+    private static long sequenceOf(String name) {
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static LwM2mPath resourcePath(LwM2mPath path, int resourceId) {
+        if (path.isResource()) {
+            return path;
+        }
+        return new LwM2mPath(path.getObjectId(), path.getObjectInstanceId(), resourceId);
+    }
+
+    private static byte[] encode(Value<?> value) {
+        switch (value.type) {
+        case INTEGER:
+        case LONG:
+            return ByteBuffer.allocate(8).putLong(((Number) value.value).longValue()).array();
+        case FLOAT:
+        case DOUBLE:
+            return ByteBuffer.allocate(8).putDouble(((Number) value.value).doubleValue()).array();
+        case TIME:
+            return ByteBuffer.allocate(8).putLong(((Date) value.value).getTime()).array();
+        case BOOLEAN:
+            return new byte[] { (byte) (((Boolean) value.value) ? 1 : 0) };
+        case STRING:
+            return ((String) value.value).getBytes(UTF_8);
+        case OPAQUE:
+            return (byte[]) value.value;
+        default:
+            throw new IllegalArgumentException("Unsupported value type: " + value.type);
+        }
+    }
+
+    private static Value<?> decode(DataType type, ByteBuffer buffer, int length) {
+        switch (type) {
+        case INTEGER:
+            return Value.newIntegerValue((int) buffer.getLong());
+        case LONG:
+            return Value.newLongValue(buffer.getLong());
+        case FLOAT:
+            return Value.newFloatValue((float) buffer.getDouble());
+        case DOUBLE:
+            return Value.newDoubleValue(buffer.getDouble());
+        case TIME:
+            return Value.newDateValue(new Date(buffer.getLong()));
+        case BOOLEAN:
+            return Value.newBooleanValue(buffer.get() != 0);
+        case STRING:
+            byte[] string = new byte[length];
+            buffer.get(string);
+            return Value.newStringValue(new String(string, UTF_8));
+        case OPAQUE:
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return Value.newBinaryValue(bytes);
+        default:
+            throw new IllegalArgumentException("Unsupported value type: " + type);
+        }
+    }
+
+    // zigzag + variable length encoding of a signed long
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static class Series {
+        private final int id;
+        private long lastTimestamp;
+        private int count = 0;
+        // sparse time index: timestamp and offset of one value every INDEX_INTERVAL values
+        private long[] indexTimestamps = new long[4];
+        private int[] indexOffsets = new int[4];
+        private int indexSize = 0;
+
+        Series(int id, long baseTimestamp) {
+            this.id = id;
+            this.lastTimestamp = baseTimestamp;
+        }
+
+        void added(long timestamp, int offset) {
+            if (count % INDEX_INTERVAL == 0) {
+                if (indexSize == indexTimestamps.length) {
+                    indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+                    indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+                }
+                indexTimestamps[indexSize] = timestamp;
+                indexOffsets[indexSize] = offset;
+                indexSize++;
+            }
+            count++;
+            lastTimestamp = timestamp;
+        }
+
+        // the index entry to start a scan for the values received from the given time
+        int indexFor(long from) {
+            int low = 0;
+            int high = indexSize - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (indexTimestamps[mid] <= from) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final long baseTimestamp;
+        private final Map<String, Series> seriesByKey = new HashMap<>();
+        private final List<Series> seriesById = new ArrayList<>();
+        private int position = HEADER_SIZE;
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
+
+        private Segment(File file, MappedByteBuffer buffer, long baseTimestamp) {
+            this.file = file;
+            this.buffer = buffer;
+            this.baseTimestamp = baseTimestamp;
+        }
+
+        static Segment create(File file, int size, long baseTimestamp) throws IOException {
+            MappedByteBuffer buffer = map(file, size);
+            buffer.putInt(0, MAGIC);
+            buffer.put(4, VERSION);
+            buffer.putLong(5, baseTimestamp);
+            return new Segment(file, buffer, baseTimestamp);
+        }
+
+        static Segment open(File file, ByteBuffer record, CRC32 crc) throws IOException {
+            MappedByteBuffer buffer = map(file, (int) file.length());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a time series segment: " + file);
+            }
+            if (buffer.get(4) != VERSION) {
+                throw new IOException("Unsupported time series segment version: " + buffer.get(4));
+            }
+            Segment segment = new Segment(file, buffer, buffer.getLong(5));
+            segment.recover(record, crc);
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                return raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        boolean append(String key, String endpoint, LwM2mPath path, long timestamp, DataType type,
+                byte[] value, ByteBuffer record, CRC32 crc) {
+            Series series = seriesByKey.get(key);
+            if (series == null) {
+                record.clear();
+                record.position(3);
+                putVarLong(record, seriesById.size());
+                putString(record, endpoint);
+                putString(record, path.toString());
+                if (!write(DEFINE, record, crc)) {
+                    return false;
+                }
+                series = new Series(seriesById.size(), baseTimestamp);
+                seriesByKey.put(key, series);
+                seriesById.add(series);
+            }
+
+            record.clear();
+            record.position(3);
+            putVarLong(record, series.id);
+            putVarLong(record, timestamp - series.lastTimestamp);
+            record.put((byte) type.ordinal());
+            record.put(value);
+            int offset = position;
+            if (!write(VALUE, record, crc)) {
+                return false;
+            }
+            series.added(timestamp, offset);
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            return true;
+        }
+
+        // writes the record body prepared from position 3 of the given buffer
+        private boolean write(byte type, ByteBuffer record, CRC32 crc) {
+            int length = record.position() - 3;
+            if (position + RECORD_OVERHEAD + length > buffer.capacity()) {
+                return false;
+            }
+            record.put(0, type);
+            record.putShort(1, (short) length);
+            crc.reset();
+            crc.update(record.array(), 0, 3 + length);
+            record.putInt((int) crc.getValue());
+            record.flip();
+
+            ByteBuffer out = buffer.duplicate();
+            out.position(position);
+            out.put(record);
+            position += RECORD_OVERHEAD + length;
+            return true;
+        }
+
+        // scans the records to rebuild the series, stops at the first invalid record
+        private void recover(ByteBuffer record, CRC32 crc) {
+            ByteBuffer in = buffer.duplicate();
+            while (position + RECORD_OVERHEAD <= buffer.capacity()) {
+                byte type = buffer.get(position);
+                if (type != DEFINE && type != VALUE) {
+                    break;
+                }
+                int length = buffer.getShort(position + 1) & 0xFFFF;
+                if (position + RECORD_OVERHEAD + length > buffer.capacity()) {
+                    break;
+                }
+                in.limit(position + 3 + length).position(position);
+                record.clear();
+                record.put(in);
+                crc.reset();
+                crc.update(record.array(), 0, 3 + length);
+                if ((int) crc.getValue() != buffer.getInt(position + 3 + length)) {
+                    LOG.warn("Corrupted record in segment {} at {}: segment truncated", file, position);
+                    break;
+                }
+
+                record.position(3);
+                if (type == DEFINE) {
+                    int id = (int) getVarLong(record);
+                    String endpoint = getString(record);
+                    String path = getString(record);
+                    Series series = new Series(id, baseTimestamp);
+                    seriesByKey.put(endpoint + path, series);
+                    seriesById.add(series);
+                } else {
+                    Series series = seriesById.get((int) getVarLong(record));
+                    long timestamp = series.lastTimestamp + getVarLong(record);
+                    series.added(timestamp, position);
+                    minTimestamp = Math.min(minTimestamp, timestamp);
+                    maxTimestamp = Math.max(maxTimestamp, timestamp);
+                }
+                position += RECORD_OVERHEAD + length;
+            }
+            if (position + 1 <= buffer.capacity()) {
+                // invalidate a partially written record
+                buffer.put(position, (byte) 0);
+            }
+        }
+
+        void query(String key, int resourceId, long from, long to, List<HistoryValue> values) {
+            Series series = seriesByKey.get(key);
+            if (series == null || series.indexSize == 0 || maxTimestamp < from || minTimestamp >= to) {
+                return;
+            }
+
+            int entry = series.indexFor(from);
+            int offset = series.indexOffsets[entry];
+            // the timestamp of the value preceding the indexed one
+            long timestamp = Long.MIN_VALUE;
+            ByteBuffer in = buffer.duplicate();
+            while (offset < position) {
+                byte type = buffer.get(offset);
+                int length = buffer.getShort(offset + 1) & 0xFFFF;
+                if (type == VALUE) {
+                    in.limit(offset + 3 + length).position(offset + 3);
+                    if (getVarLong(in) == series.id) {
+                        long delta = getVarLong(in);
+                        timestamp = timestamp == Long.MIN_VALUE ? series.indexTimestamps[entry] : timestamp + delta;
+                        if (timestamp >= to) {
+                            return;
+                        }
+                        DataType dataType = DataType.values()[in.get()];
+                        if (timestamp >= from) {
+                            values.add(new HistoryValue(timestamp, new LwM2mResource(resourceId, decode(dataType, in,
+                                    in.remaining()))));
+                        }
+                    }
+                }
+                offset += RECORD_OVERHEAD + length;
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.core.node.Value.DataType;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationRegistryListener;
+import org.eclipse.leshan.util.Validate;
+
+/**
+ * Keeps the last values notified for each observed resource, to be added as a listener of the observation registry.
+ * <p>
+ * The values of each (client end-point, path) are kept in a fixed size ring buffer. Single value numeric, boolean and
+ * time resources are stored as primitives in a {@link ByteBuffer} (optionally allocated off-heap), other values are
+ * kept as {@link LwM2mNode}s.
+ * </p>
+ * <p>
+ * The estimated memory used by the buffers is bounded by a global budget: the least recently used (updated or
+ * queried) buffers are evicted to make room for new ones. The history of a cancelled observation is intentionally
+ * kept until it is evicted: the observations of a client are cancelled when it registers again, and its history
+ * continues with the observations of its new registration.
+ * </p>
+ */
+public class ObservationHistory implements ObservationRegistryListener {
+
+    /** A value notified at a given time. */
+    public static class HistoryValue {
+        private final long timestamp;
+        private final LwM2mNode value;
+
+        public HistoryValue(long timestamp, LwM2mNode value) {
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        /**
+         * @return the reception time of the value (in ms)
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public LwM2mNode getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("HistoryValue [timestamp=%s, value=%s]", timestamp, value);
+        }
+    }
+
+    // timestamp (8) + primitive value (8) + type (1)
+    private static final int ENTRY_SIZE = 17;
+    private static final int REFERENCE_SIZE = 8;
+    private static final byte NODE = -1;
+
+    private final int capacity;
+    private final long memoryBudget;
+    private final boolean offHeap;
+
+    // guarded by buffers, in access order (least recently used first)
+    private final LinkedHashMap<Key, RingBuffer> buffers = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsed = 0;
+    private long evicted = 0;
+
+    /**
+     * @param capacity the number of values kept per observed resource
+     * @param memoryBudget the maximum estimated memory used by all the buffers (in bytes)
+     */
+    public ObservationHistory(int capacity, long memoryBudget) {
+        this(capacity, memoryBudget, false);
+    }
+
+    /**
+     * @param capacity the number of values kept per observed resource
+     * @param memoryBudget the maximum estimated memory used by all the buffers (in bytes)
+     * @param offHeap <code>true</code> to store the primitive values in direct buffers
+     */
+    public ObservationHistory(int capacity, long memoryBudget, boolean offHeap) {
+        Validate.isTrue(capacity > 0, "capacity must be positive");
+        Validate.isTrue(memoryBudget >= (long) capacity * (ENTRY_SIZE + REFERENCE_SIZE),
+                "memory budget too small for a single buffer");
+        this.capacity = capacity;
+        this.memoryBudget = memoryBudget;
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    public void newValue(Observation observation, LwM2mNode value) {
+        record(observation.getClient().getEndpoint(), observation.getPath(), System.currentTimeMillis(), value);
+    }
+
+    @Override
+    public void newObservation(Observation observation) {
+    }
+
+    @Override
+    public void cancelled(Observation observation) {
+        // the history is kept for the next registration of the client, until it is evicted
+    }
+
+    /**
+     * Adds a value to the history of a resource.
+     */
+    public void record(String endpoint, LwM2mPath path, long timestamp, LwM2mNode value) {
+        Key key = new Key(endpoint, path);
+        synchronized (buffers) {
+            RingBuffer buffer = buffers.get(key);
+            if (buffer == null) {
+                buffer = new RingBuffer();
+                reserve(buffer.memory());
+                buffers.put(key, buffer);
+            }
+            Value<?> primitive = primitiveValue(value);
+            if (primitive == null && buffer.nodes == null) {
+                // the most recently updated buffer cannot be evicted: the budget fits a full buffer
+                reserve((long) capacity * REFERENCE_SIZE);
+                buffer.nodes = new LwM2mNode[capacity];
+            }
+            buffer.add(timestamp, value, primitive);
+        }
+    }
+
+    /**
+     * @return all the values kept for the given resource, oldest first
+     */
+    public List<HistoryValue> getHistory(String endpoint, LwM2mPath path) {
+        return getHistory(endpoint, path, capacity);
+    }
+
+    /**
+     * @return the last <code>count</code> values of the given resource, oldest first
+     */
+    public List<HistoryValue> getHistory(String endpoint, LwM2mPath path, int count) {
+        return getHistory(endpoint, path, count, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the values of the given resource received in [from, to[, oldest first
+     */
+    public List<HistoryValue> getHistory(String endpoint, LwM2mPath path, long from, long to) {
+        return getHistory(endpoint, path, capacity, from, to);
+    }
+
+    private List<HistoryValue> getHistory(String endpoint, LwM2mPath path, int count, long from, long to) {
+        synchronized (buffers) {
+            RingBuffer buffer = buffers.get(new Key(endpoint, path));
+            if (buffer == null) {
+                return Collections.emptyList();
+            }
+            List<HistoryValue> values = buffer.values(from, to);
+            return values.size() > count ? new ArrayList<>(values.subList(values.size() - count, values.size()))
+                    : values;
+        }
+    }
+
+    /**
+     * @return the estimated memory used by the buffers (in bytes)
+     */
+    public long getMemoryUsed() {
+        synchronized (buffers) {
+            return memoryUsed;
+        }
+    }
+
+    /**
+     * @return the number of buffers evicted to stay in the memory budget
+     */
+    public long getEvictedCount() {
+        synchronized (buffers) {
+            return evicted;
+        }
+    }
+
+    /**
+     * @return the number of resources with a history
+     */
+    public int size() {
+        synchronized (buffers) {
+            return buffers.size();
+        }
+    }
+
+    // evicts the least recently used buffers until the given memory is available
+    private void reserve(long memory) {
+        Iterator<RingBuffer> eldest = buffers.values().iterator();
+        while (memoryUsed + memory > memoryBudget && eldest.hasNext()) {
+            RingBuffer buffer = eldest.next();
+            eldest.remove();
+            memoryUsed -= buffer.memory();
+            evicted++;
+        }
+        memoryUsed += memory;
+    }
+
+    private class RingBuffer {
+        private final ByteBuffer entries = offHeap ? ByteBuffer.allocateDirect(capacity * ENTRY_SIZE) : ByteBuffer
+                .allocate(capacity * ENTRY_SIZE);
+        // allocated with the first non primitive value
+        private LwM2mNode[] nodes;
+        private int resourceId;
+        private int next = 0;
+        private int size = 0;
+
+        void add(long timestamp, LwM2mNode value, Value<?> primitive) {
+            int offset = next * ENTRY_SIZE;
+            entries.putLong(offset, timestamp);
+            if (primitive != null) {
+                entries.putLong(offset + 8, toBits(primitive));
+                entries.put(offset + 16, (byte) primitive.type.ordinal());
+                resourceId = ((LwM2mResource) value).getId();
+                if (nodes != null) {
+                    nodes[next] = null;
+                }
+            } else {
+                entries.putLong(offset + 8, 0L);
+                entries.put(offset + 16, NODE);
+                nodes[next] = value;
+            }
+            next = (next + 1) % capacity;
+            if (size < capacity) {
+                size++;
+            }
+        }
+
+        List<HistoryValue> values(long from, long to) {
+            List<HistoryValue> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                int index = (next - size + i + capacity) % capacity;
+                int offset = index * ENTRY_SIZE;
+                long timestamp = entries.getLong(offset);
+                if (timestamp < from || timestamp >= to) {
+                    continue;
+                }
+                byte type = entries.get(offset + 16);
+                LwM2mNode value = type == NODE ? nodes[index] : new LwM2mResource(resourceId, fromBits(
+                        DataType.values()[type], entries.getLong(offset + 8)));
+                values.add(new HistoryValue(timestamp, value));
+            }
+            return values;
+        }
+
+        long memory() {
+            return (long) capacity * (ENTRY_SIZE + (nodes == null ? 0 : REFERENCE_SIZE));
+        }
+    }
+
+    // the value of a single value resource which can be stored as a primitive, null otherwise
+    private static Value<?> primitiveValue(LwM2mNode node) {
+        if (!(node instanceof LwM2mResource) || ((LwM2mResource) node).isMultiInstances()) {
+            return null;
+        }
+        Value<?> value = ((LwM2mResource) node).getValue();
+        if (value == null || value.value == null) {
+            return null;
+        }
+        switch (value.type) {
+        case INTEGER:
+        case LONG:
+        case FLOAT:
+        case DOUBLE:
+        case BOOLEAN:
+        case TIME:
+            return value;
+        default:
+            return null;
+        }
+    }
+
+    private static long toBits(Value<?> value) {
+        switch (value.type) {
+        case INTEGER:
+        case LONG:
+            return ((Number) value.value).longValue();
+        case FLOAT:
+        case DOUBLE:
+            return Double.doubleToRawLongBits(((Number) value.value).doubleValue());
+        case BOOLEAN:
+            return ((Boolean) value.value) ? 1L : 0L;
+        case TIME:
+            return ((Date) value.value).getTime();
+        default:
+            throw new IllegalArgumentException("Not a primitive value: " + value);
+        }
+    }
+
+    private static Value<?> fromBits(DataType type, long bits) {
+        switch (type) {
+        case INTEGER:
+            return Value.newIntegerValue((int) bits);
+        case LONG:
+            return Value.newLongValue(bits);
+        case FLOAT:
+            return Value.newFloatValue((float) Double.longBitsToDouble(bits));
+        case DOUBLE:
+            return Value.newDoubleValue(Double.longBitsToDouble(bits));
+        case BOOLEAN:
+            return Value.newBooleanValue(bits != 0);
+        case TIME:
+            return Value.newDateValue(new Date(bits));
+        default:
+            throw new IllegalArgumentException("Not a primitive type: " + type);
+        }
+    }
+
+    private static class Key {
+        private final String endpoint;
+        private final LwM2mPath path;
+
+        Key(String endpoint, LwM2mPath path) {
+            this.endpoint = endpoint;
+            this.path = path;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * endpoint.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return endpoint.equals(other.endpoint) && path.equals(other.path);
+        }
+    }
+}
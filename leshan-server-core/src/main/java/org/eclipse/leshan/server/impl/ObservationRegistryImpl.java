@@ -15,56 +15,114 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.impl;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.eclipse.leshan.core.node.LwM2mNode;
 import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.server.Destroyable;
 import org.eclipse.leshan.server.client.Client;
 import org.eclipse.leshan.server.observation.Observation;
 import org.eclipse.leshan.server.observation.ObservationListener;
 import org.eclipse.leshan.server.observation.ObservationRegistry;
 import org.eclipse.leshan.server.observation.ObservationRegistryListener;
+import org.eclipse.leshan.server.observation.ObservationStore;
+import org.eclipse.leshan.server.observation.PersistentObservation;
+import org.eclipse.leshan.server.observation.UnchangedValueListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A <code>Map</code> based registry for keeping track of this server's observed resources on LWM2M Clients.
- * 
+ * <p>
+ * Observations are kept in one concurrent map per client and updated without any global lock: operations on different
+ * clients never block each other.
+ * </p>
+ * <p>
+ * Observations are also indexed by path and by object id across clients. The removal of an observation from the
+ * per-client map is the single point deciding who cancels it, and that remover also removes it from the path indexes.
+ * </p>
+ * <p>
+ * When an {@link ObservationStore} is given, the {@link PersistentObservation}s are saved in it until they are
+ * cancelled.
+ * </p>
  */
-public class ObservationRegistryImpl implements ObservationRegistry, ObservationListener {
+public class ObservationRegistryImpl implements ObservationRegistry, ObservationListener, UnchangedValueListener,
+        Destroyable {
 
     private final Logger LOG = LoggerFactory.getLogger(ObservationRegistryImpl.class);
-    private final Map<String /* registration id */, Map<LwM2mPath /* resource path */, Observation>> observationsByClientAndResource;
+    private final ConcurrentMap<String /* registration id */, ConcurrentMap<LwM2mPath /* resource path */, Observation>> observationsByClientAndResource;
+
+    // entries are never removed: the number of observed paths is small
+    private final ConcurrentMap<LwM2mPath, Set<Observation>> observationsByPath = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer /* object id */, Set<Observation>> observationsByObject = new ConcurrentHashMap<>();
 
     private final List<ObservationRegistryListener> listeners = new CopyOnWriteArrayList<>();
 
+    private final ObservationStore store;
+
     public ObservationRegistryImpl() {
-        observationsByClientAndResource = new ConcurrentHashMap<String, Map<LwM2mPath, Observation>>();
+        this(null);
+    }
+
+    /**
+     * @param store the store saving the observations or <code>null</code> to keep them in memory only. The store is
+     *        destroyed with this registry.
+     */
+    public ObservationRegistryImpl(ObservationStore store) {
+        observationsByClientAndResource = new ConcurrentHashMap<String, ConcurrentMap<LwM2mPath, Observation>>();
+        this.store = store;
     }
 
     @Override
-    public synchronized void addObservation(Observation observation) {
+    public void addObservation(Observation observation) {
 
         if (observation != null) {
             String registrationID = observation.getClient().getRegistrationId();
 
-            Map<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(registrationID);
-            if (clientObservations == null) {
-                clientObservations = new ConcurrentHashMap<LwM2mPath, Observation>();
-                observationsByClientAndResource.put(registrationID, clientObservations);
-            }
+            // saved first: a concurrent removal of the observation must find it in the store
+            persist(observation);
+
+            while (true) {
+                ConcurrentMap<LwM2mPath, Observation> clientObservations = observationsByClientAndResource
+                        .get(registrationID);
+                if (clientObservations == null) {
+                    ConcurrentMap<LwM2mPath, Observation> newObservations = new ConcurrentHashMap<>();
+                    clientObservations = observationsByClientAndResource.putIfAbsent(registrationID, newObservations);
+                    if (clientObservations == null) {
+                        clientObservations = newObservations;
+                    }
+                }
 
-            Observation oldObservation = clientObservations.get(observation.getPath());
-            if (oldObservation != null) {
-                oldObservation.cancel();
+                Observation oldObservation = clientObservations.put(observation.getPath(), observation);
+                if (oldObservation != null && oldObservation != observation) {
+                    unindex(oldObservation);
+                    oldObservation.cancel();
+                }
+
+                // the map of the client may have been removed concurrently (all observations cancelled or last one
+                // removed): if the observation was not cancelled with it, add it again to a new map
+                if (observationsByClientAndResource.get(registrationID) != clientObservations
+                        && clientObservations.remove(observation.getPath(), observation)) {
+                    continue;
+                }
+
+                index(observation);
+                if (observationsByClientAndResource.get(registrationID) != clientObservations
+                        || clientObservations.get(observation.getPath()) != observation) {
+                    // removed concurrently, maybe before being indexed
+                    unindex(observation);
+                }
+                break;
             }
-            clientObservations.put(observation.getPath(), observation);
+
             for (ObservationRegistryListener listener : listeners) {
                 listener.newObservation(observation);
             }
@@ -73,48 +131,150 @@ public class ObservationRegistryImpl implements ObservationRegistry, Observation
     }
 
     @Override
-    public synchronized int cancelObservations(Client client) {
+    public int cancelObservations(Client client) {
         int count = 0;
         if (client != null) {
-            Map<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(client
+            ConcurrentMap<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.remove(client
                     .getRegistrationId());
 
             if (clientObservations != null) {
-                count = clientObservations.size();
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("Canceling {} observations of client {}", count, client.getEndpoint());
-                }
                 for (Observation obs : clientObservations.values()) {
-                    obs.cancel();
+                    // an observation removed concurrently is cancelled by the remover
+                    if (clientObservations.remove(obs.getPath(), obs)) {
+                        unindex(obs);
+                        forget(obs);
+                        obs.cancel();
+                        count++;
+                    }
+                }
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("Canceled {} observations of client {}", count, client.getEndpoint());
                 }
-                clientObservations.clear();
-                observationsByClientAndResource.remove(client.getEndpoint());
             }
         }
         return count;
     }
 
     @Override
-    public synchronized void cancelObservation(Client client, String resourcepath) {
+    public void cancelObservation(Client client, String resourcepath) {
         if (client != null && resourcepath != null) {
-            Map<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(client
+            ConcurrentMap<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(client
                     .getRegistrationId());
 
             if (clientObservations != null) {
-                LwM2mPath lwM2mResourcePath = new LwM2mPath(resourcepath);
-                Observation observation = clientObservations.get(lwM2mResourcePath);
+                Observation observation = clientObservations.remove(new LwM2mPath(resourcepath));
                 if (observation != null) {
                     if (LOG.isTraceEnabled()) {
                         LOG.trace("Canceling {} observation of client {}", resourcepath, client.getEndpoint());
                     }
+                    unindex(observation);
+                    forget(observation);
                     observation.cancel();
-                    clientObservations.remove(lwM2mResourcePath);
-                    if (clientObservations.isEmpty()) {
-                        observationsByClientAndResource.remove(client.getEndpoint());
+                }
+                removeIfEmpty(client.getRegistrationId(), clientObservations);
+            }
+        }
+    }
+
+    @Override
+    public Set<Observation> getObservations(LwM2mPath path) {
+        Set<Observation> result = new HashSet<>();
+        if (path.isResource()) {
+            Set<Observation> observations = observationsByPath.get(path);
+            if (observations != null) {
+                result.addAll(observations);
+            }
+        } else {
+            Set<Observation> observations = observationsByObject.get(path.getObjectId());
+            if (observations != null) {
+                for (Observation observation : observations) {
+                    if (path.isObject()
+                            || path.getObjectInstanceId().equals(observation.getPath().getObjectInstanceId())) {
+                        result.add(observation);
                     }
                 }
             }
         }
+        return Collections.unmodifiableSet(result);
+    }
+
+    @Override
+    public int cancelObservations(LwM2mPath path) {
+        // remove all the observations first, then cancel them in one pass
+        List<Observation> removed = new ArrayList<>();
+        for (Observation observation : getObservations(path)) {
+            String registrationId = observation.getClient().getRegistrationId();
+            ConcurrentMap<LwM2mPath, Observation> clientObservations = observationsByClientAndResource
+                    .get(registrationId);
+            if (clientObservations != null && clientObservations.remove(observation.getPath(), observation)) {
+                unindex(observation);
+                forget(observation);
+                removeIfEmpty(registrationId, clientObservations);
+                removed.add(observation);
+            }
+        }
+        for (Observation observation : removed) {
+            observation.cancel();
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Canceled {} observations of {}", removed.size(), path);
+        }
+        return removed.size();
+    }
+
+    private void index(Observation observation) {
+        indexEntry(observationsByPath, observation.getPath()).add(observation);
+        indexEntry(observationsByObject, observation.getPath().getObjectId()).add(observation);
+    }
+
+    private void unindex(Observation observation) {
+        Set<Observation> byPath = observationsByPath.get(observation.getPath());
+        if (byPath != null) {
+            byPath.remove(observation);
+        }
+        Set<Observation> byObject = observationsByObject.get(observation.getPath().getObjectId());
+        if (byObject != null) {
+            byObject.remove(observation);
+        }
+    }
+
+    private void persist(Observation observation) {
+        if (store != null && observation instanceof PersistentObservation) {
+            store.add(((PersistentObservation) observation).toRecord());
+        }
+    }
+
+    private void forget(Observation observation) {
+        if (store != null && observation instanceof PersistentObservation) {
+            store.remove(((PersistentObservation) observation).toRecord());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (store instanceof Destroyable) {
+            ((Destroyable) store).destroy();
+        }
+    }
+
+    private static <K> Set<Observation> indexEntry(ConcurrentMap<K, Set<Observation>> index, K key) {
+        Set<Observation> observations = index.get(key);
+        if (observations == null) {
+            Set<Observation> newObservations = Collections
+                    .newSetFromMap(new ConcurrentHashMap<Observation, Boolean>());
+            observations = index.putIfAbsent(key, newObservations);
+            if (observations == null) {
+                observations = newObservations;
+            }
+        }
+        return observations;
+    }
+
+    private void removeIfEmpty(String registrationId, ConcurrentMap<LwM2mPath, Observation> clientObservations) {
+        // an observation added concurrently is added again to a new map (see addObservation)
+        if (clientObservations.isEmpty()) {
+            observationsByClientAndResource.remove(registrationId, clientObservations);
+        }
     }
 
     @Override
@@ -138,6 +298,15 @@ public class ObservationRegistryImpl implements ObservationRegistry, Observation
 
     @Override
     public void cancelled(Observation observation) {
+        // forget the observations cancelled by the client or the underlying layer
+        String registrationId = observation.getClient().getRegistrationId();
+        ConcurrentMap<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(registrationId);
+        if (clientObservations != null && clientObservations.remove(observation.getPath(), observation)) {
+            unindex(observation);
+            forget(observation);
+            removeIfEmpty(registrationId, clientObservations);
+        }
+
         for (ObservationRegistryListener listener : listeners) {
             listener.cancelled(observation);
         }
@@ -149,4 +318,13 @@ public class ObservationRegistryImpl implements ObservationRegistry, Observation
             listener.newValue(observation, value);
         }
     }
+
+    @Override
+    public void unchangedValue(Observation observation) {
+        for (ObservationRegistryListener listener : listeners) {
+            if (listener instanceof UnchangedValueListener) {
+                ((UnchangedValueListener) listener).unchangedValue(observation);
+            }
+        }
+    }
 }
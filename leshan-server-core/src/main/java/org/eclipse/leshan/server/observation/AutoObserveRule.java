@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.observation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.util.Validate;
+
+/**
+ * Describes the resources to observe as soon as a client registers.
+ * <p>
+ * A rule applies to a client if its end-point matches the end-point pattern (if any) and if the client declares all
+ * the required objects (if any) in its object links. The paths to observe may use <code>*</code> as object instance
+ * id (e.g. <code>/3303/*&#47;5700</code>), which is expanded to all the instances of the object declared by the client.
+ * A path is only observed if the client declares the targeted object (or object instance).
+ * </p>
+ */
+public class AutoObserveRule {
+
+    public static final String ANY_INSTANCE = "*";
+
+    private final Pattern endpointPattern;
+    private final Set<Integer> requiredObjects;
+    private final List<String> paths;
+
+    /**
+     * @param endpointPattern the pattern the client end-point must match (<code>null</code> for any end-point)
+     * @param requiredObjects the objects the client must declare (<code>null</code> or empty for any client)
+     * @param paths the paths to observe
+     */
+    public AutoObserveRule(Pattern endpointPattern, Collection<Integer> requiredObjects, Collection<String> paths) {
+        Validate.notNull(paths);
+        Validate.isTrue(!paths.isEmpty(), "at least one path to observe is required");
+        for (String path : paths) {
+            parse(path);
+        }
+
+        this.endpointPattern = endpointPattern;
+        this.requiredObjects = requiredObjects == null ? Collections.<Integer> emptySet() : Collections
+                .unmodifiableSet(new LinkedHashSet<>(requiredObjects));
+        this.paths = Collections.unmodifiableList(new ArrayList<>(paths));
+    }
+
+    /**
+     * Creates a rule applying to the clients whose end-point matches the given regular expression.
+     */
+    public static AutoObserveRule forEndpoints(String endpointRegex, String... paths) {
+        return new AutoObserveRule(Pattern.compile(endpointRegex), null, Arrays.asList(paths));
+    }
+
+    /**
+     * Creates a rule applying to the clients declaring the given object.
+     */
+    public static AutoObserveRule forObject(int objectId, String... paths) {
+        return new AutoObserveRule(null, Collections.singleton(objectId), Arrays.asList(paths));
+    }
+
+    public Pattern getEndpointPattern() {
+        return endpointPattern;
+    }
+
+    public Set<Integer> getRequiredObjects() {
+        return requiredObjects;
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @return <code>true</code> if this rule applies to the given client
+     */
+    public boolean matches(Client client) {
+        if (endpointPattern != null && !endpointPattern.matcher(client.getEndpoint()).matches()) {
+            return false;
+        }
+        for (Integer objectId : requiredObjects) {
+            if (!declares(client.getObjectLinks(), objectId, null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the paths to observe on the given client, with the instance wildcards expanded. The client is expected
+     * to match this rule (see {@link #matches(Client)}).
+     */
+    public List<String> resolvePaths(Client client) {
+        LinkObject[] links = client.getObjectLinks();
+        List<String> resolved = new ArrayList<>();
+        for (String path : paths) {
+            String[] segments = parse(path);
+            int objectId = Integer.parseInt(segments[0]);
+            String suffix = segments.length > 2 ? "/" + segments[2] : "";
+
+            if (segments.length > 1 && ANY_INSTANCE.equals(segments[1])) {
+                if (links != null) {
+                    for (LinkObject link : links) {
+                        if (link.getObjectId() != null && link.getObjectId() == objectId
+                                && link.getObjectInstanceId() != null) {
+                            resolved.add("/" + objectId + "/" + link.getObjectInstanceId() + suffix);
+                        }
+                    }
+                }
+            } else {
+                Integer instanceId = segments.length > 1 ? Integer.valueOf(segments[1]) : null;
+                if (links == null || declares(links, objectId, instanceId)) {
+                    resolved.add(normalize(segments));
+                }
+            }
+        }
+        return resolved;
+    }
+
+    private static boolean declares(LinkObject[] links, int objectId, Integer instanceId) {
+        if (links == null) {
+            return false;
+        }
+        for (LinkObject link : links) {
+            if (link.getObjectId() != null && link.getObjectId() == objectId) {
+                // an object link without instance declares the object, whatever the instance
+                if (instanceId == null || link.getObjectInstanceId() == null
+                        || instanceId.equals(link.getObjectInstanceId())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String normalize(String[] segments) {
+        StringBuilder sb = new StringBuilder();
+        for (String segment : segments) {
+            sb.append('/').append(segment);
+        }
+        return sb.toString();
+    }
+
+    private static String[] parse(String path) {
+        Validate.notNull(path);
+        String trimmed = path.startsWith("/") ? path.substring(1) : path;
+        String[] segments = trimmed.split("/");
+        Validate.isTrue(segments.length >= 1 && segments.length <= 3, "invalid path to observe: " + path);
+        for (int i = 0; i < segments.length; i++) {
+            if (i == 1 && ANY_INSTANCE.equals(segments[i])) {
+                continue;
+            }
+            try {
+                Integer.parseInt(segments[i]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid path to observe: " + path, e);
+            }
+        }
+        return segments;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AutoObserveRule [endpointPattern=%s, requiredObjects=%s, paths=%s]", endpointPattern,
+                requiredObjects, paths);
+    }
+}
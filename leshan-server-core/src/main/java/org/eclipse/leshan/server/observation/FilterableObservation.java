@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.observation;
+
+/**
+ * An {@link Observation} whose notifications can be filtered before being dispatched to its listeners.
+ */
+public interface FilterableObservation extends Observation {
+
+    /**
+     * Sets the filter applied to the notifications, <code>null</code> to dispatch all of them.
+     */
+    void setNotificationFilter(NotificationFilter filter);
+
+    NotificationFilter getNotificationFilter();
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.observation;
+
+import org.eclipse.leshan.ObserveSpec;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.util.Validate;
+
+/**
+ * Applies the notification attributes of an {@link ObserveSpec} on the server side, for the clients which do not
+ * honor them.
+ * <p>
+ * A notification is suppressed if it is received less than <code>pmin</code> seconds after the last accepted one.
+ * When <code>gt</code>, <code>lt</code> or <code>st</code> is set, the value of a single value numeric resource must
+ * also cross one of the thresholds or differ from the last accepted value by at least the step, unless
+ * <code>pmax</code> seconds have elapsed since the last accepted notification. The server cannot create the
+ * notifications a client does not send after <code>pmax</code>.
+ * </p>
+ * <p>
+ * The filter of an observation is set when write attributes are successfully sent to its path, or directly with
+ * {@link FilterableObservation#setNotificationFilter(NotificationFilter)}.
+ * </p>
+ */
+public class NotificationFilter {
+
+    private final ObserveSpec spec;
+
+    // guarded by this
+    private long lastAcceptedTime;
+    private Double lastAcceptedValue;
+    private boolean accepted = false;
+    private long acceptedCount = 0;
+    private long suppressedCount = 0;
+
+    public NotificationFilter(ObserveSpec spec) {
+        Validate.notNull(spec);
+        this.spec = spec;
+    }
+
+    public ObserveSpec getSpec() {
+        return spec;
+    }
+
+    /**
+     * @param value the decoded value of the notification
+     * @param timestamp the reception time of the notification (in ms)
+     * @return <code>true</code> if the notification must be dispatched
+     */
+    public synchronized boolean accept(LwM2mNode value, long timestamp) {
+        Double number = numericValue(value);
+        if (accepted && !acceptable(number, timestamp)) {
+            suppressedCount++;
+            return false;
+        }
+
+        accepted = true;
+        lastAcceptedTime = timestamp;
+        lastAcceptedValue = number;
+        acceptedCount++;
+        return true;
+    }
+
+    private boolean acceptable(Double value, long timestamp) {
+        if (spec.getMinPeriod() != null && timestamp - lastAcceptedTime < spec.getMinPeriod() * 1000L) {
+            return false;
+        }
+        if (value == null || lastAcceptedValue == null
+                || (spec.getGreaterThan() == null && spec.getLessThan() == null && spec.getStep() == null)) {
+            return true;
+        }
+        // a notification is due once pmax has elapsed, whatever the value
+        if (spec.getMaxPeriod() != null && timestamp - lastAcceptedTime >= spec.getMaxPeriod() * 1000L) {
+            return true;
+        }
+        return crosses(spec.getGreaterThan(), value) || crosses(spec.getLessThan(), value)
+                || (spec.getStep() != null && Math.abs(value - lastAcceptedValue) >= spec.getStep());
+    }
+
+    private boolean crosses(Float threshold, double value) {
+        return threshold != null && (lastAcceptedValue <= threshold) != (value <= threshold);
+    }
+
+    /**
+     * @return the number of dispatched notifications
+     */
+    public synchronized long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    /**
+     * @return the number of suppressed notifications
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    private static Double numericValue(LwM2mNode node) {
+        if (!(node instanceof LwM2mResource) || ((LwM2mResource) node).isMultiInstances()) {
+            return null;
+        }
+        Value<?> value = ((LwM2mResource) node).getValue();
+        if (value != null && value.value instanceof Number) {
+            return ((Number) value.value).doubleValue();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.observation;
+
+import java.util.Arrays;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.util.Validate;
+
+/**
+ * The persistent state of an {@link Observation}: what is needed to re-attach the notifications of an observation
+ * established by a previous run of the server.
+ */
+public class ObservationRecord {
+
+    private final String registrationId;
+    private final LwM2mPath path;
+    private final byte[] token;
+    private final ContentFormat contentFormat;
+
+    /**
+     * @param registrationId the registration id of the observed client
+     * @param path the observed path
+     * @param token the token of the observe request, also carried by the notifications
+     * @param contentFormat the content format of the observe response (may be <code>null</code>)
+     */
+    public ObservationRecord(String registrationId, LwM2mPath path, byte[] token, ContentFormat contentFormat) {
+        Validate.notNull(registrationId);
+        Validate.notNull(path);
+        Validate.notNull(token);
+        this.registrationId = registrationId;
+        this.path = path;
+        this.token = token;
+        this.contentFormat = contentFormat;
+    }
+
+    public String getRegistrationId() {
+        return registrationId;
+    }
+
+    public LwM2mPath getPath() {
+        return path;
+    }
+
+    public byte[] getToken() {
+        return token;
+    }
+
+    public ContentFormat getContentFormat() {
+        return contentFormat;
+    }
+
+    /**
+     * @return <code>true</code> if both records describe the same observe relation
+     */
+    public boolean isSameObservation(ObservationRecord other) {
+        return registrationId.equals(other.registrationId) && path.equals(other.path)
+                && Arrays.equals(token, other.token);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ObservationRecord [registrationId=%s, path=%s, token=%s, contentFormat=%s]",
+                registrationId, path, Arrays.toString(token), contentFormat);
+    }
+}
@@ -17,6 +17,7 @@ package org.eclipse.leshan.server.observation;
 
 import java.util.Set;
 
+import org.eclipse.leshan.core.node.LwM2mPath;
 import org.eclipse.leshan.server.client.Client;
 
 /**
@@ -64,6 +65,22 @@ public interface ObservationRegistry {
      */
     Set<Observation> getObservations(Client client);
 
+    /**
+     * Get all running observations of the given path or of a path below it, whatever the client (e.g. <code>/3303</code>
+     * matches the observations of <code>/3303</code>, <code>/3303/0</code> and <code>/3303/0/5700</code>).
+     * 
+     * @return an unmodifiable set of observation
+     */
+    Set<Observation> getObservations(LwM2mPath path);
+
+    /**
+     * Cancels all the observations of the given path or of a path below it, whatever the client.
+     * 
+     * @param path the observed path
+     * @return the number of canceled observations
+     */
+    int cancelObservations(LwM2mPath path);
+
     void addListener(ObservationRegistryListener listener);
 
     void removeListener(ObservationRegistryListener listener);
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.observation;
+
+import java.util.Collection;
+
+/**
+ * A store keeping the observations alive across server restarts.
+ * <p>
+ * A store holds at most one record per registration id and path.
+ * </p>
+ */
+public interface ObservationStore {
+
+    /**
+     * Stores an observation, replacing the one previously stored for the same registration id and path.
+     */
+    void add(ObservationRecord record);
+
+    /**
+     * Removes an observation. Nothing is removed if the observation stored for the same registration id and path has
+     * a different token (i.e. it has been replaced).
+     */
+    void remove(ObservationRecord record);
+
+    /**
+     * @return all the stored observations
+     */
+    Collection<ObservationRecord> getAll();
+}
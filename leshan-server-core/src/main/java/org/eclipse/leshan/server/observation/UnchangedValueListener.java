@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.observation;
+
+/**
+ * Implemented by the {@link ObservationListener}s which want to be told about the notifications suppressed because
+ * their payload did not change since the last dispatched notification (e.g. to track the client heartbeats).
+ */
+public interface UnchangedValueListener {
+
+    /**
+     * Called when a notification carrying the same value as the last dispatched one is received.
+     */
+    void unchangedValue(Observation observation);
+}
@@ -0,0 +1,435 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a request to a set of clients (e.g. a fleet-wide campaign) with a bounded number of requests in flight and an
+ * optional global rate.
+ * <p>
+ * The clients are pulled from the iterator as slots become free, so the selection is never fully loaded in memory. A
+ * request failing with an exception (e.g. a timeout) is retried with an exponential back-off, a request answered with
+ * an error code is not. The results are streamed to the {@link Listener} as they arrive. The requests are sent with
+ * the {@link RequestPriority#BULK} priority, so that they do not delay the interactive ones.
+ * </p>
+ * <p>
+ * When the same request is to be sent to all the clients, {@link #sameRequest(DownlinkRequest)} shares a single
+ * request instance, which lets the sender encode its payload once.
+ * </p>
+ */
+public class BulkOperation<T extends LwM2mResponse> implements Startable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkOperation.class);
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 64;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+
+    /**
+     * Creates the request sent to each client.
+     */
+    public interface RequestFactory<T extends LwM2mResponse> {
+
+        /**
+         * @return the request to send to the given client, or <code>null</code> to skip it
+         */
+        DownlinkRequest<T> create(Client client);
+    }
+
+    /**
+     * Receives the result of each client, from the thread completing its request.
+     */
+    public interface Listener<T extends LwM2mResponse> {
+
+        void onResponse(Client client, T response);
+
+        /**
+         * Invoked when the request failed after all its retries.
+         */
+        void onFailure(Client client, Exception e);
+    }
+
+    /**
+     * @return a factory sending the same request instance to all the clients
+     */
+    public static <T extends LwM2mResponse> RequestFactory<T> sameRequest(final DownlinkRequest<T> request) {
+        Validate.notNull(request);
+        return new RequestFactory<T>() {
+
+            @Override
+            public DownlinkRequest<T> create(Client client) {
+                return request;
+            }
+        };
+    }
+
+    private final LwM2mRequestSender sender;
+    private final HashedWheelTimer timer;
+    private final Iterator<Client> clients;
+    private final RequestFactory<T> factory;
+    private final Listener<T> listener;
+    private final int maxConcurrency;
+    private final int requestsPerSecond;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+    private final LwM2mFuture<Void> completion = new LwM2mFuture<>();
+
+    // guarded by this
+    private boolean started = false;
+    private boolean cancelled = false;
+    private boolean pumping = false;
+    private final ArrayDeque<Attempt> ready = new ArrayDeque<>();
+    private final Set<LwM2mFuture<T>> inFlight = new HashSet<>();
+    private int waitingRetries = 0;
+    private double permits = 0;
+    private long lastRefill;
+    private HashedWheelTimer.Timeout wakeUp;
+
+    private final AtomicLong selected = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Creates an operation with the default concurrency and retry parameters and no rate limit.
+     */
+    public BulkOperation(LwM2mRequestSender sender, HashedWheelTimer timer, Iterator<Client> clients,
+            RequestFactory<T> factory, Listener<T> listener) {
+        this(sender, timer, clients, factory, listener, DEFAULT_MAX_CONCURRENCY, 0, DEFAULT_MAX_RETRIES,
+                DEFAULT_RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * @param sender the sender of the requests
+     * @param timer the timer used to pace the requests and delay the retries
+     * @param clients the clients to send the request to
+     * @param factory the factory of the request sent to each client
+     * @param listener the listener of the results (may be <code>null</code>)
+     * @param maxConcurrency the maximum number of requests in flight, all clients included
+     * @param requestsPerSecond the maximum number of requests sent per second (0 for no limit)
+     * @param maxRetries the maximum number of retries of a failed request
+     * @param retryDelayMillis the delay before the first retry, doubled for each following retry
+     */
+    public BulkOperation(LwM2mRequestSender sender, HashedWheelTimer timer, Iterator<Client> clients,
+            RequestFactory<T> factory, Listener<T> listener, int maxConcurrency, int requestsPerSecond,
+            int maxRetries, long retryDelayMillis) {
+        Validate.notNull(sender);
+        Validate.notNull(timer);
+        Validate.notNull(clients);
+        Validate.notNull(factory);
+        Validate.isTrue(maxConcurrency > 0, "the concurrency must be positive");
+        Validate.isTrue(requestsPerSecond >= 0, "the request rate must not be negative");
+        Validate.isTrue(maxRetries >= 0, "the number of retries must not be negative");
+        Validate.isTrue(retryDelayMillis >= 0, "the retry delay must not be negative");
+
+        this.sender = sender;
+        this.timer = timer;
+        this.clients = clients;
+        this.factory = factory;
+        this.listener = listener;
+        this.maxConcurrency = maxConcurrency;
+        this.requestsPerSecond = requestsPerSecond;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    @Override
+    public void start() {
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            started = true;
+            lastRefill = System.nanoTime();
+            permits = 1;
+        }
+        pump();
+    }
+
+    /**
+     * Stops sending requests and cancels the requests in flight.
+     */
+    public void cancel() {
+        List<LwM2mFuture<T>> toCancel;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            ready.clear();
+            if (wakeUp != null) {
+                wakeUp.cancel();
+            }
+            toCancel = new ArrayList<>(inFlight);
+        }
+        for (LwM2mFuture<T> future : toCancel) {
+            future.cancel(true);
+        }
+        pump();
+    }
+
+    /**
+     * @return a future completed when all the selected clients got their result, or when the operation was cancelled
+     *         and all its requests in flight completed
+     */
+    public LwM2mFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    /**
+     * @return the number of clients pulled from the selection
+     */
+    public long getSelectedCount() {
+        return selected.get();
+    }
+
+    /**
+     * @return the number of requests sent, retries included
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getSucceededCount() {
+        return succeeded.get();
+    }
+
+    /**
+     * @return the number of clients whose request failed (after all its retries)
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    /**
+     * @return the number of clients for which the factory did not create a request
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Sends the requests allowed by the concurrency window and the rate. Only one thread pumps at a time: the requests
+     * completing synchronously do not recurse.
+     */
+    private void pump() {
+        synchronized (this) {
+            if (!started || pumping) {
+                return;
+            }
+            pumping = true;
+        }
+        while (true) {
+            List<Attempt> batch = new ArrayList<>();
+            synchronized (this) {
+                collect(batch);
+                if (batch.isEmpty()) {
+                    pumping = false;
+                    if (inFlight.isEmpty() && (cancelled || ready.isEmpty() && waitingRetries == 0
+                            && !clients.hasNext())) {
+                        // completing twice is a no-op
+                        break;
+                    }
+                    return;
+                }
+            }
+            for (Attempt attempt : batch) {
+                send(attempt);
+            }
+        }
+        completion.complete(null);
+    }
+
+    // guarded by this
+    private void collect(List<Attempt> batch) {
+        // slots are reserved by adding the futures to inFlight in send(), so count the batch too
+        while (!cancelled && inFlight.size() + batch.size() < maxConcurrency) {
+            if (ready.isEmpty() && !clients.hasNext()) {
+                return;
+            }
+            if (requestsPerSecond > 0 && !acquirePermit()) {
+                scheduleWakeUp();
+                return;
+            }
+            Attempt attempt = ready.poll();
+            if (attempt == null) {
+                Client client = clients.next();
+                selected.incrementAndGet();
+                DownlinkRequest<T> request = factory.create(client);
+                if (request == null) {
+                    skipped.incrementAndGet();
+                    permits++;
+                    continue;
+                }
+                attempt = new Attempt(client, request);
+            }
+            batch.add(attempt);
+        }
+    }
+
+    // guarded by this
+    private boolean acquirePermit() {
+        long now = System.nanoTime();
+        // allows a burst of a tenth of second
+        double burst = Math.max(1d, requestsPerSecond / 10d);
+        permits = Math.min(burst, permits + (now - lastRefill) * requestsPerSecond / 1e9);
+        lastRefill = now;
+        if (permits < 1) {
+            return false;
+        }
+        permits--;
+        return true;
+    }
+
+    // guarded by this
+    private void scheduleWakeUp() {
+        if (wakeUp != null && !wakeUp.isExpired() && !wakeUp.isCancelled()) {
+            return;
+        }
+        long delay = (long) Math.ceil((1 - permits) * 1000 / requestsPerSecond);
+        wakeUp = timer.newTimeout(new Runnable() {
+
+            @Override
+            public void run() {
+                pump();
+            }
+        }, Math.max(1, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void send(final Attempt attempt) {
+        LwM2mFuture<T> future;
+        try {
+            future = sender.sendAsync(attempt.client, attempt.request, RequestPriority.BULK);
+        } catch (RuntimeException e) {
+            future = LwM2mFuture.failed(e);
+        }
+        sent.incrementAndGet();
+        final LwM2mFuture<T> sentFuture = future;
+        boolean cancel;
+        synchronized (this) {
+            inFlight.add(sentFuture);
+            cancel = cancelled;
+        }
+        if (cancel) {
+            sentFuture.cancel(true);
+        }
+        sentFuture.addCallback(new LwM2mFuture.Callback<T>() {
+
+            @Override
+            public void onSuccess(T response) {
+                synchronized (BulkOperation.this) {
+                    inFlight.remove(sentFuture);
+                }
+                succeeded.incrementAndGet();
+                if (listener != null) {
+                    try {
+                        listener.onResponse(attempt.client, response);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Unexpected error in bulk operation listener", e);
+                    }
+                }
+                pump();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                boolean retry;
+                synchronized (BulkOperation.this) {
+                    inFlight.remove(sentFuture);
+                    retry = !cancelled && !(e instanceof CancellationException) && attempt.retries < maxRetries;
+                    if (retry) {
+                        waitingRetries++;
+                    }
+                }
+                if (retry) {
+                    retry(attempt);
+                } else {
+                    failed.incrementAndGet();
+                    if (listener != null) {
+                        try {
+                            listener.onFailure(attempt.client, e);
+                        } catch (RuntimeException ex) {
+                            LOG.warn("Unexpected error in bulk operation listener", ex);
+                        }
+                    }
+                }
+                pump();
+            }
+        });
+    }
+
+    private void retry(final Attempt attempt) {
+        retried.incrementAndGet();
+        long delay = retryDelayMillis << attempt.retries;
+        attempt.retries++;
+        LOG.debug("Retrying {} on {} in {}ms", attempt.request, attempt.client.getEndpoint(), delay);
+        timer.newTimeout(new Runnable() {
+
+            @Override
+            public void run() {
+                synchronized (BulkOperation.this) {
+                    waitingRetries--;
+                    if (!cancelled) {
+                        ready.add(attempt);
+                    }
+                }
+                pump();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private class Attempt {
+        private final Client client;
+        private final DownlinkRequest<T> request;
+        private int retries = 0;
+
+        Attempt(Client client, DownlinkRequest<T> request) {
+            this.client = client;
+            this.request = request;
+        }
+    }
+}
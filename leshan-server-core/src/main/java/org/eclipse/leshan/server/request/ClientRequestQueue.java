@@ -0,0 +1,735 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.util.Validate;
+
+/**
+ * Limits the number of requests in flight to each client.
+ * <p>
+ * A constrained device handles a single outstanding request (CoAP NSTART=1): concurrent requests collide and time
+ * out. Requests submitted while the window of their client is full are queued and dispatched as soon as an in-flight
+ * request completes (response, error or timeout). When the queue of a client is full, new requests fail immediately
+ * with a {@link RequestQueueFullException}.
+ * </p>
+ * <p>
+ * Each request has a {@link RequestPriority}: the queued requests of a client are dispatched by priority class, in FIFO
+ * order within a class. The number of requests in flight to all the clients can also be limited, in which case the
+ * lower classes only get a share of the global limit, leaving room for the higher ones. A request waiting for more than
+ * the starvation threshold is dispatched as an interactive one, so that the lower classes keep progressing under load.
+ * </p>
+ * <p>
+ * The clients using the queue mode (UQ, SQ and UQS bindings) only listen for requests for a while after they contact
+ * the server. The requests sent to such a client are queued until it registers or updates its registration (see
+ * {@link #wakeUp(Client)}), then dispatched through its window while it is awake. Queued requests which are not
+ * dispatched within a time-to-live fail with a {@link RequestExpiredException}.
+ * </p>
+ * <p>
+ * The queues are kept per end-point: the requests are sent to the address of the latest registration of their client
+ * given to {@link #wakeUp(Client)}, so that a device coming back from a new address (or with a new registration)
+ * receives the requests queued before.
+ * </p>
+ * <p>
+ * The time spent in the queue and the time spent waiting for the client (service time) are measured separately, for
+ * each priority class.
+ * </p>
+ */
+public class ClientRequestQueue {
+
+    public static final int DEFAULT_WINDOW = 1;
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 32;
+    /** The CoAP MAX_TRANSMIT_WAIT: how long a queue mode client listens after contacting the server */
+    public static final long DEFAULT_AWAKE_TIME_MILLIS = 93000;
+    public static final long DEFAULT_QUEUE_MODE_TTL_MILLIS = 3600000;
+    public static final long DEFAULT_STARVATION_THRESHOLD_MILLIS = 5000;
+
+    // the share of the global limit usable by each priority class, in percent
+    private static final int[] GLOBAL_SHARES = { 100, 80, 50 };
+
+    private static final RequestPriority[] PRIORITIES = RequestPriority.values();
+
+    /**
+     * Sends a request which has been given a slot in the window of its client.
+     */
+    public interface Dispatcher {
+
+        /**
+         * Sends the request. The future must eventually be completed, even if the client never answers, to release
+         * the slot.
+         */
+        <T extends LwM2mResponse> void dispatch(Client destination, DownlinkRequest<T> request, LwM2mFuture<T> future);
+    }
+
+    private final Dispatcher dispatcher;
+    private final HashedWheelTimer timer;
+    private volatile int window;
+    private volatile int maxQueueDepth;
+    private volatile int maxInFlight = 0;
+    private volatile long starvationThresholdMillis = DEFAULT_STARVATION_THRESHOLD_MILLIS;
+    private volatile long awakeTimeMillis = DEFAULT_AWAKE_TIME_MILLIS;
+    private volatile long queueModeTtlMillis = DEFAULT_QUEUE_MODE_TTL_MILLIS;
+
+    private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+    // the end of the awake period of the queue mode clients by end-point, in nanoseconds
+    private final ConcurrentMap<String, Long> awakeUntil = new ConcurrentHashMap<>();
+    // the windows having queued requests waiting for a slot of the global limit
+    private final ConcurrentLinkedQueue<Window> blocked = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final ClassMetrics[] metrics = new ClassMetrics[PRIORITIES.length];
+
+    public ClientRequestQueue(Dispatcher dispatcher) {
+        this(dispatcher, DEFAULT_WINDOW, DEFAULT_MAX_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param dispatcher sends the requests
+     * @param window the maximum number of requests in flight per client
+     * @param maxQueueDepth the maximum number of requests waiting for a slot, per client
+     */
+    public ClientRequestQueue(Dispatcher dispatcher, int window, int maxQueueDepth) {
+        this(dispatcher, window, maxQueueDepth, null);
+    }
+
+    /**
+     * @param dispatcher sends the requests
+     * @param window the maximum number of requests in flight per client
+     * @param maxQueueDepth the maximum number of requests waiting for a slot, per client
+     * @param timer the timer expiring the requests queued for sleeping clients (if <code>null</code>, the expired
+     *        requests are only failed when their client wakes up)
+     */
+    public ClientRequestQueue(Dispatcher dispatcher, int window, int maxQueueDepth, HashedWheelTimer timer) {
+        Validate.notNull(dispatcher);
+        this.dispatcher = dispatcher;
+        this.timer = timer;
+        setWindow(window);
+        setMaxQueueDepth(maxQueueDepth);
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = new ClassMetrics();
+        }
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int window) {
+        Validate.isTrue(window > 0, "window must be positive");
+        this.window = window;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @param maxQueueDepth the maximum number of requests waiting for a slot, per client (0 to reject the requests
+     *        exceeding the window)
+     */
+    public void setMaxQueueDepth(int maxQueueDepth) {
+        Validate.isTrue(maxQueueDepth >= 0, "queue depth must not be negative");
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Limits the number of requests in flight to all the clients. Normal requests may use 80% of the limit, bulk
+     * requests 50%.
+     *
+     * @param maxInFlight the maximum number of requests in flight (0 for no global limit, the default)
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        Validate.isTrue(maxInFlight >= 0, "maximum number of requests in flight must not be negative");
+        this.maxInFlight = maxInFlight;
+        drainBlocked();
+    }
+
+    public long getStarvationThreshold() {
+        return starvationThresholdMillis;
+    }
+
+    /**
+     * @param thresholdMillis the time after which a queued request is dispatched before the higher priority ones
+     */
+    public void setStarvationThreshold(long thresholdMillis) {
+        Validate.isTrue(thresholdMillis > 0, "starvation threshold must be positive");
+        this.starvationThresholdMillis = thresholdMillis;
+    }
+
+    public long getAwakeTime() {
+        return awakeTimeMillis;
+    }
+
+    /**
+     * @param awakeTimeMillis how long a queue mode client accepts requests after a registration or an update
+     */
+    public void setAwakeTime(long awakeTimeMillis) {
+        Validate.isTrue(awakeTimeMillis >= 0, "awake time must not be negative");
+        this.awakeTimeMillis = awakeTimeMillis;
+    }
+
+    public long getQueueModeTtl() {
+        return queueModeTtlMillis;
+    }
+
+    /**
+     * @param ttlMillis how long a request waits for its sleeping client before it expires
+     */
+    public void setQueueModeTtl(long ttlMillis) {
+        Validate.isTrue(ttlMillis > 0, "time-to-live must be positive");
+        this.queueModeTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Submits a request with the {@link RequestPriority#NORMAL} priority.
+     *
+     * @see #submit(Client, DownlinkRequest, RequestPriority)
+     */
+    public <T extends LwM2mResponse> LwM2mFuture<T> submit(Client destination, DownlinkRequest<T> request) {
+        return submit(destination, request, RequestPriority.NORMAL);
+    }
+
+    /**
+     * Dispatches the request now if the window of the client allows it and the client is awake, queues it otherwise.
+     *
+     * @return the future response. Cancelling a queued request removes it from the queue.
+     */
+    public <T extends LwM2mResponse> LwM2mFuture<T> submit(Client destination, DownlinkRequest<T> request,
+            RequestPriority priority) {
+        Validate.notNull(priority);
+        final PendingRequest<T> pending = new PendingRequest<>(destination, request, priority);
+        boolean sleeping = isQueueMode(destination) && !isAwake(destination.getEndpoint());
+        while (true) {
+            final Window w = windowFor(destination);
+            synchronized (w) {
+                if (w.removed) {
+                    continue;
+                }
+                w.queueMode = isQueueMode(destination);
+                // the free slots of the window are not part of the queue depth
+                int capacity = maxQueueDepth + (sleeping ? 0 : Math.max(0, window - w.inFlight));
+                if (w.queues.size() >= capacity) {
+                    rejected.incrementAndGet();
+                    pending.future.fail(new RequestQueueFullException(destination.getEndpoint(), w.queues.size()));
+                    return pending.future;
+                }
+                w.queues.add(pending);
+                queued.incrementAndGet();
+                pending.future.setCancelHandler(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        dequeue(w, pending);
+                    }
+                });
+                if (w.queueMode && timer != null) {
+                    scheduleExpiry(w, pending);
+                }
+            }
+            pump(w);
+            return pending.future;
+        }
+    }
+
+    /**
+     * Marks a client as awake, typically when it registers or updates its registration, and dispatches the requests
+     * queued while it was sleeping. A queue mode client stays awake for {@link #getAwakeTime()} milliseconds.
+     * <p>
+     * The queued requests are sent to the given registration of the client, which may have a new address or a new
+     * registration id.
+     * </p>
+     */
+    public void wakeUp(Client client) {
+        if (isQueueMode(client)) {
+            awakeUntil.put(client.getEndpoint(), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(awakeTimeMillis));
+        } else {
+            awakeUntil.remove(client.getEndpoint());
+        }
+        Window w = windows.get(client.getEndpoint());
+        if (w == null) {
+            return;
+        }
+        synchronized (w) {
+            w.client = client;
+            w.queueMode = isQueueMode(client);
+        }
+        pump(w);
+    }
+
+    /**
+     * Cancels the requests queued for a client, typically when it unregisters. Nothing is cancelled if the queue of
+     * the client has already been given a newer registration (see {@link #wakeUp(Client)}).
+     */
+    public void clear(Client client) {
+        Window w = windows.get(client.getEndpoint());
+        if (w == null) {
+            awakeUntil.remove(client.getEndpoint());
+            return;
+        }
+        List<PendingRequest<?>> toCancel;
+        synchronized (w) {
+            if (!w.client.getRegistrationId().equals(client.getRegistrationId())) {
+                return;
+            }
+            awakeUntil.remove(client.getEndpoint());
+            toCancel = w.queues.clear();
+            queued.addAndGet(-toCancel.size());
+            removeIfIdle(w);
+        }
+        for (PendingRequest<?> pending : toCancel) {
+            pending.future.cancel(false);
+        }
+    }
+
+    /**
+     * @return the number of requests in flight or queued for the given client
+     */
+    public int getPendingCount(Client client) {
+        Window w = windows.get(client.getEndpoint());
+        if (w == null) {
+            return 0;
+        }
+        synchronized (w) {
+            return w.inFlight + w.queues.size();
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    public long getDispatchedCount() {
+        long count = 0;
+        for (ClassMetrics m : metrics) {
+            count += m.dispatched.get();
+        }
+        return count;
+    }
+
+    public long getDispatchedCount(RequestPriority priority) {
+        return metrics[priority.ordinal()].dispatched.get();
+    }
+
+    /**
+     * @return the number of requests rejected because the queue of their client was full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the cumulated time spent by the dispatched requests in the queues, in nanoseconds
+     */
+    public long getQueueTimeNanos() {
+        long time = 0;
+        for (ClassMetrics m : metrics) {
+            time += m.queueTimeNanos.get();
+        }
+        return time;
+    }
+
+    /**
+     * @return the cumulated time spent by the dispatched requests of the given class in the queues, in nanoseconds
+     */
+    public long getQueueTimeNanos(RequestPriority priority) {
+        return metrics[priority.ordinal()].queueTimeNanos.get();
+    }
+
+    /**
+     * @return the cumulated time between the dispatch and the completion of the completed requests, in nanoseconds
+     */
+    public long getServiceTimeNanos() {
+        long time = 0;
+        for (ClassMetrics m : metrics) {
+            time += m.serviceTimeNanos.get();
+        }
+        return time;
+    }
+
+    /**
+     * @return the cumulated time between the dispatch and the completion of the completed requests of the given
+     *         class, in nanoseconds
+     */
+    public long getServiceTimeNanos(RequestPriority priority) {
+        return metrics[priority.ordinal()].serviceTimeNanos.get();
+    }
+
+    public long getCompletedCount() {
+        long count = 0;
+        for (ClassMetrics m : metrics) {
+            count += m.completed.get();
+        }
+        return count;
+    }
+
+    public long getCompletedCount(RequestPriority priority) {
+        return metrics[priority.ordinal()].completed.get();
+    }
+
+    /**
+     * @return the number of dispatched requests of the given class which were promoted because they waited for more
+     *         than the starvation threshold
+     */
+    public long getPromotedCount(RequestPriority priority) {
+        return metrics[priority.ordinal()].promoted.get();
+    }
+
+    /**
+     * @return the number of requests which expired while their client was sleeping
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    private static boolean isQueueMode(Client client) {
+        BindingMode binding = client.getBindingMode();
+        return binding == BindingMode.UQ || binding == BindingMode.SQ || binding == BindingMode.UQS;
+    }
+
+    private boolean isAwake(String endpoint) {
+        Long until = awakeUntil.get(endpoint);
+        return until != null && until - System.nanoTime() > 0;
+    }
+
+    private void scheduleExpiry(final Window w, final PendingRequest<?> pending) {
+        pending.expiry = timer.newTimeout(new Runnable() {
+
+            @Override
+            public void run() {
+                boolean removed;
+                synchronized (w) {
+                    removed = w.queues.remove(pending);
+                    if (removed) {
+                        queued.decrementAndGet();
+                        removeIfIdle(w);
+                    }
+                }
+                if (removed) {
+                    expired.incrementAndGet();
+                    pending.future.fail(new RequestExpiredException(pending.destination.getEndpoint(),
+                            queueModeTtlMillis));
+                }
+            }
+        }, queueModeTtlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private Window windowFor(Client client) {
+        Window w = windows.get(client.getEndpoint());
+        if (w == null) {
+            Window created = new Window(client);
+            w = windows.putIfAbsent(client.getEndpoint(), created);
+            if (w == null) {
+                w = created;
+            }
+        }
+        return w;
+    }
+
+    /**
+     * Dispatches the queued requests of a client while its window, the global limit and its sleeping state allow it.
+     */
+    private void pump(Window w) {
+        List<PendingRequest<?>> toDispatch = new ArrayList<>();
+        List<PendingRequest<?>> discarded = new ArrayList<>();
+        synchronized (w) {
+            if (w.removed) {
+                return;
+            }
+            if (!w.queueMode || isAwake(w.endpoint)) {
+                long now = System.nanoTime();
+                long starvation = TimeUnit.MILLISECONDS.toNanos(starvationThresholdMillis);
+                long ttl = w.queueMode ? TimeUnit.MILLISECONDS.toNanos(queueModeTtlMillis) : Long.MAX_VALUE;
+                while (w.inFlight < window) {
+                    PendingRequest<?> next = w.queues.peek(now, starvation, ttl, discarded);
+                    if (next == null) {
+                        break;
+                    }
+                    boolean starved = now - next.submitTime > starvation;
+                    RequestPriority effective = starved ? RequestPriority.INTERACTIVE : next.priority;
+                    if (!acquireGlobalSlot(effective)) {
+                        // a slot released meanwhile does not see this window: try again once blocked
+                        block(w);
+                        if (!acquireGlobalSlot(effective)) {
+                            break;
+                        }
+                    }
+                    w.queues.remove(next);
+                    queued.decrementAndGet();
+                    next.destination = w.client;
+                    if (next.expiry != null) {
+                        next.expiry.cancel();
+                    }
+                    if (starved && next.priority != RequestPriority.INTERACTIVE) {
+                        metrics[next.priority.ordinal()].promoted.incrementAndGet();
+                    }
+                    w.inFlight++;
+                    toDispatch.add(next);
+                }
+                // the cancelled requests are not dequeued by their cancel handler anymore
+                queued.addAndGet(-discarded.size());
+            }
+            removeIfIdle(w);
+        }
+        for (PendingRequest<?> pending : discarded) {
+            if (pending.future.fail(new RequestExpiredException(pending.destination.getEndpoint(),
+                    queueModeTtlMillis))) {
+                expired.incrementAndGet();
+            }
+        }
+        for (PendingRequest<?> pending : toDispatch) {
+            dispatch(w, pending);
+        }
+    }
+
+    private boolean acquireGlobalSlot(RequestPriority priority) {
+        int max = maxInFlight;
+        if (max == 0) {
+            inFlight.incrementAndGet();
+            return true;
+        }
+        int limit = Math.max(1, max * GLOBAL_SHARES[priority.ordinal()] / 100);
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // guarded by w
+    private void block(Window w) {
+        if (!w.blocked) {
+            w.blocked = true;
+            blocked.add(w);
+        }
+    }
+
+    /**
+     * Gives the free global slots to the blocked windows. The lower classes cannot take the slots reserved to the
+     * higher ones, so the order of the windows does not matter.
+     */
+    private void drainBlocked() {
+        for (int i = blocked.size(); i > 0; i--) {
+            Window w = blocked.poll();
+            if (w == null) {
+                return;
+            }
+            synchronized (w) {
+                w.blocked = false;
+            }
+            pump(w);
+        }
+    }
+
+    private <T extends LwM2mResponse> void dispatch(final Window w, final PendingRequest<T> pending) {
+        final ClassMetrics m = metrics[pending.priority.ordinal()];
+        final long dispatchTime = System.nanoTime();
+        m.queueTimeNanos.addAndGet(dispatchTime - pending.submitTime);
+        m.dispatched.incrementAndGet();
+
+        pending.future.addCallback(new LwM2mFuture.Callback<T>() {
+
+            @Override
+            public void onSuccess(T result) {
+                release();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                release();
+            }
+
+            private void release() {
+                m.serviceTimeNanos.addAndGet(System.nanoTime() - dispatchTime);
+                m.completed.incrementAndGet();
+                inFlight.decrementAndGet();
+                synchronized (w) {
+                    w.inFlight--;
+                }
+                pump(w);
+                drainBlocked();
+            }
+        });
+
+        try {
+            dispatcher.dispatch(pending.destination, pending.request, pending.future);
+        } catch (RuntimeException e) {
+            pending.future.fail(e);
+        }
+    }
+
+    private void dequeue(Window w, PendingRequest<?> pending) {
+        synchronized (w) {
+            if (w.queues.remove(pending)) {
+                queued.decrementAndGet();
+                removeIfIdle(w);
+            }
+        }
+    }
+
+    // guarded by w
+    private void removeIfIdle(Window w) {
+        if (w.inFlight == 0 && w.queues.size() == 0) {
+            w.removed = true;
+            windows.remove(w.endpoint, w);
+        }
+    }
+
+    private static class Window {
+        private final String endpoint;
+        // guarded by this
+        private final ClassQueues queues = new ClassQueues();
+        private int inFlight = 0;
+        private boolean removed = false;
+        private boolean queueMode = false;
+        private boolean blocked = false;
+
+        // the latest known registration of the client
+        private Client client;
+
+        Window(Client client) {
+            this.endpoint = client.getEndpoint();
+            this.client = client;
+        }
+    }
+
+    /**
+     * One FIFO queue per priority class.
+     */
+    private static class ClassQueues {
+        @SuppressWarnings("unchecked")
+        private final ArrayDeque<PendingRequest<?>>[] queues = new ArrayDeque[PRIORITIES.length];
+        private int size = 0;
+
+        ClassQueues() {
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayDeque<>();
+            }
+        }
+
+        void add(PendingRequest<?> pending) {
+            queues[pending.priority.ordinal()].add(pending);
+            size++;
+        }
+
+        boolean remove(PendingRequest<?> pending) {
+            if (queues[pending.priority.ordinal()].remove(pending)) {
+                size--;
+                return true;
+            }
+            return false;
+        }
+
+        int size() {
+            return size;
+        }
+
+        List<PendingRequest<?>> clear() {
+            List<PendingRequest<?>> all = new ArrayList<>(size);
+            for (ArrayDeque<PendingRequest<?>> queue : queues) {
+                all.addAll(queue);
+                queue.clear();
+            }
+            size = 0;
+            return all;
+        }
+
+        /**
+         * @param discarded receives the requests done (e.g. cancelled) or expired removed from the head of the queues
+         * @return the next request to dispatch: the oldest starving one if any, the oldest of the highest class
+         *         otherwise
+         */
+        PendingRequest<?> peek(long now, long starvation, long ttl, List<PendingRequest<?>> discarded) {
+            PendingRequest<?> highest = null;
+            PendingRequest<?> starving = null;
+            for (ArrayDeque<PendingRequest<?>> queue : queues) {
+                PendingRequest<?> head = queue.peek();
+                while (head != null && (head.future.isDone() || now - head.submitTime > ttl)) {
+                    queue.poll();
+                    size--;
+                    if (head.expiry != null) {
+                        head.expiry.cancel();
+                    }
+                    discarded.add(head);
+                    head = queue.peek();
+                }
+                if (head == null) {
+                    continue;
+                }
+                if (highest == null) {
+                    highest = head;
+                }
+                if (now - head.submitTime > starvation
+                        && (starving == null || head.submitTime - starving.submitTime < 0)) {
+                    starving = head;
+                }
+            }
+            return starving != null ? starving : highest;
+        }
+    }
+
+    private static class PendingRequest<T extends LwM2mResponse> {
+        // guarded by the window, rebound to the latest registration of the client when dispatched
+        private Client destination;
+        private final DownlinkRequest<T> request;
+        private final RequestPriority priority;
+        private final LwM2mFuture<T> future = new LwM2mFuture<>();
+        private final long submitTime = System.nanoTime();
+        // guarded by the window
+        private HashedWheelTimer.Timeout expiry;
+
+        PendingRequest(Client destination, DownlinkRequest<T> request, RequestPriority priority) {
+            this.destination = destination;
+            this.request = request;
+            this.priority = priority;
+        }
+    }
+
+    private static class ClassMetrics {
+        private final AtomicLong dispatched = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong promoted = new AtomicLong();
+        private final AtomicLong queueTimeNanos = new AtomicLong();
+        private final AtomicLong serviceTimeNanos = new AtomicLong();
+    }
+}
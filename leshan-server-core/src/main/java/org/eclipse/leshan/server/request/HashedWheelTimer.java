@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A timer optimized for a large number of timeouts which are usually cancelled before they expire, such as the
+ * deadlines of the in-flight requests.
+ * <p>
+ * Timeouts are hashed into the buckets of a wheel which a single thread walks one bucket per tick: scheduling and
+ * cancelling a timeout are O(1) and need no lock, at the price of a precision of one tick. Cancelled timeouts are
+ * removed from their bucket the next time the thread walks it.
+ * </p>
+ * <p>
+ * The expiry tasks are run on the timer thread: they must be short and must not block.
+ * </p>
+ */
+public class HashedWheelTimer implements Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong expired = new AtomicLong();
+
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates a timer with a tick of {@value #DEFAULT_TICK_MILLIS}ms and {@value #DEFAULT_TICKS_PER_WHEEL} buckets.
+     */
+    public HashedWheelTimer() {
+        this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * @param tickDuration the duration of a tick, i.e. the precision of the timer
+     * @param unit the unit of the tick duration
+     * @param ticksPerWheel the number of buckets of the wheel (rounded up to a power of 2)
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        Validate.isTrue(tickDuration > 0, "tick duration must be positive");
+        Validate.isTrue(ticksPerWheel > 0 && ticksPerWheel <= 1 << 20, "ticks per wheel must be in ]0, 2^20]");
+
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(new Worker(), "HashedWheelTimer#" + THREAD_COUNT.incrementAndGet());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to run once after the given delay.
+     *
+     * @return a handle to cancel the task
+     * @throws IllegalStateException if the timer is stopped
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        Validate.notNull(task);
+        if (stopped) {
+            throw new IllegalStateException("timer is stopped");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return the number of timeouts neither expired nor cancelled
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * Stops the timer thread: the pending timeouts will never expire.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+        try {
+            worker.join(5000);
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for the timer thread to stop.", e);
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public final class Timeout {
+
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+
+        // only accessed by the timer thread
+        private long remainingRounds;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task.
+         *
+         * @return <code>false</code> if the task already expired or was already cancelled
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(INIT, CANCELLED)) {
+                pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            expired.incrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.warn("Timeout task failed", e);
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts, only accessed by the timer thread.
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            return next;
+        }
+
+        void expire(long now) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                } else if (timeout.remainingRounds <= 0 && timeout.deadline - now <= 0) {
+                    Timeout next = remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                } else {
+                    if (timeout.remainingRounds > 0) {
+                        timeout.remainingRounds--;
+                    }
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private long tick = 0;
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                long now = waitForNextTick();
+                if (now < 0) {
+                    break;
+                }
+                transferAddedTimeouts();
+                wheel[(int) (tick & mask)].expire(now);
+                tick++;
+            }
+        }
+
+        /**
+         * Places the newly added timeouts in their bucket. A timeout whose deadline is already passed goes into the
+         * current bucket.
+         */
+        private void transferAddedTimeouts() {
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                long deadlineTick = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+                timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+                wheel[(int) (deadlineTick & mask)].add(timeout);
+            }
+        }
+
+        /**
+         * @return the current time, or -1 if the timer was stopped
+         */
+        private long waitForNextTick() {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            while (true) {
+                long now = System.nanoTime();
+                long sleepNanos = deadline - now;
+                if (sleepNanos <= 0) {
+                    return now;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        return -1;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The pending result of an asynchronous request (see {@link LwM2mRequestSender#sendAsync}).
+ * <p>
+ * Callbacks can be attached to the future and futures can be chained with {@link #map(Function)} and
+ * {@link #flatMap(AsyncFunction)}. Callbacks are invoked by the thread completing the future, or immediately by the
+ * registering thread if the future is already done: they must not block.
+ * </p>
+ * <p>
+ * Cancelling a future runs its cancel handler (e.g. cancels the underlying CoAP exchange). Cancelling a future derived
+ * by {@link #map(Function)} or {@link #flatMap(AsyncFunction)} cancels the future it was derived from.
+ * </p>
+ *
+ * @param <T> the type of the result
+ */
+public class LwM2mFuture<T> implements Future<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LwM2mFuture.class);
+
+    /**
+     * Receives the outcome of a future.
+     */
+    public interface Callback<T> {
+
+        void onSuccess(T result);
+
+        /**
+         * @param e the failure cause, a {@link CancellationException} if the future was cancelled
+         */
+        void onFailure(Exception e);
+    }
+
+    /**
+     * Transforms the result of a future.
+     */
+    public interface Function<T, U> {
+
+        U apply(T input) throws Exception;
+    }
+
+    /**
+     * Transforms the result of a future into another asynchronous computation.
+     */
+    public interface AsyncFunction<T, U> {
+
+        LwM2mFuture<U> apply(T input) throws Exception;
+    }
+
+    private enum State {
+        PENDING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    // guarded by this
+    private State state = State.PENDING;
+    private T result;
+    private Exception failure;
+    private List<Callback<? super T>> callbacks = new ArrayList<>(1);
+    private Runnable cancelHandler;
+
+    /**
+     * @return a future already succeeded with the given result
+     */
+    public static <T> LwM2mFuture<T> succeeded(T result) {
+        LwM2mFuture<T> future = new LwM2mFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * @return a future already failed with the given exception
+     */
+    public static <T> LwM2mFuture<T> failed(Exception e) {
+        LwM2mFuture<T> future = new LwM2mFuture<>();
+        future.fail(e);
+        return future;
+    }
+
+    /**
+     * Combines several futures into a future of the list of their results (in the same order). The returned future
+     * fails as soon as one of the futures fails; cancelling it cancels all the futures.
+     */
+    public static <T> LwM2mFuture<List<T>> allOf(Collection<? extends LwM2mFuture<? extends T>> futures) {
+        final List<LwM2mFuture<? extends T>> sources = new ArrayList<>(futures);
+        final LwM2mFuture<List<T>> all = new LwM2mFuture<>();
+        if (sources.isEmpty()) {
+            all.complete(Collections.<T> emptyList());
+            return all;
+        }
+
+        final Object[] results = new Object[sources.size()];
+        final AtomicInteger remaining = new AtomicInteger(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            final int index = i;
+            sources.get(i).addCallback(new Callback<T>() {
+
+                @SuppressWarnings("unchecked")
+                @Override
+                public void onSuccess(T result) {
+                    results[index] = result;
+                    if (remaining.decrementAndGet() == 0) {
+                        List<T> list = new ArrayList<>(results.length);
+                        for (Object r : results) {
+                            list.add((T) r);
+                        }
+                        all.complete(list);
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    all.fail(e);
+                }
+            });
+        }
+        all.setCancelHandler(new Runnable() {
+
+            @Override
+            public void run() {
+                for (LwM2mFuture<? extends T> source : sources) {
+                    source.cancel(true);
+                }
+            }
+        });
+        return all;
+    }
+
+    /**
+     * Completes this future with the given result.
+     *
+     * @return <code>false</code> if the future was already done
+     */
+    public boolean complete(T value) {
+        List<Callback<? super T>> toNotify;
+        synchronized (this) {
+            if (state != State.PENDING) {
+                return false;
+            }
+            state = State.SUCCEEDED;
+            result = value;
+            toNotify = detachCallbacks();
+        }
+        for (Callback<? super T> callback : toNotify) {
+            notifySuccess(callback, value);
+        }
+        return true;
+    }
+
+    /**
+     * Completes this future with a failure.
+     *
+     * @return <code>false</code> if the future was already done
+     */
+    public boolean fail(Exception e) {
+        Validate.notNull(e);
+        return terminate(e instanceof CancellationException ? State.CANCELLED : State.FAILED, e);
+    }
+
+    /**
+     * Cancels this future and runs its cancel handler. The interruption flag is ignored: the result of a request is
+     * not computed by a thread which could be interrupted.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return terminate(State.CANCELLED, new CancellationException());
+    }
+
+    /**
+     * Sets the action to run when this future is cancelled. It is run immediately if the future is already cancelled.
+     */
+    public void setCancelHandler(Runnable handler) {
+        synchronized (this) {
+            if (state == State.PENDING) {
+                cancelHandler = handler;
+                return;
+            } else if (state != State.CANCELLED) {
+                return;
+            }
+        }
+        handler.run();
+    }
+
+    /**
+     * Adds a callback, invoked immediately if this future is already done.
+     *
+     * @return this future
+     */
+    public LwM2mFuture<T> addCallback(Callback<? super T> callback) {
+        Validate.notNull(callback);
+        State current;
+        synchronized (this) {
+            if (state == State.PENDING) {
+                callbacks.add(callback);
+                return this;
+            }
+            current = state;
+        }
+        if (current == State.SUCCEEDED) {
+            notifySuccess(callback, result);
+        } else {
+            notifyFailure(callback, failure);
+        }
+        return this;
+    }
+
+    /**
+     * @return a future completed with the transformed result of this future, or failed with the exception thrown by
+     *         the transformation
+     */
+    public <U> LwM2mFuture<U> map(final Function<? super T, ? extends U> function) {
+        final LwM2mFuture<U> mapped = derived();
+        addCallback(new Callback<T>() {
+
+            @Override
+            public void onSuccess(T value) {
+                try {
+                    mapped.complete(function.apply(value));
+                } catch (Exception e) {
+                    mapped.fail(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                mapped.fail(e);
+            }
+        });
+        return mapped;
+    }
+
+    /**
+     * @return a future completed with the outcome of the future returned by the function, when this future succeeds
+     */
+    public <U> LwM2mFuture<U> flatMap(final AsyncFunction<? super T, U> function) {
+        final LwM2mFuture<U> mapped = derived();
+        addCallback(new Callback<T>() {
+
+            @Override
+            public void onSuccess(T value) {
+                final LwM2mFuture<U> next;
+                try {
+                    next = function.apply(value);
+                } catch (Exception e) {
+                    mapped.fail(e);
+                    return;
+                }
+                mapped.setCancelHandler(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        next.cancel(true);
+                    }
+                });
+                next.addCallback(new Callback<U>() {
+
+                    @Override
+                    public void onSuccess(U result) {
+                        mapped.complete(result);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        mapped.fail(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                mapped.fail(e);
+            }
+        });
+        return mapped;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == State.CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != State.PENDING;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (state == State.PENDING) {
+            wait();
+        }
+        return outcome();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state == State.PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return outcome();
+    }
+
+    // must be called with the lock held, once done
+    private T outcome() throws ExecutionException {
+        switch (state) {
+        case SUCCEEDED:
+            return result;
+        case CANCELLED:
+            throw (CancellationException) new CancellationException().initCause(failure);
+        default:
+            throw new ExecutionException(failure);
+        }
+    }
+
+    private <U> LwM2mFuture<U> derived() {
+        LwM2mFuture<U> derived = new LwM2mFuture<>();
+        derived.setCancelHandler(new Runnable() {
+
+            @Override
+            public void run() {
+                cancel(true);
+            }
+        });
+        return derived;
+    }
+
+    private boolean terminate(State terminalState, Exception e) {
+        List<Callback<? super T>> toNotify;
+        Runnable handler = null;
+        synchronized (this) {
+            if (state != State.PENDING) {
+                return false;
+            }
+            state = terminalState;
+            failure = e;
+            if (terminalState == State.CANCELLED) {
+                handler = cancelHandler;
+            }
+            toNotify = detachCallbacks();
+        }
+        if (handler != null) {
+            try {
+                handler.run();
+            } catch (RuntimeException ex) {
+                LOG.warn("Unable to cancel the request", ex);
+            }
+        }
+        for (Callback<? super T> callback : toNotify) {
+            notifyFailure(callback, e);
+        }
+        return true;
+    }
+
+    // must be called with the lock held
+    private List<Callback<? super T>> detachCallbacks() {
+        List<Callback<? super T>> detached = callbacks;
+        callbacks = null;
+        cancelHandler = null;
+        notifyAll();
+        return detached;
+    }
+
+    private static <T> void notifySuccess(Callback<? super T> callback, T value) {
+        try {
+            callback.onSuccess(value);
+        } catch (RuntimeException e) {
+            LOG.warn("Future callback failed", e);
+        }
+    }
+
+    private static void notifyFailure(Callback<?> callback, Exception e) {
+        try {
+            callback.onFailure(e);
+        } catch (RuntimeException ex) {
+            LOG.warn("Future callback failed", ex);
+        }
+    }
+}
@@ -32,4 +32,19 @@ public interface LwM2mRequestSender {
      */
     <T extends LwM2mResponse> void send(Client destination, DownlinkRequest<T> request,
             ResponseConsumer<T> responseCallback, ExceptionConsumer errorCallback);
+
+    /**
+     * Send a Lightweight M2M request asynchronously.
+     *
+     * @return the future response, cancelling it cancels the request
+     */
+    <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination, DownlinkRequest<T> request);
+
+    /**
+     * Send a Lightweight M2M request asynchronously, with the given priority.
+     *
+     * @return the future response, cancelling it cancels the request
+     */
+    <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination, DownlinkRequest<T> request,
+            RequestPriority priority);
 }
@@ -0,0 +1,554 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ValueResponse;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the resource reads sent concurrently to the same object instance into one instance read.
+ * <p>
+ * A {@link ReadRequest} of a resource is held for a short aggregation window. The reads of the other resources of the
+ * same instance sent to the same client during the window join it, and a single read of the instance is sent when the
+ * window closes (or when the batch is full). The resources of the returned {@link LwM2mObjectInstance} are then split
+ * back into one {@link ValueResponse} per request. A batch holding a single request sends it unchanged.
+ * </p>
+ * <p>
+ * A resource missing from the instance (e.g. a resource which is not readable) is read again on its own, as are all
+ * the resources of a batch whose instance read is answered with an error code other than
+ * {@link ResponseCode#NOT_FOUND}. Any other request sent to a client first sends its pending batches, so that a read
+ * sent before a modification never receives a value read after it.
+ * </p>
+ * <p>
+ * The aggregation is disabled by default: it delays the resource reads by up to the aggregation window.
+ * </p>
+ */
+public class ReadAggregator implements RequestCoalescer.Sender, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReadAggregator.class);
+
+    public static final long DEFAULT_WINDOW_MILLIS = 5;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 16;
+
+    private final RequestCoalescer.Sender sender;
+    private volatile boolean enabled = false;
+    private volatile long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    // indexed by registration id, so that flushing the batches of a client does not scan the other clients
+    private final ConcurrentMap<String /* registration id */, ClientBatches> batches = new ConcurrentHashMap<>();
+
+    // created on first use
+    private ScheduledExecutorService scheduler;
+    private boolean stopped = false;
+
+    private final AtomicLong mergedReads = new AtomicLong();
+    private final AtomicLong aggregated = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public ReadAggregator(RequestCoalescer.Sender sender) {
+        Validate.notNull(sender);
+        this.sender = sender;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the aggregation (disabled by default). Disabling it sends the pending batches.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            flushAll();
+        }
+    }
+
+    public long getWindow() {
+        return windowMillis;
+    }
+
+    /**
+     * @param windowMillis how long the first read of a batch waits for other reads of the same instance
+     */
+    public void setWindow(long windowMillis) {
+        Validate.isTrue(windowMillis > 0, "aggregation window must be positive");
+        this.windowMillis = windowMillis;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize the number of reads after which a batch is sent without waiting for the end of the window
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        Validate.isTrue(maxBatchSize > 1, "batch size must be greater than 1");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public <T extends LwM2mResponse> LwM2mFuture<T> send(Client destination, DownlinkRequest<T> request,
+            RequestPriority priority) {
+        if (!enabled || !(request instanceof ReadRequest) || !request.getPath().isResource()) {
+            flush(destination.getRegistrationId());
+            return sender.send(destination, request, priority);
+        }
+        @SuppressWarnings("unchecked")
+        LwM2mFuture<T> future = (LwM2mFuture<T>) add(destination, (ReadRequest) request, priority);
+        return future;
+    }
+
+    /**
+     * @return the number of instance reads sent on behalf of several resource reads
+     */
+    public long getMergedReadCount() {
+        return mergedReads.get();
+    }
+
+    /**
+     * @return the number of resource reads answered by an instance read
+     */
+    public long getAggregatedCount() {
+        return aggregated.get();
+    }
+
+    /**
+     * @return the number of resource reads sent on their own after an unusable instance read
+     */
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    /**
+     * @return the number of batches waiting for the end of their window
+     */
+    public int getPendingBatchCount() {
+        int count = 0;
+        for (ClientBatches client : batches.values()) {
+            synchronized (client) {
+                count += client.batches.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends the pending batches and stops the scheduler. The reads sent afterwards are not aggregated.
+     */
+    @Override
+    public void stop() {
+        ScheduledExecutorService toShutdown;
+        synchronized (this) {
+            stopped = true;
+            toShutdown = scheduler;
+            scheduler = null;
+        }
+        flushAll();
+        if (toShutdown != null) {
+            toShutdown.shutdownNow();
+        }
+    }
+
+    private LwM2mFuture<ValueResponse> add(Client destination, ReadRequest request, RequestPriority priority) {
+        LwM2mPath path = request.getPath();
+        Key key = new Key(path.getObjectId(), path.getObjectInstanceId());
+        Member member = new Member(request, priority);
+        while (true) {
+            ClientBatches client = batchesOf(destination.getRegistrationId());
+            Batch batch;
+            synchronized (client) {
+                if (client.removed) {
+                    continue;
+                }
+                batch = client.batches.get(key);
+                if (batch == null) {
+                    batch = new Batch(key, destination, client);
+                    if (!schedule(batch)) {
+                        removeIfEmpty(client);
+                        return sender.send(destination, request, priority);
+                    }
+                    client.batches.put(key, batch);
+                }
+            }
+            boolean full;
+            synchronized (batch) {
+                if (batch.flushed) {
+                    unregister(batch);
+                    continue;
+                }
+                member.attach(batch);
+                batch.members.add(member);
+                full = batch.members.size() >= maxBatchSize;
+            }
+            if (full) {
+                flush(batch);
+            }
+            return member.future;
+        }
+    }
+
+    private synchronized boolean schedule(final Batch batch) {
+        if (stopped) {
+            return false;
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ReadAggregator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        batch.timeout = scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    flush(batch);
+                } catch (RuntimeException e) {
+                    LOG.warn("Unexpected error while sending aggregated reads", e);
+                }
+            }
+        }, windowMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private ClientBatches batchesOf(String registrationId) {
+        ClientBatches client = batches.get(registrationId);
+        if (client == null) {
+            ClientBatches created = new ClientBatches(registrationId);
+            client = batches.putIfAbsent(registrationId, created);
+            if (client == null) {
+                client = created;
+            }
+        }
+        return client;
+    }
+
+    // removes a flushed batch from the batches of its client
+    private void unregister(Batch batch) {
+        ClientBatches client = batch.client;
+        synchronized (client) {
+            if (client.batches.get(batch.key) == batch) {
+                client.batches.remove(batch.key);
+            }
+            removeIfEmpty(client);
+        }
+    }
+
+    // guarded by client
+    private void removeIfEmpty(ClientBatches client) {
+        if (client.batches.isEmpty() && !client.removed) {
+            client.removed = true;
+            batches.remove(client.registrationId, client);
+        }
+    }
+
+    private void flush(String registrationId) {
+        ClientBatches client = batches.get(registrationId);
+        if (client != null) {
+            flush(client);
+        }
+    }
+
+    private void flush(ClientBatches client) {
+        List<Batch> toFlush;
+        synchronized (client) {
+            toFlush = new ArrayList<>(client.batches.values());
+        }
+        for (Batch batch : toFlush) {
+            flush(batch);
+        }
+    }
+
+    private void flushAll() {
+        for (ClientBatches client : batches.values()) {
+            flush(client);
+        }
+    }
+
+    private void flush(Batch batch) {
+        List<Member> members;
+        RequestPriority priority = null;
+        synchronized (batch) {
+            if (batch.flushed) {
+                return;
+            }
+            batch.flushed = true;
+            if (batch.timeout != null) {
+                batch.timeout.cancel(false);
+            }
+            members = new ArrayList<>(batch.members);
+        }
+        unregister(batch);
+        if (members.isEmpty()) {
+            return;
+        }
+        for (Member member : members) {
+            if (priority == null || member.priority.compareTo(priority) < 0) {
+                priority = member.priority;
+            }
+        }
+
+        if (members.size() == 1) {
+            Member member = members.get(0);
+            batch.source(sendSafely(batch.destination, member.request, priority), members);
+            return;
+        }
+
+        mergedReads.incrementAndGet();
+        aggregated.addAndGet(members.size());
+        final Client destination = batch.destination;
+        final List<Member> merged = members;
+        LwM2mFuture<ValueResponse> source = sendSafely(destination,
+                new ReadRequest(batch.key.objectId, batch.key.instanceId), priority);
+        batch.source(source, null);
+        source.addCallback(new LwM2mFuture.Callback<ValueResponse>() {
+
+            @Override
+            public void onSuccess(ValueResponse response) {
+                split(destination, response, merged);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                for (Member member : merged) {
+                    member.future.fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Completes each resource read with its resource of the instance read response.
+     */
+    private void split(Client destination, ValueResponse response, List<Member> members) {
+        LwM2mNode content = response == null ? null : response.getContent();
+        boolean found = response != null && response.getCode() == ResponseCode.CONTENT
+                && content instanceof LwM2mObjectInstance;
+        for (Member member : members) {
+            if (member.future.isDone()) {
+                continue;
+            }
+            if (response == null) {
+                member.future.complete(null);
+            } else if (response.getCode() == ResponseCode.NOT_FOUND) {
+                member.future.complete(new ValueResponse(ResponseCode.NOT_FOUND));
+            } else {
+                LwM2mResource resource = found ? ((LwM2mObjectInstance) content).getResources().get(
+                        member.request.getPath().getResourceId()) : null;
+                if (resource != null) {
+                    member.future.complete(new ValueResponse(ResponseCode.CONTENT, resource));
+                } else {
+                    fallbacks.incrementAndGet();
+                    forward(sendSafely(destination, member.request, member.priority), member.future);
+                }
+            }
+        }
+    }
+
+    private LwM2mFuture<ValueResponse> sendSafely(Client destination, ReadRequest request, RequestPriority priority) {
+        try {
+            return sender.send(destination, request, priority);
+        } catch (RuntimeException e) {
+            return LwM2mFuture.failed(e);
+        }
+    }
+
+    private static void forward(final LwM2mFuture<ValueResponse> source, final LwM2mFuture<ValueResponse> target) {
+        target.setCancelHandler(new Runnable() {
+
+            @Override
+            public void run() {
+                source.cancel(true);
+            }
+        });
+        source.addCallback(new LwM2mFuture.Callback<ValueResponse>() {
+
+            @Override
+            public void onSuccess(ValueResponse response) {
+                target.complete(response);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                target.fail(e);
+            }
+        });
+    }
+
+    /**
+     * The pending batches of a client.
+     */
+    private static class ClientBatches {
+        private final String registrationId;
+
+        // guarded by this
+        private final Map<Key, Batch> batches = new HashMap<>();
+        private boolean removed = false;
+
+        ClientBatches(String registrationId) {
+            this.registrationId = registrationId;
+        }
+    }
+
+    /**
+     * The resource reads of an instance waiting for the end of the aggregation window.
+     */
+    private class Batch {
+        private final Key key;
+        private final Client destination;
+        private final ClientBatches client;
+
+        // guarded by this
+        private final List<Member> members = new ArrayList<>();
+        private ScheduledFuture<?> timeout;
+        private boolean flushed = false;
+        private LwM2mFuture<ValueResponse> source;
+        private int detached = 0;
+
+        Batch(Key key, Client destination, ClientBatches client) {
+            this.key = key;
+            this.destination = destination;
+            this.client = client;
+        }
+
+        /**
+         * Sets the request sent for the batch, forwarding its result to the given members if any.
+         */
+        void source(LwM2mFuture<ValueResponse> future, List<Member> forwarded) {
+            boolean cancelled;
+            synchronized (this) {
+                source = future;
+                cancelled = detached == members.size();
+            }
+            if (cancelled) {
+                future.cancel(true);
+            }
+            if (forwarded != null) {
+                for (Member member : forwarded) {
+                    forward(future, member.future);
+                }
+            }
+        }
+
+        /**
+         * Removes a cancelled read from the batch, and cancels the request sent for the batch when all its reads are
+         * cancelled.
+         */
+        void detach(Member member) {
+            LwM2mFuture<ValueResponse> toCancel = null;
+            boolean empty = false;
+            synchronized (this) {
+                if (!flushed) {
+                    members.remove(member);
+                    empty = members.isEmpty();
+                    if (empty) {
+                        flushed = true;
+                        if (timeout != null) {
+                            timeout.cancel(false);
+                        }
+                    }
+                } else if (++detached == members.size()) {
+                    // if the request is not sent yet, source() cancels it
+                    toCancel = source;
+                }
+            }
+            if (empty) {
+                unregister(this);
+            }
+            if (toCancel != null) {
+                toCancel.cancel(true);
+            }
+        }
+    }
+
+    private static class Member {
+        private final ReadRequest request;
+        private final RequestPriority priority;
+        private final LwM2mFuture<ValueResponse> future = new LwM2mFuture<>();
+
+        Member(ReadRequest request, RequestPriority priority) {
+            this.request = request;
+            this.priority = priority;
+        }
+
+        void attach(final Batch batch) {
+            future.setCancelHandler(new Runnable() {
+
+                @Override
+                public void run() {
+                    batch.detach(Member.this);
+                }
+            });
+        }
+    }
+
+    private static class Key {
+        private final int objectId;
+        private final int instanceId;
+
+        Key(int objectId, int instanceId) {
+            this.objectId = objectId;
+            this.instanceId = instanceId;
+        }
+
+        @Override
+        public int hashCode() {
+            return objectId * 31 + instanceId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return objectId == other.objectId && instanceId == other.instanceId;
+        }
+    }
+}
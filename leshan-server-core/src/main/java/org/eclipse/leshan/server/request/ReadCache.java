@@ -0,0 +1,506 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.core.request.CreateRequest;
+import org.eclipse.leshan.core.request.DeleteRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ExecuteRequest;
+import org.eclipse.leshan.core.request.ObserveRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ValueResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationRegistryListener;
+import org.eclipse.leshan.util.Validate;
+
+/**
+ * A read-through cache of the resource values, keyed by (registration id, path).
+ * <p>
+ * The cache is populated with the content of the read and observe responses and with the notified values (it must be
+ * added as a listener of the observation registry). A read is answered from the cache when the cached value is not
+ * older than the max-age of the request, otherwise it is sent to the client.
+ * </p>
+ * <p>
+ * Writes, executes, creates and deletes invalidate the cached values of the targeted path, of its parents and of its
+ * children. The values of a client are dropped when it unregisters (the cache must be added as a listener of the client
+ * registry). The estimated memory used by the values is bounded by a budget: the least recently used values are evicted
+ * first.
+ * </p>
+ * <p>
+ * The cache is disabled by default.
+ * </p>
+ */
+public class ReadCache implements RequestCoalescer.Sender, ObservationRegistryListener, ClientRegistryListener {
+
+    public static final long DEFAULT_MAX_AGE = 1000;
+    public static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+    // rough per entry overhead: key, entry, map node and path
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int NODE_OVERHEAD = 32;
+
+    private final RequestCoalescer.Sender sender;
+    private volatile boolean enabled = false;
+    private volatile long defaultMaxAge = DEFAULT_MAX_AGE;
+
+    // guarded by entries, in access order (least recently used first)
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, ClientEntries> clients = new HashMap<>();
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private long memoryUsed = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evicted = 0;
+    private long invalidated = 0;
+
+    /**
+     * @param sender the sender of the requests which cannot be answered from the cache
+     */
+    public ReadCache(RequestCoalescer.Sender sender) {
+        Validate.notNull(sender);
+        this.sender = sender;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the cache (disabled by default). The cached values are dropped when the cache is disabled.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public long getDefaultMaxAge() {
+        return defaultMaxAge;
+    }
+
+    /**
+     * Sets the max-age of the reads sent without an explicit max-age.
+     *
+     * @param maxAge the maximum age of a cached value (in ms), 0 to always read from the client
+     */
+    public void setDefaultMaxAge(long maxAge) {
+        Validate.isTrue(maxAge >= 0, "max-age cannot be negative");
+        this.defaultMaxAge = maxAge;
+    }
+
+    public long getMemoryBudget() {
+        synchronized (entries) {
+            return memoryBudget;
+        }
+    }
+
+    /**
+     * Sets the maximum estimated memory used by the cached values (in bytes), evicting values if needed.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        Validate.isTrue(memoryBudget > 0, "memory budget must be positive");
+        synchronized (entries) {
+            this.memoryBudget = memoryBudget;
+            reserve(0);
+        }
+    }
+
+    public <T extends LwM2mResponse> LwM2mFuture<T> send(Client destination, DownlinkRequest<T> request) {
+        return send(destination, request, RequestPriority.NORMAL);
+    }
+
+    @Override
+    public <T extends LwM2mResponse> LwM2mFuture<T> send(Client destination, DownlinkRequest<T> request,
+            RequestPriority priority) {
+        if (request instanceof ReadRequest) {
+            @SuppressWarnings("unchecked")
+            LwM2mFuture<T> future = (LwM2mFuture<T>) read(destination, (ReadRequest) request, defaultMaxAge,
+                    priority);
+            return future;
+        }
+        if (request instanceof WriteRequest || request instanceof ExecuteRequest || request instanceof CreateRequest
+                || request instanceof DeleteRequest) {
+            invalidate(destination.getRegistrationId(), request.getPath());
+        }
+        LwM2mFuture<T> future = sender.send(destination, request, priority);
+        if (enabled && request instanceof ObserveRequest) {
+            store(destination.getRegistrationId(), request.getPath(), generation(destination.getRegistrationId()),
+                    future);
+        }
+        return future;
+    }
+
+    /**
+     * Reads a value from the cache if it is not older than the given max-age, from the client otherwise.
+     *
+     * @param maxAge the maximum age of the cached value (in ms)
+     */
+    public LwM2mFuture<ValueResponse> read(Client destination, ReadRequest request, long maxAge) {
+        return read(destination, request, maxAge, RequestPriority.NORMAL);
+    }
+
+    /**
+     * Reads a value from the cache if it is not older than the given max-age, from the client otherwise.
+     *
+     * @param maxAge the maximum age of the cached value (in ms)
+     * @param priority the priority of the request sent on a cache miss
+     */
+    public LwM2mFuture<ValueResponse> read(Client destination, ReadRequest request, long maxAge,
+            RequestPriority priority) {
+        if (!enabled) {
+            return sender.send(destination, request, priority);
+        }
+        String registrationId = destination.getRegistrationId();
+        LwM2mPath path = request.getPath();
+        long generation;
+        synchronized (entries) {
+            Entry entry = entries.get(new Key(registrationId, path));
+            if (entry != null && System.nanoTime() - entry.timestamp <= TimeUnit.MILLISECONDS.toNanos(maxAge)) {
+                hits++;
+                return LwM2mFuture.succeeded(new ValueResponse(ResponseCode.CONTENT, entry.value));
+            }
+            misses++;
+            generation = clientEntries(registrationId).generation;
+        }
+        LwM2mFuture<ValueResponse> future = sender.send(destination, request, priority);
+        store(registrationId, path, generation, future);
+        return future;
+    }
+
+    /**
+     * Drops the cached values of the given path, of its parents and of its children.
+     */
+    public void invalidate(String registrationId, LwM2mPath path) {
+        synchronized (entries) {
+            ClientEntries client = clients.get(registrationId);
+            if (client == null) {
+                return;
+            }
+            // the responses of the reads in flight may be older than the invalidation
+            client.generation++;
+            for (Iterator<LwM2mPath> it = client.paths.iterator(); it.hasNext();) {
+                LwM2mPath cached = it.next();
+                if (related(cached, path)) {
+                    it.remove();
+                    memoryUsed -= entries.remove(new Key(registrationId, cached)).memory;
+                    invalidated++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached values of the given client.
+     */
+    public void invalidate(String registrationId) {
+        synchronized (entries) {
+            ClientEntries client = clients.remove(registrationId);
+            if (client == null) {
+                return;
+            }
+            client.generation++;
+            for (LwM2mPath path : client.paths) {
+                memoryUsed -= entries.remove(new Key(registrationId, path)).memory;
+                invalidated++;
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached values.
+     */
+    public void clear() {
+        synchronized (entries) {
+            for (ClientEntries client : clients.values()) {
+                client.generation++;
+            }
+            clients.clear();
+            entries.clear();
+            memoryUsed = 0;
+        }
+    }
+
+    @Override
+    public void newValue(Observation observation, LwM2mNode value) {
+        if (!enabled || value == null) {
+            return;
+        }
+        String registrationId = observation.getClient().getRegistrationId();
+        synchronized (entries) {
+            invalidate(registrationId, observation.getPath());
+            put(registrationId, observation.getPath(), value);
+        }
+    }
+
+    @Override
+    public void newObservation(Observation observation) {
+    }
+
+    @Override
+    public void cancelled(Observation observation) {
+    }
+
+    @Override
+    public void registered(Client client) {
+    }
+
+    @Override
+    public void updated(Client clientUpdated) {
+    }
+
+    @Override
+    public void unregistered(Client client) {
+        invalidate(client.getRegistrationId());
+    }
+
+    /**
+     * @return the number of reads answered from the cache
+     */
+    public long getHitCount() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return the number of reads sent to the clients while the cache was enabled
+     */
+    public long getMissCount() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    /**
+     * @return the number of values evicted to stay in the memory budget
+     */
+    public long getEvictedCount() {
+        synchronized (entries) {
+            return evicted;
+        }
+    }
+
+    /**
+     * @return the number of values dropped by a modification of the client resources
+     */
+    public long getInvalidatedCount() {
+        synchronized (entries) {
+            return invalidated;
+        }
+    }
+
+    /**
+     * @return the estimated memory used by the cached values (in bytes)
+     */
+    public long getMemoryUsed() {
+        synchronized (entries) {
+            return memoryUsed;
+        }
+    }
+
+    /**
+     * @return the number of cached values
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private long generation(String registrationId) {
+        synchronized (entries) {
+            return clientEntries(registrationId).generation;
+        }
+    }
+
+    // caches the content of the response unless the client resources were modified since the request was sent
+    private void store(final String registrationId, final LwM2mPath path, final long generation,
+            LwM2mFuture<? extends LwM2mResponse> future) {
+        future.addCallback(new LwM2mFuture.Callback<LwM2mResponse>() {
+
+            @Override
+            public void onSuccess(LwM2mResponse response) {
+                if (!(response instanceof ValueResponse) || response.getCode() != ResponseCode.CONTENT) {
+                    return;
+                }
+                synchronized (entries) {
+                    ClientEntries client = clients.get(registrationId);
+                    if (enabled && client != null && client.generation == generation) {
+                        put(registrationId, path, ((ValueResponse) response).getContent());
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+            }
+        });
+    }
+
+    // guarded by entries
+    private void put(String registrationId, LwM2mPath path, LwM2mNode value) {
+        Key key = new Key(registrationId, path);
+        long memory = ENTRY_OVERHEAD + estimateSize(value);
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            memoryUsed -= previous.memory;
+        }
+        if (memory > memoryBudget) {
+            clientEntries(registrationId).paths.remove(path);
+            return;
+        }
+        reserve(memory);
+        entries.put(key, new Entry(value, System.nanoTime(), memory));
+        clientEntries(registrationId).paths.add(path);
+    }
+
+    // guarded by entries
+    private ClientEntries clientEntries(String registrationId) {
+        ClientEntries client = clients.get(registrationId);
+        if (client == null) {
+            client = new ClientEntries();
+            clients.put(registrationId, client);
+        }
+        return client;
+    }
+
+    // evicts the least recently used values until the given memory is available
+    private void reserve(long memory) {
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (memoryUsed + memory > memoryBudget && eldest.hasNext()) {
+            Map.Entry<Key, Entry> entry = eldest.next();
+            eldest.remove();
+            memoryUsed -= entry.getValue().memory;
+            ClientEntries client = clients.get(entry.getKey().registrationId);
+            if (client != null) {
+                client.paths.remove(entry.getKey().path);
+            }
+            evicted++;
+        }
+        memoryUsed += memory;
+    }
+
+    // true if one of the paths is the other one or one of its parents
+    private static boolean related(LwM2mPath path1, LwM2mPath path2) {
+        if (path1.getObjectId() != path2.getObjectId()) {
+            return false;
+        }
+        if (path1.isObject() || path2.isObject()) {
+            return true;
+        }
+        if (!path1.getObjectInstanceId().equals(path2.getObjectInstanceId())) {
+            return false;
+        }
+        if (path1.isObjectInstance() || path2.isObjectInstance()) {
+            return true;
+        }
+        return path1.getResourceId().equals(path2.getResourceId());
+    }
+
+    private static long estimateSize(LwM2mNode node) {
+        long size = NODE_OVERHEAD;
+        if (node instanceof LwM2mObject) {
+            for (LwM2mObjectInstance instance : ((LwM2mObject) node).getInstances().values()) {
+                size += estimateSize(instance);
+            }
+        } else if (node instanceof LwM2mObjectInstance) {
+            for (LwM2mResource resource : ((LwM2mObjectInstance) node).getResources().values()) {
+                size += estimateSize(resource);
+            }
+        } else if (node instanceof LwM2mResource) {
+            for (Value<?> value : ((LwM2mResource) node).getValues()) {
+                size += estimateSize(value);
+            }
+        }
+        return size;
+    }
+
+    private static long estimateSize(Value<?> value) {
+        if (value == null || value.value == null) {
+            return NODE_OVERHEAD;
+        }
+        if (value.value instanceof String) {
+            return NODE_OVERHEAD + 40 + 2L * ((String) value.value).length();
+        }
+        if (value.value instanceof byte[]) {
+            return NODE_OVERHEAD + 16 + ((byte[]) value.value).length;
+        }
+        return NODE_OVERHEAD + 16;
+    }
+
+    private static class Entry {
+        private final LwM2mNode value;
+        private final long timestamp;
+        private final long memory;
+
+        Entry(LwM2mNode value, long timestamp, long memory) {
+            this.value = value;
+            this.timestamp = timestamp;
+            this.memory = memory;
+        }
+    }
+
+    // the cached paths of a client
+    private static class ClientEntries {
+        private final Set<LwM2mPath> paths = new HashSet<>();
+        // incremented on each invalidation
+        private long generation = 0;
+    }
+
+    private static class Key {
+        private final String registrationId;
+        private final LwM2mPath path;
+
+        Key(String registrationId, LwM2mPath path) {
+            this.registrationId = registrationId;
+            this.path = path;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * registrationId.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return registrationId.equals(other.registrationId) && path.equals(other.path);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.DiscoverRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.util.Validate;
+
+/**
+ * Coalesces identical read requests sent concurrently to the same client.
+ * <p>
+ * While a {@link ReadRequest} or a {@link DiscoverRequest} of a path is in flight, the identical requests sent to the
+ * same client are attached to it instead of creating new exchanges: they all complete with the same response.
+ * Cancelling an attached request detaches it; the exchange is only cancelled when all its requests are cancelled.
+ * </p>
+ * <p>
+ * Any other request sent to a client (e.g. a write) closes its in-flight reads to new requests, so that a read sent
+ * after a modification never receives a value read before it.
+ * </p>
+ * <p>
+ * An exchange keeps the priority of the request which created it.
+ * </p>
+ */
+public class RequestCoalescer {
+
+    /**
+     * Sends the requests which could not be coalesced.
+     */
+    public interface Sender {
+
+        <T extends LwM2mResponse> LwM2mFuture<T> send(Client destination, DownlinkRequest<T> request,
+                RequestPriority priority);
+    }
+
+    private final Sender sender;
+    private volatile boolean enabled = true;
+
+    // indexed by registration id, so that closing the exchanges of a client does not scan the other clients
+    private final ConcurrentMap<String /* registration id */, ConcurrentMap<Key, Exchange<?>>> inFlight =
+            new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public RequestCoalescer(Sender sender) {
+        Validate.notNull(sender);
+        this.sender = sender;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the coalescing (enabled by default).
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public <T extends LwM2mResponse> LwM2mFuture<T> submit(Client destination, DownlinkRequest<T> request) {
+        return submit(destination, request, RequestPriority.NORMAL);
+    }
+
+    public <T extends LwM2mResponse> LwM2mFuture<T> submit(Client destination, DownlinkRequest<T> request,
+            RequestPriority priority) {
+        if (!enabled) {
+            return sender.send(destination, request, priority);
+        }
+        if (!(request instanceof ReadRequest || request instanceof DiscoverRequest)) {
+            closeExchanges(destination.getRegistrationId());
+            return sender.send(destination, request, priority);
+        }
+
+        Key key = new Key(request.getPath(), request.getClass());
+        while (true) {
+            ConcurrentMap<Key, Exchange<?>> exchanges = exchangesOf(destination.getRegistrationId());
+            @SuppressWarnings("unchecked")
+            Exchange<T> exchange = (Exchange<T>) exchanges.get(key);
+            if (exchange != null) {
+                LwM2mFuture<T> attached = exchange.attach();
+                if (attached != null) {
+                    hits.incrementAndGet();
+                    return attached;
+                }
+                // closed meanwhile
+                exchange.remove();
+                continue;
+            }
+
+            exchange = new Exchange<>(destination.getRegistrationId(), exchanges, key);
+            if (exchanges.putIfAbsent(key, exchange) != null) {
+                continue;
+            }
+            misses.incrementAndGet();
+            LwM2mFuture<T> attached = exchange.attach();
+            exchange.start(sender, destination, request, priority);
+            return attached;
+        }
+    }
+
+    /**
+     * @return the number of requests attached to an exchange in flight
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of coalescable requests which created a new exchange
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the ratio of coalescable requests which did not create a new exchange
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0d : (double) h / total;
+    }
+
+    /**
+     * @return the number of exchanges in flight accepting new requests
+     */
+    public int getInFlightCount() {
+        int count = 0;
+        for (ConcurrentMap<Key, Exchange<?>> exchanges : inFlight.values()) {
+            count += exchanges.size();
+        }
+        return count;
+    }
+
+    private ConcurrentMap<Key, Exchange<?>> exchangesOf(String registrationId) {
+        ConcurrentMap<Key, Exchange<?>> exchanges = inFlight.get(registrationId);
+        if (exchanges == null) {
+            ConcurrentMap<Key, Exchange<?>> created = new ConcurrentHashMap<>();
+            exchanges = inFlight.putIfAbsent(registrationId, created);
+            if (exchanges == null) {
+                exchanges = created;
+            }
+        }
+        return exchanges;
+    }
+
+    private void closeExchanges(String registrationId) {
+        // the exchanges added concurrently to the removed map are not visible to the requests sent afterwards
+        ConcurrentMap<Key, Exchange<?>> exchanges = inFlight.remove(registrationId);
+        if (exchanges != null) {
+            for (Exchange<?> exchange : exchanges.values()) {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * A request in flight and the futures of the requests attached to it.
+     */
+    private class Exchange<T extends LwM2mResponse> {
+
+        private final String registrationId;
+        private final ConcurrentMap<Key, Exchange<?>> exchanges;
+        private final Key key;
+        private final LwM2mFuture<T> result = new LwM2mFuture<>();
+
+        // guarded by this
+        private LwM2mFuture<T> source;
+        private int attachedCount = 0;
+        private boolean closed = false;
+
+        Exchange(String registrationId, ConcurrentMap<Key, Exchange<?>> exchanges, Key key) {
+            this.registrationId = registrationId;
+            this.exchanges = exchanges;
+            this.key = key;
+        }
+
+        void start(Sender sender, Client destination, DownlinkRequest<T> request, RequestPriority priority) {
+            LwM2mFuture<T> future;
+            try {
+                future = sender.send(destination, request, priority);
+            } catch (RuntimeException e) {
+                future = LwM2mFuture.failed(e);
+            }
+            boolean cancelled;
+            synchronized (this) {
+                source = future;
+                cancelled = attachedCount == 0;
+            }
+            if (cancelled) {
+                future.cancel(true);
+            }
+            future.addCallback(new LwM2mFuture.Callback<T>() {
+
+                @Override
+                public void onSuccess(T response) {
+                    close();
+                    result.complete(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    close();
+                    result.fail(e);
+                }
+            });
+        }
+
+        /**
+         * @return a future completed with the response of the exchange, or <code>null</code> if the exchange is
+         *         closed
+         */
+        LwM2mFuture<T> attach() {
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+                attachedCount++;
+            }
+            final LwM2mFuture<T> attached = new LwM2mFuture<>();
+            attached.setCancelHandler(new Runnable() {
+
+                @Override
+                public void run() {
+                    detach();
+                }
+            });
+            result.addCallback(new LwM2mFuture.Callback<T>() {
+
+                @Override
+                public void onSuccess(T response) {
+                    attached.complete(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    attached.fail(e);
+                }
+            });
+            return attached;
+        }
+
+        /**
+         * Cancels the exchange when its last request is cancelled.
+         */
+        private void detach() {
+            LwM2mFuture<T> toCancel;
+            synchronized (this) {
+                attachedCount--;
+                if (attachedCount > 0) {
+                    return;
+                }
+                closed = true;
+                toCancel = source;
+            }
+            remove();
+            // if the request is not sent yet, start() cancels it
+            if (toCancel != null) {
+                toCancel.cancel(true);
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            remove();
+        }
+
+        void remove() {
+            exchanges.remove(key, this);
+            if (exchanges.isEmpty()) {
+                // a request adding an exchange concurrently only misses the coalescing
+                inFlight.remove(registrationId, exchanges);
+            }
+        }
+    }
+
+    private static class Key {
+        private final LwM2mPath path;
+        private final Class<?> type;
+
+        Key(LwM2mPath path, Class<?> type) {
+            this.path = path;
+            this.type = type;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + type.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return path.equals(other.path) && type == other.type;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+/**
+ * The priority classes of the requests sent to the clients, from the highest to the lowest.
+ */
+public enum RequestPriority {
+
+    /** Requests issued on behalf of an operator waiting for the result (e.g. from a web UI) */
+    INTERACTIVE,
+
+    /** Default priority */
+    NORMAL,
+
+    /** Background traffic: campaigns, automatic observations */
+    BULK
+}
@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+/**
+ * Thrown when a request is rejected because too many requests are already waiting to be sent to the same client.
+ */
+public class RequestQueueFullException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RequestQueueFullException(String endpoint, int depth) {
+        super(String.format("Too many pending requests for client %s (%d queued)", endpoint, depth));
+    }
+}
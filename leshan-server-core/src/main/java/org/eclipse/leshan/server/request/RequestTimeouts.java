@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.RttEstimator;
+import org.eclipse.leshan.util.Validate;
+
+/**
+ * The deadlines of the requests sent to the clients.
+ * <p>
+ * The deadline of a request is, in order of precedence: the timeout configured for the destination client (e.g. for
+ * the clients behind a slow network), the timeout configured for the type of the request (e.g. for the execution of
+ * a firmware update), the adaptive timeout of the client if enabled, or the default timeout. The deadline applies to
+ * the asynchronous requests too: the CoAP exchange of a request is cancelled when its deadline is reached, even if
+ * the CoAP layer is still retransmitting it.
+ * </p>
+ * <p>
+ * The adaptive timeout is derived from the retransmission timeout estimated from the round-trip times of the client
+ * (see {@link RttEstimator}): it lets the request be transmitted {@value #ADAPTIVE_TRANSMISSIONS} times with the
+ * back-off of the client, bounded by a minimum and a maximum. The default timeout applies until the first round-trip
+ * time sample of the client.
+ * </p>
+ * <p>
+ * The adaptive timeout is never shorter than the floor given by the sender, typically the MAX_TRANSMIT_WAIT of its
+ * CoAP endpoint (see {@link #maxTransmitWait(long, float, int)}): the CoAP layer retransmits the requests with its
+ * own ACK timeout, so a shorter deadline would expire before the retransmissions of the request.
+ * </p>
+ */
+public class RequestTimeouts {
+
+    public static final int ADAPTIVE_TRANSMISSIONS = 3;
+    public static final long DEFAULT_MIN_ADAPTIVE_TIMEOUT = 1000;
+    public static final long DEFAULT_MAX_ADAPTIVE_TIMEOUT = 60000;
+
+    private volatile long defaultTimeout;
+    private volatile boolean adaptive = false;
+    private volatile long minAdaptiveTimeout = DEFAULT_MIN_ADAPTIVE_TIMEOUT;
+    private volatile long maxAdaptiveTimeout = DEFAULT_MAX_ADAPTIVE_TIMEOUT;
+    private final ConcurrentMap<Class<?>, Long> typeTimeouts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> clientTimeouts = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultTimeout the default timeout in milliseconds
+     */
+    public RequestTimeouts(long defaultTimeout) {
+        setDefaultTimeout(defaultTimeout);
+    }
+
+    public long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    public void setDefaultTimeout(long timeout) {
+        Validate.isTrue(timeout > 0, "timeout must be positive");
+        this.defaultTimeout = timeout;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Enables or disables the timeouts derived from the round-trip times of each client (disabled by default).
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Sets the bounds of the adaptive timeouts, in milliseconds.
+     */
+    public void setAdaptiveBounds(long minTimeout, long maxTimeout) {
+        Validate.isTrue(minTimeout > 0, "timeout must be positive");
+        Validate.isTrue(maxTimeout >= minTimeout, "maximum timeout must not be less than the minimum timeout");
+        this.minAdaptiveTimeout = minTimeout;
+        this.maxAdaptiveTimeout = maxTimeout;
+    }
+
+    /**
+     * Sets the timeout of a type of request (e.g. <code>ExecuteRequest.class</code>), in milliseconds.
+     */
+    @SuppressWarnings("rawtypes")
+    public void setTimeout(Class<? extends DownlinkRequest> requestType, long timeout) {
+        Validate.notNull(requestType);
+        Validate.isTrue(timeout > 0, "timeout must be positive");
+        typeTimeouts.put(requestType, timeout);
+    }
+
+    /**
+     * Sets the timeout of the requests sent to the client with the given end-point, in milliseconds.
+     */
+    public void setClientTimeout(String endpoint, long timeout) {
+        Validate.notNull(endpoint);
+        Validate.isTrue(timeout > 0, "timeout must be positive");
+        clientTimeouts.put(endpoint, timeout);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void removeTimeout(Class<? extends DownlinkRequest> requestType) {
+        typeTimeouts.remove(requestType);
+    }
+
+    public void removeClientTimeout(String endpoint) {
+        clientTimeouts.remove(endpoint);
+    }
+
+    /**
+     * Computes the CoAP MAX_TRANSMIT_WAIT (RFC 7252 section 4.8.2): the maximum time from the first transmission of
+     * a confirmable request to the time its last retransmission is given up.
+     *
+     * @param ackTimeout the ACK_TIMEOUT in milliseconds
+     * @param ackRandomFactor the ACK_RANDOM_FACTOR
+     * @param maxRetransmit the MAX_RETRANSMIT
+     * @return the MAX_TRANSMIT_WAIT in milliseconds
+     */
+    public static long maxTransmitWait(long ackTimeout, float ackRandomFactor, int maxRetransmit) {
+        return (long) (ackTimeout * ((1L << (maxRetransmit + 1)) - 1) * (double) ackRandomFactor);
+    }
+
+    /**
+     * @return the timeout in milliseconds of the given request sent to the given client
+     */
+    public long getTimeout(Client destination, DownlinkRequest<?> request) {
+        return getTimeout(destination, request, 0);
+    }
+
+    /**
+     * @param adaptiveFloor the minimum adaptive timeout in milliseconds, typically the MAX_TRANSMIT_WAIT of the CoAP
+     *        endpoint used to send the request
+     * @return the timeout in milliseconds of the given request sent to the given client
+     */
+    public long getTimeout(Client destination, DownlinkRequest<?> request, long adaptiveFloor) {
+        Long timeout = clientTimeouts.get(destination.getEndpoint());
+        if (timeout != null) {
+            return timeout;
+        }
+        timeout = typeTimeouts.get(request.getClass());
+        if (timeout != null) {
+            return timeout;
+        }
+        RttEstimator rtt = destination.getRttEstimator();
+        if (adaptive && rtt.getSampleCount() > 0) {
+            long adaptiveTimeout = rtt.getExchangeTimeout(ADAPTIVE_TRANSMISSIONS - 1);
+            long bounded = Math.max(minAdaptiveTimeout, Math.min(maxAdaptiveTimeout, adaptiveTimeout));
+            return Math.max(adaptiveFloor, bounded);
+        }
+        return defaultTimeout;
+    }
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.server.request.RequestTimeouts;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RttEstimatorTest {
+
+    @Test
+    public void default_rto_applies_until_the_first_sample() {
+        RttEstimator estimator = new RttEstimator();
+        Assert.assertEquals(RttEstimator.DEFAULT_RTO_MILLIS, estimator.getRto());
+        Assert.assertNull(estimator.getSmoothedRtt());
+        Assert.assertEquals(2d, estimator.getBackoffFactor(), 0);
+    }
+
+    @Test
+    public void rto_follows_the_round_trip_times() {
+        RttEstimator fast = new RttEstimator();
+        RttEstimator slow = new RttEstimator();
+        for (int i = 0; i < 50; i++) {
+            fast.addSample(100, 0);
+            slow.addSample(8000, 0);
+        }
+        Assert.assertEquals(100L, (long) fast.getSmoothedRtt());
+        Assert.assertTrue(fast.getRto() < 200);
+        Assert.assertEquals(3d, fast.getBackoffFactor(), 0);
+        Assert.assertTrue(slow.getRto() > 7000);
+        Assert.assertEquals(1.5d, slow.getBackoffFactor(), 0);
+
+        // samples with too many retransmissions are ambiguous
+        long rto = fast.getRto();
+        fast.addSample(30000, 3);
+        Assert.assertEquals(rto, fast.getRto());
+        // weak samples weigh less than strong ones
+        fast.addSample(1000, 1);
+        Assert.assertTrue(fast.getRto() > rto && fast.getRto() < 500);
+    }
+
+    @Test
+    public void adaptive_timeout_is_derived_from_the_rto() throws Exception {
+        Client client = new Client("id", "client", InetAddress.getLocalHost(), 10000, "1.0", 10000L, null, null, null,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+        RequestTimeouts timeouts = new RequestTimeouts(5000);
+        timeouts.setAdaptive(true);
+        ReadRequest read = new ReadRequest(3, 0, 1);
+        Assert.assertEquals(5000, timeouts.getTimeout(client, read));
+
+        for (int i = 0; i < 50; i++) {
+            client.getRttEstimator().addSample(20000, 0);
+        }
+        Assert.assertEquals(RequestTimeouts.DEFAULT_MAX_ADAPTIVE_TIMEOUT, timeouts.getTimeout(client, read));
+
+        // the estimator is kept across registration updates
+        Client updated = new ClientUpdate("id", null, null, 20000L, null, null, null).updateClient(client);
+        Assert.assertSame(client.getRttEstimator(), updated.getRttEstimator());
+    }
+
+    @Test
+    public void adaptive_timeout_lets_a_fast_client_be_retransmitted() throws Exception {
+        Client client = new Client("id", "client", InetAddress.getLocalHost(), 10000, "1.0", 10000L, null, null, null,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+        RequestTimeouts timeouts = new RequestTimeouts(5000);
+        timeouts.setAdaptive(true);
+        for (int i = 0; i < 50; i++) {
+            client.getRttEstimator().addSample(50, 0);
+        }
+
+        // CoAP defaults: ACK_TIMEOUT 2s, ACK_RANDOM_FACTOR 1.5, MAX_RETRANSMIT 4
+        long maxTransmitWait = RequestTimeouts.maxTransmitWait(2000, 1.5f, 4);
+        Assert.assertEquals(93000, maxTransmitWait);
+        long timeout = timeouts.getTimeout(client, new ReadRequest(3, 0, 1), maxTransmitWait);
+        Assert.assertEquals(maxTransmitWait, timeout);
+
+        // the first transmission waits up to 3s for its ACK, the retransmission up to 6s more
+        Assert.assertTrue(timeout > 2000 * 1.5 * (1 + 2));
+    }
+}
@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.ExceptionConsumer;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ResponseConsumer;
+import org.eclipse.leshan.core.response.ValueResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientPage;
+import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.eclipse.leshan.server.client.ClientUpdate;
+import org.eclipse.leshan.server.impl.ObservationRegistryImpl;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationListener;
+import org.eclipse.leshan.server.observation.ObservationRegistry;
+import org.eclipse.leshan.server.request.LwM2mFuture;
+import org.eclipse.leshan.server.request.LwM2mRequestSender;
+import org.eclipse.leshan.server.request.RequestPriority;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedClientRegistryTest {
+
+    private static final int NB_CLIENTS = 300;
+
+    private InProcessClusterTransport transport;
+    private List<ShardedClientRegistry> nodes;
+    private final Set<String> unreachable = new HashSet<>();
+
+    @Before
+    public void setUp() {
+        transport = new InProcessClusterTransport() {
+
+            @Override
+            public ClusterNode connect(String nodeId) {
+                if (unreachable.contains(nodeId)) {
+                    throw new ClusterException("Node " + nodeId + " is unreachable");
+                }
+                return super.connect(nodeId);
+            }
+        };
+        nodes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            startNode("node" + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (ShardedClientRegistry node : new ArrayList<>(nodes)) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void clients_are_held_by_their_owner_and_visible_from_any_node() throws Exception {
+        registerClients();
+
+        int total = 0;
+        for (ShardedClientRegistry node : nodes) {
+            for (Client client : node.getShard().allClients()) {
+                Assert.assertEquals(node.getNodeId(), node.ownerOf(client.getEndpoint()));
+            }
+            total += node.getShard().allClients().size();
+            Assert.assertEquals(NB_CLIENTS, node.allClients().size());
+            Assert.assertNotNull(node.get("ep" + (NB_CLIENTS - 1)));
+        }
+        Assert.assertEquals(NB_CLIENTS, total);
+
+        // update and de-registration from a node which does not own the client
+        ShardedClientRegistry owner = ownerOf("ep0");
+        ShardedClientRegistry other = nodes.get((nodes.indexOf(owner) + 1) % nodes.size());
+        Assert.assertNotNull(other.updateClient(new ClientUpdate("id0", null, null, 60L, null, null, null)));
+        Assert.assertEquals(Long.valueOf(60L), owner.getShard().get("ep0").getLifeTimeInSec());
+        Assert.assertNotNull(other.deregisterClient("id0"));
+        Assert.assertNull(owner.get("ep0"));
+    }
+
+    @Test
+    public void clients_are_handed_off_on_membership_change() throws Exception {
+        registerClients();
+
+        ShardedClientRegistry newNode = startNode("node3");
+        Assert.assertFalse(newNode.getShard().allClients().isEmpty());
+        assertAllClientsOwned();
+
+        nodes.remove(0).stop();
+        assertAllClientsOwned();
+    }
+
+    @Test
+    public void handoff_does_not_drop_the_observations() throws Exception {
+        // wire each node as the server does: observations are cancelled when a client unregisters
+        final List<String> registrations = new ArrayList<>();
+        List<ObservationRegistry> observationRegistries = new ArrayList<>();
+        for (ShardedClientRegistry node : nodes) {
+            final ObservationRegistry observationRegistry = new ObservationRegistryImpl();
+            observationRegistries.add(observationRegistry);
+            node.addListener(new ClientRegistryListener() {
+
+                @Override
+                public void registered(Client client) {
+                    registrations.add(client.getEndpoint());
+                }
+
+                @Override
+                public void updated(Client clientUpdated) {
+                }
+
+                @Override
+                public void unregistered(Client client) {
+                    observationRegistry.cancelObservations(client);
+                }
+            });
+        }
+        registerClients();
+        for (int i = 0; i < nodes.size(); i++) {
+            for (Client client : nodes.get(i).getShard().allClients()) {
+                observationRegistries.get(i).addObservation(new TestObservation(client, new LwM2mPath(3, 0, 9)));
+            }
+        }
+        Assert.assertEquals(NB_CLIENTS, registrations.size());
+
+        ShardedClientRegistry newNode = startNode("node3");
+        Assert.assertFalse(newNode.getShard().allClients().isEmpty());
+        int observations = 0;
+        for (ObservationRegistry observationRegistry : observationRegistries) {
+            observations += observationRegistry.getObservations(new LwM2mPath(3, 0, 9)).size();
+        }
+        Assert.assertEquals(NB_CLIENTS, observations);
+        // the moved clients are not registered again (e.g. by the auto-observer)
+        Assert.assertEquals(NB_CLIENTS, registrations.size());
+    }
+
+    @Test
+    public void registrations_fail_when_the_owner_is_unreachable() throws Exception {
+        ShardedClientRegistry owner = ownerOf("ep0");
+        ShardedClientRegistry other = nodes.get((nodes.indexOf(owner) + 1) % nodes.size());
+        Client client = new Client("id0", "ep0", InetAddress.getLocalHost(), 5683, InetSocketAddress.createUnresolved(
+                "localhost", 5683));
+
+        unreachable.add(owner.getNodeId());
+        try {
+            other.registerClient(client);
+            Assert.fail("ClusterException expected");
+        } catch (ClusterException e) {
+            // the client must register again
+        }
+        Assert.assertNull(other.getShard().get("ep0"));
+
+        unreachable.clear();
+        other.registerClient(client);
+        Assert.assertNotNull(owner.getShard().get("ep0"));
+        Assert.assertNull(other.getShard().get("ep0"));
+    }
+
+    @Test
+    public void pages_are_merged_across_nodes() throws Exception {
+        registerClients();
+
+        Set<String> endpoints = new HashSet<>();
+        String previous = "";
+        String cursor = null;
+        do {
+            ClientPage page = nodes.get(1).page(cursor, 50, ClientPage.Sort.ENDPOINT);
+            for (Client client : page.getClients()) {
+                Assert.assertTrue(previous.compareTo(client.getEndpoint()) < 0);
+                previous = client.getEndpoint();
+                endpoints.add(client.getEndpoint());
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        Assert.assertEquals(NB_CLIENTS, endpoints.size());
+    }
+
+    @Test
+    public void requests_are_sent_by_the_owner() throws Exception {
+        final List<String> senders = new ArrayList<>();
+        List<LwM2mRequestSender> forwardingSenders = new ArrayList<>();
+        for (final ShardedClientRegistry node : nodes) {
+            forwardingSenders.add(node.bindRequestSender(new LwM2mRequestSender() {
+
+                @SuppressWarnings("unchecked")
+                @Override
+                public <T extends LwM2mResponse> T send(Client destination, DownlinkRequest<T> request) {
+                    senders.add(node.getNodeId());
+                    return (T) new ValueResponse(ResponseCode.CONTENT, new LwM2mResource(1, Value.newStringValue(node
+                            .getNodeId())));
+                }
+
+                @Override
+                public <T extends LwM2mResponse> void send(Client destination, DownlinkRequest<T> request,
+                        ResponseConsumer<T> responseCallback, ExceptionConsumer errorCallback) {
+                    responseCallback.accept(send(destination, request));
+                }
+
+                @Override
+                public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination,
+                        DownlinkRequest<T> request) {
+                    return LwM2mFuture.succeeded(send(destination, request));
+                }
+
+                @Override
+                public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination,
+                        DownlinkRequest<T> request, RequestPriority priority) {
+                    return sendAsync(destination, request);
+                }
+            }));
+        }
+        registerClients();
+
+        Client client = nodes.get(0).get("ep42");
+        for (LwM2mRequestSender sender : forwardingSenders) {
+            ValueResponse response = sender.send(client, new ReadRequest(3, 0, 1));
+            Assert.assertEquals(ResponseCode.CONTENT, response.getCode());
+        }
+        Assert.assertEquals(nodes.size(), senders.size());
+        for (String sender : senders) {
+            Assert.assertEquals(ownerOf("ep42").getNodeId(), sender);
+        }
+    }
+
+    private ShardedClientRegistry startNode(String nodeId) {
+        ShardedClientRegistry node = new ShardedClientRegistry(nodeId, transport);
+        node.start();
+        nodes.add(node);
+        return node;
+    }
+
+    private void registerClients() throws UnknownHostException {
+        for (int i = 0; i < NB_CLIENTS; i++) {
+            // register through any node
+            nodes.get(i % nodes.size()).registerClient(
+                    new Client("id" + i, "ep" + i, InetAddress.getLocalHost(), 5683, InetSocketAddress.createUnresolved(
+                            "localhost", 5683)));
+        }
+    }
+
+    private ShardedClientRegistry ownerOf(String endpoint) {
+        String owner = nodes.get(0).ownerOf(endpoint);
+        for (ShardedClientRegistry node : nodes) {
+            if (node.getNodeId().equals(owner)) {
+                return node;
+            }
+        }
+        throw new AssertionError("no owner for " + endpoint);
+    }
+
+    private void assertAllClientsOwned() {
+        int total = 0;
+        for (ShardedClientRegistry node : nodes) {
+            for (Client client : node.getShard().allClients()) {
+                Assert.assertEquals(node.getNodeId(), node.ownerOf(client.getEndpoint()));
+            }
+            total += node.getShard().allClients().size();
+        }
+        Assert.assertEquals(NB_CLIENTS, total);
+    }
+
+    private static class TestObservation implements Observation {
+
+        private final Client client;
+        private final LwM2mPath path;
+
+        TestObservation(Client client, LwM2mPath path) {
+            this.client = client;
+            this.path = path;
+        }
+
+        @Override
+        public Client getClient() {
+            return client;
+        }
+
+        @Override
+        public LwM2mPath getPath() {
+            return path;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void addListener(ObservationListener listener) {
+        }
+
+        @Override
+        public void removeListener(ObservationListener listener) {
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistryBatchListener;
+import org.eclipse.leshan.server.client.ClientRegistryEvent;
+import org.eclipse.leshan.server.client.ClientRegistryEvent.Type;
+import org.eclipse.leshan.server.impl.AsyncClientRegistryListener.OverflowPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncClientRegistryListenerTest {
+
+    @Test
+    public void events_of_an_endpoint_are_delivered_in_order() throws Exception {
+        int nbClients = 200;
+        final CountDownLatch latch = new CountDownLatch(nbClients * 3);
+        final Map<String, List<Type>> received = new HashMap<>();
+
+        AsyncClientRegistryListener listener = new AsyncClientRegistryListener(new ClientRegistryBatchListener() {
+
+            @Override
+            public void onEvents(List<ClientRegistryEvent> events) {
+                for (ClientRegistryEvent event : events) {
+                    synchronized (received) {
+                        List<Type> types = received.get(event.getClient().getEndpoint());
+                        if (types == null) {
+                            types = new ArrayList<>();
+                            received.put(event.getClient().getEndpoint(), types);
+                        }
+                        types.add(event.getType());
+                    }
+                    latch.countDown();
+                }
+            }
+        }, 4, 16, 8, OverflowPolicy.BLOCK);
+
+        try {
+            for (int i = 0; i < nbClients; i++) {
+                Client client = newClient("urn:client" + i);
+                listener.registered(client);
+                listener.updated(client);
+                listener.unregistered(client);
+            }
+
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(nbClients, received.size());
+            for (List<Type> types : received.values()) {
+                Assert.assertEquals(3, types.size());
+                Assert.assertEquals(Type.REGISTERED, types.get(0));
+                Assert.assertEquals(Type.UPDATED, types.get(1));
+                Assert.assertEquals(Type.UNREGISTERED, types.get(2));
+            }
+            Assert.assertEquals(0, listener.getDroppedCount());
+        } finally {
+            listener.stop();
+        }
+    }
+
+    @Test
+    public void events_are_delivered_in_bounded_batches() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        final List<Integer> batchSizes = new ArrayList<>();
+        AsyncClientRegistryListener listener = new AsyncClientRegistryListener(new ClientRegistryBatchListener() {
+
+            @Override
+            public void onEvents(List<ClientRegistryEvent> events) {
+                batchSizes.add(events.size());
+            }
+        }, executor, 1, 1000, 100, OverflowPolicy.BLOCK);
+
+        Client client = newClient("urn:client");
+        for (int i = 0; i < 250; i++) {
+            listener.updated(client);
+        }
+        Assert.assertEquals(250, listener.getPendingCount());
+
+        executor.runAll();
+
+        Assert.assertEquals(Arrays.asList(100, 100, 50), batchSizes);
+        Assert.assertEquals(0, listener.getPendingCount());
+    }
+
+    @Test
+    public void drop_oldest_policy_keeps_the_latest_events() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        final List<ClientRegistryEvent> received = new ArrayList<>();
+        AsyncClientRegistryListener listener = new AsyncClientRegistryListener(new ClientRegistryBatchListener() {
+
+            @Override
+            public void onEvents(List<ClientRegistryEvent> events) {
+                received.addAll(events);
+            }
+        }, executor, 1, 10, 100, OverflowPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < 25; i++) {
+            listener.registered(newClient("urn:client" + i));
+        }
+        executor.runAll();
+
+        Assert.assertEquals(15, listener.getDroppedCount());
+        Assert.assertEquals(10, received.size());
+        Assert.assertEquals("urn:client15", received.get(0).getClient().getEndpoint());
+        Assert.assertEquals("urn:client24", received.get(9).getClient().getEndpoint());
+    }
+
+    @Test
+    public void events_raised_by_the_delegate_on_a_full_queue_do_not_block() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        final Client client = newClient("urn:client");
+        final List<ClientRegistryEvent> received = new ArrayList<>();
+        final AsyncClientRegistryListener[] listener = new AsyncClientRegistryListener[1];
+        listener[0] = new AsyncClientRegistryListener(new ClientRegistryBatchListener() {
+
+            @Override
+            public void onEvents(List<ClientRegistryEvent> events) {
+                received.addAll(events);
+                if (received.size() == 1) {
+                    // the second event does not fit in the queue
+                    listener[0].updated(client);
+                    listener[0].updated(client);
+                }
+            }
+        }, executor, 1, 1, 100, OverflowPolicy.BLOCK);
+
+        listener[0].registered(client);
+        executor.runAll();
+
+        Assert.assertEquals(1, listener[0].getDroppedCount());
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals(Type.UPDATED, received.get(1).getType());
+    }
+
+    private Client newClient(String endpoint) throws UnknownHostException {
+        return new Client(endpoint + "-id", endpoint, InetAddress.getLocalHost(), 10000, "1.0", 10000L, null, null,
+                null, InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+
+    private static class ManualExecutor implements Executor {
+
+        private final Queue<Runnable> tasks = new LinkedList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
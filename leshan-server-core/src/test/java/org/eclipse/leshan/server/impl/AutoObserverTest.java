@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.ExceptionConsumer;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ResponseConsumer;
+import org.eclipse.leshan.core.response.ValueResponse;
+import org.eclipse.leshan.server.LwM2mServer;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistry;
+import org.eclipse.leshan.server.model.LwM2mModelProvider;
+import org.eclipse.leshan.server.observation.AutoObserveRule;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationListener;
+import org.eclipse.leshan.server.observation.ObservationRegistry;
+import org.eclipse.leshan.server.request.LwM2mFuture;
+import org.eclipse.leshan.server.request.RequestPriority;
+import org.eclipse.leshan.server.security.SecurityRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AutoObserverTest {
+
+    private TestServer server;
+    private AutoObserver autoObserver;
+
+    @Before
+    public void setUp() {
+        server = new TestServer();
+    }
+
+    @After
+    public void tearDown() {
+        if (autoObserver != null) {
+            autoObserver.stop();
+        }
+    }
+
+    @Test
+    public void observes_matching_paths_except_already_observed_ones() throws Exception {
+        autoObserver = new AutoObserver(server, Arrays.asList(AutoObserveRule.forObject(3303, "/3303/*/5700"),
+                AutoObserveRule.forEndpoints("urn:meter:.*", "/3/0/9", "/4/0/2")), 1000, 0, 0, 0);
+        autoObserver.start();
+
+        Client meter = newClient("urn:meter:1", "</3/0>", "</3303/0>", "</3303/1>");
+        server.observationRegistry.addObservation(new TestObservation(meter, new LwM2mPath("/3303/1/5700")));
+        server.clientRegistry.registerClient(meter);
+        Client sensor = newClient("urn:sensor:1", "</3/0>");
+        server.clientRegistry.registerClient(sensor);
+
+        waitForRequests(2);
+
+        // /4/0/2 is not declared by the client, /3303/1/5700 is already observed and the sensor has no 3303 object
+        Assert.assertEquals(Arrays.asList("urn:meter:1 /3303/0/5700", "urn:meter:1 /3/0/9"), server.requests);
+        Assert.assertEquals(1, autoObserver.getSkippedCount());
+        Assert.assertEquals(2, autoObserver.getSucceededCount());
+    }
+
+    @Test
+    public void failed_observe_is_retried() throws Exception {
+        autoObserver = new AutoObserver(server, Collections.singletonList(AutoObserveRule.forObject(3303,
+                "/3303/0/5700")), 1000, 0, 2, 1);
+        server.failures = 2;
+        autoObserver.start();
+
+        server.clientRegistry.registerClient(newClient("urn:meter:1", "</3303/0>"));
+
+        waitForRequests(3);
+        Assert.assertEquals(2, autoObserver.getRetriedCount());
+        Assert.assertEquals(1, autoObserver.getSucceededCount());
+        Assert.assertEquals(0, autoObserver.getFailedCount());
+    }
+
+    @Test
+    public void observes_are_not_sent_once_the_client_is_unregistered() throws Exception {
+        autoObserver = new AutoObserver(server, Collections.singletonList(AutoObserveRule.forObject(3303,
+                "/3303/0/5700")), 1000, 60000, 0, 0);
+        autoObserver.start();
+
+        Client client = newClient("urn:meter:1", "</3303/0>");
+        server.clientRegistry.registerClient(client);
+        Assert.assertEquals(1, autoObserver.getPendingCount());
+
+        server.clientRegistry.deregisterClient(client.getRegistrationId());
+        Assert.assertEquals(0, autoObserver.getPendingCount());
+    }
+
+    private void waitForRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (autoObserver.getIssuedCount() < count || autoObserver.getPendingCount() > 0) {
+            Assert.assertTrue("requests not issued in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        Assert.assertEquals(count, autoObserver.getIssuedCount());
+    }
+
+    private Client newClient(String endpoint, String... links) throws UnknownHostException {
+        LinkObject[] objectLinks = new LinkObject[links.length];
+        for (int i = 0; i < links.length; i++) {
+            objectLinks[i] = new LinkObject(links[i]);
+        }
+        return new Client(endpoint + "-id", endpoint, InetAddress.getLocalHost(), 10000, "1.0", 10000L, null, null,
+                objectLinks, InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+
+    private static class TestServer implements LwM2mServer {
+
+        private final ClientRegistryImpl clientRegistry = new ClientRegistryImpl();
+        private final ObservationRegistryImpl observationRegistry = new ObservationRegistryImpl();
+        private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        private volatile int failures = 0;
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public <T extends LwM2mResponse> T send(Client destination, DownlinkRequest<T> request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T extends LwM2mResponse> void send(Client destination, DownlinkRequest<T> request,
+                ResponseConsumer<T> responseCallback, ExceptionConsumer errorCallback) {
+            requests.add(destination.getEndpoint() + " " + request.getPath());
+            if (failures > 0) {
+                failures--;
+                errorCallback.accept(new RuntimeException("rejected"));
+                return;
+            }
+            observationRegistry.addObservation(new TestObservation(destination, request.getPath()));
+            responseCallback.accept((T) new ValueResponse(ResponseCode.CONTENT, new LwM2mResource(0,
+                    Value.newIntegerValue(1))));
+        }
+
+        @Override
+        public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination, DownlinkRequest<T> request) {
+            final LwM2mFuture<T> future = new LwM2mFuture<>();
+            send(destination, request, new ResponseConsumer<T>() {
+
+                @Override
+                public void accept(T response) {
+                    future.complete(response);
+                }
+            }, new ExceptionConsumer() {
+
+                @Override
+                public void accept(Exception e) {
+                    future.fail(e);
+                }
+            });
+            return future;
+        }
+
+        @Override
+        public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination, DownlinkRequest<T> request,
+                RequestPriority priority) {
+            Assert.assertEquals(RequestPriority.BULK, priority);
+            return sendAsync(destination, request);
+        }
+
+        @Override
+        public ClientRegistry getClientRegistry() {
+            return clientRegistry;
+        }
+
+        @Override
+        public ObservationRegistry getObservationRegistry() {
+            return observationRegistry;
+        }
+
+        @Override
+        public SecurityRegistry getSecurityRegistry() {
+            return null;
+        }
+
+        @Override
+        public LwM2mModelProvider getModelProvider() {
+            return null;
+        }
+    }
+
+    private static class TestObservation implements Observation {
+
+        private final Client client;
+        private final LwM2mPath path;
+
+        TestObservation(Client client, LwM2mPath path) {
+            this.client = client;
+            this.path = path;
+        }
+
+        @Override
+        public Client getClient() {
+            return client;
+        }
+
+        @Override
+        public LwM2mPath getPath() {
+            return path;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void addListener(ObservationListener listener) {
+        }
+
+        @Override
+        public void removeListener(ObservationListener listener) {
+        }
+    }
+}
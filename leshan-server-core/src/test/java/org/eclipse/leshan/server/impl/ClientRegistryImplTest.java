@@ -15,12 +15,26 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 
 import org.eclipse.leshan.LinkObject;
 import org.eclipse.leshan.core.request.BindingMode;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientPage;
+import org.eclipse.leshan.server.client.ClientQuery;
 import org.eclipse.leshan.server.client.ClientUpdate;
 import org.junit.Assert;
 import org.junit.Before;
@@ -83,6 +97,195 @@ public class ClientRegistryImplTest {
         Assert.assertTrue(registeredClient.isAlive());
     }
 
+    @Test
+    public void export_then_import_restores_clients() throws IOException {
+        givenASimpleClient(lifetime);
+        registry.registerClient(client);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(1, registry.exportTo(Channels.newChannel(out)));
+
+        ClientRegistryImpl imported = new ClientRegistryImpl();
+        Assert.assertEquals(1, imported.importFrom(Channels.newChannel(new ByteArrayInputStream(out.toByteArray()))));
+
+        Client importedClient = imported.get(ep);
+        Assert.assertEquals(registrationId, importedClient.getRegistrationId());
+        Assert.assertEquals(address, importedClient.getAddress());
+        Assert.assertEquals(port, importedClient.getPort());
+        Assert.assertEquals(lifetime, importedClient.getLifeTimeInSec());
+        Assert.assertEquals(sms, importedClient.getSmsNumber());
+        Assert.assertSame(binding, importedClient.getBindingMode());
+        Assert.assertEquals(client.getRegistrationDate(), importedClient.getRegistrationDate());
+        Assert.assertEquals(client.getLastUpdate(), importedClient.getLastUpdate());
+        Assert.assertEquals(1, importedClient.getObjectLinks().length);
+        Assert.assertEquals(3, (int) importedClient.getObjectLinks()[0].getObjectId());
+    }
+
+    @Test
+    public void export_is_not_affected_by_concurrent_modifications() throws IOException {
+        final int count = 2000;
+        for (int i = 0; i < count; i++) {
+            registry.registerClient(new Client("id" + i, String.format("ep%04d", i), address, port, null, lifetime,
+                    null, null, objectLinks, InetSocketAddress.createUnresolved("localhost", 5683)));
+        }
+
+        // modify the registry as soon as the export starts writing
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final WritableByteChannel target = Channels.newChannel(out);
+        WritableByteChannel channel = new WritableByteChannel() {
+            boolean modified = false;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                if (!modified) {
+                    modified = true;
+                    for (int i = 0; i < count; i += 2) {
+                        registry.deregisterClient("id" + i);
+                    }
+                    registry.registerClient(new Client("new", "ep9999", address, port,
+                            InetSocketAddress.createUnresolved("localhost", 5683)));
+                }
+                return target.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Assert.assertEquals(count, registry.exportTo(channel));
+
+        ClientRegistryImpl imported = new ClientRegistryImpl();
+        imported.importFrom(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        Assert.assertEquals(count, imported.allClients().size());
+        Assert.assertNotNull(imported.get("ep1998"));
+        Assert.assertNull(imported.get("ep9999"));
+    }
+
+    @Test
+    public void query_clients_by_indexed_criteria() {
+        InetSocketAddress registrationEndpoint = InetSocketAddress.createUnresolved("localhost", 5683);
+        LinkObject[] firmwareLinks = LinkObject.parse("</3/0>,</5/0>".getBytes(org.eclipse.leshan.util.Charsets.UTF_8));
+        long now = System.currentTimeMillis();
+        registry.registerClient(new Client("id1", "ep1", address, port, "1.0", lifetime, null, BindingMode.UQ,
+                firmwareLinks, registrationEndpoint, new Date(now - 2 * 3600 * 1000), null));
+        registry.registerClient(new Client("id2", "ep2", address, port, "1.0", lifetime, null, BindingMode.U,
+                firmwareLinks, registrationEndpoint, new Date(now - 60 * 1000), null));
+        registry.registerClient(new Client("id3", "ep3", address, port, "1.1", lifetime, null, BindingMode.UQ,
+                objectLinks, registrationEndpoint, new Date(now - 60 * 1000), null));
+
+        Assert.assertEquals(Arrays.asList("ep1", "ep2"), endpoints(new ClientQuery.Builder().objectId(5).build()));
+        Assert.assertEquals(Arrays.asList("ep1", "ep3"),
+                endpoints(new ClientQuery.Builder().bindingMode(BindingMode.UQ).build()));
+        Assert.assertEquals(Arrays.asList("ep2"), endpoints(new ClientQuery.Builder().lwM2mVersion("1.0")
+                .registeredAfter(new Date(now - 3600 * 1000)).build()));
+        Assert.assertEquals(Arrays.asList("ep1", "ep2", "ep3"),
+                endpoints(new ClientQuery.Builder().registrationEndpoint(registrationEndpoint).build()));
+        Assert.assertEquals(Arrays.asList("ep1", "ep2", "ep3"), endpoints(new ClientQuery.Builder().build()));
+        Assert.assertTrue(endpoints(new ClientQuery.Builder().objectId(4).build()).isEmpty());
+    }
+
+    @Test
+    public void query_by_registration_time_returns_a_re_registered_client_once() {
+        long now = System.currentTimeMillis();
+        registry.registerClient(new Client("id1", "ep1", address, port, null, lifetime, null, null, null,
+                InetSocketAddress.createUnresolved("localhost", 5683), new Date(now - 3600 * 1000), null));
+        registry.registerClient(new Client("id2", "ep2", address, port, null, lifetime, null, null, null,
+                InetSocketAddress.createUnresolved("localhost", 5683), new Date(now - 1800 * 1000), null));
+        // ep1 registers again in a later time bucket
+        registry.registerClient(new Client("id3", "ep1", address, port, null, lifetime, null, null, null,
+                InetSocketAddress.createUnresolved("localhost", 5683), new Date(now - 60 * 1000), null));
+
+        Assert.assertEquals(Arrays.asList("ep1", "ep2"), endpoints(new ClientQuery.Builder().registeredAfter(
+                new Date(now - 2 * 3600 * 1000)).build()));
+        Assert.assertEquals(Arrays.asList("ep2"), endpoints(new ClientQuery.Builder().registeredBefore(
+                new Date(now - 600 * 1000)).build()));
+    }
+
+    @Test
+    public void query_reflects_updates_and_deregistrations() {
+        givenASimpleClient(lifetime);
+        registry.registerClient(client);
+        ClientQuery firmwareQuery = new ClientQuery.Builder().objectId(5).build();
+        Assert.assertFalse(registry.query(firmwareQuery).hasNext());
+
+        registry.updateClient(new ClientUpdate(registrationId, address, port, null, null, BindingMode.U, LinkObject
+                .parse("</5/0>".getBytes(org.eclipse.leshan.util.Charsets.UTF_8))));
+        Assert.assertEquals(Arrays.asList(ep), endpoints(firmwareQuery));
+        Assert.assertTrue(endpoints(new ClientQuery.Builder().bindingMode(binding).build()).isEmpty());
+
+        registry.deregisterClient(registrationId);
+        Assert.assertTrue(endpoints(firmwareQuery).isEmpty());
+    }
+
+    @Test
+    public void page_by_endpoint_survives_concurrent_modifications() {
+        for (int i = 0; i < 10; i++) {
+            registry.registerClient(new Client("id" + i, "ep" + i, address, port, InetSocketAddress.createUnresolved(
+                    "localhost", 5683)));
+        }
+
+        ClientPage page = registry.page(null, 4, ClientPage.Sort.ENDPOINT);
+        Assert.assertEquals(Arrays.asList("ep0", "ep1", "ep2", "ep3"), endpoints(page));
+
+        // remove the last returned client and one of the next page
+        registry.deregisterClient("id3");
+        registry.deregisterClient("id5");
+        page = registry.page(page.getNextCursor(), 4, ClientPage.Sort.ENDPOINT);
+        Assert.assertEquals(Arrays.asList("ep4", "ep6", "ep7", "ep8"), endpoints(page));
+
+        page = registry.page(page.getNextCursor(), 4, ClientPage.Sort.ENDPOINT);
+        Assert.assertEquals(Arrays.asList("ep9"), endpoints(page));
+        Assert.assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void page_by_registration_date() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            registry.registerClient(new Client("id" + i, "ep" + i, address, port, null, lifetime, null, null, null,
+                    InetSocketAddress.createUnresolved("localhost", 5683), new Date(now - i * 1000), null));
+        }
+
+        ClientPage page = registry.page(null, 3, ClientPage.Sort.REGISTRATION_DATE);
+        Assert.assertEquals(Arrays.asList("ep4", "ep3", "ep2"), endpoints(page));
+        page = registry.page(page.getNextCursor(), 3, ClientPage.Sort.REGISTRATION_DATE);
+        Assert.assertEquals(Arrays.asList("ep1", "ep0"), endpoints(page));
+        Assert.assertNull(page.getNextCursor());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void page_with_a_cursor_of_another_sort_order() {
+        givenASimpleClient(lifetime);
+        registry.registerClient(client);
+        registry.registerClient(new Client("id2", "ep2", address, port, InetSocketAddress.createUnresolved(
+                "localhost", 5683)));
+
+        ClientPage page = registry.page(null, 1, ClientPage.Sort.ENDPOINT);
+        registry.page(page.getNextCursor(), 1, ClientPage.Sort.REGISTRATION_DATE);
+    }
+
+    private List<String> endpoints(ClientPage page) {
+        List<String> endpoints = new ArrayList<>();
+        for (Client client : page.getClients()) {
+            endpoints.add(client.getEndpoint());
+        }
+        return endpoints;
+    }
+
+    private List<String> endpoints(ClientQuery query) {
+        List<String> endpoints = new ArrayList<>();
+        for (Iterator<Client> it = registry.query(query); it.hasNext();) {
+            endpoints.add(it.next().getEndpoint());
+        }
+        Collections.sort(endpoints);
+        return endpoints;
+    }
+
     private void givenASimpleClient(Long lifetime) {
         client = new Client(registrationId, ep, address, port, null, lifetime, sms, binding, objectLinks,
                 InetSocketAddress.createUnresolved("localhost", 5683));
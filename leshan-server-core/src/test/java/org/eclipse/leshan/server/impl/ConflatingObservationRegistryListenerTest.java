@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationListener;
+import org.eclipse.leshan.server.observation.ObservationRegistryListener;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConflatingObservationRegistryListenerTest {
+
+    private ManualExecutor executor;
+    private List<String> received;
+    private ConflatingObservationRegistryListener listener;
+
+    @Before
+    public void setUp() {
+        executor = new ManualExecutor();
+        received = new ArrayList<>();
+        listener = new ConflatingObservationRegistryListener(new ObservationRegistryListener() {
+
+            @Override
+            public void newValue(Observation observation, LwM2mNode value) {
+                received.add(observation.getPath() + "=" + ((LwM2mResource) value).getValue().value);
+            }
+
+            @Override
+            public void cancelled(Observation observation) {
+                received.add(observation.getPath() + " cancelled");
+            }
+
+            @Override
+            public void newObservation(Observation observation) {
+                received.add(observation.getPath() + " observed");
+            }
+        }, executor, 2);
+    }
+
+    @Test
+    public void pending_value_is_replaced_by_newer_value() throws Exception {
+        Client client = newClient("urn:client");
+        Observation temperature = new TestObservation(client, new LwM2mPath(3303, 0, 5700));
+        Observation humidity = new TestObservation(client, new LwM2mPath(3304, 0, 5700));
+
+        for (int i = 0; i < 10; i++) {
+            listener.newValue(temperature, value(i));
+            listener.newValue(humidity, value(100 + i));
+        }
+        Assert.assertEquals(2, listener.getPendingCount());
+
+        executor.runAll();
+
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals("/3303/0/5700=9", received.get(0));
+        Assert.assertEquals("/3304/0/5700=109", received.get(1));
+        Assert.assertEquals(18, listener.getConflatedCount());
+        Assert.assertEquals(0, listener.getDroppedCount());
+    }
+
+    @Test
+    public void values_of_new_resources_are_dropped_when_queue_is_full() throws Exception {
+        Client client = newClient("urn:client");
+        for (int i = 0; i < 5; i++) {
+            listener.newValue(new TestObservation(client, new LwM2mPath(3303, i, 5700)), value(i));
+        }
+        executor.runAll();
+
+        Assert.assertEquals(3, listener.getDroppedCount());
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals("/3303/0/5700=0", received.get(0));
+        Assert.assertEquals("/3303/1/5700=1", received.get(1));
+    }
+
+    @Test
+    public void values_are_not_conflated_across_a_cancellation() throws Exception {
+        Observation observation = new TestObservation(newClient("urn:client"), new LwM2mPath(3303, 0, 5700));
+
+        listener.newObservation(observation);
+        listener.newValue(observation, value(1));
+        listener.cancelled(observation);
+        listener.newValue(observation, value(2));
+        executor.runAll();
+
+        Assert.assertEquals(0, listener.getConflatedCount());
+        Assert.assertEquals(4, received.size());
+        Assert.assertEquals("/3303/0/5700 observed", received.get(0));
+        Assert.assertEquals("/3303/0/5700=1", received.get(1));
+        Assert.assertEquals("/3303/0/5700 cancelled", received.get(2));
+        Assert.assertEquals("/3303/0/5700=2", received.get(3));
+    }
+
+    @Test
+    public void values_received_after_a_cancellation_are_conflated() throws Exception {
+        final Observation observation = new TestObservation(newClient("urn:client"), new LwM2mPath(3303, 0, 5700));
+        final List<String> values = new ArrayList<>();
+        final ConflatingObservationRegistryListener[] conflating = new ConflatingObservationRegistryListener[1];
+        conflating[0] = new ConflatingObservationRegistryListener(new ObservationRegistryListener() {
+
+            @Override
+            public void newValue(Observation notified, LwM2mNode value) {
+                String v = (String) ((LwM2mResource) value).getValue().value;
+                values.add(v);
+                if (v.equals("1")) {
+                    // received while the first value is delivered
+                    conflating[0].newValue(observation, value(3));
+                }
+            }
+
+            @Override
+            public void cancelled(Observation cancelled) {
+            }
+
+            @Override
+            public void newObservation(Observation observed) {
+            }
+        }, executor, 2);
+
+        conflating[0].newValue(observation, value(1));
+        conflating[0].cancelled(observation);
+        conflating[0].newValue(observation, value(2));
+        executor.runAll();
+
+        Assert.assertEquals(1, conflating[0].getConflatedCount());
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals("1", values.get(0));
+        Assert.assertEquals("3", values.get(1));
+    }
+
+    private LwM2mNode value(int i) {
+        return new LwM2mResource(5700, Value.newStringValue(String.valueOf(i)));
+    }
+
+    private Client newClient(String endpoint) throws UnknownHostException {
+        return new Client(endpoint + "-id", endpoint, InetAddress.getLocalHost(), 10000, "1.0", 10000L, null, null,
+                null, InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+
+    private static class TestObservation implements Observation {
+
+        private final Client client;
+        private final LwM2mPath path;
+
+        TestObservation(Client client, LwM2mPath path) {
+            this.client = client;
+            this.path = path;
+        }
+
+        @Override
+        public Client getClient() {
+            return client;
+        }
+
+        @Override
+        public LwM2mPath getPath() {
+            return path;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void addListener(ObservationListener listener) {
+        }
+
+        @Override
+        public void removeListener(ObservationListener listener) {
+        }
+    }
+
+    private static class ManualExecutor implements Executor {
+
+        private final Queue<Runnable> tasks = new LinkedList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.server.observation.ObservationRecord;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileObservationStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("observations", ".log");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void observations_are_restored_after_reopening() throws IOException {
+        FileObservationStore store = new FileObservationStore(file);
+        store.add(new ObservationRecord("reg1", new LwM2mPath(3, 0, 15), new byte[] { 1, 2 }, ContentFormat.TEXT));
+        store.add(new ObservationRecord("reg1", new LwM2mPath(3303, 0), new byte[] { 3 }, ContentFormat.TLV));
+        store.add(new ObservationRecord("reg2", new LwM2mPath(3, 0, 15), new byte[] { 4 }, null));
+        store.remove(new ObservationRecord("reg2", new LwM2mPath(3, 0, 15), new byte[] { 4 }, null));
+        // a replaced observation is not removed
+        store.add(new ObservationRecord("reg1", new LwM2mPath(3303, 0), new byte[] { 5 }, ContentFormat.TLV));
+        store.remove(new ObservationRecord("reg1", new LwM2mPath(3303, 0), new byte[] { 3 }, ContentFormat.TLV));
+        store.destroy();
+
+        store = new FileObservationStore(file);
+        Collection<ObservationRecord> records = store.getAll();
+        store.destroy();
+
+        Assert.assertEquals(2, records.size());
+        for (ObservationRecord record : records) {
+            Assert.assertEquals("reg1", record.getRegistrationId());
+            if (record.getPath().equals(new LwM2mPath(3, 0, 15))) {
+                Assert.assertArrayEquals(new byte[] { 1, 2 }, record.getToken());
+                Assert.assertEquals(ContentFormat.TEXT, record.getContentFormat());
+            } else {
+                Assert.assertEquals(new LwM2mPath(3303, 0), record.getPath());
+                Assert.assertArrayEquals(new byte[] { 5 }, record.getToken());
+            }
+        }
+    }
+
+    @Test
+    public void truncated_last_entry_is_ignored() throws IOException {
+        FileObservationStore store = new FileObservationStore(file);
+        store.add(new ObservationRecord("reg1", new LwM2mPath(3, 0, 15), new byte[] { 1 }, ContentFormat.TEXT));
+        store.add(new ObservationRecord("reg2", new LwM2mPath(3, 0, 15), new byte[] { 2 }, ContentFormat.TEXT));
+        store.destroy();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        store = new FileObservationStore(file);
+        Collection<ObservationRecord> records = store.getAll();
+        store.destroy();
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals("reg1", records.iterator().next().getRegistrationId());
+    }
+
+    @Test
+    public void changes_are_still_saved_after_a_failed_compaction() throws IOException {
+        FileObservationStore store = new FileObservationStore(file);
+        // the compacted log cannot be written
+        File tmp = new File(file.getPath() + ".tmp");
+        Assert.assertTrue(tmp.mkdir());
+
+        ObservationRecord record = new ObservationRecord("reg1", new LwM2mPath(3, 0, 15), new byte[] { 1 },
+                ContentFormat.TEXT);
+        for (int i = 0; i < 1000; i++) {
+            store.add(record);
+            store.remove(record);
+        }
+        store.add(new ObservationRecord("reg2", new LwM2mPath(3, 0, 15), new byte[] { 2 }, ContentFormat.TEXT));
+        store.destroy();
+        tmp.delete();
+
+        store = new FileObservationStore(file);
+        Collection<ObservationRecord> records = store.getAll();
+        store.destroy();
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals("reg2", records.iterator().next().getRegistrationId());
+    }
+}
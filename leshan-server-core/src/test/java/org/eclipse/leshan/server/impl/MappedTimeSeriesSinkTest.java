@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.impl.ObservationHistory.HistoryValue;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationListener;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedTimeSeriesSinkTest {
+
+    private static final int SEGMENT_SIZE = 256 * 1024;
+    private static final long DAY = 24 * 3600 * 1000L;
+
+    private final LwM2mPath temperature = new LwM2mPath(3303, 0, 5700);
+    private final LwM2mPath unit = new LwM2mPath(3303, 0, 5701);
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("timeseries", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void values_are_recovered_and_queried_by_range() throws IOException {
+        long start = System.currentTimeMillis();
+        int count = 100000;
+        MappedTimeSeriesSink sink = new MappedTimeSeriesSink(directory, SEGMENT_SIZE, DAY);
+        for (int i = 0; i < count; i++) {
+            sink.append("ep1", temperature, start + i, new LwM2mResource(5700, Value.newDoubleValue(i / 10.0)));
+            if (i % 1000 == 0) {
+                sink.append("ep1", new LwM2mPath(3303, 0), start + i, new LwM2mObjectInstance(0,
+                        new LwM2mResource[] { new LwM2mResource(5701, Value.newStringValue("Cel")) }));
+            }
+        }
+        Assert.assertTrue(sink.getSegmentCount() > 1);
+        sink.destroy();
+
+        sink = new MappedTimeSeriesSink(directory, SEGMENT_SIZE, DAY);
+        Assert.assertEquals(count, sink.query("ep1", temperature, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        Assert.assertEquals(count / 1000, sink.query("ep1", unit, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        Assert.assertTrue(sink.query("ep2", temperature, Long.MIN_VALUE, Long.MAX_VALUE).isEmpty());
+
+        List<HistoryValue> values = sink.query("ep1", temperature, start + 50000, start + 50100);
+        Assert.assertEquals(100, values.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(start + 50000 + i, values.get(i).getTimestamp());
+            Assert.assertEquals(new LwM2mResource(5700, Value.newDoubleValue((50000 + i) / 10.0)), values.get(i)
+                    .getValue());
+        }
+
+        // appends continue after the recovered values
+        sink.append("ep1", temperature, start + count, new LwM2mResource(5700, Value.newDoubleValue(-1)));
+        Assert.assertEquals(1, sink.query("ep1", temperature, start + count, Long.MAX_VALUE).size());
+        Assert.assertEquals(0, sink.getSkippedCount());
+        sink.destroy();
+    }
+
+    @Test
+    public void corrupted_tail_is_ignored() throws IOException {
+        long start = System.currentTimeMillis();
+        MappedTimeSeriesSink sink = new MappedTimeSeriesSink(directory, SEGMENT_SIZE, DAY);
+        for (int i = 0; i < 10; i++) {
+            sink.append("ep1", temperature, start + i, new LwM2mResource(5700, Value.newIntegerValue(i)));
+        }
+        sink.destroy();
+
+        // header (13 bytes) + series definition (30 bytes) + 9 values (18 bytes each): damage the last value
+        File segment = directory.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(13 + 30 + 9 * 18 + 10);
+            file.write(0xFF);
+        }
+
+        sink = new MappedTimeSeriesSink(directory, SEGMENT_SIZE, DAY);
+        List<HistoryValue> values = sink.query("ep1", temperature, Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(9, values.size());
+        Assert.assertEquals(new LwM2mResource(5700, Value.newIntegerValue(8)), values.get(8).getValue());
+        sink.destroy();
+    }
+
+    @Test
+    public void expired_segments_are_deleted() throws IOException {
+        long now = System.currentTimeMillis();
+        MappedTimeSeriesSink sink = new MappedTimeSeriesSink(directory, SEGMENT_SIZE, DAY);
+        byte[] large = new byte[60000];
+        for (int i = 0; i < 20; i++) {
+            // old values first
+            long timestamp = i < 10 ? now - 2 * DAY + i : now + i;
+            sink.append("ep1", temperature, timestamp, new LwM2mResource(5700, Value.newBinaryValue(large)));
+        }
+
+        List<HistoryValue> values = sink.query("ep1", temperature, Long.MIN_VALUE, Long.MAX_VALUE);
+        // the first segments only hold old values
+        Assert.assertEquals(12, values.size());
+        for (HistoryValue value : values) {
+            Assert.assertTrue(value.getTimestamp() >= now - 2 * DAY + 8);
+        }
+        Assert.assertEquals(sink.getSegmentCount(), directory.listFiles().length);
+        sink.destroy();
+    }
+
+    @Test
+    public void values_are_kept_across_registrations() throws IOException {
+        MappedTimeSeriesSink sink = new MappedTimeSeriesSink(directory, SEGMENT_SIZE, DAY);
+        sink.newValue(new TestObservation(newClient("reg1"), temperature),
+                new LwM2mResource(5700, Value.newIntegerValue(1)));
+        // the device registers again: new registration id, same end-point
+        sink.newValue(new TestObservation(newClient("reg2"), temperature),
+                new LwM2mResource(5700, Value.newIntegerValue(2)));
+
+        List<HistoryValue> values = sink.query("ep1", temperature, Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals(new LwM2mResource(5700, Value.newIntegerValue(1)), values.get(0).getValue());
+        Assert.assertEquals(new LwM2mResource(5700, Value.newIntegerValue(2)), values.get(1).getValue());
+        sink.destroy();
+    }
+
+    private static Client newClient(String registrationId) throws IOException {
+        return new Client(registrationId, "ep1", InetAddress.getLocalHost(), 10000, "1.0", 10000L, null, null, null,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+
+    private static class TestObservation implements Observation {
+
+        private final Client client;
+        private final LwM2mPath path;
+
+        TestObservation(Client client, LwM2mPath path) {
+            this.client = client;
+            this.path = path;
+        }
+
+        @Override
+        public Client getClient() {
+            return client;
+        }
+
+        @Override
+        public LwM2mPath getPath() {
+            return path;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void addListener(ObservationListener listener) {
+        }
+
+        @Override
+        public void removeListener(ObservationListener listener) {
+        }
+    }
+}
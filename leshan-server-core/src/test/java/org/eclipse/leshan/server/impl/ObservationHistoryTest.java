@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.impl;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.impl.ObservationHistory.HistoryValue;
+import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ObservationHistoryTest {
+
+    private final LwM2mPath temperature = new LwM2mPath(3303, 0, 5700);
+
+    @Test
+    public void last_values_are_kept_in_order() {
+        ObservationHistory history = new ObservationHistory(4, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            history.record("ep1", temperature, 1000 + i, new LwM2mResource(5700, Value.newFloatValue(i + 0.5f)));
+        }
+
+        List<HistoryValue> values = history.getHistory("ep1", temperature);
+        Assert.assertEquals(4, values.size());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(1006 + i, values.get(i).getTimestamp());
+            Assert.assertEquals(new LwM2mResource(5700, Value.newFloatValue(6 + i + 0.5f)), values.get(i).getValue());
+        }
+
+        values = history.getHistory("ep1", temperature, 2);
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals(1008, values.get(0).getTimestamp());
+
+        values = history.getHistory("ep1", temperature, 1007, 1009);
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals(1007, values.get(0).getTimestamp());
+
+        Assert.assertTrue(history.getHistory("ep2", temperature).isEmpty());
+    }
+
+    @Test
+    public void primitive_and_node_values_are_mixed() {
+        ObservationHistory history = new ObservationHistory(3, 1024, true);
+        LwM2mPath path = new LwM2mPath(3303, 0);
+        LwM2mObjectInstance instance = new LwM2mObjectInstance(0, new LwM2mResource[] { new LwM2mResource(5700,
+                Value.newDoubleValue(21.5)) });
+
+        history.record("ep1", path, 1, new LwM2mResource(5700, Value.newLongValue(42L)));
+        history.record("ep1", path, 2, instance);
+        history.record("ep1", path, 3, new LwM2mResource(5700, Value.newBooleanValue(true)));
+
+        List<HistoryValue> values = history.getHistory("ep1", path);
+        Assert.assertEquals(new LwM2mResource(5700, Value.newLongValue(42L)), values.get(0).getValue());
+        Assert.assertEquals(instance, values.get(1).getValue());
+        Assert.assertEquals(new LwM2mResource(5700, Value.newBooleanValue(true)), values.get(2).getValue());
+    }
+
+    @Test
+    public void least_recently_used_buffers_are_evicted() {
+        // room for 3 buffers of primitive values
+        ObservationHistory history = new ObservationHistory(10, 3 * 17 * 10);
+        for (int i = 0; i < 3; i++) {
+            history.record("ep" + i, temperature, 1, new LwM2mResource(5700, Value.newIntegerValue(i)));
+        }
+        history.getHistory("ep0", temperature);
+        history.record("ep3", temperature, 1, new LwM2mResource(5700, Value.newIntegerValue(3)));
+
+        Assert.assertEquals(3, history.size());
+        Assert.assertEquals(1, history.getEvictedCount());
+        Assert.assertTrue(history.getHistory("ep1", temperature).isEmpty());
+        Assert.assertEquals(1, history.getHistory("ep0", temperature).size());
+        Assert.assertEquals(3 * 17 * 10, history.getMemoryUsed());
+    }
+
+    @Test
+    public void history_is_kept_across_registrations() throws UnknownHostException {
+        ObservationHistory history = new ObservationHistory(4, 1024 * 1024);
+        Observation first = new TestObservation(newClient("reg1"), temperature);
+        history.newValue(first, new LwM2mResource(5700, Value.newIntegerValue(1)));
+        history.cancelled(first);
+        // the device registers again: new registration id, same end-point
+        history.newValue(new TestObservation(newClient("reg2"), temperature),
+                new LwM2mResource(5700, Value.newIntegerValue(2)));
+
+        List<HistoryValue> values = history.getHistory("ep1", temperature);
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals(new LwM2mResource(5700, Value.newIntegerValue(1)), values.get(0).getValue());
+        Assert.assertEquals(new LwM2mResource(5700, Value.newIntegerValue(2)), values.get(1).getValue());
+    }
+
+    private static Client newClient(String registrationId) throws UnknownHostException {
+        return new Client(registrationId, "ep1", InetAddress.getLocalHost(), 10000, "1.0", 10000L, null, null, null,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+
+    private static class TestObservation implements Observation {
+
+        private final Client client;
+        private final LwM2mPath path;
+
+        TestObservation(Client client, LwM2mPath path) {
+            this.client = client;
+            this.path = path;
+        }
+
+        @Override
+        public Client getClient() {
+            return client;
+        }
+
+        @Override
+        public LwM2mPath getPath() {
+            return path;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void addListener(ObservationListener listener) {
+        }
+
+        @Override
+        public void removeListener(ObservationListener listener) {
+        }
+    }
+}
@@ -16,6 +16,14 @@
 package org.eclipse.leshan.server.impl;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.leshan.core.node.LwM2mPath;
 import org.eclipse.leshan.server.client.Client;
@@ -48,10 +56,111 @@ public class ObservationRegistryImplTest extends BasicTestSupport {
         Assert.assertSame(1, registry.cancelObservations(client));
     }
 
+    @Test
+    public void concurrent_add_and_cancel_keep_registry_consistent() throws Exception {
+        final int nbClients = 20;
+        final int nbThreads = 8;
+        final Client[] clients = new Client[nbClients];
+        for (int i = 0; i < nbClients; i++) {
+            clients[i] = new Client("id" + i, "ep" + i, InetAddress.getLocalHost(), 5683,
+                    InetSocketAddress.createUnresolved("localhost", 5683));
+        }
+
+        final List<ObservationImpl> created = new CopyOnWriteArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(nbThreads);
+        for (int t = 0; t < nbThreads; t++) {
+            final Random random = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 5000; i++) {
+                            Client client = clients[random.nextInt(nbClients)];
+                            int action = random.nextInt(10);
+                            if (action < 7) {
+                                ObservationImpl obs = new ObservationImpl(client, new LwM2mPath(3, 0,
+                                        random.nextInt(5)));
+                                created.add(obs);
+                                registry.addObservation(obs);
+                            } else if (action < 9) {
+                                registry.cancelObservation(client, "/3/0/" + random.nextInt(5));
+                            } else {
+                                registry.cancelObservations(client);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        // each observation is either still registered or cancelled, never both, and cancelled at most once
+        int registered = 0;
+        for (Client client : clients) {
+            for (Observation obs : registry.getObservations(client)) {
+                Assert.assertEquals(0, ((ObservationImpl) obs).cancelled.get());
+                registered++;
+            }
+        }
+        int cancelled = 0;
+        for (ObservationImpl obs : created) {
+            Assert.assertTrue(obs.cancelled.get() <= 1);
+            cancelled += obs.cancelled.get();
+        }
+        Assert.assertEquals(created.size(), registered + cancelled);
+        Assert.assertEquals(registered, registry.getObservations(new LwM2mPath(3)).size());
+
+        int cancelledAtEnd = 0;
+        for (Client client : clients) {
+            cancelledAtEnd += registry.cancelObservations(client);
+            Assert.assertTrue(registry.getObservations(client).isEmpty());
+        }
+        Assert.assertEquals(registered, cancelledAtEnd);
+        Assert.assertTrue(registry.getObservations(new LwM2mPath(3)).isEmpty());
+    }
+
+    @Test
+    public void query_and_cancel_observations_across_clients() throws IOException {
+        Client client1 = new Client("id1", "ep1", InetAddress.getLocalHost(), 5683,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+        Client client2 = new Client("id2", "ep2", InetAddress.getLocalHost(), 5683,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+        ObservationImpl battery1 = new ObservationImpl(client1, new LwM2mPath(3, 0, 9));
+        ObservationImpl battery2 = new ObservationImpl(client2, new LwM2mPath(3, 0, 9));
+        ObservationImpl time1 = new ObservationImpl(client1, new LwM2mPath(3, 0, 13));
+        ObservationImpl temperature2 = new ObservationImpl(client2, new LwM2mPath(3303, 0, 5700));
+        registry.addObservation(battery1);
+        registry.addObservation(battery2);
+        registry.addObservation(time1);
+        registry.addObservation(temperature2);
+
+        Assert.assertEquals(2, registry.getObservations(new LwM2mPath(3, 0, 9)).size());
+        Assert.assertEquals(3, registry.getObservations(new LwM2mPath(3)).size());
+        Assert.assertEquals(3, registry.getObservations(new LwM2mPath(3, 0)).size());
+        Assert.assertTrue(registry.getObservations(new LwM2mPath(3, 1)).isEmpty());
+        Assert.assertEquals(1, registry.getObservations(new LwM2mPath(3303)).size());
+
+        Assert.assertEquals(2, registry.cancelObservations(new LwM2mPath(3, 0, 9)));
+        Assert.assertEquals(1, battery1.cancelled.get());
+        Assert.assertEquals(1, battery2.cancelled.get());
+        Assert.assertEquals(0, time1.cancelled.get());
+        Assert.assertEquals(1, registry.getObservations(client1).size());
+        Assert.assertEquals(1, registry.getObservations(client2).size());
+        Assert.assertEquals(1, registry.getObservations(new LwM2mPath(3)).size());
+    }
+
     private class ObservationImpl implements Observation {
 
         private Client client;
         private LwM2mPath path;
+        private final AtomicInteger cancelled = new AtomicInteger();
 
         public ObservationImpl(Client client, LwM2mPath path) {
             this.client = client;
@@ -70,6 +179,7 @@ public class ObservationRegistryImplTest extends BasicTestSupport {
 
         @Override
         public void cancel() {
+            cancelled.incrementAndGet();
         }
 
         @Override
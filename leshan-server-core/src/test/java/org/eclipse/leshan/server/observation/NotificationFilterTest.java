@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.observation;
+
+import org.eclipse.leshan.ObserveSpec;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NotificationFilterTest {
+
+    @Test
+    public void notifications_are_suppressed_during_min_period() {
+        NotificationFilter filter = new NotificationFilter(new ObserveSpec.Builder().minPeriod(10).build());
+
+        Assert.assertTrue(filter.accept(value(1), 0));
+        Assert.assertFalse(filter.accept(value(2), 5000));
+        Assert.assertFalse(filter.accept(value(3), 9999));
+        Assert.assertTrue(filter.accept(value(4), 10000));
+
+        Assert.assertEquals(2, filter.getAcceptedCount());
+        Assert.assertEquals(2, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void values_must_cross_a_threshold_or_change_by_step() {
+        NotificationFilter filter = new NotificationFilter(new ObserveSpec.Builder().greaterThan(30).lessThan(10)
+                .step(5).build());
+
+        Assert.assertTrue(filter.accept(value(20), 0));
+        Assert.assertFalse(filter.accept(value(22), 1));
+        Assert.assertFalse(filter.accept(value(16), 2));
+        // step
+        Assert.assertTrue(filter.accept(value(25), 3));
+        // gt crossed
+        Assert.assertTrue(filter.accept(value(30.5), 4));
+        Assert.assertFalse(filter.accept(value(31), 5));
+        Assert.assertTrue(filter.accept(value(29.5), 6));
+        // lt crossed
+        Assert.assertTrue(filter.accept(value(9), 7));
+
+        Assert.assertEquals(3, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void notifications_are_accepted_after_max_period() {
+        NotificationFilter filter = new NotificationFilter(new ObserveSpec.Builder().maxPeriod(60).step(5).build());
+
+        Assert.assertTrue(filter.accept(value(20), 0));
+        Assert.assertFalse(filter.accept(value(21), 30000));
+        // pmax heartbeat
+        Assert.assertTrue(filter.accept(value(21), 60000));
+        Assert.assertFalse(filter.accept(value(22), 60001));
+        Assert.assertTrue(filter.accept(value(22), 120000));
+
+        Assert.assertEquals(2, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void non_numeric_values_are_only_filtered_by_period() {
+        NotificationFilter filter = new NotificationFilter(new ObserveSpec.Builder().step(5).build());
+        LwM2mNode value = new LwM2mResource(5701, Value.newStringValue("Cel"));
+
+        Assert.assertTrue(filter.accept(value, 0));
+        Assert.assertTrue(filter.accept(value, 1));
+    }
+
+    private LwM2mNode value(double value) {
+        return new LwM2mResource(5700, Value.newDoubleValue(value));
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ExecuteRequest;
+import org.eclipse.leshan.core.response.ExceptionConsumer;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ResponseConsumer;
+import org.eclipse.leshan.server.client.Client;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkOperationTest {
+
+    private HashedWheelTimer timer;
+    private TestSender sender;
+    private List<String> results;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 64);
+        sender = new TestSender();
+        results = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void requests_are_sent_within_the_concurrency_window() throws Exception {
+        ExecuteRequest reboot = new ExecuteRequest("/3/0/4");
+        BulkOperation<LwM2mResponse> operation = new BulkOperation<>(sender, timer, newClients(5).iterator(),
+                BulkOperation.sameRequest(reboot), new TestListener(), 2, 0, 0, 0);
+        operation.start();
+        Assert.assertEquals(2, sender.inFlight.size());
+
+        while (!sender.inFlight.isEmpty()) {
+            sender.inFlight.remove(0).complete(new LwM2mResponse(ResponseCode.CHANGED));
+            Assert.assertTrue(operation.getInFlightCount() <= 2);
+        }
+        Assert.assertTrue(operation.isDone());
+        Assert.assertEquals(5, operation.getSucceededCount());
+        Assert.assertEquals(5, results.size());
+        // all the clients got the same request instance
+        for (DownlinkRequest<?> request : sender.requests) {
+            Assert.assertSame(reboot, request);
+        }
+    }
+
+    @Test
+    public void failed_requests_are_retried() throws Exception {
+        BulkOperation<LwM2mResponse> operation = new BulkOperation<>(sender, timer, newClients(1).iterator(),
+                BulkOperation.sameRequest(new ExecuteRequest("/3/0/4")), new TestListener(), 1, 0, 1, 20);
+        operation.start();
+
+        sender.inFlight.remove(0).fail(new TimeoutException());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (sender.inFlight.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, operation.getRetriedCount());
+
+        sender.inFlight.remove(0).fail(new TimeoutException());
+        operation.getCompletion().get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(1, operation.getFailedCount());
+        Assert.assertEquals(2, operation.getSentCount());
+        Assert.assertEquals("client0 failed", results.get(0));
+    }
+
+    @Test
+    public void requests_are_paced() throws Exception {
+        sender.autoComplete = true;
+        BulkOperation<LwM2mResponse> operation = new BulkOperation<>(sender, timer, newClients(20).iterator(),
+                BulkOperation.sameRequest(new ExecuteRequest("/3/0/4")), null, 10, 100, 0, 0);
+        long start = System.nanoTime();
+        operation.start();
+        operation.getCompletion().get(5, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertEquals(20, operation.getSucceededCount());
+        // 20 requests at 100/s, starting with a single permit
+        Assert.assertTrue("too fast: " + elapsed + "ms", elapsed >= 150);
+    }
+
+    private List<Client> newClients(int count) throws UnknownHostException {
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            clients.add(new Client("client" + i + "-id", "client" + i, InetAddress.getLocalHost(), 10000, "1.0",
+                    10000L, null, null, null, InetSocketAddress.createUnresolved("localhost", 5683)));
+        }
+        return clients;
+    }
+
+    private class TestListener implements BulkOperation.Listener<LwM2mResponse> {
+
+        @Override
+        public void onResponse(Client client, LwM2mResponse response) {
+            results.add(client.getEndpoint() + " " + response.getCode());
+        }
+
+        @Override
+        public void onFailure(Client client, Exception e) {
+            results.add(client.getEndpoint() + " failed");
+        }
+    }
+
+    private static class TestSender implements LwM2mRequestSender {
+
+        private final List<LwM2mFuture<LwM2mResponse>> inFlight = Collections
+                .synchronizedList(new ArrayList<LwM2mFuture<LwM2mResponse>>());
+        private final List<DownlinkRequest<?>> requests = new ArrayList<>();
+        private boolean autoComplete = false;
+
+        @Override
+        public <T extends LwM2mResponse> T send(Client destination, DownlinkRequest<T> request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends LwM2mResponse> void send(Client destination, DownlinkRequest<T> request,
+                ResponseConsumer<T> responseCallback, ExceptionConsumer errorCallback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination, DownlinkRequest<T> request) {
+            return sendAsync(destination, request, RequestPriority.NORMAL);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T extends LwM2mResponse> LwM2mFuture<T> sendAsync(Client destination, DownlinkRequest<T> request,
+                RequestPriority priority) {
+            Assert.assertEquals(RequestPriority.BULK, priority);
+            requests.add(request);
+            if (autoComplete) {
+                return (LwM2mFuture<T>) LwM2mFuture.succeeded(new LwM2mResponse(ResponseCode.CHANGED));
+            }
+            LwM2mFuture<T> future = new LwM2mFuture<>();
+            inFlight.add((LwM2mFuture<LwM2mResponse>) future);
+            return future;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ExecuteRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientRequestQueueTest {
+
+    private List<String> dispatched;
+    private List<Client> destinations;
+    private List<LwM2mFuture<LwM2mResponse>> inFlight;
+    private ClientRequestQueue queue;
+
+    @Before
+    public void setUp() {
+        dispatched = new ArrayList<>();
+        destinations = new ArrayList<>();
+        inFlight = new ArrayList<>();
+        queue = new ClientRequestQueue(new ClientRequestQueue.Dispatcher() {
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T extends LwM2mResponse> void dispatch(Client destination, DownlinkRequest<T> request,
+                    LwM2mFuture<T> future) {
+                dispatched.add(destination.getEndpoint() + " " + request.getPath());
+                destinations.add(destination);
+                inFlight.add((LwM2mFuture<LwM2mResponse>) future);
+            }
+        }, 1, 2);
+    }
+
+    @Test
+    public void requests_are_dispatched_one_at_a_time_per_client() throws Exception {
+        Client client1 = newClient("client1");
+        Client client2 = newClient("client2");
+
+        LwM2mFuture<LwM2mResponse> first = queue.submit(client1, new ExecuteRequest("/3/0/4"));
+        queue.submit(client1, new ExecuteRequest("/3/0/5"));
+        queue.submit(client2, new ExecuteRequest("/3/0/4"));
+        Assert.assertEquals(2, dispatched.size());
+        Assert.assertEquals(1, queue.getQueuedCount());
+        Assert.assertEquals(2, queue.getPendingCount(client1));
+
+        // the response to the first request releases the slot for the second one
+        inFlight.get(0).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        Assert.assertEquals(ResponseCode.CHANGED, first.get().getCode());
+        Assert.assertEquals(3, dispatched.size());
+        Assert.assertEquals("client1 /3/0/5", dispatched.get(2));
+        Assert.assertEquals(0, queue.getQueuedCount());
+
+        // a failure releases the slot too
+        inFlight.get(2).fail(new TimeoutException());
+        inFlight.get(1).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        Assert.assertEquals(0, queue.getInFlightCount());
+        Assert.assertEquals(0, queue.getPendingCount(client1));
+        Assert.assertEquals(3, queue.getCompletedCount());
+    }
+
+    @Test
+    public void requests_exceeding_the_queue_depth_are_rejected() throws Exception {
+        Client client = newClient("client1");
+        for (int i = 0; i < 3; i++) {
+            queue.submit(client, new ExecuteRequest(3, 0, i));
+        }
+
+        LwM2mFuture<LwM2mResponse> rejected = queue.submit(client, new ExecuteRequest("/3/0/4"));
+        Assert.assertTrue(rejected.isDone());
+        try {
+            rejected.get();
+            Assert.fail("request should have been rejected");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RequestQueueFullException);
+        }
+        Assert.assertEquals(1, queue.getRejectedCount());
+        Assert.assertEquals(1, dispatched.size());
+    }
+
+    @Test
+    public void cancelled_queued_request_is_not_dispatched() throws Exception {
+        Client client = newClient("client1");
+        queue.submit(client, new ExecuteRequest("/3/0/1"));
+        LwM2mFuture<LwM2mResponse> cancelled = queue.submit(client, new ExecuteRequest("/3/0/2"));
+        queue.submit(client, new ExecuteRequest("/3/0/3"));
+
+        Assert.assertTrue(cancelled.cancel(true));
+        Assert.assertEquals(1, queue.getQueuedCount());
+
+        inFlight.get(0).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        Assert.assertEquals(2, dispatched.size());
+        Assert.assertEquals("client1 /3/0/3", dispatched.get(1));
+    }
+
+    @Test
+    public void queued_count_is_kept_when_a_request_is_done_before_being_dequeued() throws Exception {
+        Client client = newClient("client1");
+        queue.submit(client, new ExecuteRequest("/3/0/1"));
+        LwM2mFuture<LwM2mResponse> done = queue.submit(client, new ExecuteRequest("/3/0/2"));
+        Assert.assertEquals(1, queue.getQueuedCount());
+
+        // completed without its cancel handler, e.g. a cancellation racing with the dispatch
+        done.fail(new TimeoutException());
+        inFlight.get(0).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        Assert.assertEquals(1, dispatched.size());
+        Assert.assertEquals(0, queue.getQueuedCount());
+    }
+
+    @Test
+    public void requests_to_sleeping_clients_are_queued_until_they_wake_up() throws Exception {
+        Client client = newClient("client1", BindingMode.UQ);
+        queue.submit(client, new ExecuteRequest("/3/0/1"));
+        queue.submit(client, new ExecuteRequest("/3/0/2"));
+        Assert.assertEquals(0, dispatched.size());
+        Assert.assertEquals(2, queue.getPendingCount(client));
+
+        // an update wakes the client up: the queue is flushed through the window
+        queue.wakeUp(client);
+        Assert.assertEquals(1, dispatched.size());
+        inFlight.get(0).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        Assert.assertEquals(2, dispatched.size());
+        Assert.assertEquals("client1 /3/0/2", dispatched.get(1));
+
+        // the requests sent while the client is awake are dispatched immediately
+        inFlight.get(1).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        queue.submit(client, new ExecuteRequest("/3/0/3"));
+        Assert.assertEquals(3, dispatched.size());
+    }
+
+    @Test
+    public void requests_queued_for_sleeping_clients_expire() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 64);
+        try {
+            ClientRequestQueue expiringQueue = new ClientRequestQueue(new ClientRequestQueue.Dispatcher() {
+
+                @Override
+                public <T extends LwM2mResponse> void dispatch(Client destination, DownlinkRequest<T> request,
+                        LwM2mFuture<T> future) {
+                    dispatched.add(destination.getEndpoint() + " " + request.getPath());
+                }
+            }, 1, 2, timer);
+            expiringQueue.setQueueModeTtl(50);
+            Client client = newClient("client1", BindingMode.UQ);
+
+            LwM2mFuture<LwM2mResponse> expired = expiringQueue.submit(client, new ExecuteRequest("/3/0/4"));
+            try {
+                expired.get(2, TimeUnit.SECONDS);
+                Assert.fail("request should have expired");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RequestExpiredException);
+            }
+            Assert.assertEquals(1, expiringQueue.getExpiredCount());
+            Assert.assertEquals(0, expiringQueue.getQueuedCount());
+
+            expiringQueue.wakeUp(client);
+            Assert.assertEquals(0, dispatched.size());
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void requests_queued_for_unregistered_clients_are_cancelled() throws Exception {
+        Client client = newClient("client1", BindingMode.UQ);
+        LwM2mFuture<LwM2mResponse> queued = queue.submit(client, new ExecuteRequest("/3/0/4"));
+
+        queue.clear(client);
+        Assert.assertTrue(queued.isCancelled());
+        Assert.assertEquals(0, queue.getPendingCount(client));
+        Assert.assertEquals(0, queue.getQueuedCount());
+    }
+
+    @Test
+    public void queued_requests_are_dispatched_by_priority() throws Exception {
+        Client client = newClient("client1");
+        queue.setMaxQueueDepth(3);
+        queue.submit(client, new ExecuteRequest("/3/0/1"));
+        queue.submit(client, new ExecuteRequest("/3/0/2"), RequestPriority.BULK);
+        queue.submit(client, new ExecuteRequest("/3/0/3"));
+        queue.submit(client, new ExecuteRequest("/3/0/4"), RequestPriority.INTERACTIVE);
+
+        for (int i = 0; i < 4; i++) {
+            inFlight.get(i).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        }
+        Assert.assertEquals("client1 /3/0/4", dispatched.get(1));
+        Assert.assertEquals("client1 /3/0/3", dispatched.get(2));
+        Assert.assertEquals("client1 /3/0/2", dispatched.get(3));
+        Assert.assertEquals(1, queue.getDispatchedCount(RequestPriority.BULK));
+        Assert.assertEquals(2, queue.getDispatchedCount(RequestPriority.NORMAL));
+        Assert.assertEquals(1, queue.getCompletedCount(RequestPriority.INTERACTIVE));
+    }
+
+    @Test
+    public void starving_requests_are_promoted() throws Exception {
+        Client client = newClient("client1");
+        queue.setStarvationThreshold(50);
+        queue.submit(client, new ExecuteRequest("/3/0/1"));
+        queue.submit(client, new ExecuteRequest("/3/0/2"), RequestPriority.BULK);
+        Thread.sleep(100);
+        queue.submit(client, new ExecuteRequest("/3/0/3"), RequestPriority.INTERACTIVE);
+
+        // the bulk request waited for too long: it goes before the interactive one
+        inFlight.get(0).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        Assert.assertEquals("client1 /3/0/2", dispatched.get(1));
+        Assert.assertEquals(1, queue.getPromotedCount(RequestPriority.BULK));
+    }
+
+    @Test
+    public void lower_priorities_get_a_share_of_the_global_limit() throws Exception {
+        queue.setMaxInFlight(2);
+        Client client1 = newClient("client1");
+        Client client2 = newClient("client2");
+        Client client3 = newClient("client3");
+
+        // bulk requests may only use half of the limit
+        queue.submit(client1, new ExecuteRequest("/3/0/1"), RequestPriority.BULK);
+        queue.submit(client2, new ExecuteRequest("/3/0/1"), RequestPriority.BULK);
+        Assert.assertEquals(1, dispatched.size());
+        Assert.assertEquals(1, queue.getQueuedCount());
+
+        // the other half is left for the interactive requests
+        queue.submit(client3, new ExecuteRequest("/3/0/1"), RequestPriority.INTERACTIVE);
+        Assert.assertEquals(2, dispatched.size());
+        Assert.assertEquals("client3 /3/0/1", dispatched.get(1));
+
+        inFlight.get(0).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        Assert.assertEquals(2, dispatched.size());
+        inFlight.get(1).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        Assert.assertEquals(3, dispatched.size());
+        Assert.assertEquals("client2 /3/0/1", dispatched.get(2));
+    }
+
+    @Test
+    public void requests_queued_for_sleeping_clients_follow_their_new_address() throws Exception {
+        Client client = newClient("client1", BindingMode.UQ);
+        queue.submit(client, new ExecuteRequest("/3/0/1"));
+
+        // the device comes back from a new NAT binding
+        Client updated = new Client(client.getRegistrationId(), "client1", InetAddress.getLocalHost(), 20000, "1.0",
+                10000L, null, BindingMode.UQ, null, InetSocketAddress.createUnresolved("localhost", 5683));
+        queue.wakeUp(updated);
+        Assert.assertEquals(1, dispatched.size());
+        Assert.assertEquals(20000, destinations.get(0).getPort());
+    }
+
+    @Test
+    public void requests_queued_for_sleeping_clients_are_carried_over_to_their_new_registration() throws Exception {
+        Client client = newClient("client1", BindingMode.UQ);
+        queue.submit(client, new ExecuteRequest("/3/0/1"));
+        queue.submit(client, new ExecuteRequest("/3/0/2"));
+
+        // a new registration of the same end-point replaces the previous one
+        Client registered = new Client("client1-new-id", "client1", InetAddress.getLocalHost(), 20000, "1.0",
+                10000L, null, BindingMode.UQ, null, InetSocketAddress.createUnresolved("localhost", 5683));
+        queue.wakeUp(registered);
+        queue.clear(client);
+        Assert.assertEquals(1, dispatched.size());
+        Assert.assertEquals("client1-new-id", destinations.get(0).getRegistrationId());
+
+        inFlight.get(0).complete(new LwM2mResponse(ResponseCode.CHANGED));
+        Assert.assertEquals(2, dispatched.size());
+        Assert.assertEquals("client1-new-id", destinations.get(1).getRegistrationId());
+        Assert.assertEquals(0, queue.getQueuedCount());
+    }
+
+    private Client newClient(String endpoint) throws UnknownHostException {
+        return newClient(endpoint, null);
+    }
+
+    private Client newClient(String endpoint, BindingMode bindingMode) throws UnknownHostException {
+        return new Client(endpoint + "-id", endpoint, InetAddress.getLocalHost(), 10000, "1.0", 10000L, null,
+                bindingMode, null, InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        // a small wheel, so that the timeouts need several rounds
+        timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void timeouts_expire_in_deadline_order() throws Exception {
+        final List<Integer> expired = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(3);
+        for (final int delay : new int[] { 120, 20, 70 }) {
+            timer.newTimeout(new Runnable() {
+
+                @Override
+                public void run() {
+                    expired.add(delay);
+                    done.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals(120, (int) expired.get(2));
+        Assert.assertEquals(20, (int) expired.get(0));
+        Assert.assertEquals(70, (int) expired.get(1));
+        Assert.assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void timeout_does_not_expire_before_its_deadline() throws Exception {
+        final long start = System.nanoTime();
+        final AtomicInteger elapsed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        timer.newTimeout(new Runnable() {
+
+            @Override
+            public void run() {
+                elapsed.set((int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                done.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+        Assert.assertTrue("expired after " + elapsed.get() + "ms", elapsed.get() >= 100);
+    }
+
+    @Test
+    public void cancelled_timeouts_do_not_expire() throws Exception {
+        final AtomicInteger expired = new AtomicInteger();
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                expired.incrementAndGet();
+            }
+        };
+
+        List<HashedWheelTimer.Timeout> timeouts = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            timeouts.add(timer.newTimeout(task, 500 + i % 100, TimeUnit.MILLISECONDS));
+        }
+        Assert.assertEquals(100000, timer.getPendingCount());
+        for (int i = 0; i < timeouts.size(); i++) {
+            if (i % 1000 != 0) {
+                Assert.assertTrue(timeouts.get(i).cancel());
+            }
+        }
+        Assert.assertEquals(100, timer.getPendingCount());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (timer.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(100, expired.get());
+        Assert.assertEquals(100, timer.getExpiredCount());
+        Assert.assertFalse(timeouts.get(1).cancel());
+        Assert.assertTrue(timeouts.get(0).isExpired());
+    }
+}
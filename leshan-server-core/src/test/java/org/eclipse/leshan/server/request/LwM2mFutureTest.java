@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LwM2mFutureTest {
+
+    @Test
+    public void futures_are_composed() throws Exception {
+        LwM2mFuture<Integer> source = new LwM2mFuture<>();
+        final LwM2mFuture<String> next = new LwM2mFuture<>();
+
+        LwM2mFuture<String> composed = source.map(new LwM2mFuture.Function<Integer, Integer>() {
+
+            @Override
+            public Integer apply(Integer input) {
+                return input * 2;
+            }
+        }).flatMap(new LwM2mFuture.AsyncFunction<Integer, String>() {
+
+            @Override
+            public LwM2mFuture<String> apply(final Integer input) {
+                return next.map(new LwM2mFuture.Function<String, String>() {
+
+                    @Override
+                    public String apply(String suffix) {
+                        return suffix + input;
+                    }
+                });
+            }
+        });
+
+        source.complete(21);
+        Assert.assertFalse(composed.isDone());
+        next.complete("value=");
+        Assert.assertEquals("value=42", composed.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelling_a_derived_future_cancels_the_source() {
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        LwM2mFuture<Integer> source = new LwM2mFuture<>();
+        source.setCancelHandler(new Runnable() {
+
+            @Override
+            public void run() {
+                cancelled.set(true);
+            }
+        });
+
+        LwM2mFuture<String> mapped = source.map(new LwM2mFuture.Function<Integer, String>() {
+
+            @Override
+            public String apply(Integer input) {
+                return input.toString();
+            }
+        });
+        Assert.assertTrue(mapped.cancel(true));
+
+        Assert.assertTrue(cancelled.get());
+        Assert.assertTrue(source.isCancelled());
+        Assert.assertFalse(source.complete(1));
+        try {
+            mapped.get();
+            Assert.fail("CancellationException expected");
+        } catch (CancellationException e) {
+            // expected
+        } catch (Exception e) {
+            Assert.fail("CancellationException expected: " + e);
+        }
+    }
+
+    @Test
+    public void failures_are_propagated() throws Exception {
+        LwM2mFuture<Integer> first = new LwM2mFuture<>();
+        LwM2mFuture<Integer> second = new LwM2mFuture<>();
+        LwM2mFuture<List<Integer>> all = LwM2mFuture.allOf(Arrays.asList(first, second));
+
+        try {
+            all.get(10, TimeUnit.MILLISECONDS);
+            Assert.fail("TimeoutException expected");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        first.complete(1);
+        second.fail(new IllegalStateException("rejected"));
+        try {
+            all.get();
+            Assert.fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("rejected", e.getCause().getMessage());
+        }
+
+        LwM2mFuture<List<Integer>> succeeded = LwM2mFuture.allOf(Arrays.asList(LwM2mFuture.succeeded(1),
+                LwM2mFuture.succeeded(2)));
+        Assert.assertEquals(Arrays.asList(1, 2), succeeded.get());
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.core.request.DeleteRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ValueResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadAggregatorTest {
+
+    private List<String> sent;
+    private List<LwM2mFuture<LwM2mResponse>> inFlight;
+    private ReadAggregator aggregator;
+    private Client client;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        sent = Collections.synchronizedList(new ArrayList<String>());
+        inFlight = Collections.synchronizedList(new ArrayList<LwM2mFuture<LwM2mResponse>>());
+        aggregator = new ReadAggregator(new RequestCoalescer.Sender() {
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T extends LwM2mResponse> LwM2mFuture<T> send(Client destination, DownlinkRequest<T> request,
+                    RequestPriority priority) {
+                LwM2mFuture<T> future = new LwM2mFuture<>();
+                inFlight.add((LwM2mFuture<LwM2mResponse>) future);
+                sent.add(request.getPath().toString());
+                return future;
+            }
+        });
+        aggregator.setEnabled(true);
+        client = new Client("client1-id", "client1", InetAddress.getLocalHost(), 10000, "1.0", 10000L, null, null,
+                null, InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+
+    @After
+    public void tearDown() {
+        aggregator.stop();
+    }
+
+    @Test
+    public void resource_reads_are_merged_into_an_instance_read() throws Exception {
+        aggregator.setWindow(10000);
+        aggregator.setMaxBatchSize(3);
+        LwM2mFuture<ValueResponse> manufacturer = aggregator.send(client, new ReadRequest(3, 0, 0),
+                RequestPriority.NORMAL);
+        LwM2mFuture<ValueResponse> model = aggregator.send(client, new ReadRequest(3, 0, 1), RequestPriority.NORMAL);
+        LwM2mFuture<ValueResponse> battery = aggregator.send(client, new ReadRequest(3, 0, 9),
+                RequestPriority.NORMAL);
+
+        // the batch is full: the instance is read without waiting for the end of the window
+        Assert.assertEquals(Collections.singletonList("/3/0"), sent);
+        LwM2mResource[] resources = new LwM2mResource[] { new LwM2mResource(0, Value.newStringValue("leshan")),
+                new LwM2mResource(1, Value.newStringValue("model")) };
+        inFlight.get(0).complete(new ValueResponse(ResponseCode.CONTENT, new LwM2mObjectInstance(0, resources)));
+
+        Assert.assertEquals(new LwM2mResource(0, Value.newStringValue("leshan")), manufacturer.get().getContent());
+        Assert.assertEquals(new LwM2mResource(1, Value.newStringValue("model")), model.get().getContent());
+
+        // the resource missing from the instance is read on its own
+        Assert.assertEquals("/3/0/9", sent.get(1));
+        inFlight.get(1).complete(value(9, Value.newIntegerValue(80)));
+        Assert.assertEquals(ResponseCode.CONTENT, battery.get().getCode());
+        Assert.assertEquals(1, aggregator.getMergedReadCount());
+        Assert.assertEquals(3, aggregator.getAggregatedCount());
+        Assert.assertEquals(1, aggregator.getFallbackCount());
+    }
+
+    @Test
+    public void single_read_is_sent_unchanged_at_the_end_of_the_window() throws Exception {
+        aggregator.setWindow(20);
+        LwM2mFuture<ValueResponse> future = aggregator.send(client, new ReadRequest(3, 0, 1), RequestPriority.NORMAL);
+        Assert.assertTrue(sent.isEmpty());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sent.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(Collections.singletonList("/3/0/1"), sent);
+        inFlight.get(0).complete(value(1, Value.newStringValue("model")));
+        Assert.assertEquals(ResponseCode.CONTENT, future.get().getCode());
+        Assert.assertEquals(0, aggregator.getMergedReadCount());
+        Assert.assertEquals(0, aggregator.getPendingBatchCount());
+    }
+
+    @Test
+    public void other_requests_send_the_pending_reads_first() throws Exception {
+        aggregator.setWindow(10000);
+        aggregator.send(client, new ReadRequest(3, 0, 0), RequestPriority.NORMAL);
+        aggregator.send(client, new ReadRequest(3, 0, 1), RequestPriority.NORMAL);
+        aggregator.send(client, new DeleteRequest(3, 1), RequestPriority.NORMAL);
+
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals("/3/0", sent.get(0));
+        Assert.assertEquals("/3/1", sent.get(1));
+        Assert.assertEquals(1, aggregator.getMergedReadCount());
+        Assert.assertEquals(0, aggregator.getPendingBatchCount());
+    }
+
+    private static ValueResponse value(int resourceId, Value<?> value) {
+        return new ValueResponse(ResponseCode.CONTENT, new LwM2mResource(resourceId, value));
+    }
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.core.request.DeleteRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ValueResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadCacheTest {
+
+    private List<String> sent;
+    private List<LwM2mFuture<LwM2mResponse>> inFlight;
+    private ReadCache cache;
+    private Client client;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        sent = new ArrayList<>();
+        inFlight = new ArrayList<>();
+        cache = new ReadCache(new RequestCoalescer.Sender() {
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T extends LwM2mResponse> LwM2mFuture<T> send(Client destination, DownlinkRequest<T> request,
+                    RequestPriority priority) {
+                sent.add(request.getPath().toString());
+                LwM2mFuture<T> future = new LwM2mFuture<>();
+                inFlight.add((LwM2mFuture<LwM2mResponse>) future);
+                return future;
+            }
+        });
+        cache.setEnabled(true);
+        cache.setDefaultMaxAge(60000);
+        client = new Client("client1-id", "client1", InetAddress.getLocalHost(), 10000, "1.0", 10000L, null, null,
+                null, InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+
+    @Test
+    public void read_is_answered_from_the_cache() throws Exception {
+        cache.send(client, new ReadRequest(3, 0, 1));
+        inFlight.get(0).complete(value(1, 42));
+
+        LwM2mFuture<ValueResponse> cached = cache.send(client, new ReadRequest(3, 0, 1));
+        Assert.assertTrue(cached.isDone());
+        Assert.assertEquals(value(1, 42).getContent(), cached.get().getContent());
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(1, cache.getHitCount());
+
+        // a max-age of 0 always reads from the client
+        cache.read(client, new ReadRequest(3, 0, 1), 0);
+        Assert.assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void delete_invalidates_the_related_paths() throws Exception {
+        cache.send(client, new ReadRequest(3, 0, 1));
+        inFlight.get(0).complete(value(1, 42));
+        cache.send(client, new ReadRequest(4, 0, 1));
+        inFlight.get(1).complete(value(1, 43));
+
+        // the response of a read sent before the delete is not cached
+        cache.send(client, new ReadRequest(3, 0, 2));
+        cache.send(client, new DeleteRequest(3, 0));
+        inFlight.get(2).complete(value(2, 44));
+
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(1, cache.getInvalidatedCount());
+        cache.send(client, new ReadRequest(4, 0, 1));
+        Assert.assertEquals(4, sent.size());
+
+        cache.unregistered(client);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getMemoryUsed());
+    }
+
+    @Test
+    public void least_recently_used_values_are_evicted() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            cache.send(client, new ReadRequest(3, 0, i));
+            inFlight.get(i).complete(value(i, i));
+        }
+        long valueMemory = cache.getMemoryUsed() / 10;
+        cache.setMemoryBudget(valueMemory * 5);
+        Assert.assertEquals(5, cache.size());
+        Assert.assertEquals(5, cache.getEvictedCount());
+
+        cache.send(client, new ReadRequest(3, 0, 5));
+        cache.send(client, new ReadRequest(3, 0, 4));
+        Assert.assertEquals(11, sent.size());
+        Assert.assertEquals("/3/0/4", sent.get(10));
+    }
+
+    private static ValueResponse value(int resourceId, int value) {
+        return new ValueResponse(ResponseCode.CONTENT, new LwM2mResource(resourceId, Value.newIntegerValue(value)));
+    }
+}
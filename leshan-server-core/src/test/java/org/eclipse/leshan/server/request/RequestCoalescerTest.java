@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.request;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.Value;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ExecuteRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ValueResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestCoalescerTest {
+
+    private List<String> sent;
+    private List<LwM2mFuture<LwM2mResponse>> inFlight;
+    private RequestCoalescer coalescer;
+    private Client client;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        sent = new ArrayList<>();
+        inFlight = new ArrayList<>();
+        coalescer = new RequestCoalescer(new RequestCoalescer.Sender() {
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T extends LwM2mResponse> LwM2mFuture<T> send(Client destination, DownlinkRequest<T> request,
+                    RequestPriority priority) {
+                sent.add(request.getPath().toString());
+                LwM2mFuture<T> future = new LwM2mFuture<>();
+                inFlight.add((LwM2mFuture<LwM2mResponse>) future);
+                return future;
+            }
+        });
+        client = new Client("client1-id", "client1", InetAddress.getLocalHost(), 10000, "1.0", 10000L, null, null,
+                null, InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+
+    @Test
+    public void identical_reads_share_the_same_exchange() throws Exception {
+        LwM2mFuture<ValueResponse> first = coalescer.submit(client, new ReadRequest(3, 0, 1));
+        LwM2mFuture<ValueResponse> second = coalescer.submit(client, new ReadRequest(3, 0, 1));
+        coalescer.submit(client, new ReadRequest(3, 0, 2));
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(1, coalescer.getHitCount());
+        Assert.assertEquals(2, coalescer.getMissCount());
+
+        ValueResponse response = new ValueResponse(ResponseCode.CONTENT, new LwM2mResource(1,
+                Value.newIntegerValue(42)));
+        inFlight.get(0).complete(response);
+        Assert.assertSame(response, first.get());
+        Assert.assertSame(response, second.get());
+
+        // the exchange is completed: a new read is sent
+        coalescer.submit(client, new ReadRequest(3, 0, 1));
+        Assert.assertEquals(3, sent.size());
+    }
+
+    @Test
+    public void other_requests_close_the_exchanges_in_flight() throws Exception {
+        coalescer.submit(client, new ReadRequest(3, 0, 1));
+        coalescer.submit(client, new ExecuteRequest(3, 0, 4));
+        coalescer.submit(client, new ReadRequest(3, 0, 1));
+
+        Assert.assertEquals(3, sent.size());
+        Assert.assertEquals(0, coalescer.getHitCount());
+    }
+
+    @Test
+    public void exchange_is_cancelled_with_its_last_request() throws Exception {
+        LwM2mFuture<ValueResponse> first = coalescer.submit(client, new ReadRequest(3, 0, 1));
+        LwM2mFuture<ValueResponse> second = coalescer.submit(client, new ReadRequest(3, 0, 1));
+
+        Assert.assertTrue(first.cancel(true));
+        Assert.assertFalse(inFlight.get(0).isCancelled());
+
+        Assert.assertTrue(second.cancel(true));
+        Assert.assertTrue(inFlight.get(0).isCancelled());
+        Assert.assertEquals(0, coalescer.getInFlightCount());
+    }
+}
@@ -19,7 +19,12 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -35,15 +40,21 @@ import org.eclipse.leshan.core.node.Value;
 import org.eclipse.leshan.core.request.ContentFormat;
 import org.eclipse.leshan.core.request.CreateRequest;
 import org.eclipse.leshan.core.request.DeleteRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
 import org.eclipse.leshan.core.request.ExecuteRequest;
 import org.eclipse.leshan.core.request.ObserveRequest;
 import org.eclipse.leshan.core.request.ReadRequest;
 import org.eclipse.leshan.core.request.WriteRequest;
-import org.eclipse.leshan.core.request.exception.ResourceAccessException;
+import org.eclipse.leshan.core.request.exception.RequestTimeoutException;
 import org.eclipse.leshan.core.response.LwM2mResponse;
-import org.eclipse.leshan.core.response.ValueResponse;
 import org.eclipse.leshan.server.LwM2mServer;
+import org.eclipse.leshan.server.californium.impl.CaliforniumLwM2mRequestSender;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientPage;
+import org.eclipse.leshan.server.request.LwM2mFuture;
+import org.eclipse.leshan.server.request.RequestPriority;
+import org.eclipse.leshan.server.request.RequestQueueFullException;
+import org.eclipse.leshan.server.request.RequestTimeouts;
 import org.eclipse.leshan.standalone.servlet.json.ClientSerializer;
 import org.eclipse.leshan.standalone.servlet.json.LwM2mNodeDeserializer;
 import org.eclipse.leshan.standalone.servlet.json.LwM2mNodeSerializer;
@@ -53,6 +64,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 
 /**
@@ -64,12 +76,24 @@ public class ClientServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
 
+    private static final String PARAM_LIMIT = "limit";
+    private static final String PARAM_CURSOR = "cursor";
+    private static final String PARAM_SORT = "sort";
+    private static final String SORT_REGISTRATION_DATE = "registrationDate";
+    private static final int MAX_PAGE_SIZE = 1000;
     private final LwM2mServer server;
 
+    private final RequestTimeouts requestTimeouts;
+
     private final Gson gson;
 
-    public ClientServlet(LwM2mServer server) {
+    /**
+     * @param server the server sending the requests
+     * @param requestTimeouts the deadlines of the requests sent by the server
+     */
+    public ClientServlet(LwM2mServer server, RequestTimeouts requestTimeouts) {
         this.server = server;
+        this.requestTimeouts = requestTimeouts;
 
         GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.registerTypeHierarchyAdapter(Client.class, new ClientSerializer());
@@ -86,6 +110,30 @@ public class ClientServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 
+        // a page of registered clients: ?limit=n[&cursor=c][&sort=endpoint|registrationDate]
+        if (req.getPathInfo() == null && req.getParameter(PARAM_LIMIT) != null) {
+            try {
+                int limit = Math.min(Integer.parseInt(req.getParameter(PARAM_LIMIT)), MAX_PAGE_SIZE);
+                ClientPage.Sort sort = ClientPage.Sort.ENDPOINT;
+                if (SORT_REGISTRATION_DATE.equals(req.getParameter(PARAM_SORT))) {
+                    sort = ClientPage.Sort.REGISTRATION_DATE;
+                }
+                ClientPage page = server.getClientRegistry().page(req.getParameter(PARAM_CURSOR), limit, sort);
+
+                JsonObject json = new JsonObject();
+                json.add("clients", this.gson.toJsonTree(page.getClients().toArray(new Client[] {})));
+                json.addProperty("next", page.getNextCursor());
+                resp.setContentType("application/json");
+                resp.getOutputStream().write(this.gson.toJson(json).getBytes("UTF-8"));
+                resp.setStatus(HttpServletResponse.SC_OK);
+            } catch (IllegalArgumentException e) {
+                // also catches NumberFormatException
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                resp.getWriter().append(e.getMessage()).flush();
+            }
+            return;
+        }
+
         // all registered clients
         if (req.getPathInfo() == null) {
             Collection<Client> clients = server.getClientRegistry().allClients();
@@ -123,9 +171,7 @@ public class ClientServlet extends HttpServlet {
             String target = StringUtils.removeStart(req.getPathInfo(), "/" + clientEndpoint);
             Client client = server.getClientRegistry().get(clientEndpoint);
             if (client != null) {
-                ReadRequest request = new ReadRequest(target);
-                ValueResponse cResponse = server.send(client, request);
-                processDeviceResponse(resp, cResponse);
+                sendAsync(req, client, new ReadRequest(target));
             } else {
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 resp.getWriter().format("No registered client with id '%s'", clientEndpoint).flush();
@@ -134,10 +180,6 @@ public class ClientServlet extends HttpServlet {
             LOG.warn("Invalid request", e);
             resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             resp.getWriter().append(e.getMessage()).flush();
-        } catch (ResourceAccessException e) {
-            LOG.warn(String.format("Error accessing resource %s%s.", req.getServletPath(), req.getPathInfo()), e);
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            resp.getWriter().append(e.getMessage()).flush();
         }
     }
 
@@ -159,8 +201,7 @@ public class ClientServlet extends HttpServlet {
             String target = StringUtils.removeStart(req.getPathInfo(), "/" + clientEndpoint);
             Client client = server.getClientRegistry().get(clientEndpoint);
             if (client != null) {
-                LwM2mResponse cResponse = this.writeRequest(client, target, req, resp);
-                processDeviceResponse(resp, cResponse);
+                sendAsync(req, client, this.writeRequest(target, req));
             } else {
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 resp.getWriter().format("No registered client with id '%s'", clientEndpoint).flush();
@@ -169,10 +210,6 @@ public class ClientServlet extends HttpServlet {
             LOG.warn("Invalid request", e);
             resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             resp.getWriter().append(e.getMessage()).flush();
-        } catch (ResourceAccessException e) {
-            LOG.warn(String.format("Error accessing resource %s%s.", req.getServletPath(), req.getPathInfo()), e);
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            resp.getWriter().append(e.getMessage()).flush();
         }
     }
 
@@ -190,9 +227,7 @@ public class ClientServlet extends HttpServlet {
                 String target = StringUtils.substringBetween(req.getPathInfo(), clientEndpoint, "/observe");
                 Client client = server.getClientRegistry().get(clientEndpoint);
                 if (client != null) {
-                    ObserveRequest request = new ObserveRequest(target);
-                    LwM2mResponse cResponse = server.send(client, request);
-                    processDeviceResponse(resp, cResponse);
+                    sendAsync(req, client, new ObserveRequest(target));
                 } else {
                     resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     resp.getWriter().format("no registered client with id '%s'", clientEndpoint).flush();
@@ -201,10 +236,6 @@ public class ClientServlet extends HttpServlet {
                 LOG.warn("Invalid request", e);
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 resp.getWriter().append(e.getMessage()).flush();
-            } catch (ResourceAccessException e) {
-                LOG.warn(String.format("Error accessing resource %s%s.", req.getServletPath(), req.getPathInfo()), e);
-                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                resp.getWriter().append(e.getMessage()).flush();
             }
             return;
         }
@@ -216,9 +247,7 @@ public class ClientServlet extends HttpServlet {
             try {
                 Client client = server.getClientRegistry().get(clientEndpoint);
                 if (client != null) {
-                    ExecuteRequest request = new ExecuteRequest(target);
-                    LwM2mResponse cResponse = server.send(client, request);
-                    processDeviceResponse(resp, cResponse);
+                    sendAsync(req, client, new ExecuteRequest(target));
                 } else {
                     resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     resp.getWriter().format("no registered client with id '%s'", clientEndpoint).flush();
@@ -227,10 +256,6 @@ public class ClientServlet extends HttpServlet {
                 LOG.warn("Invalid request", e);
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 resp.getWriter().append(e.getMessage()).flush();
-            } catch (ResourceAccessException e) {
-                LOG.warn(String.format("Error accessing resource %s%s.", req.getServletPath(), req.getPathInfo()), e);
-                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                resp.getWriter().append(e.getMessage()).flush();
             }
             return;
         }
@@ -240,8 +265,7 @@ public class ClientServlet extends HttpServlet {
             try {
                 Client client = server.getClientRegistry().get(clientEndpoint);
                 if (client != null) {
-                    LwM2mResponse cResponse = this.createRequest(client, target, req, resp);
-                    processDeviceResponse(resp, cResponse);
+                    sendAsync(req, client, this.createRequest(target, req));
                 } else {
                     resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     resp.getWriter().format("no registered client with id '%s'", clientEndpoint).flush();
@@ -250,10 +274,6 @@ public class ClientServlet extends HttpServlet {
                 LOG.warn("Invalid request", e);
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 resp.getWriter().append(e.getMessage()).flush();
-            } catch (ResourceAccessException e) {
-                LOG.warn(String.format("Error accessing resource %s%s.", req.getServletPath(), req.getPathInfo()), e);
-                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                resp.getWriter().append(e.getMessage()).flush();
             }
             return;
         }
@@ -280,10 +300,6 @@ public class ClientServlet extends HttpServlet {
                 LOG.warn("Invalid request", e);
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 resp.getWriter().append(e.getMessage()).flush();
-            } catch (ResourceAccessException e) {
-                LOG.warn(String.format("Error accessing resource %s%s.", req.getServletPath(), req.getPathInfo()), e);
-                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                resp.getWriter().append(e.getMessage()).flush();
             }
             return;
         }
@@ -293,9 +309,7 @@ public class ClientServlet extends HttpServlet {
             String target = StringUtils.removeStart(req.getPathInfo(), "/" + clientEndpoint);
             Client client = server.getClientRegistry().get(clientEndpoint);
             if (client != null) {
-                DeleteRequest request = new DeleteRequest(target);
-                LwM2mResponse cResponse = server.send(client, request);
-                processDeviceResponse(resp, cResponse);
+                sendAsync(req, client, new DeleteRequest(target));
             } else {
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 resp.getWriter().format("no registered client with id '%s'", clientEndpoint).flush();
@@ -304,13 +318,87 @@ public class ClientServlet extends HttpServlet {
             LOG.warn("Invalid request", e);
             resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             resp.getWriter().append(e.getMessage()).flush();
-        } catch (ResourceAccessException e) {
-            LOG.warn(String.format("Error accessing resource %s%s.", req.getServletPath(), req.getPathInfo()), e);
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            resp.getWriter().append(e.getMessage()).flush();
         }
     }
 
+    /**
+     * Sends the request without blocking the servlet thread: the HTTP response is written when the client answers, or
+     * when the deadline of the request is reached. The HTTP request itself times out a bit later, in case the request
+     * was queued (the request is then cancelled).
+     */
+    private <T extends LwM2mResponse> void sendAsync(final HttpServletRequest req, Client client,
+            DownlinkRequest<T> request) {
+        final LwM2mFuture<T> future = server.sendAsync(client, request, RequestPriority.INTERACTIVE);
+
+        final AsyncContext async = req.startAsync();
+        async.setTimeout(requestTimeouts.getTimeout(client, request)
+                + CaliforniumLwM2mRequestSender.DEFAULT_SYNC_QUEUE_ALLOWANCE_MILLIS);
+        final AtomicBoolean responded = new AtomicBoolean(false);
+        final String resource = req.getServletPath() + req.getPathInfo();
+        async.addListener(new AsyncListener() {
+
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (responded.compareAndSet(false, true)) {
+                    future.cancel(true);
+                    processDeviceResponse((HttpServletResponse) async.getResponse(), null);
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                future.cancel(true);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+        });
+        future.addCallback(new LwM2mFuture.Callback<T>() {
+
+            @Override
+            public void onSuccess(T response) {
+                if (responded.compareAndSet(false, true)) {
+                    try {
+                        processDeviceResponse((HttpServletResponse) async.getResponse(), response);
+                    } catch (IOException e) {
+                        LOG.warn("Unable to write the response for " + resource, e);
+                    } finally {
+                        async.complete();
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (responded.compareAndSet(false, true)) {
+                    HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+                    try {
+                        if (e instanceof RequestTimeoutException || e instanceof TimeoutException) {
+                            processDeviceResponse(resp, null);
+                        } else if (e instanceof RequestQueueFullException) {
+                            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                            resp.getWriter().append(e.getMessage()).flush();
+                        } else {
+                            LOG.warn(String.format("Error accessing resource %s.", resource), e);
+                            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                            resp.getWriter().append(String.valueOf(e.getMessage())).flush();
+                        }
+                    } catch (IOException ex) {
+                        LOG.warn("Unable to write the response for " + resource, ex);
+                    } finally {
+                        async.complete();
+                    }
+                }
+            }
+        });
+    }
+
     private void processDeviceResponse(HttpServletResponse resp, LwM2mResponse cResponse) throws IOException {
         String response = null;
         if (cResponse == null) {
@@ -324,16 +412,15 @@ public class ClientServlet extends HttpServlet {
     }
 
     // TODO refactor the code to remove this method.
-    private LwM2mResponse writeRequest(Client client, String target, HttpServletRequest req, HttpServletResponse resp)
-            throws IOException {
+    private WriteRequest writeRequest(String target, HttpServletRequest req) throws IOException {
         Map<String, String> parameters = new HashMap<String, String>();
         String contentType = HttpFields.valueParameters(req.getContentType(), parameters);
 
         if ("text/plain".equals(contentType)) {
             String content = IOUtils.toString(req.getInputStream(), parameters.get("charset"));
             int rscId = Integer.valueOf(target.substring(target.lastIndexOf("/") + 1));
-            return server.send(client, new WriteRequest(target,
-                    new LwM2mResource(rscId, Value.newStringValue(content)), ContentFormat.TEXT, true));
+            return new WriteRequest(target, new LwM2mResource(rscId, Value.newStringValue(content)), ContentFormat.TEXT,
+                    true);
 
         } else if ("application/json".equals(contentType)) {
             String content = IOUtils.toString(req.getInputStream(), parameters.get("charset"));
@@ -343,7 +430,7 @@ public class ClientServlet extends HttpServlet {
             } catch (JsonSyntaxException e) {
                 throw new IllegalArgumentException("unable to parse json to tlv:" + e.getMessage(), e);
             }
-            return server.send(client, new WriteRequest(target, node, null, true));
+            return new WriteRequest(target, node, null, true);
 
         } else {
             throw new IllegalArgumentException("content type " + req.getContentType()
@@ -352,8 +439,7 @@ public class ClientServlet extends HttpServlet {
     }
 
     // TODO refactor the code to remove this method.
-    private LwM2mResponse createRequest(Client client, String target, HttpServletRequest req, HttpServletResponse resp)
-            throws IOException {
+    private CreateRequest createRequest(String target, HttpServletRequest req) throws IOException {
         Map<String, String> parameters = new HashMap<String, String>();
         String contentType = HttpFields.valueParameters(req.getContentType(), parameters);
         if ("application/json".equals(contentType)) {
@@ -367,8 +453,8 @@ public class ClientServlet extends HttpServlet {
             if (!(node instanceof LwM2mObjectInstance)) {
                 throw new IllegalArgumentException("payload must contain an object instance");
             }
-            return server.send(client, new CreateRequest(target, ((LwM2mObjectInstance) node).getResources().values()
-                    .toArray(new LwM2mResource[0]), ContentFormat.TLV));
+            return new CreateRequest(target, ((LwM2mObjectInstance) node).getResources().values()
+                    .toArray(new LwM2mResource[0]), ContentFormat.TLV);
         } else {
             throw new IllegalArgumentException("content type " + req.getContentType()
                     + " not supported for write requests");
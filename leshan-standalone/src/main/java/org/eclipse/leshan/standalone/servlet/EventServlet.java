@@ -34,8 +34,12 @@ import org.eclipse.jetty.util.ConcurrentHashSet;
 import org.eclipse.leshan.core.node.LwM2mNode;
 import org.eclipse.leshan.server.californium.impl.LeshanServer;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistry;
 import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.eclipse.leshan.server.impl.AsyncClientRegistryListener;
+import org.eclipse.leshan.server.impl.ConflatingObservationRegistryListener;
 import org.eclipse.leshan.server.observation.Observation;
+import org.eclipse.leshan.server.observation.ObservationRegistry;
 import org.eclipse.leshan.server.observation.ObservationRegistryListener;
 import org.eclipse.leshan.standalone.servlet.json.ClientSerializer;
 import org.eclipse.leshan.standalone.servlet.json.LwM2mNodeSerializer;
@@ -101,6 +105,12 @@ public class EventServlet extends HttpServlet {
         }
     };
 
+    // SSE writes may block: keep them out of the registration path
+    private final AsyncClientRegistryListener asyncClientRegistryListener = new AsyncClientRegistryListener(
+            clientRegistryListener);
+
+    private final ClientRegistry clientRegistry;
+
     private final ObservationRegistryListener observationRegistryListener = new ObservationRegistryListener() {
 
         @Override
@@ -125,9 +135,17 @@ public class EventServlet extends HttpServlet {
         }
     };
 
+    // only the latest value of each resource matters to the web UI
+    private final ConflatingObservationRegistryListener conflatingObservationRegistryListener = new ConflatingObservationRegistryListener(
+            observationRegistryListener);
+
+    private final ObservationRegistry observationRegistry;
+
     public EventServlet(LeshanServer server) {
-        server.getClientRegistry().addListener(this.clientRegistryListener);
-        server.getObservationRegistry().addListener(this.observationRegistryListener);
+        this.clientRegistry = server.getClientRegistry();
+        clientRegistry.addListener(this.asyncClientRegistryListener);
+        this.observationRegistry = server.getObservationRegistry();
+        observationRegistry.addListener(this.conflatingObservationRegistryListener);
 
         // add an interceptor to each endpoint to trace all CoAP messages
         coapMessageTracer = new CoapMessageTracer(server.getClientRegistry());
@@ -175,6 +193,15 @@ public class EventServlet extends HttpServlet {
         }
     }
 
+    @Override
+    public void destroy() {
+        clientRegistry.removeListener(asyncClientRegistryListener);
+        asyncClientRegistryListener.stop();
+        observationRegistry.removeListener(conflatingObservationRegistryListener);
+        conflatingObservationRegistryListener.stop();
+        super.destroy();
+    }
+
     /**
      * {@inheritDoc}
      */